@@ -1,5 +1,6 @@
 package org.frontmatter.keycloak.username;
 
+import org.frontmatter.keycloak.username.allocator.UsernameAllocatorProvider;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.IdentityProviderMapperModel;
@@ -48,7 +49,7 @@ public class AutoUsernameMapperFactory extends AbstractIdentityProviderMapper {
 
   @Override
   public String getHelpText() {
-    return "Automatically generates a random username using Crockford Base32 encoding (format: usr_xxxxxxxx). Compatible with all identity providers.";
+    return "Automatically generates a random username using Crockford Base32 encoding (default format: usr_xxxxxxxx). Compatible with all identity providers.";
   }
 
   @Override
@@ -76,16 +77,10 @@ public class AutoUsernameMapperFactory extends AbstractIdentityProviderMapper {
     }
   }
 
-  private void assignUsername(KeycloakSession session, RealmModel realm, UserModel user) {
-    for (int attempt = 0; attempt < 3; attempt++) {
-      String username = UsernameGenerator.generate();
-
-      if (session.users().getUserByUsername(realm, username) == null) {
-        user.setUsername(username);
-        return;
-      }
-    }
-
-    throw new RuntimeException("Failed to generate unique username after 3 retries");
+  void assignUsername(KeycloakSession session, RealmModel realm, UserModel user) {
+    UsernameAllocatorProvider allocator = UsernameAllocatorProvider.of(session);
+    String username = allocator.allocate(realm);
+    user.setUsername(username);
+    allocator.assigned(realm, username);
   }
 }
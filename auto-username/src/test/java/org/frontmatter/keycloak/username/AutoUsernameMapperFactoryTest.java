@@ -0,0 +1,95 @@
+package org.frontmatter.keycloak.username;
+
+import org.frontmatter.keycloak.username.allocator.UsernameAllocatorProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class AutoUsernameMapperFactoryTest {
+
+  private final AutoUsernameMapperFactory mapper = new AutoUsernameMapperFactory();
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserModel user;
+  private UserProvider userProvider;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    user = mock(UserModel.class);
+    userProvider = mock(UserProvider.class);
+    when(session.users()).thenReturn(userProvider);
+    when(realm.getId()).thenReturn("realm-1");
+  }
+
+  @Test
+  void testAssignsUsernameFromTheDeployedAllocator() {
+    UsernameAllocatorProvider allocator = mock(UsernameAllocatorProvider.class);
+    when(allocator.allocate(realm)).thenReturn("usr_a3k9m2p7");
+    when(session.getProvider(UsernameAllocatorProvider.class)).thenReturn(allocator);
+
+    mapper.assignUsername(session, realm, user);
+
+    InOrder inOrder = inOrder(allocator, user);
+    inOrder.verify(allocator).allocate(realm);
+    inOrder.verify(user).setUsername("usr_a3k9m2p7");
+    inOrder.verify(allocator).assigned(realm, "usr_a3k9m2p7");
+  }
+
+  @Test
+  void testAssignsFreeUsernameWithoutTheSpi() {
+    mapper.assignUsername(session, realm, user);
+
+    ArgumentCaptor<String> username = ArgumentCaptor.forClass(String.class);
+    verify(user).setUsername(username.capture());
+    assertTrue(username.getValue().matches("^usr_[0-9a-hj-km-np-tv-z]{8}$"),
+        "Username should match pattern usr_XXXXXXXX with base32 characters: " + username.getValue());
+    verify(userProvider).getUserByUsername(realm, username.getValue());
+  }
+
+  @Test
+  void testImportFailsWhenAllTriedUsernamesAreTaken() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString())).thenReturn(mock(UserModel.class));
+
+    assertThrows(ModelException.class, () -> mapper.assignUsername(session, realm, user));
+    verify(user, never()).setUsername(anyString());
+  }
+
+  @Test
+  void testImportNewUserAssignsUsername() {
+    mapper.importNewUser(session, realm, user, null, null);
+
+    verify(user).setUsername(anyString());
+  }
+
+  @Test
+  void testUpdateBrokeredUserKeepsExistingUsername() {
+    when(user.getUsername()).thenReturn("usr_k9m2a7p3");
+
+    mapper.updateBrokeredUser(session, realm, user, null, null);
+
+    verify(user, never()).setUsername(anyString());
+  }
+
+  @Test
+  void testUpdateBrokeredUserAssignsMissingUsername() {
+    when(user.getUsername()).thenReturn("");
+
+    mapper.updateBrokeredUser(session, realm, user, null, null);
+
+    verify(user).setUsername(anyString());
+  }
+}
@@ -0,0 +1,87 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Username generation under concurrent registrations: the former generator
+ * (one shared SecureRandom, eight nextInt(32) calls per username) against
+ * {@link UsernameGenerator} (one 40-bit draw from a striped DRBG) on 1 to 64
+ * threads. Throughput is the total over all threads, so a generator that
+ * scales keeps growing with the thread count up to the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsernameGeneratorScalingBenchmark {
+
+  private static final char[] BASE32 = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+  private static final SecureRandom SHARED = new SecureRandom();
+
+  @Benchmark
+  @Threads(1)
+  public String sharedRandom_01() {
+    return sharedRandom();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String sharedRandom_04() {
+    return sharedRandom();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String sharedRandom_16() {
+    return sharedRandom();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public String sharedRandom_64() {
+    return sharedRandom();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String stripedDrbg_01() {
+    return UsernameGenerator.DEFAULT.generate();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String stripedDrbg_04() {
+    return UsernameGenerator.DEFAULT.generate();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String stripedDrbg_16() {
+    return UsernameGenerator.DEFAULT.generate();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public String stripedDrbg_64() {
+    return UsernameGenerator.DEFAULT.generate();
+  }
+
+  private static String sharedRandom() {
+    char[] buf = new char[8];
+    for (int i = 0; i < buf.length; i++) {
+      buf[i] = BASE32[SHARED.nextInt(BASE32.length)];
+    }
+    return "usr_" + new String(buf);
+  }
+}
@@ -0,0 +1,25 @@
+package org.invenio.keycloak.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of benchmarks.jar. Runs JMH with the GC profiler enabled so
+ * every run reports allocation rate next to throughput and latency
+ * percentiles, unless profilers are chosen explicitly with -prof.
+ */
+public final class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    if (!Arrays.asList(args).contains("-prof")) {
+      String[] withGc = new String[args.length + 2];
+      withGc[0] = "-prof";
+      withGc[1] = "gc";
+      System.arraycopy(args, 0, withGc, 2, args.length);
+      args = withGc;
+    }
+    org.openjdk.jmh.Main.main(args);
+  }
+
+  private BenchmarkMain() {
+  }
+}
@@ -0,0 +1,56 @@
+package org.invenio.keycloak.gravatar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gravatar URL computation, run for every token the mapper is attached to:
+ * from scratch, and the way setClaim() does it with the per-mapper settings
+ * and the email hash already cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GravatarBenchmark {
+
+  public String email = " Jane.Doe@CS.Uni.edu ";
+  public String normalizedEmail = "jane.doe@cs.uni.edu";
+
+  private GravatarSettings settings;
+  private GravatarHashCache hashCache;
+
+  @Setup
+  public void setUp() {
+    settings = GravatarSettings.fromConfig(Map.of("gravatar.size", "200", "gravatar.default", "mp",
+        "gravatar.rating", "g"));
+    hashCache = new GravatarHashCache(GravatarPictureProtocolMapper.HASH_CACHE_SIZE);
+    // Any 32 hex digits; only the lookup and URL assembly are measured
+    hashCache.get(normalizedEmail, e -> "9e26471d35a78862c17e467d87cddedf");
+  }
+
+  @Benchmark
+  public String gravatarUrlForEmail() {
+    return GravatarPictureProtocolMapper.gravatarUrlForEmail(email, 200, "mp", "g");
+  }
+
+  @Benchmark
+  public String cachedSettingsAndHash() {
+    return settings.urlFor(hashCache.get(normalizedEmail, e -> {
+      throw new IllegalStateException("Hash should be cached after the first call");
+    }));
+  }
+}
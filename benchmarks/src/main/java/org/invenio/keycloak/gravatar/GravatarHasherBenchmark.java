@@ -0,0 +1,56 @@
+package org.invenio.keycloak.gravatar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Email hashing for Gravatar URLs: the former implementation (digest lookup,
+ * byte[] and HexFormat per call) against {@link GravatarHasher}. Run with the
+ * GC profiler and compare gc.alloc.rate.norm; use -t to match the number of
+ * request threads issuing tokens. reusedDigestSha256 shows the cost of the
+ * SHA-256 mapper option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class GravatarHasherBenchmark {
+
+  @Param({ "jane.doe@cs.uni.edu", "jürgen.müller@universität.de" })
+  public String email;
+
+  @Benchmark
+  public String baseline() throws NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    byte[] digest = md.digest(email.getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().formatHex(digest);
+  }
+
+  @Benchmark
+  public String reusedDigest() {
+    return GravatarHasher.MD5.hexDigest(email);
+  }
+
+  @Benchmark
+  public String reusedDigestSha256() {
+    return GravatarHasher.SHA256.hexDigest(email);
+  }
+}
@@ -0,0 +1,82 @@
+package org.invenio.keycloak.magiclink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allowed-domain lookup cost as the allow-list grows. The trie lookups should
+ * stay flat from 100 to 100k entries; the linear scan is the pre-trie
+ * behaviour for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomainSuffixTrieBenchmark {
+
+  @Param({ "100", "1000", "10000", "100000" })
+  public int entries;
+
+  private DomainSuffixTrie trie;
+  private List<String> linear;
+
+  private String exactHit;
+  private String subdomainHit;
+  private String miss;
+
+  @Setup
+  public void setUp() {
+    List<String> patterns = new ArrayList<>(entries);
+    for (int i = 0; i < entries; i++) {
+      // Mix of exact and wildcard registrations, as institutions use both
+      patterns.add(i % 2 == 0 ? "inst" + i + ".edu" : ".inst" + i + ".ac.uk");
+    }
+    trie = DomainSuffixTrie.of(patterns);
+    linear = patterns;
+
+    int last = entries - 1 - ((entries - 1) % 2);
+    exactHit = "inst" + last + ".edu";
+    subdomainHit = "mail.dept.inst" + (entries - 1 - (entries % 2)) + ".ac.uk";
+    miss = "cs.unknown-university.org";
+  }
+
+  @Benchmark
+  public boolean trieExactHit() {
+    return trie.matches(exactHit);
+  }
+
+  @Benchmark
+  public boolean trieSubdomainHit() {
+    return trie.matches(subdomainHit);
+  }
+
+  @Benchmark
+  public boolean trieMiss() {
+    return trie.matches(miss);
+  }
+
+  @Benchmark
+  public boolean linearScanExactHit() {
+    for (String d : linear) {
+      if (d.trim().equalsIgnoreCase(exactHit)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
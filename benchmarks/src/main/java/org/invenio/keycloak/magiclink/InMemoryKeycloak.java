@@ -0,0 +1,291 @@
+package org.invenio.keycloak.magiclink;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.TokenVerifier;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.VerificationException;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.MacSignatureSignerContext;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.TokenManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.keycloak.urls.HostnameProvider;
+import org.keycloak.urls.UrlType;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import static org.invenio.keycloak.magiclink.StandIns.standIn;
+
+/**
+ * A single realm with one client, one user and an allowed-domains group, wired
+ * into a {@link KeycloakSession} stand-in. Tokens are signed with a real
+ * HS512 key, as Keycloak does for action tokens; email providers only count
+ * the messages they are asked to send.
+ */
+final class InMemoryKeycloak {
+
+  static final String BASE_URI = "https://auth.example.org/";
+  static final String REALM_ID = "3f1c2a0e-realm";
+  static final String REALM_NAME = "invenio";
+  static final String CLIENT_ID = "invenio-web";
+  static final String REDIRECT_URI = "https://invenio.example.org/oauth/authorized/keycloak/";
+  static final String USER_ID = "8d5e4b6a-user";
+  static final String USER_EMAIL = "jane.doe@cs.uni.edu";
+  static final String ALLOWED_DOMAINS_GROUP = "institutions";
+
+  // Keeps the JUL logger (and so its level) reachable for the whole fork
+  private static final java.util.logging.Logger PROVIDER_LOGGER = java.util.logging.Logger
+      .getLogger("org.invenio.keycloak");
+
+  final KeyWrapper hmacKey;
+  final RealmModel realm;
+  final ClientModel client;
+  final UserModel user;
+  final AuthenticationSessionModel authSession;
+  final KeycloakSession session;
+  final KeycloakUriInfo uriInfo;
+  final Response response;
+  final LongAdder emailsSent = new LongAdder();
+  // Queries by username or email reach the database; loads by id are
+  // answered by Keycloak's user cache once the user was loaded
+  final LongAdder userQueries = new LongAdder();
+  final LongAdder userLoadsById = new LongAdder();
+  final Map<String, Map<String, String>> singleUseObjects = new ConcurrentHashMap<>();
+
+  InMemoryKeycloak(List<String> allowedDomains) {
+    // The providers log every request at INFO; writing that to the console
+    // would dominate the measurements.
+    PROVIDER_LOGGER.setLevel(Level.WARNING);
+
+    hmacKey = hmacKey();
+    response = Response.ok().build();
+
+    GroupModel group = standIn(GroupModel.class)
+        .returning("getId", "group-1")
+        .returning("getName", ALLOWED_DOMAINS_GROUP)
+        .answering("getAttributeStream", args -> allowedDomains.stream())
+        .build();
+
+    realm = standIn(RealmModel.class)
+        .returning("getId", REALM_ID)
+        .returning("getName", REALM_NAME)
+        .returning("getDisplayName", "Invenio")
+        .returning("isEnabled", true)
+        .returning("isLoginWithEmailAllowed", true)
+        .returning("getSmtpConfig", Map.of("from", "noreply@example.org", "replyTo", "support@example.org"))
+        .answering("getGroupsStream", args -> Stream.of(group))
+        .build();
+
+    client = standIn(ClientModel.class)
+        .returning("getId", "5b7a9c1d-client")
+        .returning("getClientId", CLIENT_ID)
+        .returning("isEnabled", true)
+        .returning("getRedirectUris", Set.of(REDIRECT_URI + "*"))
+        .returning("getRootUrl", "https://invenio.example.org")
+        .returning("getBaseUrl", "/")
+        .build();
+
+    user = standIn(UserModel.class)
+        .returning("getId", USER_ID)
+        .returning("getUsername", "usr_a3k9m2p7")
+        .returning("getEmail", USER_EMAIL)
+        .returning("isEnabled", true)
+        .returning("isEmailVerified", true)
+        .build();
+
+    RootAuthenticationSessionModel rootSession = standIn(RootAuthenticationSessionModel.class)
+        .returning("getId", "c0ffee00-root-session")
+        .returning("getRealm", realm)
+        .build();
+
+    authSession = standIn(AuthenticationSessionModel.class)
+        .returning("getTabId", "Xk2p9dQz3aE")
+        .returning("getParentSession", rootSession)
+        .returning("getRealm", realm)
+        .returning("getClient", client)
+        .returning("getRedirectUri", REDIRECT_URI)
+        .returning("getProtocol", "openid-connect")
+        .returning("getClientNotes", Map.of(
+            "response_type", "code",
+            "scope", "openid profile email",
+            "state", "a1b2c3d4e5f6",
+            "nonce", "n-0S6_WzA2Mj",
+            "redirect_uri", REDIRECT_URI,
+            "code_challenge", "E9Melhoa2OwvFrEMTJguCHaoeK1t8URWbuGJSstw-cM",
+            "code_challenge_method", "S256"))
+        .build();
+
+    UserProvider users = standIn(UserProvider.class)
+        .answering("getUserByEmail", args -> {
+          userQueries.increment();
+          return USER_EMAIL.equals(args[1]) ? user : null;
+        })
+        .answering("getUserByUsername", args -> {
+          userQueries.increment();
+          return null;
+        })
+        .answering("getUserById", args -> {
+          userLoadsById.increment();
+          return USER_ID.equals(args[1]) ? user : null;
+        })
+        .build();
+
+    TokenManager tokens = standIn(TokenManager.class)
+        .returning("signatureAlgorithm", Algorithm.HS512)
+        .answering("encode", args -> encode((JsonWebToken) args[0]))
+        .answering("decode", args -> decode((String) args[0], (Class<? extends JsonWebToken>) args[1]))
+        .build();
+
+    HostnameProvider hostname = standIn(HostnameProvider.class)
+        .returning("getBaseUri", URI.create(BASE_URI))
+        .build();
+
+    EmailTemplateProvider emailTemplates = standIn(EmailTemplateProvider.class)
+        .answering("send", args -> {
+          emailsSent.increment();
+          return null;
+        })
+        .build();
+
+    EmailSenderProvider emailSender = standIn(EmailSenderProvider.class)
+        .answering("send", args -> {
+          emailsSent.increment();
+          return null;
+        })
+        .build();
+
+    // Entries never expire; benchmarks that keep adding entries clear the map
+    SingleUseObjectProvider singleUse = standIn(SingleUseObjectProvider.class)
+        .answering("get", args -> singleUseObjects.get((String) args[0]))
+        .answering("put", args -> singleUseObjects.put((String) args[0], (Map<String, String>) args[2]))
+        .answering("putIfAbsent", args -> singleUseObjects.putIfAbsent((String) args[0], Map.of()) == null)
+        .answering("remove", args -> singleUseObjects.remove((String) args[0]))
+        .answering("contains", args -> singleUseObjects.containsKey((String) args[0]))
+        .build();
+
+    Map<Class<?>, Object> providers = Map.of(
+        HostnameProvider.class, hostname,
+        EmailTemplateProvider.class, emailTemplates,
+        EmailSenderProvider.class, emailSender);
+
+    KeycloakContext[] context = new KeycloakContext[1];
+    session = standIn(KeycloakSession.class)
+        .answering("getContext", args -> context[0])
+        .answering("getProvider", args -> providers.get(args[0]))
+        .returning("users", users)
+        .returning("tokens", tokens)
+        .returning("singleUseObjects", singleUse)
+        .build();
+
+    UriInfo requestUri = standIn(UriInfo.class)
+        .returning("getBaseUri", URI.create(BASE_URI))
+        .returning("getRequestUri", URI.create(BASE_URI + "realms/" + REALM_NAME
+            + "/login-actions/authenticate?execution=magic-link&client_id=" + CLIENT_ID + "&tab_id=Xk2p9dQz3aE"))
+        .build();
+    uriInfo = new KeycloakUriInfo(session, UrlType.FRONTEND, requestUri);
+
+    context[0] = standIn(KeycloakContext.class)
+        .returning("getRealm", realm)
+        .returning("getClient", client)
+        .returning("getAuthenticationSession", authSession)
+        .returning("getUri", uriInfo)
+        .build();
+  }
+
+  /**
+   * Flow context for a POST of the username form with the given email.
+   */
+  AuthenticationFlowContext usernameFormPost(String email, Map<String, String> authenticatorConfig) {
+    MultivaluedHashMap<String, String> form = new MultivaluedHashMap<>();
+    form.putSingle("username", email);
+    HttpRequest request = standIn(HttpRequest.class)
+        .returning("getDecodedFormParameters", form)
+        .build();
+
+    AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+    // Stable per form post, so the authenticator parses it once like a real realm's config
+    config.setId(UUID.randomUUID().toString());
+    config.setAlias("magic-link");
+    config.setConfig(authenticatorConfig);
+
+    LoginFormsProvider[] forms = new LoginFormsProvider[1];
+    forms[0] = standIn(LoginFormsProvider.class)
+        .answering("setError", args -> forms[0])
+        .answering("setAttribute", args -> forms[0])
+        .returning("createForm", response)
+        .returning("createLoginUsername", response)
+        .build();
+
+    return standIn(AuthenticationFlowContext.class)
+        .returning("getHttpRequest", request)
+        .returning("getSession", session)
+        .returning("getRealm", realm)
+        .returning("getAuthenticationSession", authSession)
+        .returning("getAuthenticatorConfig", config)
+        .returning("form", forms[0])
+        .build();
+  }
+
+  private String encode(JsonWebToken token) throws Exception {
+    return new JWSBuilder()
+        .type("JWT")
+        .jsonContent(token)
+        .sign(new MacSignatureSignerContext(hmacKey));
+  }
+
+  private <T extends JsonWebToken> T decode(String token, Class<T> type) {
+    try {
+      return TokenVerifier.create(token, type)
+          .verifierContext(new MacSignatureVerifierContext(hmacKey))
+          .verify()
+          .getToken();
+    } catch (VerificationException e) {
+      return null;
+    }
+  }
+
+  private static KeyWrapper hmacKey() {
+    byte[] secret = new byte[64];
+    new SecureRandom().nextBytes(secret);
+
+    KeyWrapper key = new KeyWrapper();
+    key.setKid("hs512-benchmark");
+    key.setAlgorithm(Algorithm.HS512);
+    key.setType(KeyType.OCT);
+    key.setUse(KeyUse.SIG);
+    key.setSecretKey(new SecretKeySpec(secret, "HmacSHA512"));
+    return key;
+  }
+}
@@ -0,0 +1,120 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link MagicLinkActionToken} as the authenticator does, alone,
+ * followed by HS512 signing and serialization, and verifying the serialized
+ * token, for each client notes encoding. The {@link TokenLength} counter
+ * reports the length of the serialized token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+public class MagicLinkActionTokenBenchmark {
+
+  @Param({ MagicLinkClientNotes.ENCODING_FULL, MagicLinkClientNotes.ENCODING_COMPACT,
+      MagicLinkClientNotes.ENCODING_REFERENCE })
+  public String encoding;
+
+  private InMemoryKeycloak keycloak;
+  private Map<String, String> clientNotes;
+  private Set<String> compactNotes;
+  private String tokenString;
+
+  /**
+   * Characters of the serialized token, reported next to the serialization
+   * and verification scores.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class TokenLength {
+    private long characters;
+
+    @Setup(Level.Iteration)
+    public void measure(MagicLinkActionTokenBenchmark benchmark) {
+      characters = benchmark.tokenString.length();
+    }
+
+    public long tokenCharacters() {
+      return characters;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    keycloak = new InMemoryKeycloak(List.of());
+    clientNotes = keycloak.authSession.getClientNotes();
+    compactNotes = MagicLinkClientNotes.noteNames(null);
+  }
+
+  /**
+   * The reference encoding stores the notes of every token built; dropping
+   * them between iterations keeps the store from growing for the whole run.
+   */
+  @Setup(Level.Iteration)
+  public void resetStore() {
+    keycloak.singleUseObjects.clear();
+    tokenString = serialize();
+  }
+
+  @Benchmark
+  public MagicLinkActionToken construct() {
+    return newToken();
+  }
+
+  @Benchmark
+  public String constructAndSerialize(TokenLength length) {
+    return serialize();
+  }
+
+  @Benchmark
+  public Map<String, String> verify(TokenLength length) throws VerificationException {
+    MagicLinkActionToken token = TokenVerifier.create(tokenString, MagicLinkActionToken.class)
+        .verifierContext(new MacSignatureVerifierContext(keycloak.hmacKey))
+        .verify()
+        .getToken();
+    return MagicLinkClientNotes.read(token, keycloak.session);
+  }
+
+  private String serialize() {
+    return newToken().serialize(keycloak.session, keycloak.realm, keycloak.uriInfo);
+  }
+
+  private MagicLinkActionToken newToken() {
+    MagicLinkActionToken token = new MagicLinkActionToken(
+        InMemoryKeycloak.USER_ID,
+        Time.currentTime() + 900,
+        InMemoryKeycloak.CLIENT_ID,
+        InMemoryKeycloak.REDIRECT_URI,
+        MagicLinkClientNotes.ENCODING_FULL.equals(encoding) ? false : null,
+        null,
+        null);
+    MagicLinkClientNotes.write(token, encoding, clientNotes, compactNotes, keycloak.session, 900);
+    return token;
+  }
+}
@@ -0,0 +1,84 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.TokenVerifier;
+import org.keycloak.authentication.actiontoken.ActionTokenContext;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.keycloak.services.Urls;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redeeming a magic link the way the action-token endpoint does before it
+ * hands over to {@link MagicLinkActionTokenHandler#handleToken}: parse the
+ * JWS, check the HS512 signature, run the default checks plus the handler's
+ * verifiers and consult the single-use policy.
+ *
+ * The remainder of handleToken() completes the login through
+ * AuthenticationManager (user session, client scopes, OIDC code), which needs
+ * a running server and is not covered here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+public class MagicLinkActionTokenHandlerBenchmark {
+
+  private InMemoryKeycloak keycloak;
+  private MagicLinkActionTokenHandler handler;
+  private ActionTokenContext<MagicLinkActionToken> tokenContext;
+  private String issuer;
+  private String tokenString;
+
+  @Setup
+  public void setUp() {
+    keycloak = new InMemoryKeycloak(List.of());
+    handler = new MagicLinkActionTokenHandler();
+    tokenContext = new ActionTokenContext<>(keycloak.session, keycloak.realm, keycloak.uriInfo,
+        null, null, null, handler, null, null, null);
+    tokenContext.setAuthenticationSession(keycloak.authSession, false);
+    issuer = Urls.realmIssuer(keycloak.uriInfo.getBaseUri(), InMemoryKeycloak.REALM_NAME);
+
+    MagicLinkActionToken token = new MagicLinkActionToken(
+        InMemoryKeycloak.USER_ID,
+        // Stays valid for any realistic run length
+        Time.currentTime() + 86400,
+        InMemoryKeycloak.CLIENT_ID,
+        InMemoryKeycloak.REDIRECT_URI,
+        false,
+        null,
+        keycloak.authSession.getClientNotes());
+    tokenString = token.serialize(keycloak.session, keycloak.realm, keycloak.uriInfo);
+  }
+
+  @Benchmark
+  public MagicLinkActionToken verifyAndCheck() throws VerificationException {
+    MagicLinkActionToken token = TokenVerifier.create(tokenString, MagicLinkActionToken.class)
+        .withChecks(
+            TokenVerifier.IS_ACTIVE,
+            new TokenVerifier.RealmUrlCheck(issuer),
+            new TokenVerifier.TokenTypeCheck(List.of(MagicLinkActionToken.TOKEN_TYPE)))
+        .withChecks(handler.getVerifiers(tokenContext))
+        .verifierContext(new MacSignatureVerifierContext(keycloak.hmacKey))
+        .verify()
+        .getToken();
+    if (handler.canUseTokenRepeatedly(token, tokenContext)) {
+      throw new IllegalStateException("Magic link tokens must be single-use");
+    }
+    return token;
+  }
+}
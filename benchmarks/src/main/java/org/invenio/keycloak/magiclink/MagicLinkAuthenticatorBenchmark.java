@@ -0,0 +1,96 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MagicLinkAuthenticator#action} for the three outcomes of a username
+ * form post. Emails are sent synchronously to stand-in providers, so the
+ * numbers cover domain checks, user lookup, token signing and link building
+ * but not template rendering or SMTP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+public class MagicLinkAuthenticatorBenchmark {
+
+  private InMemoryKeycloak keycloak;
+  private MagicLinkAuthenticator authenticator;
+
+  private AuthenticationFlowContext knownUser;
+  private AuthenticationFlowContext domainNotAllowed;
+  private AuthenticationFlowContext unknownUser;
+
+  @Setup
+  public void setUp() {
+    keycloak = new InMemoryKeycloak(List.of(".uni.edu", "example.org", "*.ac.uk"));
+    authenticator = new MagicLinkAuthenticator();
+
+    // Rate limits and link reuse would turn every repeated request into a
+    // no-op; they are off so each invocation takes the full path
+    Map<String, String> restricted = Map.of(
+        "allowedDomainsGroup", InMemoryKeycloak.ALLOWED_DOMAINS_GROUP,
+        "tokenValidity", "900",
+        "rateLimitPerEmail", "0",
+        "rateLimitPerIp", "0",
+        "duplicateRequestWindow", "0");
+    knownUser = keycloak.usernameFormPost(InMemoryKeycloak.USER_EMAIL, restricted);
+    domainNotAllowed = keycloak.usernameFormPost("someone@gmail.com", restricted);
+    unknownUser = keycloak.usernameFormPost("new.user@gmail.com", Map.of(
+        "createUser", "false",
+        "rateLimitPerEmail", "0",
+        "rateLimitPerIp", "0"));
+  }
+
+  @TearDown(Level.Trial)
+  public void checkEmailsWereSent() {
+    if (keycloak.emailsSent.sum() == 0) {
+      throw new IllegalStateException("No emails sent - the benchmark is not exercising the send path");
+    }
+  }
+
+  /**
+   * Existing user: sign a token, build the link and send the magic link email.
+   */
+  @Benchmark
+  public AuthenticationFlowContext knownUser() {
+    authenticator.action(knownUser);
+    return knownUser;
+  }
+
+  /**
+   * Domain outside the allow-list: notify the address and the realm contact.
+   */
+  @Benchmark
+  public AuthenticationFlowContext domainNotAllowed() {
+    authenticator.action(domainNotAllowed);
+    return domainNotAllowed;
+  }
+
+  /**
+   * Unknown user without auto-creation: nothing is sent.
+   */
+  @Benchmark
+  public AuthenticationFlowContext unknownUser() {
+    authenticator.action(unknownUser);
+    return unknownUser;
+  }
+}
@@ -0,0 +1,102 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User lookup of a magic link request in the {@code usernameOrEmail} mode
+ * (Keycloak's {@code findUserByNameOrEmail}, the former behaviour) and the
+ * {@code email} mode, with and without the email index. The stand-in user
+ * provider answers from memory, so the time per operation is the resolver's
+ * own overhead; the {@link Lookups} counters report what a real user store
+ * would be asked per login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MagicLinkUserResolverBenchmark {
+
+  @Param({ MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL, MagicLinkUserResolver.MODE_EMAIL })
+  public String mode;
+
+  /**
+   * TTL of the email index; 0 disables it.
+   */
+  @Param({ "0", "3600" })
+  public long emailIndexTtlSeconds;
+
+  private InMemoryKeycloak keycloak;
+  private MagicLinkUserResolver resolver;
+
+  /**
+   * User store calls per login in the iteration, reported next to the time
+   * per operation. The stand-in counts the calls of all threads, so the
+   * ratios assume the default single benchmark thread.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Lookups {
+    private InMemoryKeycloak keycloak;
+    private long logins;
+    private long queries;
+    private long loadsById;
+
+    @Setup(Level.Iteration)
+    public void reset(MagicLinkUserResolverBenchmark benchmark) {
+      keycloak = benchmark.keycloak;
+      logins = 0;
+      queries = keycloak.userQueries.sum();
+      loadsById = keycloak.userLoadsById.sum();
+    }
+
+    public double queriesPerLogin() {
+      return (keycloak.userQueries.sum() - queries) / (double) Math.max(1, logins);
+    }
+
+    public double loadsByIdPerLogin() {
+      return (keycloak.userLoadsById.sum() - loadsById) / (double) Math.max(1, logins);
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    keycloak = new InMemoryKeycloak(List.of());
+    resolver = new MagicLinkUserResolver(emailIndexTtlSeconds, 1000);
+  }
+
+  /**
+   * An existing user requesting a link.
+   */
+  @Benchmark
+  public UserModel knownUser(Lookups lookups) {
+    lookups.logins++;
+    return resolver.find(keycloak.session, keycloak.realm, InMemoryKeycloak.USER_EMAIL, mode);
+  }
+
+  /**
+   * An address without a user.
+   */
+  @Benchmark
+  public UserModel unknownUser(Lookups lookups) {
+    lookups.logins++;
+    return resolver.find(keycloak.session, keycloak.realm, "new.user@gmail.com", mode);
+  }
+}
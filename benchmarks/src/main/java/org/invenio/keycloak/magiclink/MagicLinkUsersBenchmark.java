@@ -0,0 +1,178 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RequiredActionProviderModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.invenio.keycloak.magiclink.StandIns.standIn;
+
+/**
+ * Creation of an auto-created user: {@link MagicLinkUsers#create} against the
+ * former path (add the user with the realm's default required actions, set
+ * the fields, remove the three profile actions again).
+ *
+ * The stand-in store counts the statements the JPA store would issue: an
+ * insert for the user, an insert per added and a delete per removed required
+ * action, and one update at commit for the changed fields. The
+ * {@link Statements} counter reports them per created user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MagicLinkUsersBenchmark {
+
+  /**
+   * Comma-separated default required actions of the realm.
+   */
+  @Param({ "", "VERIFY_EMAIL,UPDATE_PROFILE,TERMS_AND_CONDITIONS" })
+  public String defaultRequiredActions;
+
+  private static final String USERNAME = "usr_a3k9m2p7";
+  private static final String EMAIL = "jane.doe@cs.uni.edu";
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private long statements;
+  private long created;
+  private boolean dirty;
+
+  @Setup
+  public void setUp() {
+    List<RequiredActionProviderModel> actions = Arrays.stream(defaultRequiredActions.split(","))
+        .filter(alias -> !alias.isEmpty())
+        .map(alias -> {
+          RequiredActionProviderModel action = new RequiredActionProviderModel();
+          action.setAlias(alias);
+          action.setEnabled(true);
+          action.setDefaultAction(true);
+          return action;
+        })
+        .toList();
+
+    realm = standIn(RealmModel.class)
+        .returning("getId", InMemoryKeycloak.REALM_ID)
+        .answering("getRequiredActionProvidersStream", args -> actions.stream())
+        .build();
+
+    UserProvider users = standIn(UserProvider.class)
+        .answering("addUser", args -> {
+          // addUser(realm, username) adds the default required actions
+          boolean addDefaultRequiredActions = args.length == 2 || (Boolean) args[4];
+          return user(addDefaultRequiredActions ? actions : List.of());
+        })
+        .build();
+
+    session = standIn(KeycloakSession.class)
+        .returning("users", users)
+        .build();
+  }
+
+  /**
+   * Statements per created user in the iteration, reported next to the time
+   * per operation.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Statements {
+    private MagicLinkUsersBenchmark benchmark;
+    private long statements;
+    private long created;
+
+    @Setup(Level.Iteration)
+    public void reset(MagicLinkUsersBenchmark benchmark) {
+      this.benchmark = benchmark;
+      statements = benchmark.statements;
+      created = benchmark.created;
+    }
+
+    public double statementsPerUser() {
+      return (benchmark.statements - statements) / (double) Math.max(1, benchmark.created - created);
+    }
+  }
+
+  /**
+   * The former createUser() mutations.
+   */
+  @Benchmark
+  public UserModel addThenRemoveRequiredActions(Statements counters) {
+    UserModel user = session.users().addUser(realm, USERNAME);
+    user.setEnabled(true);
+    user.setEmail(EMAIL);
+    user.setEmailVerified(true);
+    user.removeRequiredAction(UserModel.RequiredAction.UPDATE_PROFILE);
+    user.removeRequiredAction(UserModel.RequiredAction.VERIFY_EMAIL);
+    user.removeRequiredAction("VERIFY_PROFILE");
+    commit();
+    return user;
+  }
+
+  @Benchmark
+  public UserModel create(Statements counters) {
+    UserModel user = MagicLinkUsers.create(session, realm, USERNAME, EMAIL, null);
+    commit();
+    return user;
+  }
+
+  private UserModel user(List<RequiredActionProviderModel> defaults) {
+    created++;
+    statements++;
+    Set<String> requiredActions = new HashSet<>();
+    for (RequiredActionProviderModel action : defaults) {
+      requiredActions.add(action.getAlias());
+      statements++;
+    }
+    StandIns.Answer setField = args -> {
+      dirty = true;
+      return null;
+    };
+    return standIn(UserModel.class)
+        .returning("getUsername", USERNAME)
+        .answering("setEnabled", setField)
+        .answering("setEmail", setField)
+        .answering("setEmailVerified", setField)
+        .answering("addRequiredAction", args -> {
+          if (requiredActions.add(String.valueOf(args[0]))) {
+            statements++;
+          }
+          return null;
+        })
+        .answering("removeRequiredAction", args -> {
+          if (requiredActions.remove(String.valueOf(args[0]))) {
+            statements++;
+          }
+          return null;
+        })
+        .build();
+  }
+
+  private void commit() {
+    if (dirty) {
+      statements++;
+      dirty = false;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.invenio.keycloak.magiclink;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * In-memory stand-ins for Keycloak SPI interfaces, built from a table of canned
+ * answers keyed by method name. Unlike Mockito mocks they do no per-call
+ * bookkeeping, so the measured cost stays with the provider code.
+ *
+ * Methods without an answer run their default implementation if they have
+ * one, and otherwise return null, false, 0 or an empty stream.
+ */
+final class StandIns {
+
+  @FunctionalInterface
+  interface Answer {
+    Object answer(Object[] args) throws Throwable;
+  }
+
+  static final class Builder<T> {
+
+    private final Class<T> type;
+    private final Map<String, Object> answers = new HashMap<>();
+
+    private Builder(Class<T> type) {
+      this.type = type;
+    }
+
+    /**
+     * Returns a fixed value from every overload of the method.
+     */
+    Builder<T> returning(String method, Object value) {
+      answers.put(method, value);
+      return this;
+    }
+
+    /**
+     * Computes the result of every overload of the method from its arguments.
+     */
+    Builder<T> answering(String method, Answer answer) {
+      answers.put(method, answer);
+      return this;
+    }
+
+    T build() {
+      Map<String, Object> table = Map.copyOf(answers);
+      InvocationHandler handler = (proxy, method, args) -> {
+        if (method.getDeclaringClass() == Object.class) {
+          return objectMethod(proxy, method, args);
+        }
+        Object answer = table.get(method.getName());
+        if (answer instanceof Answer computed) {
+          return computed.answer(args);
+        }
+        if (answer != null) {
+          return answer;
+        }
+        if (method.isDefault()) {
+          return InvocationHandler.invokeDefault(proxy, method, args);
+        }
+        return defaultValue(method.getReturnType());
+      };
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private Object objectMethod(Object proxy, Method method, Object[] args) {
+      return switch (method.getName()) {
+        case "equals" -> proxy == args[0];
+        case "hashCode" -> System.identityHashCode(proxy);
+        default -> type.getSimpleName() + " stand-in";
+      };
+    }
+  }
+
+  static <T> Builder<T> standIn(Class<T> type) {
+    return new Builder<>(type);
+  }
+
+  private static Object defaultValue(Class<?> returnType) {
+    if (returnType == void.class) {
+      return null;
+    }
+    if (returnType.isPrimitive()) {
+      return Array.get(Array.newInstance(returnType, 1), 0);
+    }
+    if (returnType == Stream.class) {
+      return Stream.empty();
+    }
+    return null;
+  }
+
+  private StandIns() {
+  }
+}
@@ -0,0 +1,94 @@
+package org.invenio.keycloak.gravatar;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.UnaryOperator;
+
+/**
+ * Size-bounded cache of normalized email to Gravatar hash, so refreshing the
+ * tokens of an active user does not hash the same address again.
+ *
+ * Token issuance reads it from every thread, so it takes no lock: entries
+ * live in a ConcurrentHashMap and are queued in insertion order for eviction.
+ * A hit marks the entry as used; when the cache is full, a used entry at the
+ * head of the queue gets a second chance at the tail and the first unused one
+ * is evicted. This approximates least-recently-used eviction without
+ * reordering anything on a hit.
+ */
+final class GravatarHashCache {
+
+  private static final class Entry {
+    private final String email;
+    private final String hash;
+    // Set by hits, cleared when the entry is given its second chance
+    private volatile boolean used;
+
+    private Entry(String email, String hash) {
+      this.email = email;
+      this.hash = hash;
+    }
+  }
+
+  private final int maxEntries;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param maxEntries maximum number of cached hashes; 0 disables caching
+   */
+  GravatarHashCache(int maxEntries) {
+    this.maxEntries = Math.max(0, maxEntries);
+  }
+
+  /**
+   * Returns the cached hash of the email, computing and caching it on a miss.
+   */
+  String get(String normalizedEmail, UnaryOperator<String> hashFunction) {
+    if (maxEntries == 0) {
+      return hashFunction.apply(normalizedEmail);
+    }
+
+    Entry entry = entries.get(normalizedEmail);
+    if (entry != null) {
+      // Read before writing, so hot entries do not bounce between caches
+      if (!entry.used) {
+        entry.used = true;
+      }
+      return entry.hash;
+    }
+
+    String hash = hashFunction.apply(normalizedEmail);
+    Entry added = new Entry(normalizedEmail, hash);
+    if (entries.putIfAbsent(normalizedEmail, added) == null) {
+      order.add(added);
+      evict();
+    }
+    return hash;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Evicts the first unused entries while over capacity. Each entry is queued
+   * once, so one pass over the queue clears every used flag; the bound keeps
+   * concurrent hits from holding an eviction forever.
+   */
+  private void evict() {
+    for (int step = 0; entries.size() > maxEntries && step <= 2 * maxEntries; step++) {
+      Entry eldest = order.poll();
+      if (eldest == null) {
+        return;
+      }
+      if (eldest.used) {
+        eldest.used = false;
+        order.add(eldest);
+      } else {
+        entries.remove(eldest.email, eldest);
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.invenio.keycloak.gravatar;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.ReadOnlyException;
+
+/**
+ * Keeps the Gravatar hashes read by {@link GravatarPictureProtocolMapper} in
+ * user attributes. Listeners run in the session of the request that raised the
+ * event, so the hash is written in the same transaction as the login or the
+ * email change.
+ *
+ * At login the hashes of the client's mappers that store them are added, and
+ * stale ones (an email changed by LDAP or identity provider sync) are
+ * recomputed. Email changes and admin updates of the user refresh the hashes
+ * that exist. Token issuance only reads them.
+ */
+public class GravatarHashEventListenerProvider implements EventListenerProvider {
+
+  private static final Logger logger = Logger.getLogger(GravatarHashEventListenerProvider.class);
+
+  private static final String USERS_PATH = "users/";
+
+  private final KeycloakSession session;
+
+  public GravatarHashEventListenerProvider(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public void onEvent(Event event) {
+    if (event.getError() != null) {
+      return;
+    }
+    if (event.getType() == EventType.UPDATE_EMAIL || event.getType() == EventType.UPDATE_PROFILE) {
+      refresh(event.getRealmId(), event.getUserId());
+    } else if (event.getType() == EventType.LOGIN) {
+      store(event.getRealmId(), event.getClientId(), event.getUserId());
+    }
+  }
+
+  @Override
+  public void onEvent(AdminEvent event, boolean includeRepresentation) {
+    if (event.getError() != null
+        || event.getResourceType() != ResourceType.USER
+        || event.getOperationType() != OperationType.UPDATE) {
+      return;
+    }
+    refresh(event.getRealmId(), userIdFromPath(event.getResourcePath()));
+  }
+
+  /**
+   * Sets every stored hash to the one of the current email, or removes them
+   * when the user no longer has an email, and keeps the email fingerprint next
+   * to them. Unchanged values are not rewritten.
+   */
+  static void refreshStoredHashes(UserModel user) {
+    String normalized = GravatarHasher.normalizeEmail(user.getEmail());
+    boolean stored = false;
+    for (GravatarHasher hasher : new GravatarHasher[] { GravatarHasher.MD5, GravatarHasher.SHA256 }) {
+      String hash = user.getFirstAttribute(hasher.attributeName());
+      if (hash == null) {
+        continue;
+      }
+      if (normalized == null) {
+        user.removeAttribute(hasher.attributeName());
+        continue;
+      }
+      stored = true;
+      String current = hasher.hexDigest(normalized);
+      if (!current.equals(hash)) {
+        user.setSingleAttribute(hasher.attributeName(), current);
+      }
+    }
+
+    String fingerprint = user.getFirstAttribute(GravatarHasher.FINGERPRINT_ATTRIBUTE);
+    if (stored) {
+      String current = GravatarHasher.fingerprint(normalized);
+      if (!current.equals(fingerprint)) {
+        user.setSingleAttribute(GravatarHasher.FINGERPRINT_ATTRIBUTE, current);
+      }
+    } else if (fingerprint != null) {
+      user.removeAttribute(GravatarHasher.FINGERPRINT_ATTRIBUTE);
+    }
+  }
+
+  /**
+   * Adds the missing hashes among the given ones, then refreshes all stored
+   * hashes.
+   */
+  static void storeHashes(UserModel user, Set<GravatarHasher> hashers) {
+    String normalized = GravatarHasher.normalizeEmail(user.getEmail());
+    if (normalized == null) {
+      refreshStoredHashes(user);
+      return;
+    }
+    for (GravatarHasher hasher : hashers) {
+      if (user.getFirstAttribute(hasher.attributeName()) == null) {
+        user.setSingleAttribute(hasher.attributeName(), hasher.hexDigest(normalized));
+      }
+    }
+    refreshStoredHashes(user);
+  }
+
+  /**
+   * @return the hash algorithms of the client's Gravatar mappers, its own and
+   *         those of its client scopes, that store the hash
+   */
+  static Set<GravatarHasher> storedHashers(ClientModel client) {
+    return Stream.concat(client.getProtocolMappersStream(),
+        Stream.concat(client.getClientScopes(true).values().stream(), client.getClientScopes(false).values().stream())
+            .flatMap(ClientScopeModel::getProtocolMappersStream))
+        .filter(mapper -> GravatarPictureProtocolMapper.PROVIDER_ID.equals(mapper.getProtocolMapper()))
+        .map(mapper -> GravatarSettings.fromConfig(mapper.getConfig()))
+        .filter(GravatarSettings::storeHash)
+        .map(GravatarSettings::hasher)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Extracts the user id from an admin resource path of the form
+   * "users/{id}"; sub-resources such as role mappings are ignored.
+   */
+  static String userIdFromPath(String resourcePath) {
+    if (resourcePath == null || !resourcePath.startsWith(USERS_PATH)) {
+      return null;
+    }
+    String userId = resourcePath.substring(USERS_PATH.length());
+    return userId.isEmpty() || userId.indexOf('/') >= 0 ? null : userId;
+  }
+
+  private void refresh(String realmId, String userId) {
+    if (realmId == null || userId == null) {
+      return;
+    }
+    RealmModel realm = session.realms().getRealm(realmId);
+    if (realm == null) {
+      return;
+    }
+    UserModel user = session.users().getUserById(realm, userId);
+    if (user != null) {
+      refreshStoredHashes(user);
+    }
+  }
+
+  private void store(String realmId, String clientId, String userId) {
+    if (realmId == null || clientId == null || userId == null) {
+      return;
+    }
+    RealmModel realm = session.realms().getRealm(realmId);
+    ClientModel client = realm != null ? realm.getClientByClientId(clientId) : null;
+    if (client == null) {
+      return;
+    }
+    UserModel user = session.users().getUserById(realm, userId);
+    if (user == null) {
+      return;
+    }
+    try {
+      storeHashes(user, storedHashers(client));
+    } catch (ReadOnlyException e) {
+      // Read-only federated users (e.g. LDAP) get the hash computed per token
+      logger.debugf("Gravatar: User is read-only, not storing the hash - userId=%s", user.getId());
+    }
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
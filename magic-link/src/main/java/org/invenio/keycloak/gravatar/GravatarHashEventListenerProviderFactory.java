@@ -0,0 +1,42 @@
+package org.invenio.keycloak.gravatar;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Factory for the event listener that keeps stored Gravatar hashes in line
+ * with the user's email. Add "gravatar-hash" to the realm's event listeners
+ * when a Gravatar mapper stores the hash as a user attribute.
+ */
+public class GravatarHashEventListenerProviderFactory implements EventListenerProviderFactory {
+
+  public static final String PROVIDER_ID = "gravatar-hash";
+
+  @Override
+  public EventListenerProvider create(KeycloakSession session) {
+    return new GravatarHashEventListenerProvider(session);
+  }
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    // No configuration
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    // Nothing to do
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
@@ -0,0 +1,200 @@
+package org.invenio.keycloak.gravatar;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hex-encoded digest of an email address, in one of the hash algorithms
+ * Gravatar accepts, without per-call digest lookups or intermediate arrays:
+ * the digest, the input buffer and the hex buffer are reused, and only the
+ * resulting String is allocated.
+ *
+ * Platform threads keep their own scratch state in a ThreadLocal. Virtual
+ * threads are usually short-lived, so a per-thread digest would be created
+ * for nearly every call; they borrow from a small lock-free pool instead.
+ */
+final class GravatarHasher {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+  // Declared after POOL_SIZE, which the constructor needs
+  static final GravatarHasher MD5 = new GravatarHasher("MD5", "gravatar-hash-md5");
+  static final GravatarHasher SHA256 = new GravatarHasher("SHA-256", "gravatar-hash-sha256");
+
+  /**
+   * User attribute holding the {@link #fingerprint} of the email the stored
+   * hashes were computed from.
+   */
+  static final String FINGERPRINT_ATTRIBUTE = "gravatar-hash-fingerprint";
+
+  private final String algorithm;
+  private final String attributeName;
+  private final ThreadLocal<Scratch> perThread;
+  private final AtomicReferenceArray<Scratch> pool = new AtomicReferenceArray<>(POOL_SIZE);
+
+  private GravatarHasher(String algorithm, String attributeName) {
+    this.algorithm = algorithm;
+    this.attributeName = attributeName;
+    this.perThread = ThreadLocal.withInitial(() -> new Scratch(algorithm));
+  }
+
+  /**
+   * Returns the hasher for a mapper config value, MD5 unless SHA-256 is
+   * selected.
+   */
+  static GravatarHasher forAlgorithm(String algorithm) {
+    return SHA256.algorithm.equalsIgnoreCase(algorithm != null ? algorithm.trim() : null) ? SHA256 : MD5;
+  }
+
+  /**
+   * Lowercases and trims an email as Gravatar requires.
+   *
+   * @return null for a missing or blank email
+   */
+  static String normalizeEmail(String email) {
+    if (email == null) {
+      return null;
+    }
+    String normalized = email.trim().toLowerCase();
+    return normalized.isEmpty() ? null : normalized;
+  }
+
+  /**
+   * Short fingerprint of a normalized email, stored next to the hashes so a
+   * stale hash is noticed without hashing the email. It only has to tell a
+   * user's old and new address apart, so String.hashCode is enough.
+   */
+  static String fingerprint(String normalizedEmail) {
+    return Integer.toHexString(normalizedEmail.hashCode());
+  }
+
+  /**
+   * Whether a stored fingerprint is the one of the email. Parses the stored
+   * value rather than formatting the email's, so a token allocates nothing.
+   */
+  static boolean fingerprintMatches(String stored, String normalizedEmail) {
+    if (stored == null) {
+      return false;
+    }
+    try {
+      return Integer.parseUnsignedInt(stored, 16) == normalizedEmail.hashCode();
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  String algorithm() {
+    return algorithm;
+  }
+
+  /**
+   * User attribute in which the hash is stored when the mapper is configured
+   * to persist it.
+   */
+  String attributeName() {
+    return attributeName;
+  }
+
+  /**
+   * Reusable state for one hash computation.
+   */
+  private static final class Scratch {
+    private final MessageDigest digest;
+    private final byte[] hash;
+    private final char[] hex;
+    private byte[] input = new byte[64];
+
+    private Scratch(String algorithm) {
+      try {
+        digest = MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(algorithm + " algorithm not available", e);
+      }
+      hash = new byte[digest.getDigestLength()];
+      hex = new char[hash.length * 2];
+    }
+
+    private String hexDigest(String value) {
+      int length = encode(value);
+      digest.update(input, 0, length);
+      try {
+        digest.digest(hash, 0, hash.length);
+      } catch (DigestException e) {
+        throw new IllegalStateException(e);
+      }
+      for (int i = 0; i < hash.length; i++) {
+        hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+        hex[2 * i + 1] = HEX[hash[i] & 0xf];
+      }
+      return new String(hex);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the value into the input buffer. Email
+     * addresses are nearly always ASCII, which is copied char by char; others
+     * take the regular encoder.
+     */
+    private int encode(String value) {
+      int length = value.length();
+      if (input.length < length) {
+        input = new byte[Math.max(length, input.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c >= 0x80) {
+          byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+          if (input.length < utf8.length) {
+            input = new byte[utf8.length];
+          }
+          System.arraycopy(utf8, 0, input, 0, utf8.length);
+          return utf8.length;
+        }
+        input[i] = (byte) c;
+      }
+      return length;
+    }
+  }
+
+  String hexDigest(String value) {
+    if (!Thread.currentThread().isVirtual()) {
+      return perThread.get().hexDigest(value);
+    }
+
+    int start = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+    Scratch scratch = borrow(start);
+    try {
+      return scratch.hexDigest(value);
+    } finally {
+      giveBack(scratch, start);
+    }
+  }
+
+  private Scratch borrow(int start) {
+    for (int i = 0; i < POOL_SIZE; i++) {
+      Scratch scratch = pool.getAndSet((start + i) % POOL_SIZE, null);
+      if (scratch != null) {
+        return scratch;
+      }
+    }
+    return new Scratch(algorithm);
+  }
+
+  private void giveBack(Scratch scratch, int start) {
+    for (int i = 0; i < POOL_SIZE; i++) {
+      if (pool.compareAndSet((start + i) % POOL_SIZE, null, scratch)) {
+        return;
+      }
+    }
+    // Pool is full; let this one be collected
+  }
+
+  @Override
+  public String toString() {
+    return algorithm;
+  }
+}
@@ -1,12 +1,9 @@
 package org.invenio.keycloak.gravatar;
 
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserModel;
@@ -28,9 +25,17 @@ public final class GravatarPictureProtocolMapper extends AbstractOIDCProtocolMap
 
   public static final String PROVIDER_ID = "oidc-gravatar-picture-mapper";
 
-  private static final String CONFIG_GRAVATAR_SIZE = "gravatar.size";
-  private static final String CONFIG_GRAVATAR_DEFAULT = "gravatar.default";
-  private static final String CONFIG_GRAVATAR_RATING = "gravatar.rating";
+  private static final String CONFIG_GRAVATAR_SIZE = GravatarSettings.CONFIG_GRAVATAR_SIZE;
+  private static final String CONFIG_GRAVATAR_DEFAULT = GravatarSettings.CONFIG_GRAVATAR_DEFAULT;
+  private static final String CONFIG_GRAVATAR_RATING = GravatarSettings.CONFIG_GRAVATAR_RATING;
+  private static final String CONFIG_GRAVATAR_HASH = GravatarSettings.CONFIG_GRAVATAR_HASH;
+  private static final String CONFIG_GRAVATAR_STORE_HASH = GravatarSettings.CONFIG_GRAVATAR_STORE_HASH;
+
+  /**
+   * Number of email hashes kept in memory, enough for the users active within
+   * a typical token lifetime.
+   */
+  static final int HASH_CACHE_SIZE = 10_000;
 
   private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
@@ -81,8 +86,34 @@ public final class GravatarPictureProtocolMapper extends AbstractOIDCProtocolMap
     property.setType(ProviderConfigProperty.STRING_TYPE);
     property.setDefaultValue("g");
     configProperties.add(property);
+
+    property = new ProviderConfigProperty();
+    property.setName(CONFIG_GRAVATAR_HASH);
+    property.setLabel("Gravatar hash algorithm");
+    property.setHelpText("Hash of the email used in the Gravatar URL. Gravatar accepts both. Default: MD5");
+    property.setType(ProviderConfigProperty.LIST_TYPE);
+    property.setOptions(List.of(GravatarHasher.MD5.algorithm(), GravatarHasher.SHA256.algorithm()));
+    property.setDefaultValue(GravatarHasher.MD5.algorithm());
+    configProperties.add(property);
+
+    property = new ProviderConfigProperty();
+    property.setName(CONFIG_GRAVATAR_STORE_HASH);
+    property.setLabel("Store hash as user attribute");
+    property.setHelpText(
+        "Keep the email hash in a user attribute (gravatar-hash-md5 or gravatar-hash-sha256) so tokens read it instead of"
+            + " hashing the email. The gravatar-hash event listener stores it at login and refreshes it when the email"
+            + " changes.");
+    property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+    property.setDefaultValue("false");
+    configProperties.add(property);
   }
 
+  // Keycloak keeps a single instance of each mapper factory, so these live as
+  // long as the server
+  private final Map<String, GravatarSettings> settingsByMapper = new ConcurrentHashMap<>();
+  private final GravatarHashCache md5Cache = new GravatarHashCache(HASH_CACHE_SIZE);
+  private final GravatarHashCache sha256Cache = new GravatarHashCache(HASH_CACHE_SIZE);
+
   @Override
   public String getId() {
     return PROVIDER_ID;
@@ -115,87 +146,63 @@ public final class GravatarPictureProtocolMapper extends AbstractOIDCProtocolMap
       return;
     }
 
-    String email = user.getEmail();
-    String url = gravatarUrlForEmail(email, getSize(mappingModel), getDefaultImage(mappingModel),
-        getRating(mappingModel));
-    if (url == null) {
+    GravatarSettings settings = settingsFor(mappingModel);
+    String normalized = GravatarHasher.normalizeEmail(user.getEmail());
+    if (normalized == null) {
       return;
     }
+    String hash = settings.storeHash()
+        ? storedHash(user, normalized, settings.hasher())
+        : computedHash(normalized, settings.hasher());
 
-    OIDCAttributeMapperHelper.mapClaim(token, mappingModel, url);
+    OIDCAttributeMapperHelper.mapClaim(token, mappingModel, settings.urlFor(hash));
   }
 
   static String gravatarUrlForEmail(String email, int size, String defaultImage, String rating) {
-    if (email == null) {
+    String normalized = GravatarHasher.normalizeEmail(email);
+    if (normalized == null) {
       return null;
     }
-
-    String normalized = email.trim().toLowerCase();
-    if (normalized.isEmpty()) {
-      return null;
-    }
-
-    String hash = md5Hex(normalized);
-
-    StringBuilder sb = new StringBuilder("https://www.gravatar.com/avatar/");
-    sb.append(hash);
-
-    boolean hasQuery = false;
-
-    if (size > 0) {
-      sb.append(hasQuery ? "&" : "?");
-      hasQuery = true;
-      sb.append("s=").append(size);
-    }
-
-    if (defaultImage != null && !defaultImage.isBlank()) {
-      sb.append(hasQuery ? "&" : "?");
-      hasQuery = true;
-      sb.append("d=").append(urlEncode(defaultImage.trim()));
-    }
-
-    if (rating != null && !rating.isBlank()) {
-      sb.append(hasQuery ? "&" : "?");
-      hasQuery = true;
-      sb.append("r=").append(urlEncode(rating.trim()));
-    }
-
-    return sb.toString();
+    return GravatarSettings.of(size, defaultImage, rating).urlFor(GravatarHasher.MD5.hexDigest(normalized));
   }
 
-  private static int getSize(ProtocolMapperModel mappingModel) {
-    String raw = mappingModel.getConfig().get(CONFIG_GRAVATAR_SIZE);
-    if (raw == null || raw.isBlank()) {
-      return 200;
-    }
-    try {
-      return Integer.parseInt(raw.trim());
-    } catch (NumberFormatException e) {
-      return 200;
+  /**
+   * Reads the hash from the user attribute while its fingerprint matches the
+   * current email, otherwise computes it. Tokens never write the user:
+   * {@link GravatarHashEventListenerProvider} stores the hash at login and
+   * refreshes it on email changes.
+   */
+  private String storedHash(UserModel user, String normalized, GravatarHasher hasher) {
+    String hash = user.getFirstAttribute(hasher.attributeName());
+    if (hash != null
+        && GravatarHasher.fingerprintMatches(user.getFirstAttribute(GravatarHasher.FINGERPRINT_ATTRIBUTE), normalized)) {
+      return hash;
     }
+    // Missing, or stale after an email change that raised no event
+    return computedHash(normalized, hasher);
   }
 
-  private static String getDefaultImage(ProtocolMapperModel mappingModel) {
-    String raw = mappingModel.getConfig().get(CONFIG_GRAVATAR_DEFAULT);
-    return raw == null ? "mp" : raw;
+  private String computedHash(String normalized, GravatarHasher hasher) {
+    GravatarHashCache cache = hasher == GravatarHasher.SHA256 ? sha256Cache : md5Cache;
+    return cache.get(normalized, hasher::hexDigest);
   }
 
-  private static String getRating(ProtocolMapperModel mappingModel) {
-    String raw = mappingModel.getConfig().get(CONFIG_GRAVATAR_RATING);
-    return raw == null ? "g" : raw;
-  }
-
-  private static String md5Hex(String input) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      byte[] digest = md.digest(input.getBytes(StandardCharsets.UTF_8));
-      return HexFormat.of().formatHex(digest);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException("MD5 algorithm not available", e);
+  /**
+   * Returns the settings of the mapper, rebuilding them only when its config
+   * changed since the last token.
+   */
+  private GravatarSettings settingsFor(ProtocolMapperModel mappingModel) {
+    Map<String, String> config = mappingModel.getConfig();
+    String mapperId = mappingModel.getId();
+    if (mapperId == null) {
+      return GravatarSettings.fromConfig(config);
     }
-  }
 
-  private static String urlEncode(String value) {
-    return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    GravatarSettings settings = settingsByMapper.get(mapperId);
+    if (settings == null || !settings.isFor(config)) {
+      settings = GravatarSettings.fromConfig(config);
+      settingsByMapper.put(mapperId, settings);
+    }
+    return settings;
   }
 }
@@ -0,0 +1,126 @@
+package org.invenio.keycloak.gravatar;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gravatar options of one mapper, with the URL query suffix built once so a
+ * claim only needs the email hash appended to a constant prefix.
+ */
+final class GravatarSettings {
+
+  static final String CONFIG_GRAVATAR_SIZE = "gravatar.size";
+  static final String CONFIG_GRAVATAR_DEFAULT = "gravatar.default";
+  static final String CONFIG_GRAVATAR_RATING = "gravatar.rating";
+  static final String CONFIG_GRAVATAR_HASH = "gravatar.hash";
+  static final String CONFIG_GRAVATAR_STORE_HASH = "gravatar.store.hash";
+
+  static final int DEFAULT_SIZE = 200;
+  static final String DEFAULT_IMAGE = "mp";
+  static final String DEFAULT_RATING = "g";
+
+  private static final String AVATAR_BASE_URL = "https://www.gravatar.com/avatar/";
+
+  private final Map<String, String> config;
+  private final String querySuffix;
+  private final GravatarHasher hasher;
+  private final boolean storeHash;
+
+  private GravatarSettings(Map<String, String> config, String querySuffix, GravatarHasher hasher,
+      boolean storeHash) {
+    this.config = config;
+    this.querySuffix = querySuffix;
+    this.hasher = hasher;
+    this.storeHash = storeHash;
+  }
+
+  /**
+   * Reads the settings from a mapper config. Missing values fall back to the
+   * defaults; an unparsable size is treated as the default size and an
+   * unknown hash algorithm as MD5.
+   */
+  static GravatarSettings fromConfig(Map<String, String> config) {
+    Map<String, String> snapshot = config != null
+        ? Collections.unmodifiableMap(new HashMap<>(config))
+        : Map.of();
+    String defaultImage = valueOrDefault(snapshot.get(CONFIG_GRAVATAR_DEFAULT), DEFAULT_IMAGE);
+    String rating = valueOrDefault(snapshot.get(CONFIG_GRAVATAR_RATING), DEFAULT_RATING);
+    return new GravatarSettings(snapshot, querySuffix(parseSize(snapshot.get(CONFIG_GRAVATAR_SIZE)),
+        defaultImage, rating), GravatarHasher.forAlgorithm(snapshot.get(CONFIG_GRAVATAR_HASH)),
+        Boolean.parseBoolean(snapshot.get(CONFIG_GRAVATAR_STORE_HASH)));
+  }
+
+  static GravatarSettings of(int size, String defaultImage, String rating) {
+    return new GravatarSettings(null, querySuffix(size, defaultImage, rating), GravatarHasher.MD5, false);
+  }
+
+  /**
+   * Whether these settings were built from a config with the same values.
+   */
+  boolean isFor(Map<String, String> config) {
+    return this.config != null && this.config.equals(config);
+  }
+
+  String urlFor(String emailHash) {
+    return AVATAR_BASE_URL + emailHash + querySuffix;
+  }
+
+  String querySuffix() {
+    return querySuffix;
+  }
+
+  GravatarHasher hasher() {
+    return hasher;
+  }
+
+  /**
+   * Whether the hash is kept in a user attribute instead of being computed
+   * for every token.
+   */
+  boolean storeHash() {
+    return storeHash;
+  }
+
+  private static String valueOrDefault(String raw, String defaultValue) {
+    return raw == null ? defaultValue : raw;
+  }
+
+  private static int parseSize(String raw) {
+    if (raw == null || raw.isBlank()) {
+      return DEFAULT_SIZE;
+    }
+    try {
+      return Integer.parseInt(raw.trim());
+    } catch (NumberFormatException e) {
+      return DEFAULT_SIZE;
+    }
+  }
+
+  private static String querySuffix(int size, String defaultImage, String rating) {
+    StringBuilder sb = new StringBuilder();
+
+    if (size > 0) {
+      sb.append(sb.isEmpty() ? "?" : "&");
+      sb.append("s=").append(size);
+    }
+
+    if (defaultImage != null && !defaultImage.isBlank()) {
+      sb.append(sb.isEmpty() ? "?" : "&");
+      sb.append("d=").append(urlEncode(defaultImage.trim()));
+    }
+
+    if (rating != null && !rating.isBlank()) {
+      sb.append(sb.isEmpty() ? "?" : "&");
+      sb.append("r=").append(urlEncode(rating.trim()));
+    }
+
+    return sb.toString();
+  }
+
+  private static String urlEncode(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,146 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Realm-scoped cache of the 'allowed-domains' attribute of the configured
+ * group, so domain checks are a {@link DomainSuffixTrie} lookup instead of a
+ * scan over all realm groups.
+ *
+ * Entries are dropped when a group in the realm is created, updated, renamed
+ * or removed on this node. Provider events are not propagated across the
+ * cluster, so entries also expire after a TTL to pick up changes made on other
+ * nodes.
+ */
+final class AllowedDomainsIndex implements ProviderEventListener {
+
+  private static final Logger logger = Logger.getLogger(AllowedDomainsIndex.class);
+
+  static final String ALLOWED_DOMAINS_ATTRIBUTE = "allowed-domains";
+
+  /**
+   * Snapshot of the allowed domains of one group.
+   */
+  static final class AllowedDomains {
+
+    private final DomainSuffixTrie domains;
+    private final boolean groupFound;
+    private final String groupId;
+    private final long loadedAtMillis;
+
+    private AllowedDomains(DomainSuffixTrie domains, boolean groupFound, String groupId, long loadedAtMillis) {
+      this.domains = domains;
+      this.groupFound = groupFound;
+      this.groupId = groupId;
+      this.loadedAtMillis = loadedAtMillis;
+    }
+
+    boolean isGroupFound() {
+      return groupFound;
+    }
+
+    /**
+     * @return the id of the group, or null if it was not found
+     */
+    String getGroupId() {
+      return groupId;
+    }
+
+    boolean contains(String domain) {
+      return domain != null && domains.matches(domain.toLowerCase(Locale.ROOT));
+    }
+
+    int size() {
+      return domains.size();
+    }
+  }
+
+  private final ConcurrentHashMap<String, AllowedDomains> entries = new ConcurrentHashMap<>();
+  private final long ttlMillis;
+
+  /**
+   * @param ttlSeconds how long a loaded group stays cached; 0 disables caching
+   */
+  AllowedDomainsIndex(long ttlSeconds) {
+    this.ttlMillis = Math.max(0L, ttlSeconds) * 1000L;
+  }
+
+  /**
+   * Returns the allowed domains of the named group, loading them from the realm
+   * on a cache miss or after the TTL expired.
+   */
+  AllowedDomains get(RealmModel realm, String groupName) {
+    String key = key(realm.getId(), groupName);
+    long now = System.currentTimeMillis();
+    AllowedDomains cached = entries.get(key);
+    if (cached != null && now - cached.loadedAtMillis < ttlMillis) {
+      return cached;
+    }
+
+    AllowedDomains loaded = load(realm, groupName, now);
+    if (ttlMillis > 0) {
+      entries.put(key, loaded);
+    }
+    return loaded;
+  }
+
+  void invalidateRealm(String realmId) {
+    String prefix = realmId + '\u0000';
+    entries.keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  @Override
+  public void onEvent(ProviderEvent event) {
+    if (event instanceof GroupModel.GroupCreatedEvent
+        || event instanceof GroupModel.GroupUpdatedEvent
+        || event instanceof GroupModel.GroupRemovedEvent
+        || event instanceof GroupModel.GroupPathChangeEvent) {
+      RealmModel realm = ((GroupModel.GroupEvent) event).getRealm();
+      if (realm != null) {
+        logger.debugf("Magic Link: Group changed, invalidating allowed domains - realm=%s", realm.getName());
+        invalidateRealm(realm.getId());
+      }
+    } else if (event instanceof RealmModel.RealmRemovedEvent) {
+      invalidateRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+    }
+  }
+
+  private static AllowedDomains load(RealmModel realm, String groupName, long now) {
+    GroupModel group = realm.getGroupsStream()
+        .filter(g -> groupName.equals(g.getName()))
+        .findFirst()
+        .orElse(null);
+
+    if (group == null) {
+      logger.warnf("Magic Link: Group not found for domain check - groupName=%s", groupName);
+      return new AllowedDomains(DomainSuffixTrie.of(List.of()), false, null, now);
+    }
+
+    List<String> patterns = group.getAttributeStream(ALLOWED_DOMAINS_ATTRIBUTE)
+        .map(String::trim)
+        .filter(d -> !d.isEmpty())
+        .toList();
+    for (String pattern : patterns) {
+      if (!DomainSuffixTrie.isValidPattern(pattern)) {
+        logger.warnf("Magic Link: Ignoring invalid allowed domain - group=%s, value=%s", groupName, pattern);
+      }
+    }
+    DomainSuffixTrie domains = DomainSuffixTrie.of(patterns);
+
+    logger.debugf("Magic Link: Loaded allowed domains - realm=%s, group=%s, domains=%d",
+        realm.getName(), groupName, domains.size());
+    return new AllowedDomains(domains, true, group.getId(), now);
+  }
+
+  private static String key(String realmId, String groupName) {
+    return realmId + '\u0000' + groupName;
+  }
+}
@@ -0,0 +1,107 @@
+package org.invenio.keycloak.magiclink;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Node-local map of entries that expire, holding at most {@code capacity} of
+ * them. Like {@link MagicLinkTokenLedger}, entries are also queued in
+ * insertion order: each put drops expired entries from the head of the queue
+ * and, when full, the oldest live ones. Eviction costs O(1) per put instead of
+ * a scan of the whole map.
+ *
+ * The entries of a cache are given about the same lifetime, so the oldest
+ * entries are also the first to expire and expired entries gather at the
+ * head of the queue.
+ */
+final class BoundedExpiringCache<V> {
+
+  private record Entry<V>(String key, V value, long expiresAtMillis) {
+  }
+
+  private final int capacity;
+  private final LongSupplier clockMillis;
+  private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+  // Insertion order, for evicting the oldest entries. Overwritten and removed
+  // entries stay queued until they reach the head.
+  private final Queue<Entry<V>> order = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * @param capacity entries kept; 0 keeps none
+   */
+  BoundedExpiringCache(int capacity, LongSupplier clockMillis) {
+    this.capacity = Math.max(0, capacity);
+    this.clockMillis = clockMillis;
+  }
+
+  /**
+   * @return the value of the key, or null if it has none or it expired
+   */
+  V get(String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (clockMillis.getAsLong() >= entry.expiresAtMillis()) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.value();
+  }
+
+  /**
+   * Sets the value of the key until the given time, evicting the oldest entry
+   * if the cache is full.
+   */
+  void put(String key, V value, long expiresAtMillis) {
+    if (capacity == 0 || expiresAtMillis <= clockMillis.getAsLong()) {
+      return;
+    }
+    Entry<V> entry = new Entry<>(key, value, expiresAtMillis);
+    entries.put(key, entry);
+    order.add(entry);
+    queued.incrementAndGet();
+    trim();
+  }
+
+  void remove(String key) {
+    entries.remove(key);
+  }
+
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Drops stale and expired entries from the head of the queue, then the
+   * oldest entries while over capacity. The queue is kept at twice the
+   * capacity, so keys written over and over cannot grow it.
+   */
+  private void trim() {
+    long now = clockMillis.getAsLong();
+    Entry<V> head;
+    while ((head = order.peek()) != null) {
+      if (head.expiresAtMillis() > now && entries.get(head.key()) == head && entries.size() <= capacity
+          && queued.get() <= 2L * capacity) {
+        return;
+      }
+      // Concurrent trims may poll a different entry than the one peeked at;
+      // either way the oldest entry goes
+      Entry<V> oldest = order.poll();
+      if (oldest == null) {
+        return;
+      }
+      queued.decrementAndGet();
+      entries.remove(oldest.key(), oldest);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.invenio.keycloak.magiclink;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Allow-list of email domains stored as a trie of reversed DNS labels
+ * (edu -> uni -> cs), so a lookup costs one hash probe per label of the
+ * address regardless of how many domains are allowed.
+ *
+ * Supported patterns:
+ * <ul>
+ * <li>{@code uni.edu} - exactly uni.edu</li>
+ * <li>{@code *.uni.edu} - any subdomain of uni.edu, but not uni.edu itself</li>
+ * <li>{@code .uni.edu} - uni.edu and any subdomain of it</li>
+ * </ul>
+ *
+ * Instances are immutable once built and safe to share between threads.
+ */
+final class DomainSuffixTrie {
+
+  private static final class Node {
+    private final Map<String, Node> children = new HashMap<>(4);
+    private boolean exact;
+    private boolean subdomains;
+  }
+
+  private final Node root = new Node();
+  private int size;
+
+  private DomainSuffixTrie() {
+  }
+
+  /**
+   * Builds a trie from allow-list entries. Blank and malformed entries (e.g. a
+   * bare {@code *}) are skipped.
+   */
+  static DomainSuffixTrie of(Iterable<String> patterns) {
+    DomainSuffixTrie trie = new DomainSuffixTrie();
+    for (String pattern : patterns) {
+      trie.add(pattern);
+    }
+    return trie;
+  }
+
+  static boolean isValidPattern(String pattern) {
+    if (pattern == null) {
+      return false;
+    }
+    String domain = stripWildcard(pattern.trim());
+    return !domain.isEmpty() && !domain.startsWith(".") && !domain.endsWith(".") && !domain.contains("..")
+        && !domain.contains("*");
+  }
+
+  private void add(String pattern) {
+    if (!isValidPattern(pattern)) {
+      return;
+    }
+    String normalized = pattern.trim().toLowerCase(Locale.ROOT);
+    boolean matchSubdomains = normalized.startsWith("*.") || normalized.startsWith(".");
+    boolean matchExact = !normalized.startsWith("*.");
+    String domain = stripWildcard(normalized);
+
+    Node node = root;
+    int end = domain.length();
+    while (end > 0) {
+      int dot = domain.lastIndexOf('.', end - 1);
+      String label = domain.substring(dot + 1, end);
+      node = node.children.computeIfAbsent(label, l -> new Node());
+      end = dot;
+    }
+
+    if ((matchExact && !node.exact) || (matchSubdomains && !node.subdomains)) {
+      size++;
+    }
+    node.exact |= matchExact;
+    node.subdomains |= matchSubdomains;
+  }
+
+  /**
+   * @param domain lowercased domain part of an email address
+   * @return false for a domain with an empty label, e.g. {@code .uni.edu}
+   */
+  boolean matches(String domain) {
+    if (domain == null || domain.isEmpty()) {
+      return false;
+    }
+    // Empty labels: a wildcard entry would match before the walk reached them
+    if (domain.startsWith(".") || domain.endsWith(".") || domain.contains("..")) {
+      return false;
+    }
+    Node node = root;
+    int end = domain.length();
+    while (end > 0) {
+      int dot = domain.lastIndexOf('.', end - 1);
+      node = node.children.get(domain.substring(dot + 1, end));
+      if (node == null) {
+        return false;
+      }
+      if (dot > 0 && node.subdomains) {
+        // Labels remain to the left, so this is a subdomain of a wildcard entry
+        return true;
+      }
+      end = dot;
+    }
+    return node.exact;
+  }
+
+  /**
+   * Number of distinct exact and wildcard entries.
+   */
+  int size() {
+    return size;
+  }
+
+  private static String stripWildcard(String pattern) {
+    if (pattern.startsWith("*.")) {
+      return pattern.substring(2);
+    }
+    if (pattern.startsWith(".")) {
+      return pattern.substring(1);
+    }
+    return pattern;
+  }
+}
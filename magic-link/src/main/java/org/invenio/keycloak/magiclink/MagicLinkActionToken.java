@@ -1,7 +1,6 @@
 package org.invenio.keycloak.magiclink;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
-import org.jboss.logging.Logger;
 import org.keycloak.authentication.actiontoken.DefaultActionToken;
 
 import java.util.Map;
@@ -12,13 +11,13 @@ import java.util.HashMap;
  */
 public class MagicLinkActionToken extends DefaultActionToken {
 
-  private static final Logger logger = Logger.getLogger(MagicLinkActionToken.class);
-
   public static final String TOKEN_TYPE = "magic-link";
 
   private static final String JSON_FIELD_REDIRECT_URI = "rdu";
   private static final String JSON_FIELD_REMEMBER_ME = "rme";
   private static final String JSON_FIELD_CLIENT_NOTES = "cln";
+  private static final String JSON_FIELD_COMPACT_CLIENT_NOTES = "cnc";
+  private static final String JSON_FIELD_CLIENT_NOTES_REFERENCE = "cnr";
 
   @JsonProperty(value = JSON_FIELD_REDIRECT_URI)
   private String redirectUri;
@@ -29,6 +28,14 @@ public class MagicLinkActionToken extends DefaultActionToken {
   @JsonProperty(value = JSON_FIELD_CLIENT_NOTES)
   private Map<String, String> clientNotes;
 
+  // Selected client notes under short aliases, see MagicLinkClientNotes
+  @JsonProperty(value = JSON_FIELD_COMPACT_CLIENT_NOTES)
+  private Map<String, String> compactClientNotes;
+
+  // Id of the client notes in the single-use object store
+  @JsonProperty(value = JSON_FIELD_CLIENT_NOTES_REFERENCE)
+  private String clientNotesReference;
+
   public MagicLinkActionToken(
       String userId,
       int absoluteExpirationInSecs,
@@ -42,17 +49,11 @@ public class MagicLinkActionToken extends DefaultActionToken {
     this.issuedFor = clientId;
     this.rememberMe = rememberMe;
     this.clientNotes = clientNotes != null ? new HashMap<>(clientNotes) : null;
-    logger.debugf(
-        "Magic Link Token: Created token - userId=%s, clientId=%s, expiration=%d, authSessionId=%s, nonce=%s, id=%s, clientNotes=%d",
-        userId, clientId, absoluteExpirationInSecs, compoundAuthenticationSessionId,
-        this.getActionVerificationNonce() != null ? this.getActionVerificationNonce().toString() : "null",
-        this.getId(), clientNotes != null ? clientNotes.size() : 0);
   }
 
   // Required for Jackson deserialization
   public MagicLinkActionToken() {
     super();
-    logger.debug("Magic Link Token: No-arg constructor called (Jackson deserialization)");
   }
 
   public String getRedirectUri() {
@@ -60,7 +61,6 @@ public class MagicLinkActionToken extends DefaultActionToken {
   }
 
   public void setRedirectUri(String redirectUri) {
-    logger.debugf("Magic Link Token: setRedirectUri called - value=%s", redirectUri);
     this.redirectUri = redirectUri;
   }
 
@@ -69,10 +69,7 @@ public class MagicLinkActionToken extends DefaultActionToken {
   }
 
   public void setRememberMe(Boolean rememberMe) {
-    logger.debugf("Magic Link Token: setRememberMe called - value=%s", rememberMe);
     this.rememberMe = rememberMe;
-    // Log complete state after all setters have been called
-    logger.debugf("Magic Link Token: After deserialization - %s", this.toString());
   }
 
   public Map<String, String> getClientNotes() {
@@ -80,10 +77,25 @@ public class MagicLinkActionToken extends DefaultActionToken {
   }
 
   public void setClientNotes(Map<String, String> clientNotes) {
-    logger.debugf("Magic Link Token: setClientNotes called - size=%d", clientNotes != null ? clientNotes.size() : 0);
     this.clientNotes = clientNotes;
   }
 
+  public Map<String, String> getCompactClientNotes() {
+    return compactClientNotes;
+  }
+
+  public void setCompactClientNotes(Map<String, String> compactClientNotes) {
+    this.compactClientNotes = compactClientNotes;
+  }
+
+  public String getClientNotesReference() {
+    return clientNotesReference;
+  }
+
+  public void setClientNotesReference(String clientNotesReference) {
+    this.clientNotesReference = clientNotesReference;
+  }
+
   @Override
   public String toString() {
     return String.format(
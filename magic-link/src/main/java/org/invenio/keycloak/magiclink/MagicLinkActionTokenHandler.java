@@ -7,8 +7,7 @@ import org.keycloak.TokenVerifier.Predicate;
 import org.keycloak.authentication.AuthenticationProcessor;
 import org.keycloak.authentication.actiontoken.AbstractActionTokenHandler;
 import org.keycloak.authentication.actiontoken.ActionTokenContext;
-import org.keycloak.authentication.actiontoken.DefaultActionToken;
-import org.keycloak.authentication.actiontoken.TokenUtils;
+import org.keycloak.common.util.Time;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventType;
 import org.keycloak.models.ClientModel;
@@ -30,84 +29,62 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
         private static final Logger logger = Logger.getLogger(MagicLinkActionTokenHandler.class);
         public static final String LOGIN_METHOD = "login_method";
 
+        private final MagicLinkTokenLedger ledger;
+        private final Predicate<? super MagicLinkActionToken>[] verifiers;
+        private final MagicLinkLog log;
+
         public MagicLinkActionTokenHandler() {
+                this(null, MagicLinkTokenVerifiers.pipeline(null),
+                                new MagicLinkLog(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE));
+        }
+
+        /**
+         * @param ledger    tokens redeemed on this node, or null to leave replay
+         *                  checks to Keycloak alone
+         * @param verifiers checks built once by the factory, see
+         *                  {@link MagicLinkTokenVerifiers#pipeline}
+         * @param log       sampling of the INFO flow markers
+         */
+        MagicLinkActionTokenHandler(MagicLinkTokenLedger ledger,
+                        Predicate<? super MagicLinkActionToken>[] verifiers, MagicLinkLog log) {
                 super(
                                 MagicLinkActionToken.TOKEN_TYPE,
                                 MagicLinkActionToken.class,
                                 Messages.INVALID_REQUEST,
                                 EventType.EXECUTE_ACTION_TOKEN,
                                 Errors.INVALID_REQUEST);
-                logger.debugf("Magic Link: Handler constructor called - registering for tokenType: %s, tokenClass: %s",
-                                MagicLinkActionToken.TOKEN_TYPE, MagicLinkActionToken.class.getName());
+                this.ledger = ledger;
+                this.verifiers = verifiers;
+                this.log = log;
         }
 
         @Override
         public Predicate<? super MagicLinkActionToken>[] getVerifiers(
                         ActionTokenContext<MagicLinkActionToken> tokenContext) {
-                logger.debugf("Magic Link: getVerifiers() called - realm=%s",
-                                tokenContext.getRealm().getName());
-
-                AuthenticationSessionModel authSession = tokenContext.getAuthenticationSession();
-                if (authSession != null) {
-                        logger.debugf("Magic Link: Current auth session - sessionId=%s.%s, client=%s, user=%s",
-                                        authSession.getParentSession() != null ? authSession.getParentSession().getId()
-                                                        : "null",
-                                        authSession.getTabId(),
-                                        authSession.getClient() != null ? authSession.getClient().getClientId()
-                                                        : "null",
-                                        authSession.getAuthenticatedUser() != null
-                                                        ? authSession.getAuthenticatedUser().getId()
-                                                        : "null");
-                } else {
-                        logger.warn("Magic Link: No authentication session found in token context during getVerifiers()");
-                }
-
-                // Create custom predicates with logging
-                Predicate<? super MagicLinkActionToken>[] basicChecks = TokenUtils.predicates(
-                                DefaultActionToken.ACTION_TOKEN_BASIC_CHECKS);
-
-                logger.debugf("Magic Link: Applying %d basic check predicates", basicChecks.length);
-
-                // Wrap each predicate with logging
-                @SuppressWarnings("unchecked")
-                Predicate<? super MagicLinkActionToken>[] wrappedPredicates = new Predicate[basicChecks.length];
-                for (int i = 0; i < basicChecks.length; i++) {
-                        final int index = i;
-                        final Predicate<? super MagicLinkActionToken> originalPredicate = basicChecks[i];
-                        wrappedPredicates[i] = (token) -> {
-                                try {
-                                        logger.debug(String.format("Magic Link: Running basic check #%d for token: %s",
-                                                        index, token));
-                                        boolean result = originalPredicate.test(token);
-                                        logger.debug(String.format("Magic Link: Basic check #%d result: %s", index,
-                                                        result));
-                                        return result;
-                                } catch (Exception e) {
-                                        logger.error(String.format(
-                                                        "Magic Link: Basic check #%d failed with exception for token: %s",
-                                                        index, token), e);
-                                        return false;
-                                }
-                        };
+                if (logger.isDebugEnabled()) {
+                        AuthenticationSessionModel authSession = tokenContext.getAuthenticationSession();
+                        // No session is normal when the link is opened in another browser
+                        logger.debugf("Magic Link: Verifying token - realm=%s, checks=%d, sessionId=%s, client=%s",
+                                        tokenContext.getRealm().getName(),
+                                        verifiers.length,
+                                        authSession != null && authSession.getParentSession() != null
+                                                        ? authSession.getParentSession().getId() + "." + authSession.getTabId()
+                                                        : null,
+                                        authSession != null && authSession.getClient() != null
+                                                        ? authSession.getClient().getClientId()
+                                                        : null);
                 }
-
-                return wrappedPredicates;
+                return verifiers;
         }
 
         @Override
         public AuthenticationSessionModel startFreshAuthenticationSession(
                         MagicLinkActionToken token,
                         ActionTokenContext<MagicLinkActionToken> tokenContext) {
-                UriInfo uriInfo = tokenContext.getSession().getContext().getUri();
-                logger.infof(
-                                "Magic Link: startFreshAuthenticationSession() - requestUri=%s, realm=%s, userId=%s, clientId=%s",
-                                uriInfo != null ? uriInfo.getRequestUri() : null,
-                                tokenContext.getRealm().getName(),
-                                token.getUserId(),
-                                token.getIssuedFor());
-
-                logger.debugf("Magic Link: Starting fresh authentication session for userId=%s, clientId=%s, realm=%s",
-                                token.getUserId(), token.getIssuedFor(), tokenContext.getRealm().getName());
+                if (logger.isDebugEnabled()) {
+                        logger.debugf("Magic Link: Starting fresh authentication session - realm=%s, userId=%s, clientId=%s",
+                                        tokenContext.getRealm().getName(), token.getUserId(), token.getIssuedFor());
+                }
                 // Find client by clientId stored in the token
                 ClientModel client = tokenContext.getRealm().getClientByClientId(token.getIssuedFor());
                 if (client == null) {
@@ -115,33 +92,21 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                                         token.getIssuedFor(), tokenContext.getRealm().getName());
                         return null;
                 }
-                logger.debugf(
-                                "Magic Link: Creating authentication session for client=%s (id=%s), redirectUri=%s, clientNotes=%d",
-                                client.getClientId(), client.getId(), token.getRedirectUri(),
-                                token.getClientNotes() != null ? token.getClientNotes().size() : 0);
-
+                Map<String, String> clientNotes = MagicLinkClientNotes.read(token, tokenContext.getSession());
                 AuthenticationSessionModel authSession = tokenContext
                                 .createAuthenticationSessionForClient(client.getClientId());
 
                 if (authSession != null) {
-                        logger.infof(
-                                        "Magic Link: Fresh auth session created - parentSessionId=%s, tabId=%s, client=%s",
-                                        authSession.getParentSession() != null ? authSession.getParentSession().getId()
-                                                        : "null",
-                                        authSession.getTabId(),
-                                        authSession.getClient() != null ? authSession.getClient().getClientId()
-                                                        : "null");
+                        logger.debugf("Magic Link: Fresh auth session created - authSession=%s, clientNotes=%d",
+                                        MagicLinkLog.authSessionId(authSession), clientNotes.size());
                 } else {
                         logger.warn("Magic Link: Failed to create fresh authentication session (authSession=null)");
                 }
 
                 if (authSession != null) {
                         // Restore all client notes from token (includes OIDC state, nonce, etc.)
-                        if (token.getClientNotes() != null && !token.getClientNotes().isEmpty()) {
-                                for (Map.Entry<String, String> entry : token.getClientNotes().entrySet()) {
-                                        authSession.setClientNote(entry.getKey(), entry.getValue());
-                                        logger.debugf("Magic Link: Restored client note: %s", entry.getKey());
-                                }
+                        for (Map.Entry<String, String> entry : clientNotes.entrySet()) {
+                                authSession.setClientNote(entry.getKey(), entry.getValue());
                         }
 
                         // Set redirect URI from token if available
@@ -171,7 +136,6 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                         MagicLinkActionToken token,
                         ActionTokenContext<MagicLinkActionToken> tokenContext) {
                 // Magic link tokens are single-use only for security
-                logger.debugf("Magic Link: Token is single-use only, userId=%s", token.getUserId());
                 return false;
         }
 
@@ -179,22 +143,27 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
         public Response handleToken(
                         MagicLinkActionToken token,
                         ActionTokenContext<MagicLinkActionToken> tokenContext) {
+                try (MagicLinkLog.Context ignored = MagicLinkLog.context(logger, tokenContext.getRealm().getName(),
+                                token.getIssuedFor(), tokenContext.getAuthenticationSession())) {
+                        Logger.Level flowLevel = log.flowLevel(logger);
+                        if (flowLevel != null) {
+                                UriInfo uriInfo = tokenContext.getSession().getContext().getUri();
+                                logger.logf(flowLevel,
+                                                "Magic Link: handleToken - requestUri=%s, userId=%s, tokenId=%s, nonce=%s, exp=%s, iat=%s",
+                                                uriInfo != null ? uriInfo.getRequestUri() : null,
+                                                token.getUserId(),
+                                                token.getId(),
+                                                token.getActionVerificationNonce(),
+                                                token.getExp(),
+                                                token.getIat());
+                        }
+                        return redeem(token, tokenContext);
+                }
+        }
 
-                UriInfo uriInfo = tokenContext.getSession().getContext().getUri();
-                logger.infof(
-                                "Magic Link: handleToken() request - requestUri=%s, realm=%s",
-                                uriInfo != null ? uriInfo.getRequestUri() : null,
-                                tokenContext.getRealm().getName());
-
-                logger.debugf(
-                                "Magic Link: handleToken() called - userId=%s, clientId=%s, redirectUri=%s, realm=%s, nonce=%s, compoundAuthSessionId=%s, tokenId=%s, exp=%d, iat=%d",
-                                token.getUserId(), token.getIssuedFor(), token.getRedirectUri(),
-                                tokenContext.getRealm().getName(),
-                                token.getActionVerificationNonce(),
-                                token.getCompoundAuthenticationSessionId(),
-                                token.getId(),
-                                token.getExp() != null ? token.getExp() : -1,
-                                token.getIat() != null ? token.getIat() : -1);
+        private Response redeem(
+                        MagicLinkActionToken token,
+                        ActionTokenContext<MagicLinkActionToken> tokenContext) {
 
                 // Get user from token (not from session, as they're not authenticated yet)
                 UserModel user = tokenContext.getSession().users().getUserById(
@@ -207,6 +176,8 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                         tokenContext.getEvent()
                                         .detail("user_id", token.getUserId())
                                         .error(Errors.USER_NOT_FOUND);
+                        MagicLinkMetrics.tokenRedeemed(tokenContext.getRealm().getName(), token.getIssuedFor(),
+                                        MagicLinkMetrics.OUTCOME_USER_NOT_FOUND);
                         return tokenContext.getSession().getProvider(org.keycloak.forms.login.LoginFormsProvider.class)
                                         .setError(Messages.INVALID_USER)
                                         .createErrorPage(Response.Status.BAD_REQUEST);
@@ -217,17 +188,17 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
 
                 if (authSession == null) {
                         logger.error("Magic Link: No authentication session available in token context during handleToken() (authSession=null)");
+                        MagicLinkMetrics.tokenRedeemed(tokenContext.getRealm().getName(), token.getIssuedFor(),
+                                        MagicLinkMetrics.OUTCOME_NO_AUTH_SESSION);
                         return tokenContext.getSession().getProvider(org.keycloak.forms.login.LoginFormsProvider.class)
                                         .setError(Messages.INVALID_REQUEST)
                                         .createErrorPage(Response.Status.BAD_REQUEST);
                 }
 
-                logger.debugf("Magic Link: Setting authenticated user=%s (email=%s) in session",
-                                user.getId(), user.getEmail());
+                logger.debugf("Magic Link: Setting authenticated user=%s in session", user.getId());
                 authSession.setAuthenticatedUser(user);
 
                 ClientModel client = authSession.getClient();
-                logger.debugf("Magic Link: Using client=%s (id=%s)", client.getClientId(), client.getId());
 
                 // Get redirect URI
                 String redirectUri = token.getRedirectUri() != null
@@ -237,8 +208,6 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                                                 client.getRootUrl(),
                                                 client.getBaseUrl());
 
-                logger.debugf("Magic Link: Redirect URI: %s", redirectUri);
-
                 // Validate redirect URI
                 String redirect = RedirectUtils.verifyRedirectUri(
                                 tokenContext.getSession(),
@@ -260,8 +229,13 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                                                 "auth_remember");
                         }
 
-                        // Mark email as verified (user clicked link in email)
-                        user.setEmailVerified(true);
+                        // Mark email as verified (user clicked link in email). Setting
+                        // it again would make the user dirty and cost an update per login.
+                        int userWrites = 0;
+                        if (!user.isEmailVerified()) {
+                                user.setEmailVerified(true);
+                                userWrites++;
+                        }
 
                         // Set user session note to track magic link login
                         authSession.setUserSessionNote(LOGIN_METHOD, "magic-link");
@@ -285,13 +259,26 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                         logger.debugf("Magic Link: Completing authentication flow for user=%s",
                                         user.getId());
 
-                        return AuthenticationManager.nextActionAfterAuthentication(
+                        Response response = AuthenticationManager.nextActionAfterAuthentication(
                                         tokenContext.getSession(),
                                         authSession,
                                         tokenContext.getClientConnection(),
                                         tokenContext.getRequest(),
                                         tokenContext.getUriInfo(),
                                         tokenContext.getEvent());
+
+                        if (ledger != null && token.getExp() != null) {
+                                ledger.redeemed(MagicLinkTokenVerifiers.ledgerKey(token), token.getExp() * 1000L);
+                        }
+                        MagicLinkClientNotes.discard(token, tokenContext.getSession());
+
+                        String realmName = tokenContext.getRealm().getName();
+                        MagicLinkMetrics.tokenRedeemed(realmName, client.getClientId(),
+                                        MagicLinkMetrics.OUTCOME_SUCCESS);
+                        MagicLinkMetrics.clickToSession(realmName, client.getClientId(), token.getIat(),
+                                        Time.currentTimeMillis());
+                        MagicLinkMetrics.redemptionUserWrites(realmName, client.getClientId(), userWrites);
+                        return response;
                 }
 
                 // Invalid redirect URI
@@ -300,6 +287,8 @@ public class MagicLinkActionTokenHandler extends AbstractActionTokenHandler<Magi
                 tokenContext.getEvent()
                                 .detail("redirect_uri", redirectUri)
                                 .error(Errors.INVALID_REDIRECT_URI);
+                MagicLinkMetrics.tokenRedeemed(tokenContext.getRealm().getName(), client.getClientId(),
+                                MagicLinkMetrics.OUTCOME_INVALID_REDIRECT);
                 return tokenContext.getSession().getProvider(org.keycloak.forms.login.LoginFormsProvider.class)
                                 .setError(Messages.INVALID_REDIRECT_URI)
                                 .createErrorPage(Response.Status.BAD_REQUEST);
@@ -2,9 +2,14 @@ package org.invenio.keycloak.magiclink;
 
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.TokenVerifier.Predicate;
 import org.keycloak.authentication.actiontoken.ActionTokenHandlerFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.List;
 
 /**
  * Factory for Magic Link Action Token Handler
@@ -15,10 +20,22 @@ public class MagicLinkActionTokenHandlerFactory implements ActionTokenHandlerFac
   // PROVIDER_ID must match TOKEN_TYPE for Keycloak to route tokens correctly
   public static final String PROVIDER_ID = "magic-link";
 
+  // Server-level (SPI) options, e.g.
+  // --spi-action-token-handler--magic-link--redeemed-token-capacity=100000
+  static final String REDEEMED_TOKEN_CAPACITY = "redeemedTokenCapacity";
+  static final String FLOW_LOG_SAMPLE_RATE = "flowLogSampleRate";
+
+  private static final int DEFAULT_REDEEMED_TOKEN_CAPACITY = 50_000;
+
+  private int redeemedTokenCapacity = DEFAULT_REDEEMED_TOKEN_CAPACITY;
+  private MagicLinkTokenLedger ledger;
+  private MagicLinkLog log = new MagicLinkLog(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE);
+  private Predicate<? super MagicLinkActionToken>[] verifiers = MagicLinkTokenVerifiers.pipeline(null);
+
   @Override
   public MagicLinkActionTokenHandler create(KeycloakSession session) {
     logger.debug("Magic Link: Creating MagicLinkActionTokenHandler instance");
-    return new MagicLinkActionTokenHandler();
+    return new MagicLinkActionTokenHandler(ledger, verifiers, log);
   }
 
   @Override
@@ -35,6 +52,10 @@ public class MagicLinkActionTokenHandlerFactory implements ActionTokenHandlerFac
 
   @Override
   public void init(Config.Scope config) {
+    if (config != null) {
+      redeemedTokenCapacity = config.getInt(REDEEMED_TOKEN_CAPACITY, DEFAULT_REDEEMED_TOKEN_CAPACITY);
+      log = new MagicLinkLog(config.getInt(FLOW_LOG_SAMPLE_RATE, MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE));
+    }
     logger.debugf("Magic Link: Handler factory initialized - ID: %s, TokenType: %s, TokenClass: %s, HandlerClass: %s",
         PROVIDER_ID, MagicLinkActionToken.TOKEN_TYPE, MagicLinkActionToken.class.getName(),
         MagicLinkActionTokenHandler.class.getName());
@@ -42,12 +63,38 @@ public class MagicLinkActionTokenHandlerFactory implements ActionTokenHandlerFac
 
   @Override
   public void postInit(KeycloakSessionFactory factory) {
+    if (redeemedTokenCapacity > 0) {
+      ledger = new MagicLinkTokenLedger(redeemedTokenCapacity);
+    }
+    verifiers = MagicLinkTokenVerifiers.pipeline(ledger);
     logger.debugf("Magic Link: Handler factory post-initialization completed - will handle token type: %s",
         MagicLinkActionToken.TOKEN_TYPE);
   }
 
   @Override
   public void close() {
-    // Nothing to close
+    if (ledger != null) {
+      ledger.close();
+      ledger = null;
+    }
+    verifiers = MagicLinkTokenVerifiers.pipeline(null);
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(REDEEMED_TOKEN_CAPACITY)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Redeemed magic link tokens remembered per node until they expire, so replays are rejected without a cache round trip (about 160 bytes each). Set to 0 to rely on Keycloak's single-use check alone.")
+        .defaultValue(DEFAULT_REDEEMED_TOKEN_CAPACITY)
+        .add()
+        .property()
+        .name(FLOW_LOG_SAMPLE_RATE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Log one in this many clicked magic links at INFO; the others are logged at DEBUG. 1 logs every click, 0 none.")
+        .defaultValue(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE)
+        .add()
+        .build();
   }
 }
@@ -1,10 +1,13 @@
 package org.invenio.keycloak.magiclink;
 
+import io.micrometer.core.instrument.Timer;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriBuilder;
 import jakarta.ws.rs.core.UriInfo;
+import org.frontmatter.keycloak.username.allocator.UsernameAllocatorProvider;
 import org.jboss.logging.Logger;
+import org.keycloak.OAuth2Constants;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
@@ -16,9 +19,9 @@ import org.keycloak.events.Errors;
 import org.keycloak.events.EventType;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.Urls;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.services.resources.LoginActionsService;
@@ -28,9 +31,7 @@ import org.keycloak.sessions.AuthenticationSessionModel;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
 
 /**
  * Magic Link Authenticator - sends email with one-time passwordless login link
@@ -41,26 +42,83 @@ public class MagicLinkAuthenticator implements Authenticator {
 
   private static final String ATTEMPTED_USERNAME = "ATTEMPTED_USERNAME";
 
+  private final MagicLinkEmailDispatcher emailDispatcher;
+  private final AllowedDomainsIndex allowedDomainsIndex;
+  private final MagicLinkRateLimiter rateLimiter;
+  private final RecentMagicLinks recentLinks;
+  private final MagicLinkConfig.Cache configs;
+  private final UnknownEmails unknownEmails;
+  private final MagicLinkUserResolver userResolver;
+  private final MagicLinkLog log;
+
+  public MagicLinkAuthenticator() {
+    this(null, new AllowedDomainsIndex(MagicLinkAuthenticatorFactory.DEFAULT_ALLOWED_DOMAINS_CACHE_TTL_SECONDS),
+        new MagicLinkRateLimiter(), new RecentMagicLinks(), new MagicLinkConfig.Cache(),
+        new UnknownEmails(MagicLinkAuthenticatorFactory.DEFAULT_UNKNOWN_EMAIL_CACHE_TTL_SECONDS,
+            MagicLinkAuthenticatorFactory.DEFAULT_UNKNOWN_EMAIL_CACHE_SIZE),
+        new MagicLinkUserResolver(MagicLinkAuthenticatorFactory.DEFAULT_EMAIL_INDEX_CACHE_TTL_SECONDS,
+            MagicLinkAuthenticatorFactory.DEFAULT_EMAIL_INDEX_CACHE_SIZE),
+        new MagicLinkLog(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE));
+  }
+
+  /**
+   * @param emailDispatcher     queue used to send emails off the request thread,
+   *                            or null to send them synchronously
+   * @param allowedDomainsIndex realm-scoped cache of allowed domains shared by
+   *                            all authenticator instances
+   * @param rateLimiter         per-email and per-IP request limits
+   * @param recentLinks         links issued on this node, reused for repeated
+   *                            requests
+   * @param configs             parsed execution configs shared by all
+   *                            authenticator instances
+   * @param unknownEmails       addresses recently looked up without a user
+   * @param userResolver        user lookup by the entered address
+   * @param log                 sampling of the INFO flow markers
+   */
+  MagicLinkAuthenticator(MagicLinkEmailDispatcher emailDispatcher, AllowedDomainsIndex allowedDomainsIndex,
+      MagicLinkRateLimiter rateLimiter, RecentMagicLinks recentLinks, MagicLinkConfig.Cache configs,
+      UnknownEmails unknownEmails, MagicLinkUserResolver userResolver, MagicLinkLog log) {
+    this.emailDispatcher = emailDispatcher;
+    this.allowedDomainsIndex = allowedDomainsIndex;
+    this.rateLimiter = rateLimiter;
+    this.recentLinks = recentLinks;
+    this.configs = configs;
+    this.unknownEmails = unknownEmails;
+    this.userResolver = userResolver;
+    this.log = log;
+  }
+
   @Override
   public void authenticate(AuthenticationFlowContext context) {
-    logContextInfo("authenticate", context, null);
-    // Show email input form
-    Response challenge = context.form().createLoginUsername();
-    context.challenge(challenge);
+    try (MagicLinkLog.Context ignored = logContext(context)) {
+      Logger.Level flowLevel = log.flowLevel(logger);
+      if (flowLevel != null) {
+        logFlow(flowLevel, "authenticate", context, null);
+      }
+      // Show email input form
+      Response challenge = context.form().createLoginUsername();
+      context.challenge(challenge);
+    }
   }
 
   @Override
   public void action(AuthenticationFlowContext context) {
+    try (MagicLinkLog.Context ignored = logContext(context)) {
+      handleAction(context, log.flowLevel(logger));
+    }
+  }
+
+  /**
+   * @param flowLevel level of this request's flow markers, null to skip them
+   */
+  private void handleAction(AuthenticationFlowContext context, Logger.Level flowLevel) {
     MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
     String email = formData.getFirst("username");
 
-    // Helpful when templates post back (e.g. resend/restart)
-    String restart = formData.getFirst("restart");
-    logger.infof(
-        "Magic Link: action() called - restart=%s, usernamePresent=%s",
-        restart,
-        email != null && !email.trim().isEmpty());
-    logContextInfo("action", context, email);
+    if (flowLevel != null) {
+      // restart is helpful when templates post back (e.g. resend/restart)
+      logFlow(flowLevel, "action restart=" + formData.getFirst("restart"), context, email);
+    }
 
     if (email == null || email.trim().isEmpty()) {
       context.getEvent().error(Errors.USERNAME_MISSING);
@@ -72,37 +130,64 @@ public class MagicLinkAuthenticator implements Authenticator {
     }
 
     email = email.trim().toLowerCase();
+    String realmName = context.getRealm() != null ? context.getRealm().getName() : null;
+    String clientId = safeClientId(context);
+    MagicLinkMetrics.linkRequested(realmName, clientId);
+    MagicLinkConfig config = config(context);
+
+    // Checked before any lookup, token or email. A limited request gets the
+    // same page as a sent link, so the limit reveals nothing about the account
+    if (!withinRateLimits(context, config, email, realmName, clientId)) {
+      showEmailSentPage(context);
+      return;
+    }
 
     // Check domain restriction FIRST if configured so the notification email is
-    // sent regardless of whether the user account exists.
-    if (isAllowedDomainsConfigured(context) && !isDomainAllowed(context, email)) {
+    // sent regardless of whether the user account exists. Evaluated once and
+    // reused for the auto-creation decision below.
+    boolean domainAllowed = isDomainAllowed(context, config, email);
+    if (config.getAllowedDomainsGroup() != null && !domainAllowed) {
       String domain = extractDomain(email);
       logger.warnf("Magic Link: Domain not allowed, sending notification - email=%s, domain=%s",
           email, domain);
-      sendDomainNotAllowedEmail(context, email);
+      MagicLinkMetrics.domainRejected(realmName, clientId);
+      queueDomainNotAllowedEmail(context, email);
       showEmailSentPage(context);
       return;
     }
 
+    String realmId = context.getRealm().getId();
+    boolean mayCreateUser = config.isCreateUser() || domainAllowed;
+    // Without auto-creation an unknown address only ever gets the sent page,
+    // so a repeated request for it needs no lookup
+    if (!mayCreateUser && unknownEmails.isEnabled()) {
+      if (unknownEmails.isUnknown(realmId, email)) {
+        logger.debugf("Magic Link: Email recently not found, skipping lookup - email=%s", email);
+        MagicLinkMetrics.unknownEmailLookup(realmName, clientId, MagicLinkMetrics.LOOKUP_HIT);
+        showEmailSentPage(context);
+        return;
+      }
+      MagicLinkMetrics.unknownEmailLookup(realmName, clientId, MagicLinkMetrics.LOOKUP_MISS);
+    }
+
     // Find or create user
-    UserModel user = KeycloakModelUtils.findUserByNameOrEmail(
-        context.getSession(),
-        context.getRealm(),
-        email);
+    UserModel user = userResolver.find(context.getSession(), context.getRealm(), email, config.getUserLookup());
 
     if (user == null) {
       // User doesn't exist - optionally create
-      if (shouldCreateUser(context) || shouldCreateUserByDomain(context, email)) {
+      if (mayCreateUser) {
         logger.infof("Magic Link: User not found, auto-creating - email=%s", email);
-        user = createUser(context, email);
+        user = createUser(context, config, email, domainAllowed);
+        unknownEmails.known(realmId, email);
       } else {
         logger.infof("Magic Link: User not found, auto-create disabled, skipping send - email=%s", email);
+        unknownEmails.unknown(realmId, email);
         // Don't reveal user doesn't exist
         showEmailSentPage(context);
         return;
       }
-    } else {
-      logger.infof("Magic Link: User found - userId=%s, email=%s", user.getId(), email);
+    } else if (flowLevel != null) {
+      logger.logf(flowLevel, "Magic Link: User found - userId=%s, email=%s", user.getId(), email);
     }
 
     // Check if user is enabled
@@ -115,9 +200,32 @@ public class MagicLinkAuthenticator implements Authenticator {
 
     // Generate and send magic link
     try {
-      logger.infof("Magic Link: Sending magic link email - userId=%s, email=%s", user.getId(), email);
-      String link = generateMagicLink(context, user);
-      sendMagicLinkEmail(context, user, link);
+      String redirectUri = safeRedirectUri(context);
+      int reuseWindow = config.getDuplicateRequestWindow();
+      String recentLinkKey = recentLinkKey(context, realmId, user, clientId, redirectUri);
+      String link = reuseWindow > 0 ? recentLinks.get(recentLinkKey) : null;
+      if (link != null) {
+        boolean resend = config.isResendDuplicateRequests();
+        MagicLinkMetrics.duplicateRequest(realmName, clientId,
+            resend ? MagicLinkMetrics.DUPLICATE_RESENT : MagicLinkMetrics.DUPLICATE_SKIPPED);
+        if (!resend) {
+          logger.infof("Magic Link: Link sent moments ago, skipping send - userId=%s, email=%s", user.getId(),
+              email);
+          context.getAuthenticationSession().setAuthNote(ATTEMPTED_USERNAME, email);
+          context.getAuthenticationSession().setAuthNote("MAGIC_LINK_SENT", "true");
+          showEmailSentPage(context);
+          return;
+        }
+        logger.infof("Magic Link: Link sent moments ago, resending it - userId=%s, email=%s", user.getId(), email);
+        queueMagicLinkEmail(context, config, user, link, null);
+      } else {
+        long expiresAtMillis = Time.currentTimeMillis() + config.getTokenValidity() * 1000L;
+        String issued = generateMagicLink(context, config, user);
+        // Only remembered once sent, so a queued or failed send is not skipped on
+        // retry
+        queueMagicLinkEmail(context, config, user, issued,
+            () -> recentLinks.put(recentLinkKey, issued, reuseWindow, expiresAtMillis));
+      }
 
       // Store username for potential next steps
       context.getAuthenticationSession()
@@ -127,18 +235,16 @@ public class MagicLinkAuthenticator implements Authenticator {
       // the link
       context.getAuthenticationSession().setAuthNote("MAGIC_LINK_SENT", "true");
 
-      logger.infof(
-          "Magic Link: Magic link email sent successfully - userId=%s, email=%s, clientId=%s",
-          user.getId(),
-          email,
-          safeClientId(context));
+      if (flowLevel != null) {
+        logger.logf(flowLevel, "Magic Link: Magic link email dispatched - userId=%s, email=%s", user.getId(), email);
+      }
 
       showEmailSentPage(context);
     } catch (EmailException e) {
       // Log detailed email error
       context.getEvent().error(Errors.EMAIL_SEND_FAILED);
       context.getEvent().detail("email_error", e.getMessage());
-      org.jboss.logging.Logger.getLogger(getClass()).error("Failed to send magic link email to: " + email, e);
+      logger.errorf(e, "Magic Link: Failed to send magic link email - email=%s", email);
 
       Response challenge = context.form()
           .setError("Failed to send email. Please try again.")
@@ -146,7 +252,7 @@ public class MagicLinkAuthenticator implements Authenticator {
       context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR, challenge);
     } catch (Exception e) {
       // Log unexpected errors
-      org.jboss.logging.Logger.getLogger(getClass()).error("Unexpected error during magic link generation", e);
+      logger.error("Magic Link: Unexpected error during magic link generation", e);
       context.getEvent().error(Errors.EMAIL_SEND_FAILED);
 
       Response challenge = context.form()
@@ -156,6 +262,32 @@ public class MagicLinkAuthenticator implements Authenticator {
     }
   }
 
+  private boolean withinRateLimits(AuthenticationFlowContext context, MagicLinkConfig config, String email,
+      String realmName, String clientId) {
+    long windowSeconds = config.getRateLimitWindow();
+    String realmId = context.getRealm().getId();
+
+    // IP first, so one client cycling through addresses does not leave a
+    // counter behind for each of them
+    String ip = context.getConnection() != null ? context.getConnection().getRemoteAddr() : null;
+    int ipLimit = config.getRateLimitPerIp();
+    if (!rateLimiter.tryAcquire(context.getSession(), realmId, MagicLinkMetrics.LIMIT_IP, ip, ipLimit,
+        windowSeconds)) {
+      logger.warnf("Magic Link: Rate limit reached, skipping send - limit=ip, ip=%s, email=%s", ip, email);
+      MagicLinkMetrics.rateLimited(realmName, clientId, MagicLinkMetrics.LIMIT_IP);
+      return false;
+    }
+
+    int emailLimit = config.getRateLimitPerEmail();
+    if (!rateLimiter.tryAcquire(context.getSession(), realmId, MagicLinkMetrics.LIMIT_EMAIL, email, emailLimit,
+        windowSeconds)) {
+      logger.warnf("Magic Link: Rate limit reached, skipping send - limit=email, email=%s", email);
+      MagicLinkMetrics.rateLimited(realmName, clientId, MagicLinkMetrics.LIMIT_EMAIL);
+      return false;
+    }
+    return true;
+  }
+
   private static String safeClientId(AuthenticationFlowContext context) {
     try {
       return context.getSession().getContext().getClient() != null
@@ -166,6 +298,14 @@ public class MagicLinkAuthenticator implements Authenticator {
     }
   }
 
+  private static String recentLinkKey(AuthenticationFlowContext context, String realmId, UserModel user,
+      String clientId, String redirectUri) {
+    AuthenticationSessionModel authSession = context.getAuthenticationSession();
+    String tabId = authSession != null ? authSession.getTabId() : null;
+    String state = authSession != null ? authSession.getClientNote(OAuth2Constants.STATE) : null;
+    return RecentMagicLinks.key(realmId, user.getId(), clientId, redirectUri, tabId, state);
+  }
+
   private static String safeRedirectUri(AuthenticationFlowContext context) {
     try {
       return context.getAuthenticationSession() != null ? context.getAuthenticationSession().getRedirectUri() : "null";
@@ -174,92 +314,48 @@ public class MagicLinkAuthenticator implements Authenticator {
     }
   }
 
-  private static void logContext(String phase, AuthenticationFlowContext context, String email) {
+  private static MagicLinkLog.Context logContext(AuthenticationFlowContext context) {
     try {
-      URI requestUri = null;
-      try {
-        if (context != null && context.getSession() != null && context.getSession().getContext() != null) {
-          UriInfo uriInfo = context.getSession().getContext().getUri();
-          requestUri = uriInfo != null ? uriInfo.getRequestUri() : null;
-        }
-      } catch (Exception ignored) {
-        // Best-effort only
-      }
-
-      AuthenticationSessionModel authSession = context != null ? context.getAuthenticationSession() : null;
-
-      String parentSessionId = "null";
-      String tabId = "null";
-      if (authSession != null) {
-        tabId = authSession.getTabId();
-        parentSessionId = authSession.getParentSession() != null ? authSession.getParentSession().getId() : "null";
-      }
-
-      logger.debugf(
-          "Magic Link: %s - requestUri=%s, realm=%s, clientId=%s, redirectUri=%s, authSession=%s.%s, email=%s",
-          phase,
-          requestUri,
-          context.getRealm() != null ? context.getRealm().getName() : "null",
-          safeClientId(context),
-          safeRedirectUri(context),
-          parentSessionId,
-          tabId,
-          email != null ? email : "null");
+      return MagicLinkLog.context(logger,
+          context.getRealm() != null ? context.getRealm().getName() : null,
+          context.getSession().getContext().getClient() != null
+              ? context.getSession().getContext().getClient().getClientId()
+              : null,
+          context.getAuthenticationSession());
     } catch (Exception e) {
-      logger.debugf(e, "Magic Link: %s - failed to log context", phase);
+      // Best-effort only, e.g. in partially mocked environments
+      return MagicLinkLog.context(logger, null, null, null);
     }
   }
 
   /**
-   * INFO-level flow marker: enough context to correlate in production logs.
+   * Flow marker: enough context to correlate in production logs. Realm,
+   * client and authentication session are in the MDC.
    */
-  private static void logContextInfo(String phase, AuthenticationFlowContext context, String email) {
+  private static void logFlow(Logger.Level level, String phase, AuthenticationFlowContext context, String email) {
+    URI requestUri = null;
     try {
-      URI requestUri = null;
-      try {
-        if (context != null && context.getSession() != null && context.getSession().getContext() != null) {
-          UriInfo uriInfo = context.getSession().getContext().getUri();
-          requestUri = uriInfo != null ? uriInfo.getRequestUri() : null;
-        }
-      } catch (Exception ignored) {
-        // Best-effort only
-      }
-
-      AuthenticationSessionModel authSession = context != null ? context.getAuthenticationSession() : null;
-
-      String parentSessionId = "null";
-      String tabId = "null";
-      if (authSession != null) {
-        tabId = authSession.getTabId();
-        parentSessionId = authSession.getParentSession() != null ? authSession.getParentSession().getId() : "null";
-      }
-
-      logger.infof(
-          "Magic Link: %s - requestUri=%s, realm=%s, clientId=%s, redirectUri=%s, authSession=%s.%s, email=%s",
-          phase,
-          requestUri,
-          context.getRealm() != null ? context.getRealm().getName() : "null",
-          safeClientId(context),
-          safeRedirectUri(context),
-          parentSessionId,
-          tabId,
-          email != null ? email : "null");
-    } catch (Exception e) {
-      // Avoid noisy INFO logs in partially mocked environments; DEBUG has details.
-      logger.debugf(e, "Magic Link: %s - failed to log context", phase);
+      UriInfo uriInfo = context.getSession().getContext().getUri();
+      requestUri = uriInfo != null ? uriInfo.getRequestUri() : null;
+    } catch (Exception ignored) {
+      // Best-effort only
     }
+    logger.logf(level, "Magic Link: %s - requestUri=%s, redirectUri=%s, email=%s",
+        phase, requestUri, safeRedirectUri(context), email);
   }
 
-  private String generateMagicLink(AuthenticationFlowContext context, UserModel user) {
-    int validityInSecs = getTokenValidity(context);
+  private String generateMagicLink(AuthenticationFlowContext context, MagicLinkConfig config, UserModel user) {
+    int validityInSecs = config.getTokenValidity();
     int absoluteExpirationInSecs = Time.currentTime() + validityInSecs;
 
     String clientId = context.getSession().getContext().getClient().getClientId();
     String redirectUri = context.getAuthenticationSession().getRedirectUri();
-    Boolean rememberMe = false;
+    String encoding = config.getTokenEncoding();
+    // The token's default false is only worth its bytes in full encoding
+    Boolean rememberMe = MagicLinkClientNotes.ENCODING_FULL.equals(encoding) ? false : null;
 
-    // Capture all client notes from original session for OIDC flow preservation
-    Map<String, String> clientNotes = new HashMap<>(context.getAuthenticationSession().getClientNotes());
+    // Capture the client notes from original session for OIDC flow preservation
+    Map<String, String> clientNotes = context.getAuthenticationSession().getClientNotes();
 
     // Self-contained token: compoundAuthSessionId = null.
     // The magic link carries ALL info needed to authenticate (userId, clientId,
@@ -270,9 +366,11 @@ public class MagicLinkAuthenticator implements Authenticator {
     // challenge() in showEmailSentPage) and works even if the link is opened
     // in a different browser context (e.g. mobile phone, different tab).
 
-    logger.debugf(
-        "Magic Link: Generating token - userId=%s, clientId=%s, redirectUri=%s, clientNotes=%d, validitySecs=%d, absoluteExp=%d",
-        user.getId(), clientId, redirectUri, clientNotes.size(), validityInSecs, absoluteExpirationInSecs);
+    if (logger.isDebugEnabled()) {
+      logger.debugf(
+          "Magic Link: Generating token - userId=%s, clientId=%s, redirectUri=%s, clientNotes=%d, encoding=%s, validitySecs=%d, absoluteExp=%d",
+          user.getId(), clientId, redirectUri, clientNotes.size(), encoding, validityInSecs, absoluteExpirationInSecs);
+    }
 
     MagicLinkActionToken token = new MagicLinkActionToken(
         user.getId(),
@@ -281,11 +379,10 @@ public class MagicLinkAuthenticator implements Authenticator {
         redirectUri,
         rememberMe,
         null, // self-contained: always create fresh auth session on click
-        clientNotes);
-
-    logger.debugf(
-        "Magic Link: Token created, now serializing - tokenId=%s, nonce=%s, tokenType=%s",
-        token.getId(), token.getActionVerificationNonce(), token.getType());
+        null);
+    MagicLinkClientNotes.write(token, encoding, clientNotes,
+        config.getCompactClientNotes(),
+        context.getSession(), validityInSecs);
 
     UriInfo uriInfo = context.getSession().getContext().getUri();
     String tokenString = token.serialize(
@@ -293,32 +390,61 @@ public class MagicLinkAuthenticator implements Authenticator {
         context.getRealm(),
         uriInfo);
 
-    // Don't log the token itself (it can be used to log in). Log only a small
-    // fingerprint.
-    String tokenFingerprint = tokenString == null ? "null" : Integer.toHexString(tokenString.hashCode());
-    logger.debugf(
-        "Magic Link: Token serialized - length=%d, userId=%s, tokenFingerprint=%s",
-        tokenString != null ? tokenString.length() : 0,
-        user.getId(),
-        tokenFingerprint);
+    if (logger.isDebugEnabled()) {
+      // Don't log the token itself (it can be used to log in). Log only a small
+      // fingerprint.
+      logger.debugf(
+          "Magic Link: Token serialized - tokenId=%s, nonce=%s, length=%d, userId=%s, tokenFingerprint=%s",
+          token.getId(), token.getActionVerificationNonce(),
+          tokenString != null ? tokenString.length() : 0,
+          user.getId(),
+          tokenString == null ? "null" : Integer.toHexString(tokenString.hashCode()));
+    }
+
+    return actionTokenLink(uriInfo.getBaseUri(), context.getRealm().getName(), tokenString, clientId);
+  }
 
-    UriBuilder builder = Urls.realmBase(uriInfo.getBaseUri())
+  /**
+   * @return the login actions URL that redeems the serialized token
+   */
+  static String actionTokenLink(URI baseUri, String realmName, String tokenString, String clientId) {
+    UriBuilder builder = Urls.realmBase(baseUri)
         .path(RealmsResource.class, "getLoginActionsService")
         .path(LoginActionsService.class, "executeActionToken")
         .queryParam("key", tokenString)
         .queryParam("client_id", clientId);
 
-    String link = builder.build(context.getRealm().getName()).toString();
-    logger.debugf(
-        "Magic Link: Link generated - length=%d, userId=%s",
-        link.length(), user.getId());
+    return builder.build(realmName).toString();
+  }
 
-    return link;
+  private void queueDomainNotAllowedEmail(AuthenticationFlowContext context, String email) {
+    if (emailDispatcher != null) {
+      String realmId = context.getRealm().getId();
+      String clientId = safeClientId(context);
+      KeycloakSessionFactory sessionFactory = context.getSession().getKeycloakSessionFactory();
+      boolean queued = emailDispatcher.dispatch(
+          "domain-not-allowed notification for email=" + email,
+          MagicLinkEmailDispatcher.inNewSession(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm != null) {
+              sendDomainNotAllowedEmail(session, realm, clientId, email);
+            }
+          }));
+      if (queued) {
+        return;
+      }
+    }
+    sendDomainNotAllowedEmail(context, email);
   }
 
   protected void sendDomainNotAllowedEmail(AuthenticationFlowContext context, String email) {
-    String realmName = context.getRealm().getDisplayName();
-    String contactAddress = replyToOrFrom(context.getRealm());
+    sendDomainNotAllowedEmail(context.getSession(), context.getRealm(), safeClientId(context), email);
+  }
+
+  private static void sendDomainNotAllowedEmail(KeycloakSession session, RealmModel realm, String clientId,
+      String email) {
+    String realmName = realm.getDisplayName();
+    String contactAddress = replyToOrFrom(realm);
 
     String subject = "Platform Access Information";
     String textBody = "Someone has attempted to log in to " + realmName
@@ -341,53 +467,122 @@ public class MagicLinkAuthenticator implements Authenticator {
         + "A notification email has been sent to " + email + ".";
     String ccHtmlBody = "<p>" + ccTextBody.replace("\n", "</p><p>") + "</p>";
 
+    Timer.Sample sample = MagicLinkMetrics.startEmailSend();
     try {
-      EmailSenderProvider emailSender = context.getSession().getProvider(EmailSenderProvider.class);
-      Map<String, String> smtpConfig = context.getRealm().getSmtpConfig();
+      EmailSenderProvider emailSender = session.getProvider(EmailSenderProvider.class);
+      Map<String, String> smtpConfig = realm.getSmtpConfig();
       emailSender.send(smtpConfig, email, subject, textBody, htmlBody);
       logger.infof("Magic Link: Sent domain-not-allowed notification - email=%s", email);
       if (!contactAddress.isEmpty() && !contactAddress.equalsIgnoreCase(email)) {
         emailSender.send(smtpConfig, contactAddress, subject, ccTextBody, ccHtmlBody);
         logger.infof("Magic Link: Sent domain-not-allowed CC notification - ccAddress=%s", contactAddress);
       }
+      MagicLinkMetrics.emailSent(sample, realm.getName(), clientId, MagicLinkMetrics.EMAIL_DOMAIN_NOT_ALLOWED,
+          MagicLinkMetrics.OUTCOME_SUCCESS);
     } catch (EmailException e) {
+      MagicLinkMetrics.emailSent(sample, realm.getName(), clientId, MagicLinkMetrics.EMAIL_DOMAIN_NOT_ALLOWED,
+          MagicLinkMetrics.OUTCOME_EMAIL_EXCEPTION);
       logger.warnf(e, "Magic Link: Failed to send domain-not-allowed notification - email=%s", email);
     }
   }
 
+  /**
+   * Hands the email to the dispatcher, falling back to a synchronous send when
+   * there is no dispatcher or its queue is full.
+   *
+   * @param onSent run once the email is sent, on the dispatch worker for a
+   *               queued email; may be null
+   */
+  private void queueMagicLinkEmail(AuthenticationFlowContext context, MagicLinkConfig config, UserModel user,
+      String link, Runnable onSent) throws EmailException {
+    if (emailDispatcher != null) {
+      String realmId = context.getRealm().getId();
+      String userId = user.getId();
+      String clientId = safeClientId(context);
+      int validityInSecs = config.getTokenValidity();
+      KeycloakSessionFactory sessionFactory = context.getSession().getKeycloakSessionFactory();
+      MagicLinkEmailContext emailContext = MagicLinkEmailContext.capture(context.getSession(), user);
+      boolean queued = emailDispatcher.dispatch(
+          "magic link for userId=" + userId,
+          MagicLinkEmailDispatcher.inNewSession(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserModel recipient = realm != null ? session.users().getUserById(realm, userId) : null;
+            if (recipient == null) {
+              logger.warnf("Magic Link: Recipient no longer exists, dropping email - userId=%s", userId);
+              return;
+            }
+            emailContext.restore(session, realm);
+            sendMagicLinkEmail(session, realm, clientId, emailContext.recipient(recipient), link, validityInSecs);
+            if (onSent != null) {
+              onSent.run();
+            }
+          }));
+      if (queued) {
+        return;
+      }
+    }
+    sendMagicLinkEmail(context, user, link);
+    if (onSent != null) {
+      onSent.run();
+    }
+  }
+
   protected void sendMagicLinkEmail(AuthenticationFlowContext context, UserModel user, String link)
       throws EmailException {
-    EmailTemplateProvider emailProvider = context.getSession().getProvider(EmailTemplateProvider.class);
-    emailProvider.setRealm(context.getRealm());
+    sendMagicLinkEmail(context.getSession(), context.getRealm(), safeClientId(context), user, link,
+        config(context).getTokenValidity());
+  }
+
+  static void sendMagicLinkEmail(KeycloakSession session, RealmModel realm, String clientId, UserModel user,
+      String link, int validityInSecs) throws EmailException {
+    EmailTemplateProvider emailProvider = session.getProvider(EmailTemplateProvider.class);
+    emailProvider.setRealm(realm);
     emailProvider.setUser(user);
 
     Map<String, Object> attributes = new HashMap<>();
     attributes.put("link", link);
-    attributes.put("linkExpiration", getTokenValidity(context) / 60); // minutes
-    attributes.put("realmName", context.getRealm().getDisplayName());
-
-    emailProvider.send(
-        "magicLinkSubject",
-        Arrays.asList(context.getRealm().getDisplayName()),
-        "magic-link.ftl",
-        attributes);
-  }
-
-  private UserModel createUser(AuthenticationFlowContext context, String email) {
-    // Generate a unique username using auto-username generator
-    String username = generateUniqueUsername(context);
+    attributes.put("linkExpiration", validityInSecs / 60); // minutes
+    attributes.put("realmName", realm.getDisplayName());
 
-    UserModel user = context.getSession().users().addUser(context.getRealm(), username);
-    user.setEnabled(true);
-    user.setEmail(email);
-    user.setEmailVerified(true); // Email verified via magic link
+    Timer.Sample sample = MagicLinkMetrics.startEmailSend();
+    try {
+      emailProvider.send(
+          "magicLinkSubject",
+          Arrays.asList(realm.getDisplayName()),
+          "magic-link.ftl",
+          attributes);
+    } catch (EmailException e) {
+      MagicLinkMetrics.emailSent(sample, realm.getName(), clientId, MagicLinkMetrics.EMAIL_MAGIC_LINK,
+          MagicLinkMetrics.OUTCOME_EMAIL_EXCEPTION);
+      throw e;
+    } catch (RuntimeException e) {
+      MagicLinkMetrics.emailSent(sample, realm.getName(), clientId, MagicLinkMetrics.EMAIL_MAGIC_LINK,
+          MagicLinkMetrics.OUTCOME_ERROR);
+      throw e;
+    }
+    MagicLinkMetrics.emailSent(sample, realm.getName(), clientId, MagicLinkMetrics.EMAIL_MAGIC_LINK,
+        MagicLinkMetrics.OUTCOME_SUCCESS);
+  }
 
-    // firstName and lastName are optional fields, so we don't set them
-    // Explicitly remove all profile-related required actions
-    user.removeRequiredAction(org.keycloak.models.UserModel.RequiredAction.UPDATE_PROFILE);
-    user.removeRequiredAction(org.keycloak.models.UserModel.RequiredAction.VERIFY_EMAIL);
-    // VERIFY_PROFILE is a separate action in Keycloak 26.x for User Profile feature
-    user.removeRequiredAction("VERIFY_PROFILE");
+  /**
+   * @param domainAllowed whether the email domain is in the allowed domains
+   *                      group, i.e. the user is created because of it
+   */
+  private UserModel createUser(AuthenticationFlowContext context, MagicLinkConfig config, String email,
+      boolean domainAllowed) {
+    RealmModel realm = context.getRealm();
+    // Same allocator as the auto-username mapper, so IdP and magic link
+    // signups get usernames the same way
+    UsernameAllocatorProvider allocator = UsernameAllocatorProvider.of(context.getSession());
+    String username = allocator.allocate(realm);
+
+    GroupModel group = null;
+    if (domainAllowed && config.isJoinAllowedDomainsGroup()) {
+      String groupId = allowedDomainsIndex.get(realm, config.getAllowedDomainsGroup()).getGroupId();
+      group = groupId != null ? realm.getGroupById(groupId) : null;
+    }
+    UserModel user = MagicLinkUsers.create(context.getSession(), realm, username, email, group);
+    allocator.assigned(realm, username);
 
     context.getEvent()
         .user(user)
@@ -395,31 +590,14 @@ public class MagicLinkAuthenticator implements Authenticator {
         .detail("email", email)
         .detail("registration_method", "magic_link_domain_auto")
         .event(EventType.REGISTER);
+    MagicLinkMetrics.userCreated(realm.getName(), safeClientId(context));
 
     logger.infof("Magic Link: Auto-created user - username=%s, email=%s", username, email);
     return user;
   }
 
-  private String generateUniqueUsername(AuthenticationFlowContext context) {
-    // Try up to 10 times to generate a unique username
-    for (int attempt = 0; attempt < 10; attempt++) {
-      String username = UsernameGenerator.generate();
-      UserModel existing = context.getSession().users().getUserByUsername(context.getRealm(), username);
-      if (existing == null) {
-        return username;
-      }
-      logger.debugf("Magic Link: Username collision, retrying - username=%s, attempt=%d", username, attempt);
-    }
-    // Fallback: use email if we can't generate unique username after 10 attempts
-    logger.warnf("Magic Link: Failed to generate unique username after 10 attempts, using email");
-    return java.util.UUID.randomUUID().toString();
-  }
-
   private void showEmailSentPage(AuthenticationFlowContext context) {
-    logger.infof(
-        "Magic Link: Showing email sent page (async magic link) - clientId=%s, redirectUri=%s",
-        safeClientId(context),
-        safeRedirectUri(context));
+    logger.debug("Magic Link: Showing email sent page");
 
     // Use challenge() with our custom magic-link-sent.ftl template.
     // - challenge() shows the page without redirecting back to the client
@@ -430,34 +608,9 @@ public class MagicLinkAuthenticator implements Authenticator {
     context.challenge(response);
   }
 
-  private boolean shouldCreateUser(AuthenticationFlowContext context) {
-    return context.getAuthenticatorConfig() != null
-        && Boolean.parseBoolean(
-            context.getAuthenticatorConfig()
-                .getConfig()
-                .getOrDefault("createUser", "false"));
-  }
-
-  private boolean isAllowedDomainsConfigured(AuthenticationFlowContext context) {
-    if (context.getAuthenticatorConfig() == null) {
-      return false;
-    }
-    String groupName = context.getAuthenticatorConfig()
-        .getConfig()
-        .get("allowedDomainsGroup");
-    return groupName != null && !groupName.trim().isEmpty();
-  }
-
-  private boolean isDomainAllowed(AuthenticationFlowContext context, String email) {
-    if (context.getAuthenticatorConfig() == null) {
-      return false;
-    }
-
-    String groupName = context.getAuthenticatorConfig()
-        .getConfig()
-        .get("allowedDomainsGroup");
-
-    if (groupName == null || groupName.trim().isEmpty()) {
+  private boolean isDomainAllowed(AuthenticationFlowContext context, MagicLinkConfig config, String email) {
+    String groupName = config.getAllowedDomainsGroup();
+    if (groupName == null) {
       return false;
     }
 
@@ -467,20 +620,12 @@ public class MagicLinkAuthenticator implements Authenticator {
       return false;
     }
 
-    // Find the group by name
-    Stream<GroupModel> groups = context.getRealm().getGroupsStream()
-        .filter(g -> groupName.equals(g.getName()));
-    GroupModel group = groups.findFirst().orElse(null);
-
-    if (group == null) {
-      logger.warnf("Magic Link: Group not found for domain check - groupName=%s", groupName);
+    // Look up the domain in the cached 'allowed-domains' of the group
+    AllowedDomainsIndex.AllowedDomains allowedDomains = allowedDomainsIndex.get(context.getRealm(), groupName);
+    if (!allowedDomains.isGroupFound()) {
       return false;
     }
-
-    // Check if domain is in group's allowed-domains attribute
-    List<String> allowedDomains = group.getAttributeStream("allowed-domains").toList();
-    boolean isAllowed = allowedDomains.stream()
-        .anyMatch(d -> d.trim().equalsIgnoreCase(domain));
+    boolean isAllowed = allowedDomains.contains(domain);
 
     logger.debugf("Magic Link: Domain check - email=%s, domain=%s, group=%s, allowed=%s",
         email, domain, groupName, isAllowed);
@@ -488,10 +633,6 @@ public class MagicLinkAuthenticator implements Authenticator {
     return isAllowed;
   }
 
-  private boolean shouldCreateUserByDomain(AuthenticationFlowContext context, String email) {
-    return isDomainAllowed(context, email);
-  }
-
   private static String replyToOrFrom(RealmModel realm) {
     Map<String, String> smtp = realm.getSmtpConfig();
     String replyTo = smtp.getOrDefault("replyTo", "").trim();
@@ -505,20 +646,8 @@ public class MagicLinkAuthenticator implements Authenticator {
     return email.substring(email.indexOf("@") + 1).toLowerCase();
   }
 
-  private int getTokenValidity(AuthenticationFlowContext context) {
-    if (context.getAuthenticatorConfig() != null) {
-      String validity = context.getAuthenticatorConfig()
-          .getConfig()
-          .get("tokenValidity");
-      if (validity != null) {
-        try {
-          return Integer.parseInt(validity);
-        } catch (NumberFormatException e) {
-          // Fall through to default
-        }
-      }
-    }
-    return 900; // Default: 15 minutes
+  private MagicLinkConfig config(AuthenticationFlowContext context) {
+    return configs.get(context.getAuthenticatorConfig());
   }
 
   @Override
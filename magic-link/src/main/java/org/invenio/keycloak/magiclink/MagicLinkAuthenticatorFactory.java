@@ -7,6 +7,7 @@ import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +19,76 @@ public class MagicLinkAuthenticatorFactory implements AuthenticatorFactory {
 
   public static final String PROVIDER_ID = "magic-link-authenticator";
 
+  // Server-level (SPI) options, e.g.
+  // --spi-authenticator--magic-link-authenticator--email-workers=8
+  static final String EMAIL_WORKERS = "emailWorkers";
+  static final String EMAIL_QUEUE_CAPACITY = "emailQueueCapacity";
+  static final String EMAIL_MAX_ATTEMPTS = "emailMaxAttempts";
+  static final String EMAIL_RETRY_BACKOFF_MILLIS = "emailRetryBackoffMillis";
+  static final String ALLOWED_DOMAINS_CACHE_TTL_SECONDS = "allowedDomainsCacheTtlSeconds";
+  static final String FLOW_LOG_SAMPLE_RATE = "flowLogSampleRate";
+  static final String UNKNOWN_EMAIL_CACHE_TTL_SECONDS = "unknownEmailCacheTtlSeconds";
+  static final String UNKNOWN_EMAIL_CACHE_SIZE = "unknownEmailCacheSize";
+  static final String EMAIL_INDEX_CACHE_TTL_SECONDS = "emailIndexCacheTtlSeconds";
+  static final String EMAIL_INDEX_CACHE_SIZE = "emailIndexCacheSize";
+
+  private static final int DEFAULT_EMAIL_WORKERS = 4;
+  private static final int DEFAULT_EMAIL_QUEUE_CAPACITY = 1000;
+  static final int DEFAULT_EMAIL_MAX_ATTEMPTS = 3;
+  static final long DEFAULT_EMAIL_RETRY_BACKOFF_MILLIS = 1000L;
+  static final long DEFAULT_ALLOWED_DOMAINS_CACHE_TTL_SECONDS = 60L;
+  // Per node: a user created on another node stays unknown here until the TTL expires
+  static final long DEFAULT_UNKNOWN_EMAIL_CACHE_TTL_SECONDS = 0L;
+  static final int DEFAULT_UNKNOWN_EMAIL_CACHE_SIZE = 100_000;
+  static final long DEFAULT_EMAIL_INDEX_CACHE_TTL_SECONDS = 0L;
+  static final int DEFAULT_EMAIL_INDEX_CACHE_SIZE = 100_000;
+
+  // Per-execution options, parsed into a MagicLinkConfig
+  static final String CREATE_USER = "createUser";
+  static final String ALLOWED_DOMAINS_GROUP = "allowedDomainsGroup";
+  static final String JOIN_ALLOWED_DOMAINS_GROUP = "joinAllowedDomainsGroup";
+  static final String TOKEN_VALIDITY = "tokenValidity";
+
+  static final int DEFAULT_TOKEN_VALIDITY = 900;
+
+  static final String RATE_LIMIT_PER_EMAIL = "rateLimitPerEmail";
+  static final String RATE_LIMIT_PER_IP = "rateLimitPerIp";
+  static final String RATE_LIMIT_WINDOW = "rateLimitWindow";
+
+  // Off until an admin sets them: a shared office or NAT address, or a user
+  // retrying a slow mailbox, would otherwise be turned away silently
+  static final int DEFAULT_RATE_LIMIT_PER_EMAIL = 0;
+  static final int DEFAULT_RATE_LIMIT_PER_IP = 0;
+  static final int DEFAULT_RATE_LIMIT_WINDOW = 3600;
+
+  static final String DUPLICATE_REQUEST_WINDOW = "duplicateRequestWindow";
+  static final String DUPLICATE_REQUEST_ACTION = "duplicateRequestAction";
+  static final String DUPLICATE_REQUEST_SKIP = "skip";
+  static final String DUPLICATE_REQUEST_RESEND = "resend";
+
+  static final int DEFAULT_DUPLICATE_REQUEST_WINDOW = 60;
+
+  static final String TOKEN_ENCODING = "tokenEncoding";
+  static final String COMPACT_CLIENT_NOTES = "compactClientNotes";
+
+  static final String USER_LOOKUP = "userLookup";
+
+  private int emailWorkers = DEFAULT_EMAIL_WORKERS;
+  private int emailQueueCapacity = DEFAULT_EMAIL_QUEUE_CAPACITY;
+  private int emailMaxAttempts = DEFAULT_EMAIL_MAX_ATTEMPTS;
+  private long emailRetryBackoffMillis = DEFAULT_EMAIL_RETRY_BACKOFF_MILLIS;
+
+  private MagicLinkEmailDispatcher emailDispatcher;
+  private AllowedDomainsIndex allowedDomainsIndex = new AllowedDomainsIndex(DEFAULT_ALLOWED_DOMAINS_CACHE_TTL_SECONDS);
+  private final MagicLinkRateLimiter rateLimiter = new MagicLinkRateLimiter();
+  private final RecentMagicLinks recentLinks = new RecentMagicLinks();
+  private final MagicLinkConfig.Cache configs = new MagicLinkConfig.Cache();
+  private UnknownEmails unknownEmails = new UnknownEmails(DEFAULT_UNKNOWN_EMAIL_CACHE_TTL_SECONDS,
+      DEFAULT_UNKNOWN_EMAIL_CACHE_SIZE);
+  private MagicLinkUserResolver userResolver = new MagicLinkUserResolver(DEFAULT_EMAIL_INDEX_CACHE_TTL_SECONDS,
+      DEFAULT_EMAIL_INDEX_CACHE_SIZE);
+  private MagicLinkLog log = new MagicLinkLog(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE);
+
   @Override
   public String getDisplayType() {
     return "Magic Link";
@@ -58,7 +129,7 @@ public class MagicLinkAuthenticatorFactory implements AuthenticatorFactory {
 
     ProviderConfigProperty createUser = new ProviderConfigProperty();
     createUser.setType(ProviderConfigProperty.BOOLEAN_TYPE);
-    createUser.setName("createUser");
+    createUser.setName(CREATE_USER);
     createUser.setLabel("Auto-create users");
     createUser.setHelpText("Automatically create user accounts for new email addresses");
     createUser.setDefaultValue(false);
@@ -66,45 +137,224 @@ public class MagicLinkAuthenticatorFactory implements AuthenticatorFactory {
 
     ProviderConfigProperty allowedDomainsGroup = new ProviderConfigProperty();
     allowedDomainsGroup.setType(ProviderConfigProperty.STRING_TYPE);
-    allowedDomainsGroup.setName("allowedDomainsGroup");
+    allowedDomainsGroup.setName(ALLOWED_DOMAINS_GROUP);
     allowedDomainsGroup.setLabel("Allowed domains group");
     allowedDomainsGroup.setHelpText(
         "Name of the group containing 'allowed-domains' attribute with email domains for auto-creation (e.g., example.com, company.org)");
     properties.add(allowedDomainsGroup);
 
+    ProviderConfigProperty joinAllowedDomainsGroup = new ProviderConfigProperty();
+    joinAllowedDomainsGroup.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+    joinAllowedDomainsGroup.setName(JOIN_ALLOWED_DOMAINS_GROUP);
+    joinAllowedDomainsGroup.setLabel("Join allowed domains group");
+    joinAllowedDomainsGroup.setHelpText("Make users auto-created for an allowed domain members of the allowed domains group");
+    joinAllowedDomainsGroup.setDefaultValue(false);
+    properties.add(joinAllowedDomainsGroup);
+
     ProviderConfigProperty tokenValidity = new ProviderConfigProperty();
     tokenValidity.setType(ProviderConfigProperty.STRING_TYPE);
-    tokenValidity.setName("tokenValidity");
+    tokenValidity.setName(TOKEN_VALIDITY);
     tokenValidity.setLabel("Token validity (seconds)");
     tokenValidity.setHelpText("How long the magic link remains valid. Default: 900 (15 minutes)");
-    tokenValidity.setDefaultValue("900");
+    tokenValidity.setDefaultValue(Integer.toString(DEFAULT_TOKEN_VALIDITY));
     properties.add(tokenValidity);
 
+    ProviderConfigProperty rateLimitPerEmail = new ProviderConfigProperty();
+    rateLimitPerEmail.setType(ProviderConfigProperty.STRING_TYPE);
+    rateLimitPerEmail.setName(RATE_LIMIT_PER_EMAIL);
+    rateLimitPerEmail.setLabel("Rate limit per email");
+    rateLimitPerEmail.setHelpText("Magic link requests per email address within the rate limit window. Further requests show the confirmation page without sending. 0 disables the limit. Default: "
+        + DEFAULT_RATE_LIMIT_PER_EMAIL + " (disabled; 5 is a reasonable starting point)");
+    rateLimitPerEmail.setDefaultValue(Integer.toString(DEFAULT_RATE_LIMIT_PER_EMAIL));
+    properties.add(rateLimitPerEmail);
+
+    ProviderConfigProperty rateLimitPerIp = new ProviderConfigProperty();
+    rateLimitPerIp.setType(ProviderConfigProperty.STRING_TYPE);
+    rateLimitPerIp.setName(RATE_LIMIT_PER_IP);
+    rateLimitPerIp.setLabel("Rate limit per IP");
+    rateLimitPerIp.setHelpText("Magic link requests per client IP address within the rate limit window. 0 disables the limit. Default: "
+        + DEFAULT_RATE_LIMIT_PER_IP + " (disabled; set it well above the number of users behind one shared address)");
+    rateLimitPerIp.setDefaultValue(Integer.toString(DEFAULT_RATE_LIMIT_PER_IP));
+    properties.add(rateLimitPerIp);
+
+    ProviderConfigProperty rateLimitWindow = new ProviderConfigProperty();
+    rateLimitWindow.setType(ProviderConfigProperty.STRING_TYPE);
+    rateLimitWindow.setName(RATE_LIMIT_WINDOW);
+    rateLimitWindow.setLabel("Rate limit window (seconds)");
+    rateLimitWindow.setHelpText("Length of the sliding window the rate limits apply to. Default: "
+        + DEFAULT_RATE_LIMIT_WINDOW + " (1 hour)");
+    rateLimitWindow.setDefaultValue(Integer.toString(DEFAULT_RATE_LIMIT_WINDOW));
+    properties.add(rateLimitWindow);
+
+    ProviderConfigProperty duplicateRequestWindow = new ProviderConfigProperty();
+    duplicateRequestWindow.setType(ProviderConfigProperty.STRING_TYPE);
+    duplicateRequestWindow.setName(DUPLICATE_REQUEST_WINDOW);
+    duplicateRequestWindow.setLabel("Duplicate request window (seconds)");
+    duplicateRequestWindow.setHelpText("A repeated request for the same user, client and redirect URI within this time reuses the link already issued instead of signing a new one. 0 always issues a new link. Default: "
+        + DEFAULT_DUPLICATE_REQUEST_WINDOW);
+    duplicateRequestWindow.setDefaultValue(Integer.toString(DEFAULT_DUPLICATE_REQUEST_WINDOW));
+    properties.add(duplicateRequestWindow);
+
+    ProviderConfigProperty duplicateRequestAction = new ProviderConfigProperty();
+    duplicateRequestAction.setType(ProviderConfigProperty.LIST_TYPE);
+    duplicateRequestAction.setName(DUPLICATE_REQUEST_ACTION);
+    duplicateRequestAction.setLabel("Duplicate request action");
+    duplicateRequestAction.setHelpText("What a repeated request within the window does: 'skip' sends nothing, 'resend' emails the same link again.");
+    duplicateRequestAction.setOptions(List.of(DUPLICATE_REQUEST_SKIP, DUPLICATE_REQUEST_RESEND));
+    duplicateRequestAction.setDefaultValue(DUPLICATE_REQUEST_SKIP);
+    properties.add(duplicateRequestAction);
+
+    ProviderConfigProperty tokenEncoding = new ProviderConfigProperty();
+    tokenEncoding.setType(ProviderConfigProperty.LIST_TYPE);
+    tokenEncoding.setName(TOKEN_ENCODING);
+    tokenEncoding.setLabel("Token encoding");
+    tokenEncoding.setHelpText("How the login's client notes (OIDC state, nonce, PKCE, ...) travel in the link: 'full' puts all of them in the token, 'compact' only the notes listed below under short names, 'reference' keeps them on the server and puts an id in the token.");
+    tokenEncoding.setOptions(List.of(MagicLinkClientNotes.ENCODING_FULL, MagicLinkClientNotes.ENCODING_COMPACT,
+        MagicLinkClientNotes.ENCODING_REFERENCE));
+    tokenEncoding.setDefaultValue(MagicLinkClientNotes.ENCODING_FULL);
+    properties.add(tokenEncoding);
+
+    ProviderConfigProperty compactClientNotes = new ProviderConfigProperty();
+    compactClientNotes.setType(ProviderConfigProperty.STRING_TYPE);
+    compactClientNotes.setName(COMPACT_CLIENT_NOTES);
+    compactClientNotes.setLabel("Compact client notes");
+    compactClientNotes.setHelpText("Comma-separated client notes kept by the compact encoding. Default: the OIDC authorization request parameters.");
+    compactClientNotes.setDefaultValue(String.join(",", MagicLinkClientNotes.DEFAULT_COMPACT_NOTES));
+    properties.add(compactClientNotes);
+
+    ProviderConfigProperty userLookup = new ProviderConfigProperty();
+    userLookup.setType(ProviderConfigProperty.LIST_TYPE);
+    userLookup.setName(USER_LOOKUP);
+    userLookup.setLabel("User lookup");
+    userLookup.setHelpText("How the entered address is resolved to a user: 'usernameOrEmail' tries the email and then the username like the password form, 'email' only queries users by email, which saves a query for unknown addresses.");
+    userLookup.setOptions(List.of(MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL, MagicLinkUserResolver.MODE_EMAIL));
+    userLookup.setDefaultValue(MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL);
+    properties.add(userLookup);
+
     return properties;
   }
 
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(EMAIL_WORKERS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Number of worker threads sending magic link emails. Set to 0 to send on the login request thread.")
+        .defaultValue(DEFAULT_EMAIL_WORKERS)
+        .add()
+        .property()
+        .name(EMAIL_QUEUE_CAPACITY)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Maximum number of queued emails. When full, emails are sent on the login request thread.")
+        .defaultValue(DEFAULT_EMAIL_QUEUE_CAPACITY)
+        .add()
+        .property()
+        .name(EMAIL_MAX_ATTEMPTS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Delivery attempts per email before giving up.")
+        .defaultValue(DEFAULT_EMAIL_MAX_ATTEMPTS)
+        .add()
+        .property()
+        .name(EMAIL_RETRY_BACKOFF_MILLIS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Delay before the first retry in milliseconds; doubled after every failed attempt.")
+        .defaultValue(DEFAULT_EMAIL_RETRY_BACKOFF_MILLIS)
+        .add()
+        .property()
+        .name(ALLOWED_DOMAINS_CACHE_TTL_SECONDS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("How long the allowed domains of a group are cached. Group changes on this node invalidate the cache immediately; other cluster nodes pick them up after this TTL.")
+        .defaultValue(DEFAULT_ALLOWED_DOMAINS_CACHE_TTL_SECONDS)
+        .add()
+        .property()
+        .name(FLOW_LOG_SAMPLE_RATE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Log one in this many magic link requests at INFO; the others are logged at DEBUG. 1 logs every request, 0 none.")
+        .defaultValue(MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE)
+        .add()
+        .property()
+        .name(UNKNOWN_EMAIL_CACHE_TTL_SECONDS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("How long an email address without a user is remembered, so repeated requests for it skip the user lookup while auto-creation is off. Each node has its own cache, so a user created on another node gets no magic link here until the TTL expires. 0 disables the cache.")
+        .defaultValue(DEFAULT_UNKNOWN_EMAIL_CACHE_TTL_SECONDS)
+        .add()
+        .property()
+        .name(UNKNOWN_EMAIL_CACHE_SIZE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Maximum number of unknown email addresses remembered per node.")
+        .defaultValue(DEFAULT_UNKNOWN_EMAIL_CACHE_SIZE)
+        .add()
+        .property()
+        .name(EMAIL_INDEX_CACHE_TTL_SECONDS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("How long the user id of an email address is remembered by executions with the 'email' user lookup, so a repeated login loads the user by id instead of querying by email. 0 disables the index.")
+        .defaultValue(DEFAULT_EMAIL_INDEX_CACHE_TTL_SECONDS)
+        .add()
+        .property()
+        .name(EMAIL_INDEX_CACHE_SIZE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Maximum number of email addresses whose user id is remembered per node.")
+        .defaultValue(DEFAULT_EMAIL_INDEX_CACHE_SIZE)
+        .add()
+        .build();
+  }
+
   @Override
   public Authenticator create(KeycloakSession session) {
-    return new MagicLinkAuthenticator();
+    return new MagicLinkAuthenticator(emailDispatcher, allowedDomainsIndex, rateLimiter, recentLinks, configs,
+        unknownEmails, userResolver, log);
   }
 
   @Override
   public void init(Config.Scope config) {
-    // No initialization needed
+    if (config == null) {
+      return;
+    }
+    emailWorkers = config.getInt(EMAIL_WORKERS, DEFAULT_EMAIL_WORKERS);
+    emailQueueCapacity = config.getInt(EMAIL_QUEUE_CAPACITY, DEFAULT_EMAIL_QUEUE_CAPACITY);
+    emailMaxAttempts = config.getInt(EMAIL_MAX_ATTEMPTS, DEFAULT_EMAIL_MAX_ATTEMPTS);
+    emailRetryBackoffMillis = config.getLong(EMAIL_RETRY_BACKOFF_MILLIS, DEFAULT_EMAIL_RETRY_BACKOFF_MILLIS);
+    allowedDomainsIndex = new AllowedDomainsIndex(
+        config.getLong(ALLOWED_DOMAINS_CACHE_TTL_SECONDS, DEFAULT_ALLOWED_DOMAINS_CACHE_TTL_SECONDS));
+    log = new MagicLinkLog(config.getInt(FLOW_LOG_SAMPLE_RATE, MagicLinkLog.DEFAULT_FLOW_SAMPLE_RATE));
+    unknownEmails = new UnknownEmails(
+        config.getLong(UNKNOWN_EMAIL_CACHE_TTL_SECONDS, DEFAULT_UNKNOWN_EMAIL_CACHE_TTL_SECONDS),
+        config.getInt(UNKNOWN_EMAIL_CACHE_SIZE, DEFAULT_UNKNOWN_EMAIL_CACHE_SIZE));
+    userResolver = new MagicLinkUserResolver(
+        config.getLong(EMAIL_INDEX_CACHE_TTL_SECONDS, DEFAULT_EMAIL_INDEX_CACHE_TTL_SECONDS),
+        config.getInt(EMAIL_INDEX_CACHE_SIZE, DEFAULT_EMAIL_INDEX_CACHE_SIZE));
   }
 
   @Override
   public void postInit(KeycloakSessionFactory factory) {
-    // No post-initialization needed
+    if (factory != null) {
+      factory.register(allowedDomainsIndex);
+    }
+    if (emailWorkers > 0 && emailQueueCapacity > 0) {
+      emailDispatcher = new MagicLinkEmailDispatcher(
+          emailWorkers, emailQueueCapacity, emailMaxAttempts, emailRetryBackoffMillis);
+    }
   }
 
   @Override
   public void close() {
-    // Nothing to close
+    if (emailDispatcher != null) {
+      emailDispatcher.close();
+      emailDispatcher = null;
+    }
   }
 
   @Override
   public String getId() {
     return PROVIDER_ID;
   }
+
+  /**
+   * Shared with the {@link UnknownEmailsEventListenerProviderFactory} and the
+   * {@link MagicLinkInvitationResourceProviderFactory}.
+   */
+  UnknownEmails getUnknownEmails() {
+    return unknownEmails;
+  }
 }
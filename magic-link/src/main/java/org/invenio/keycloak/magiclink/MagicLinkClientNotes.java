@@ -0,0 +1,188 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * How the client notes of the login (OIDC state, nonce, PKCE challenge, ...)
+ * travel in a {@link MagicLinkActionToken}:
+ * <ul>
+ * <li>{@link #ENCODING_FULL}: all notes in the token, as before</li>
+ * <li>{@link #ENCODING_COMPACT}: only the listed notes, under short aliases</li>
+ * <li>{@link #ENCODING_REFERENCE}: all notes in the single-use object store,
+ * the token only carries the id of the entry</li>
+ * </ul>
+ * The handler reads whichever claim is present, so links issued before a
+ * change of encoding keep working.
+ */
+final class MagicLinkClientNotes {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkClientNotes.class);
+
+  static final String ENCODING_FULL = "full";
+  static final String ENCODING_COMPACT = "compact";
+  static final String ENCODING_REFERENCE = "reference";
+
+  static final String REFERENCE_KEY_PREFIX = "magic-link-notes:";
+
+  // Outlives the token a little, so a link clicked at the last second still
+  // finds its notes
+  private static final long REFERENCE_GRACE_SECONDS = 60;
+  private static final int REFERENCE_ID_LENGTH = 22;
+
+  /**
+   * OIDC authorization request parameters a login needs to complete. The
+   * redirect_uri note is restored from the token's own redirect claim.
+   */
+  static final List<String> DEFAULT_COMPACT_NOTES = List.of(
+      "response_type", "response_mode", "scope", "state", "nonce", "code_challenge", "code_challenge_method",
+      "prompt", "max_age", "acr_values", "claims", "ui_locales", "login_hint");
+
+  private static final Map<String, String> ALIASES = Map.ofEntries(
+      Map.entry("response_type", "rt"),
+      Map.entry("response_mode", "rm"),
+      Map.entry("scope", "sc"),
+      Map.entry("state", "st"),
+      Map.entry("nonce", "no"),
+      Map.entry("code_challenge", "cc"),
+      Map.entry("code_challenge_method", "cm"),
+      Map.entry("prompt", "pr"),
+      Map.entry("max_age", "ma"),
+      Map.entry("acr_values", "ac"),
+      Map.entry("claims", "cl"),
+      Map.entry("ui_locales", "ul"),
+      Map.entry("login_hint", "lh"));
+
+  private static final Map<String, String> NAMES = ALIASES.entrySet().stream()
+      .collect(Collectors.toUnmodifiableMap(Map.Entry::getValue, Map.Entry::getKey));
+
+  /**
+   * @return the encoding if it is known, otherwise {@link #ENCODING_FULL}
+   */
+  static String encoding(String value) {
+    if (value == null) {
+      return ENCODING_FULL;
+    }
+    String encoding = value.trim().toLowerCase();
+    return ENCODING_COMPACT.equals(encoding) || ENCODING_REFERENCE.equals(encoding) ? encoding : ENCODING_FULL;
+  }
+
+  /**
+   * Parses a comma or whitespace separated list of note names; blank selects
+   * {@link #DEFAULT_COMPACT_NOTES}.
+   */
+  static Set<String> noteNames(String value) {
+    if (value == null || value.isBlank()) {
+      return new LinkedHashSet<>(DEFAULT_COMPACT_NOTES);
+    }
+    return Arrays.stream(value.split("[,\\s]+"))
+        .filter(name -> !name.isEmpty())
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+
+  /**
+   * Puts the client notes into the token in the given encoding.
+   *
+   * @param compactNotes    notes kept by {@link #ENCODING_COMPACT}
+   * @param lifespanSeconds validity of the token
+   */
+  static void write(MagicLinkActionToken token, String encoding, Map<String, String> notes,
+      Collection<String> compactNotes, KeycloakSession session, int lifespanSeconds) {
+    if (notes == null || notes.isEmpty()) {
+      return;
+    }
+    switch (encoding) {
+      case ENCODING_COMPACT -> token.setCompactClientNotes(compact(notes, compactNotes));
+      case ENCODING_REFERENCE -> token.setClientNotesReference(store(session, notes, lifespanSeconds));
+      default -> token.setClientNotes(new HashMap<>(notes));
+    }
+  }
+
+  /**
+   * A referenced entry is removed as it is read: the notes are only needed
+   * once, to start the login of a link opened in another browser, and a second
+   * click must not restore them again.
+   *
+   * @return the client notes carried by or referenced from the token; empty if
+   *         it has none or the referenced entry expired or was already used
+   */
+  static Map<String, String> read(MagicLinkActionToken token, KeycloakSession session) {
+    if (token.getClientNotes() != null) {
+      return token.getClientNotes();
+    }
+    if (token.getCompactClientNotes() != null) {
+      return expand(token.getCompactClientNotes());
+    }
+    if (token.getClientNotesReference() != null) {
+      SingleUseObjectProvider store = session.singleUseObjects();
+      Map<String, String> notes = store != null
+          ? store.remove(REFERENCE_KEY_PREFIX + token.getClientNotesReference())
+          : null;
+      if (notes == null) {
+        logger.warnf("Magic Link: Client notes of token expired or missing - tokenId=%s", token.getId());
+        return Map.of();
+      }
+      return notes;
+    }
+    return Map.of();
+  }
+
+  /**
+   * Removes the referenced entry of a redeemed token, if it is still there. A
+   * link opened in the browser that requested it completes the login without
+   * reading its notes.
+   */
+  static void discard(MagicLinkActionToken token, KeycloakSession session) {
+    if (token.getClientNotesReference() == null) {
+      return;
+    }
+    SingleUseObjectProvider store = session.singleUseObjects();
+    try {
+      if (store != null) {
+        store.remove(REFERENCE_KEY_PREFIX + token.getClientNotesReference());
+      }
+    } catch (RuntimeException e) {
+      // Expires with the token anyway
+      logger.debugf(e, "Magic Link: Could not remove client notes of token - tokenId=%s", token.getId());
+    }
+  }
+
+  static Map<String, String> compact(Map<String, String> notes, Collection<String> names) {
+    Map<String, String> compact = new HashMap<>();
+    for (String name : names) {
+      String value = notes.get(name);
+      if (value != null) {
+        compact.put(ALIASES.getOrDefault(name, name), value);
+      }
+    }
+    return compact;
+  }
+
+  static Map<String, String> expand(Map<String, String> compact) {
+    Map<String, String> notes = new HashMap<>();
+    compact.forEach((alias, value) -> notes.put(NAMES.getOrDefault(alias, alias), value));
+    return notes;
+  }
+
+  private static String store(KeycloakSession session, Map<String, String> notes, int lifespanSeconds) {
+    String id = SecretGenerator.getInstance().randomString(REFERENCE_ID_LENGTH);
+    session.singleUseObjects().put(REFERENCE_KEY_PREFIX + id, lifespanSeconds + REFERENCE_GRACE_SECONDS,
+        new HashMap<>(notes));
+    return id;
+  }
+
+  private MagicLinkClientNotes() {
+    // Utility class
+  }
+}
@@ -0,0 +1,181 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The per-execution options of the authenticator, parsed once.
+ *
+ * Instances are immutable and come from a {@link Cache} shared by all
+ * authenticators of the factory, so a request reads typed fields instead of
+ * parsing the config map again.
+ */
+final class MagicLinkConfig {
+
+  static final MagicLinkConfig DEFAULTS = new MagicLinkConfig(Map.of());
+
+  // The map this config was parsed from, to recognise a changed config
+  private final Map<String, String> source;
+  private final Map<String, String> snapshot;
+
+  private final boolean createUser;
+  private final String allowedDomainsGroup;
+  private final boolean joinAllowedDomainsGroup;
+  private final int tokenValidity;
+  private final int rateLimitPerEmail;
+  private final int rateLimitPerIp;
+  private final int rateLimitWindow;
+  private final int duplicateRequestWindow;
+  private final boolean resendDuplicateRequests;
+  private final String tokenEncoding;
+  private final Set<String> compactClientNotes;
+  private final String userLookup;
+
+  MagicLinkConfig(Map<String, String> config) {
+    this.source = config;
+    this.snapshot = Collections.unmodifiableMap(new HashMap<>(config));
+    this.createUser = Boolean.parseBoolean(config.get(MagicLinkAuthenticatorFactory.CREATE_USER));
+    String group = config.get(MagicLinkAuthenticatorFactory.ALLOWED_DOMAINS_GROUP);
+    this.allowedDomainsGroup = group != null && !group.trim().isEmpty() ? group : null;
+    this.joinAllowedDomainsGroup = Boolean.parseBoolean(
+        config.get(MagicLinkAuthenticatorFactory.JOIN_ALLOWED_DOMAINS_GROUP));
+    this.tokenValidity = intValue(config, MagicLinkAuthenticatorFactory.TOKEN_VALIDITY,
+        MagicLinkAuthenticatorFactory.DEFAULT_TOKEN_VALIDITY);
+    this.rateLimitPerEmail = intValue(config, MagicLinkAuthenticatorFactory.RATE_LIMIT_PER_EMAIL,
+        MagicLinkAuthenticatorFactory.DEFAULT_RATE_LIMIT_PER_EMAIL);
+    this.rateLimitPerIp = intValue(config, MagicLinkAuthenticatorFactory.RATE_LIMIT_PER_IP,
+        MagicLinkAuthenticatorFactory.DEFAULT_RATE_LIMIT_PER_IP);
+    this.rateLimitWindow = intValue(config, MagicLinkAuthenticatorFactory.RATE_LIMIT_WINDOW,
+        MagicLinkAuthenticatorFactory.DEFAULT_RATE_LIMIT_WINDOW);
+    this.duplicateRequestWindow = intValue(config, MagicLinkAuthenticatorFactory.DUPLICATE_REQUEST_WINDOW,
+        MagicLinkAuthenticatorFactory.DEFAULT_DUPLICATE_REQUEST_WINDOW);
+    this.resendDuplicateRequests = MagicLinkAuthenticatorFactory.DUPLICATE_REQUEST_RESEND.equals(
+        config.get(MagicLinkAuthenticatorFactory.DUPLICATE_REQUEST_ACTION));
+    this.tokenEncoding = MagicLinkClientNotes.encoding(config.get(MagicLinkAuthenticatorFactory.TOKEN_ENCODING));
+    this.compactClientNotes = Set.copyOf(MagicLinkClientNotes.noteNames(
+        config.get(MagicLinkAuthenticatorFactory.COMPACT_CLIENT_NOTES)));
+    this.userLookup = MagicLinkUserResolver.MODE_EMAIL.equals(config.get(MagicLinkAuthenticatorFactory.USER_LOOKUP))
+        ? MagicLinkUserResolver.MODE_EMAIL
+        : MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL;
+  }
+
+  boolean isCreateUser() {
+    return createUser;
+  }
+
+  /**
+   * @return the group holding the allowed domains, or null if not configured
+   */
+  String getAllowedDomainsGroup() {
+    return allowedDomainsGroup;
+  }
+
+  /**
+   * @return true if users auto-created for an allowed domain join its group
+   */
+  boolean isJoinAllowedDomainsGroup() {
+    return joinAllowedDomainsGroup;
+  }
+
+  int getTokenValidity() {
+    return tokenValidity;
+  }
+
+  int getRateLimitPerEmail() {
+    return rateLimitPerEmail;
+  }
+
+  int getRateLimitPerIp() {
+    return rateLimitPerIp;
+  }
+
+  int getRateLimitWindow() {
+    return rateLimitWindow;
+  }
+
+  int getDuplicateRequestWindow() {
+    return duplicateRequestWindow;
+  }
+
+  boolean isResendDuplicateRequests() {
+    return resendDuplicateRequests;
+  }
+
+  String getTokenEncoding() {
+    return tokenEncoding;
+  }
+
+  Set<String> getCompactClientNotes() {
+    return compactClientNotes;
+  }
+
+  /**
+   * @return the {@link MagicLinkUserResolver} mode
+   */
+  String getUserLookup() {
+    return userLookup;
+  }
+
+  /**
+   * @return true if this config was parsed from the same settings
+   */
+  boolean isParsedFrom(Map<String, String> config) {
+    // Keycloak's realm cache hands out the same model until the config is
+    // updated; other providers build a new map per lookup
+    return config == source || snapshot.equals(config);
+  }
+
+  private static int intValue(Map<String, String> config, String name, int defaultValue) {
+    String value = config.get(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // Fall through to default
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Parsed configs by config id. An entry is replaced when the settings of
+   * its config changed, e.g. after the admin saved the execution config.
+   */
+  static final class Cache {
+
+    static final int MAX_ENTRIES = 1_000;
+
+    private final Map<String, MagicLinkConfig> configs = new ConcurrentHashMap<>();
+
+    MagicLinkConfig get(AuthenticatorConfigModel model) {
+      if (model == null || model.getConfig() == null) {
+        return DEFAULTS;
+      }
+      Map<String, String> config = model.getConfig();
+      String id = model.getId();
+      if (id == null) {
+        return new MagicLinkConfig(config);
+      }
+      MagicLinkConfig cached = configs.get(id);
+      if (cached != null && cached.isParsedFrom(config)) {
+        return cached;
+      }
+      MagicLinkConfig parsed = new MagicLinkConfig(config);
+      if (configs.size() >= MAX_ENTRIES) {
+        // Only reached with many deleted configs; parsed again on next use
+        configs.clear();
+      }
+      configs.put(id, parsed);
+      return parsed;
+    }
+
+    int size() {
+      return configs.size();
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package org.invenio.keycloak.magiclink;
+
+import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.PathSegment;
+import jakarta.ws.rs.core.UriBuilder;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.http.FormPartValue;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.UserModelDelegate;
+
+import java.net.URI;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What an email template takes from the request it is sent for: the request
+ * URIs (the {@code url} bean, anything built from
+ * {@code getContext().getUri()}) and the locale of the login page.
+ *
+ * A dispatch worker renders the email in a session of its own after the
+ * request has ended, so both are captured when the email is queued and
+ * restored in the worker's session.
+ */
+final class MagicLinkEmailContext {
+
+  private final URI baseUri;
+  private final URI requestUri;
+  private final Locale locale;
+
+  /**
+   * @param locale locale to render the email in, or null for the recipient's
+   *               own
+   */
+  MagicLinkEmailContext(URI baseUri, URI requestUri, Locale locale) {
+    this.baseUri = baseUri;
+    this.requestUri = requestUri;
+    this.locale = locale;
+  }
+
+  /**
+   * Captures the context of the current request, with the locale Keycloak
+   * resolves for the recipient on it (login page selection, ui_locales,
+   * profile, cookie, Accept-Language).
+   */
+  static MagicLinkEmailContext capture(KeycloakSession session, UserModel recipient) {
+    KeycloakContext context = session.getContext();
+    KeycloakUriInfo uri = context.getUri();
+    // The raw request URIs; the worker's KeycloakUriInfo applies the hostname
+    // settings to them again
+    UriInfo request = uri.getDelegate() != null ? uri.getDelegate() : uri;
+    return new MagicLinkEmailContext(request.getBaseUri(), request.getRequestUri(),
+        context.resolveLocale(recipient));
+  }
+
+  /**
+   * Sets the realm and a stand-in for the request on a session without one.
+   */
+  void restore(KeycloakSession session, RealmModel realm) {
+    session.getContext().setRealm(realm);
+    session.getContext().setHttpRequest(new DetachedRequest());
+  }
+
+  /**
+   * The captured request URIs on their own, e.g. for
+   * {@link org.keycloak.authentication.actiontoken.DefaultActionToken#serialize}
+   * outside a request.
+   */
+  UriInfo uriInfo() {
+    return new DetachedUriInfo();
+  }
+
+  /**
+   * The recipient as the email template provider should see them: without a
+   * login page to read the selection from, Keycloak takes the locale from the
+   * user's profile first, so the captured locale is put there.
+   */
+  UserModel recipient(UserModel user) {
+    if (locale == null) {
+      return user;
+    }
+    String languageTag = locale.toLanguageTag();
+    return new UserModelDelegate(user) {
+      @Override
+      public String getFirstAttribute(String name) {
+        return UserModel.LOCALE.equals(name) ? languageTag : super.getFirstAttribute(name);
+      }
+    };
+  }
+
+  private final class DetachedRequest implements HttpRequest {
+
+    private final UriInfo uri = new DetachedUriInfo();
+    private final HttpHeaders headers = new DetachedHeaders();
+
+    @Override
+    public String getHttpMethod() {
+      return "GET";
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getDecodedFormParameters() {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public MultivaluedMap<String, FormPartValue> getMultiPartFormParameters() {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public HttpHeaders getHttpHeaders() {
+      return headers;
+    }
+
+    @Override
+    public X509Certificate[] getClientCertificateChain() {
+      return null;
+    }
+
+    @Override
+    public UriInfo getUri() {
+      return uri;
+    }
+
+    @Override
+    public boolean isProxyTrusted() {
+      return false;
+    }
+  }
+
+  private final class DetachedUriInfo implements UriInfo {
+
+    @Override
+    public String getPath() {
+      return getPath(true);
+    }
+
+    @Override
+    public String getPath(boolean decode) {
+      URI path = baseUri.relativize(requestUri);
+      return decode ? path.getPath() : path.getRawPath();
+    }
+
+    @Override
+    public List<PathSegment> getPathSegments() {
+      return List.of();
+    }
+
+    @Override
+    public List<PathSegment> getPathSegments(boolean decode) {
+      return List.of();
+    }
+
+    @Override
+    public URI getRequestUri() {
+      return requestUri;
+    }
+
+    @Override
+    public UriBuilder getRequestUriBuilder() {
+      return UriBuilder.fromUri(requestUri);
+    }
+
+    @Override
+    public URI getAbsolutePath() {
+      String uri = requestUri.toString();
+      int end = uri.indexOf('?');
+      return end < 0 ? requestUri : URI.create(uri.substring(0, end));
+    }
+
+    @Override
+    public UriBuilder getAbsolutePathBuilder() {
+      return UriBuilder.fromUri(getAbsolutePath());
+    }
+
+    @Override
+    public URI getBaseUri() {
+      return baseUri;
+    }
+
+    @Override
+    public UriBuilder getBaseUriBuilder() {
+      return UriBuilder.fromUri(baseUri);
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getPathParameters() {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getPathParameters(boolean decode) {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getQueryParameters() {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getQueryParameters(boolean decode) {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public List<String> getMatchedURIs() {
+      return List.of();
+    }
+
+    @Override
+    public List<String> getMatchedURIs(boolean decode) {
+      return List.of();
+    }
+
+    @Override
+    public List<Object> getMatchedResources() {
+      return List.of();
+    }
+
+    @Override
+    public URI resolve(URI uri) {
+      return baseUri.resolve(uri);
+    }
+
+    @Override
+    public URI relativize(URI uri) {
+      return requestUri.relativize(uri);
+    }
+  }
+
+  private final class DetachedHeaders implements HttpHeaders {
+
+    @Override
+    public List<String> getRequestHeader(String name) {
+      return List.of();
+    }
+
+    @Override
+    public String getHeaderString(String name) {
+      return null;
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getRequestHeaders() {
+      return new MultivaluedHashMap<>();
+    }
+
+    @Override
+    public List<MediaType> getAcceptableMediaTypes() {
+      return List.of();
+    }
+
+    @Override
+    public List<Locale> getAcceptableLanguages() {
+      return locale != null ? List.of(locale) : List.of();
+    }
+
+    @Override
+    public MediaType getMediaType() {
+      return null;
+    }
+
+    @Override
+    public Locale getLanguage() {
+      return null;
+    }
+
+    @Override
+    public Map<String, Cookie> getCookies() {
+      return Map.of();
+    }
+
+    @Override
+    public Date getDate() {
+      return null;
+    }
+
+    @Override
+    public int getLength() {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded queue that sends magic link emails on virtual worker threads so the
+ * login request does not wait for the SMTP round trip.
+ *
+ * When the queue is full {@link #dispatch} returns false and the caller sends
+ * the email itself, which slows the request down instead of dropping mail.
+ *
+ * Login emails and bulk invitations each have a queue of their own, so a
+ * large invitation job cannot fill the queue login requests depend on. The
+ * metrics of a queue are tagged with its name.
+ */
+final class MagicLinkEmailDispatcher {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkEmailDispatcher.class);
+
+  static final String QUEUE_DEPTH_METRIC = "keycloak.magic.link.email.queue.depth";
+  static final String UNDELIVERED_METRIC = "keycloak.magic.link.email.undelivered";
+  static final String TAG_QUEUE = "queue";
+
+  static final String QUEUE_LOGIN = "login";
+  static final String QUEUE_INVITATIONS = "invitations";
+
+  private static final long MAX_RETRY_BACKOFF_MILLIS = 30_000L;
+  private static final long SHUTDOWN_GRACE_SECONDS = 10L;
+
+  /**
+   * A single email delivery attempt.
+   */
+  @FunctionalInterface
+  interface EmailJob {
+    void send() throws EmailException;
+  }
+
+  /**
+   * Email delivery that needs its own Keycloak session (the request session is
+   * closed by the time a worker picks the job up).
+   */
+  @FunctionalInterface
+  interface SessionEmailTask {
+    void send(KeycloakSession session) throws EmailException;
+  }
+
+  /**
+   * Told the outcome of a queued email once the dispatcher is done with it.
+   */
+  @FunctionalInterface
+  interface DeliveryCallback {
+    /**
+     * @param delivered false if the email was given up on
+     */
+    void done(boolean delivered);
+  }
+
+  private final BlockingQueue<Runnable> queue;
+  private final ThreadPoolExecutor executor;
+  private final int maxAttempts;
+  private final long retryBackoffMillis;
+  private final Gauge queueDepth;
+  private final Counter undelivered;
+
+  MagicLinkEmailDispatcher(int workers, int queueCapacity, int maxAttempts, long retryBackoffMillis) {
+    this(QUEUE_LOGIN, workers, queueCapacity, maxAttempts, retryBackoffMillis);
+  }
+
+  /**
+   * @param name name of the queue, {@link #QUEUE_LOGIN} or
+   *             {@link #QUEUE_INVITATIONS}
+   */
+  MagicLinkEmailDispatcher(String name, int workers, int queueCapacity, int maxAttempts, long retryBackoffMillis) {
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.executor = new ThreadPoolExecutor(
+        workers,
+        workers,
+        0L,
+        TimeUnit.MILLISECONDS,
+        queue,
+        Thread.ofVirtual().name("magic-link-email-" + name + "-", 0).factory(),
+        new ThreadPoolExecutor.AbortPolicy());
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryBackoffMillis = Math.max(0L, retryBackoffMillis);
+    Tags tags = Tags.of(TAG_QUEUE, name);
+    this.queueDepth = Gauge.builder(QUEUE_DEPTH_METRIC, queue, BlockingQueue::size)
+        .description("Magic link emails waiting for a dispatch worker")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+    this.undelivered = Counter.builder(UNDELIVERED_METRIC)
+        .description("Magic link emails given up on after the last delivery attempt")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+
+    logger.infof("Magic Link: Email dispatcher started - queue=%s, workers=%d, queueCapacity=%d, maxAttempts=%d, retryBackoffMs=%d",
+        name, workers, queueCapacity, this.maxAttempts, this.retryBackoffMillis);
+  }
+
+  /**
+   * Wraps a task so it runs in a fresh session and transaction on the worker
+   * thread.
+   *
+   * Once the task has sent its email, a failure to commit or close the
+   * session is logged instead of thrown: a retry would send the email again.
+   */
+  static EmailJob inNewSession(KeycloakSessionFactory sessionFactory, SessionEmailTask task) {
+    return () -> {
+      AtomicBoolean sent = new AtomicBoolean();
+      EmailException failure;
+      try {
+        failure = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+          try {
+            task.send(session);
+            sent.set(true);
+            return null;
+          } catch (EmailException e) {
+            return e;
+          }
+        });
+      } catch (RuntimeException e) {
+        if (!sent.get()) {
+          throw e;
+        }
+        logger.warnf("Magic Link: Email sent, but its session failed to commit - %s", e.getMessage());
+        return;
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    };
+  }
+
+  /**
+   * Queues an email for delivery.
+   *
+   * @return false if the queue is full or the dispatcher is shut down; the
+   *         caller is then responsible for sending the email
+   */
+  boolean dispatch(String description, EmailJob job) {
+    return dispatch(description, job, null);
+  }
+
+  /**
+   * Queues an email for delivery and reports its outcome on the worker.
+   *
+   * @param callback told whether the email went out, unless it is dropped on
+   *                 shutdown; may be null
+   * @return false if the queue is full or the dispatcher is shut down; the
+   *         caller is then responsible for sending the email and the
+   *         callback is not called
+   */
+  boolean dispatch(String description, EmailJob job, DeliveryCallback callback) {
+    try {
+      executor.execute(() -> {
+        boolean delivered = deliver(description, job);
+        if (callback != null) {
+          callback.done(delivered);
+        }
+      });
+      logger.debugf("Magic Link: Email queued - %s, queueDepth=%d", description, queue.size());
+      return true;
+    } catch (RejectedExecutionException e) {
+      logger.warnf("Magic Link: Email queue full or closed, sending on request thread - %s", description);
+      return false;
+    }
+  }
+
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return whether the email went out
+   */
+  private boolean deliver(String description, EmailJob job) {
+    long backoff = retryBackoffMillis;
+    for (int attempt = 1;; attempt++) {
+      try {
+        job.send();
+        logger.debugf("Magic Link: Email delivered - %s, attempt=%d", description, attempt);
+        return true;
+      } catch (EmailException | RuntimeException e) {
+        // Template or session errors before the send can be as transient as
+        // SMTP ones; inNewSession does not throw once the email is out
+        if (attempt >= maxAttempts) {
+          undelivered.increment();
+          logger.errorf(e, "Magic Link: Email delivery failed after %d attempts - %s", attempt, description);
+          return false;
+        }
+        logger.warnf("Magic Link: Email attempt %d failed, retrying in %dms - %s: %s",
+            attempt, backoff, description, e.getMessage());
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          undelivered.increment();
+          logger.warnf("Magic Link: Email retry interrupted - %s", description);
+          return false;
+        }
+        backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Stops accepting emails and gives queued ones a short grace period to go
+   * out.
+   */
+  void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+        List<Runnable> dropped = executor.shutdownNow();
+        logger.warnf("Magic Link: Email dispatcher stopped with %d undelivered emails", dropped.size());
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      Metrics.globalRegistry.remove(queueDepth);
+      Metrics.globalRegistry.remove(undelivered);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.invenio.keycloak.magiclink;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.oidc.utils.RedirectUtils;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Admin endpoint for bulk magic link invitations, under
+ * {@code /realms/{realm}/magic-link-invitations}.
+ *
+ * {@code POST} takes the recipients as CSV or NDJSON and answers 202 with the
+ * job status; {@code GET /{id}} returns the status again while the job runs.
+ * Callers need a bearer token of the realm with the realm-management
+ * {@code manage-users} role ({@code view-users} is enough to poll).
+ */
+public class MagicLinkInvitationResourceProvider implements RealmResourceProvider {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkInvitationResourceProvider.class);
+
+  static final String NDJSON = "application/x-ndjson";
+  static final String JSON_LINES = "application/jsonl";
+
+  static final int DEFAULT_LIFESPAN = 86_400;
+  static final int MAX_LIFESPAN = 30 * 86_400;
+
+  private final KeycloakSession session;
+  private final MagicLinkInvitations invitations;
+
+  MagicLinkInvitationResourceProvider(KeycloakSession session, MagicLinkInvitations invitations) {
+    this.session = session;
+    this.invitations = invitations;
+  }
+
+  @Override
+  public Object getResource() {
+    return this;
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+
+  /**
+   * Starts an invitation job.
+   *
+   * @param clientId    client the links log in to
+   * @param redirectUri where the login ends, a valid redirect URI of the
+   *                    client; its base URL if absent
+   * @param createUsers create users for addresses without one
+   * @param lifespan    link validity in seconds
+   */
+  @POST
+  @Consumes({ "text/csv", MediaType.TEXT_PLAIN, NDJSON, JSON_LINES })
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response invite(
+      @QueryParam("client_id") String clientId,
+      @QueryParam("redirect_uri") String redirectUri,
+      @QueryParam("create_users") boolean createUsers,
+      @QueryParam("lifespan") Integer lifespan,
+      @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+      InputStream body) {
+    RealmModel realm = session.getContext().getRealm();
+    UserModel admin = requireRole(realm, AdminRoles.MANAGE_USERS);
+
+    ClientModel client = clientId != null ? realm.getClientByClientId(clientId) : null;
+    if (client == null || !client.isEnabled()) {
+      throw ErrorResponse.error("Unknown or disabled client_id", Response.Status.BAD_REQUEST);
+    }
+    if (redirectUri != null && RedirectUtils.verifyRedirectUri(session, redirectUri, client) == null) {
+      throw ErrorResponse.error("Invalid redirect_uri", Response.Status.BAD_REQUEST);
+    }
+    int validity = lifespan != null ? lifespan : DEFAULT_LIFESPAN;
+    if (validity < 60 || validity > MAX_LIFESPAN) {
+      throw ErrorResponse.error("lifespan must be between 60 and " + MAX_LIFESPAN + " seconds",
+          Response.Status.BAD_REQUEST);
+    }
+
+    MagicLinkInvitations.Spool spool;
+    try {
+      spool = invitations.spool(body, isNdjson(contentType));
+    } catch (IOException e) {
+      logger.warnf("Magic Link: Could not read invitation recipients - %s", e.getMessage());
+      throw ErrorResponse.error("Could not read the recipients", Response.Status.BAD_REQUEST);
+    }
+    if (spool.file() == null) {
+      throw ErrorResponse.error("More than " + invitations.getMaxRecipients() + " recipients",
+          Response.Status.REQUEST_ENTITY_TOO_LARGE);
+    }
+
+    URI baseUri = session.getContext().getUri().getBaseUri();
+    MagicLinkInvitations.Job job;
+    try {
+      job = invitations.submit(session.getKeycloakSessionFactory(), new MagicLinkInvitations.Request(
+          realm.getId(), client.getClientId(), redirectUri, createUsers, validity, baseUri), spool);
+    } catch (IOException e) {
+      throw ErrorResponse.error("Could not start the invitation job", Response.Status.INTERNAL_SERVER_ERROR);
+    }
+    if (job == null) {
+      throw ErrorResponse.error("Too many invitation jobs running", Response.Status.TOO_MANY_REQUESTS);
+    }
+
+    logger.infof("Magic Link: Invitation job submitted - job=%s, realm=%s, client=%s, recipients=%d, admin=%s",
+        job.getId(), realm.getName(), clientId, spool.accepted(), admin.getId());
+    return Response.accepted(job.toRepresentation())
+        .location(session.getContext().getUri().getAbsolutePathBuilder().path(job.getId()).build())
+        .build();
+  }
+
+  @GET
+  @Path("{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response status(@PathParam("id") String id) {
+    RealmModel realm = session.getContext().getRealm();
+    requireRole(realm, AdminRoles.VIEW_USERS, AdminRoles.MANAGE_USERS);
+
+    MagicLinkInvitations.Job job = invitations.get(realm.getId(), id);
+    if (job == null) {
+      throw ErrorResponse.error("Invitation job not found", Response.Status.NOT_FOUND);
+    }
+    return Response.ok(job.toRepresentation()).build();
+  }
+
+  /**
+   * @return the user of the bearer token, if it has one of the
+   *         realm-management roles
+   */
+  private UserModel requireRole(RealmModel realm, String... roles) {
+    AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+    return checkRole(realm, auth != null ? auth.getUser() : null, roles);
+  }
+
+  /**
+   * @param user the authenticated caller, or null without a valid bearer token
+   * @return the user, if it has one of the realm-management roles
+   */
+  static UserModel checkRole(RealmModel realm, UserModel user, String... roles) {
+    if (user == null) {
+      throw new NotAuthorizedException("Bearer");
+    }
+    ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+    if (realmManagement != null) {
+      for (String role : roles) {
+        RoleModel roleModel = realmManagement.getRole(role);
+        if (roleModel != null && user.hasRole(roleModel)) {
+          return user;
+        }
+      }
+    }
+    throw new ForbiddenException();
+  }
+
+  static boolean isNdjson(String contentType) {
+    return contentType != null
+        && (contentType.startsWith(NDJSON) || contentType.startsWith(JSON_LINES));
+  }
+}
@@ -0,0 +1,140 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+import java.util.List;
+
+/**
+ * Factory for the bulk invitation endpoint. Invitation emails go through an
+ * email dispatcher of their own, separate from the magic link authenticator's,
+ * so a large job cannot delay login emails.
+ */
+public class MagicLinkInvitationResourceProviderFactory implements RealmResourceProviderFactory {
+
+  public static final String PROVIDER_ID = "magic-link-invitations";
+
+  // Server-level (SPI) options, e.g.
+  // --spi-realm-restapi-extension--magic-link-invitations--workers=4
+  static final String WORKERS = "workers";
+  static final String BATCH_SIZE = "batchSize";
+  static final String MAX_RECIPIENTS = "maxRecipients";
+  static final String EMAIL_WORKERS = "emailWorkers";
+  static final String EMAIL_QUEUE_CAPACITY = "emailQueueCapacity";
+
+  private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+  static final int DEFAULT_EMAIL_WORKERS = 2;
+  static final int DEFAULT_EMAIL_QUEUE_CAPACITY = 1000;
+
+  private int workers = DEFAULT_WORKERS;
+  private int batchSize = MagicLinkInvitations.DEFAULT_BATCH_SIZE;
+  private int maxRecipients = MagicLinkInvitations.DEFAULT_MAX_RECIPIENTS;
+  private int emailWorkers = DEFAULT_EMAIL_WORKERS;
+  private int emailQueueCapacity = DEFAULT_EMAIL_QUEUE_CAPACITY;
+  private MagicLinkAuthenticatorFactory magicLinkFactory;
+  private MagicLinkEmailDispatcher emailDispatcher;
+  private MagicLinkInvitations invitations;
+
+  @Override
+  public RealmResourceProvider create(KeycloakSession session) {
+    return new MagicLinkInvitationResourceProvider(session, invitations());
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    if (config == null) {
+      return;
+    }
+    workers = config.getInt(WORKERS, DEFAULT_WORKERS);
+    batchSize = config.getInt(BATCH_SIZE, MagicLinkInvitations.DEFAULT_BATCH_SIZE);
+    maxRecipients = config.getInt(MAX_RECIPIENTS, MagicLinkInvitations.DEFAULT_MAX_RECIPIENTS);
+    emailWorkers = config.getInt(EMAIL_WORKERS, DEFAULT_EMAIL_WORKERS);
+    emailQueueCapacity = config.getInt(EMAIL_QUEUE_CAPACITY, DEFAULT_EMAIL_QUEUE_CAPACITY);
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    ProviderFactory<Authenticator> authenticatorFactory = factory != null
+        ? factory.getProviderFactory(Authenticator.class, MagicLinkAuthenticatorFactory.PROVIDER_ID)
+        : null;
+    if (authenticatorFactory instanceof MagicLinkAuthenticatorFactory magicLinkAuthenticatorFactory) {
+      magicLinkFactory = magicLinkAuthenticatorFactory;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (invitations != null) {
+      invitations.close();
+      invitations = null;
+    }
+    if (emailDispatcher != null) {
+      emailDispatcher.close();
+      emailDispatcher = null;
+    }
+  }
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(WORKERS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Invitation batches processed in parallel. Default: the number of CPU cores.")
+        .defaultValue(DEFAULT_WORKERS)
+        .add()
+        .property()
+        .name(BATCH_SIZE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Recipients resolved, created and signed per transaction.")
+        .defaultValue(MagicLinkInvitations.DEFAULT_BATCH_SIZE)
+        .add()
+        .property()
+        .name(MAX_RECIPIENTS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Maximum number of recipients per invitation job.")
+        .defaultValue(MagicLinkInvitations.DEFAULT_MAX_RECIPIENTS)
+        .add()
+        .property()
+        .name(EMAIL_WORKERS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Invitation emails sent in parallel; 0 sends them on the batch workers.")
+        .defaultValue(DEFAULT_EMAIL_WORKERS)
+        .add()
+        .property()
+        .name(EMAIL_QUEUE_CAPACITY)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Invitation emails waiting to be sent. While it is full, the batch workers send "
+            + "themselves, which slows the job down.")
+        .defaultValue(DEFAULT_EMAIL_QUEUE_CAPACITY)
+        .add()
+        .build();
+  }
+
+  // Worker threads are only started once the endpoint is used
+  private synchronized MagicLinkInvitations invitations() {
+    if (invitations == null) {
+      if (emailWorkers > 0 && emailQueueCapacity > 0) {
+        emailDispatcher = new MagicLinkEmailDispatcher(MagicLinkEmailDispatcher.QUEUE_INVITATIONS, emailWorkers,
+            emailQueueCapacity, MagicLinkAuthenticatorFactory.DEFAULT_EMAIL_MAX_ATTEMPTS,
+            MagicLinkAuthenticatorFactory.DEFAULT_EMAIL_RETRY_BACKOFF_MILLIS);
+      }
+      MagicLinkEmailDispatcher dispatcher = emailDispatcher;
+      invitations = new MagicLinkInvitations(workers, batchSize, maxRecipients, () -> dispatcher,
+          () -> magicLinkFactory != null ? magicLinkFactory.getUnknownEmails() : null);
+    }
+    return invitations;
+  }
+}
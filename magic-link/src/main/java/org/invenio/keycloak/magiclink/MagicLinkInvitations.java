@@ -0,0 +1,559 @@
+package org.invenio.keycloak.magiclink;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.frontmatter.keycloak.username.allocator.UsernameAllocatorProvider;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.email.EmailException;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bulk magic link invitations: the jobs behind the
+ * {@link MagicLinkInvitationResourceProvider} endpoint.
+ *
+ * The uploaded addresses are spooled to a temporary file while the request
+ * body is read, so a job holds at most one batch per worker in memory. A
+ * job reads the file in batches; each batch resolves or creates its users and
+ * signs their tokens in one transaction on one of the worker threads, so
+ * batches are signed in parallel. A batch that fails is retried one address
+ * per transaction, so a bad address fails only itself. Emails go out after
+ * the batch committed,
+ * through the email dispatcher of the invitations, or on the worker thread
+ * while its queue is full. Login emails have a dispatcher of their own, so a
+ * job does not hold them up.
+ *
+ * Jobs live on the node that accepted them and are forgotten a day after they
+ * finished.
+ */
+final class MagicLinkInvitations {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkInvitations.class);
+
+  static final int DEFAULT_BATCH_SIZE = 200;
+  static final int DEFAULT_MAX_RECIPIENTS = 100_000;
+  static final int MAX_RUNNING_JOBS = 2;
+
+  private static final long FINISHED_JOB_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final long SHUTDOWN_GRACE_SECONDS = 10L;
+
+  /**
+   * Parameters of a job, taken from the admin request.
+   *
+   * @param baseUri  frontend base URI the links point to
+   * @param lifespan validity of the links in seconds
+   */
+  record Request(String realmId, String clientId, String redirectUri, boolean createUsers, int lifespan,
+      URI baseUri) {
+
+    /**
+     * What the worker sessions know of the admin request: its base URI. The
+     * locale of each email is the recipient's own.
+     */
+    MagicLinkEmailContext emailContext() {
+      return new MagicLinkEmailContext(baseUri, baseUri, null);
+    }
+  }
+
+  /**
+   * Addresses read from a request body.
+   *
+   * @param file       one normalized address per line, or null if the body
+   *                   had more than the allowed number of recipients
+   * @param accepted   distinct addresses in the file
+   * @param invalid    lines without an email address
+   * @param duplicates lines repeating an address of an earlier line
+   */
+  record Spool(Path file, long accepted, long invalid, long duplicates) {
+  }
+
+  /**
+   * Progress of one invitation job, updated while it runs.
+   */
+  static final class Job {
+
+    enum State {
+      RUNNING, COMPLETED, FAILED
+    }
+
+    private final String id;
+    private final String realmId;
+    private final long recipients;
+    private final long invalid;
+    private final long duplicates;
+    private final long submittedAt = Time.currentTimeMillis();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong invited = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Emails handed to the dispatcher and not yet sent or given up on
+    private final AtomicLong queued = new AtomicLong();
+    private volatile State state = State.RUNNING;
+    private volatile long finishedAt;
+    private volatile Thread runner;
+
+    Job(String realmId, long recipients, long invalid, long duplicates) {
+      this.id = UUID.randomUUID().toString();
+      this.realmId = realmId;
+      this.recipients = recipients;
+      this.invalid = invalid;
+      this.duplicates = duplicates;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    State getState() {
+      return state;
+    }
+
+    long getInvited() {
+      return invited.get();
+    }
+
+    long getCreated() {
+      return created.get();
+    }
+
+    long getSkipped() {
+      return skipped.get();
+    }
+
+    long getFailed() {
+      return failed.get();
+    }
+
+    long getProcessed() {
+      return processed.get();
+    }
+
+    long getQueued() {
+      return queued.get();
+    }
+
+    /**
+     * Ends a running job; a job that already ended keeps its state.
+     */
+    private synchronized void finish(State state) {
+      if (this.state != State.RUNNING) {
+        return;
+      }
+      this.finishedAt = Time.currentTimeMillis();
+      this.state = state;
+    }
+
+    private boolean isExpired(long now) {
+      return state != State.RUNNING && now - finishedAt > FINISHED_JOB_RETENTION_MILLIS;
+    }
+
+    /**
+     * @return the status document of the job
+     */
+    Map<String, Object> toRepresentation() {
+      Map<String, Object> representation = new LinkedHashMap<>();
+      representation.put("id", id);
+      representation.put("state", state.name());
+      representation.put("recipients", recipients);
+      representation.put("invalid", invalid);
+      representation.put("duplicates", duplicates);
+      representation.put("processed", processed.get());
+      representation.put("invited", invited.get());
+      representation.put("created", created.get());
+      representation.put("skipped", skipped.get());
+      representation.put("failed", failed.get());
+      representation.put("queued", queued.get());
+      representation.put("submittedAt", submittedAt);
+      if (state != State.RUNNING) {
+        representation.put("finishedAt", finishedAt);
+      }
+      return representation;
+    }
+  }
+
+  // An invitation signed in a batch, sent once the batch committed
+  private record Invitation(String userId, String link) {
+  }
+
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+  private final ExecutorService batches;
+  private final int workers;
+  private final int batchSize;
+  private final int maxRecipients;
+  private final Supplier<MagicLinkEmailDispatcher> emailDispatcher;
+  private final Supplier<UnknownEmails> unknownEmails;
+
+  /**
+   * @param workers         batches signed in parallel, across all jobs
+   * @param batchSize       addresses per batch and transaction
+   * @param maxRecipients   addresses accepted per job
+   * @param emailDispatcher the invitations' email queue, null to send on the
+   *                        worker threads
+   * @param unknownEmails   the authenticator's unknown email cache, told about
+   *                        created users
+   */
+  MagicLinkInvitations(int workers, int batchSize, int maxRecipients,
+      Supplier<MagicLinkEmailDispatcher> emailDispatcher, Supplier<UnknownEmails> unknownEmails) {
+    this.workers = Math.max(1, workers);
+    this.batchSize = Math.max(1, batchSize);
+    this.maxRecipients = Math.max(1, maxRecipients);
+    this.emailDispatcher = emailDispatcher;
+    this.unknownEmails = unknownEmails;
+    this.batches = Executors.newFixedThreadPool(this.workers,
+        Thread.ofPlatform().daemon().name("magic-link-invitations-", 0).factory());
+  }
+
+  /**
+   * Reads a CSV (email in the first column, optional header) or NDJSON
+   * ({@code {"email": "..."}} per line) body into a spool file. Repeated
+   * addresses are spooled once: two batches creating a user for the same
+   * address would fail on the unique email constraint.
+   */
+  Spool spool(InputStream body, boolean ndjson) throws IOException {
+    Path file = Files.createTempFile("magic-link-invitations-", ".txt");
+    Set<String> seen = new HashSet<>();
+    long accepted = 0;
+    long invalid = 0;
+    long duplicates = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (String line; (line = reader.readLine()) != null;) {
+        if (line.isBlank()) {
+          continue;
+        }
+        String email = ndjson ? ndjsonEmail(line) : csvEmail(line);
+        if (email == null) {
+          // A CSV header is expected, not counted
+          if (ndjson || accepted + invalid > 0 || !line.toLowerCase(Locale.ROOT).contains("email")) {
+            invalid++;
+          }
+          continue;
+        }
+        if (!seen.add(email)) {
+          duplicates++;
+          continue;
+        }
+        if (++accepted > maxRecipients) {
+          writer.close();
+          Files.deleteIfExists(file);
+          return new Spool(null, accepted, invalid, duplicates);
+        }
+        writer.write(email);
+        writer.newLine();
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    return new Spool(file, accepted, invalid, duplicates);
+  }
+
+  /**
+   * Starts inviting the spooled addresses.
+   *
+   * @return the job, or null if {@link #MAX_RUNNING_JOBS} are running; the
+   *         spool file is then deleted
+   */
+  Job submit(KeycloakSessionFactory sessionFactory, Request request, Spool spool) throws IOException {
+    purgeExpired();
+    synchronized (jobs) {
+      if (runningJobs() >= MAX_RUNNING_JOBS) {
+        Files.deleteIfExists(spool.file());
+        return null;
+      }
+      Job job = new Job(request.realmId(), spool.accepted(), spool.invalid(), spool.duplicates());
+      jobs.put(job.getId(), job);
+      job.runner = Thread.ofVirtual().name("magic-link-invitation-" + job.getId())
+          .start(() -> run(sessionFactory, request, spool.file(), job));
+      return job;
+    }
+  }
+
+  /**
+   * @return the job of the realm, or null
+   */
+  Job get(String realmId, String jobId) {
+    purgeExpired();
+    Job job = jobs.get(jobId);
+    return job != null && job.realmId.equals(realmId) ? job : null;
+  }
+
+  int getMaxRecipients() {
+    return maxRecipients;
+  }
+
+  /**
+   * Stops the workers; running jobs are marked failed.
+   */
+  void close() {
+    batches.shutdown();
+    synchronized (jobs) {
+      for (Job job : jobs.values()) {
+        if (job.getState() == Job.State.RUNNING) {
+          logger.warnf("Magic Link: Invitation job stopped by shutdown - job=%s, processed=%d, recipients=%d",
+              job.getId(), job.getProcessed(), job.recipients);
+          job.finish(Job.State.FAILED);
+          // Stops waiting for batch workers; further batches are rejected
+          job.runner.interrupt();
+        }
+      }
+    }
+    try {
+      if (!batches.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+        batches.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      batches.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run(KeycloakSessionFactory sessionFactory, Request request, Path file, Job job) {
+    logger.infof("Magic Link: Invitation job started - job=%s, realmId=%s, recipients=%d",
+        job.getId(), request.realmId(), job.recipients);
+    Semaphore inFlight = new Semaphore(workers);
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      List<String> batch = new ArrayList<>(batchSize);
+      for (String email; (email = reader.readLine()) != null;) {
+        batch.add(email);
+        if (batch.size() == batchSize) {
+          submitBatch(sessionFactory, request, job, batch, inFlight);
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (!batch.isEmpty()) {
+        submitBatch(sessionFactory, request, job, batch, inFlight);
+      }
+      inFlight.acquire(workers);
+      job.finish(Job.State.COMPLETED);
+    } catch (IOException | RejectedExecutionException e) {
+      logger.errorf(e, "Magic Link: Invitation job failed - job=%s", job.getId());
+      job.finish(Job.State.FAILED);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      job.finish(Job.State.FAILED);
+    } finally {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        logger.warnf("Magic Link: Could not delete invitation spool file - %s", file);
+      }
+    }
+    logger.infof("Magic Link: Invitation job finished - job=%s, state=%s, invited=%d, created=%d, skipped=%d, failed=%d, queued=%d",
+        job.getId(), job.getState(), job.getInvited(), job.getCreated(), job.getSkipped(), job.getFailed(),
+        job.getQueued());
+  }
+
+  private void submitBatch(KeycloakSessionFactory sessionFactory, Request request, Job job, List<String> emails,
+      Semaphore inFlight) throws InterruptedException {
+    inFlight.acquire();
+    try {
+      batches.execute(() -> {
+        try {
+          runBatch(sessionFactory, request, job, emails);
+        } finally {
+          inFlight.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private void runBatch(KeycloakSessionFactory sessionFactory, Request request, Job job, List<String> emails) {
+    List<Invitation> invitations = new ArrayList<>(emails.size());
+    long[] counts = new long[2]; // created, skipped
+    try {
+      KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+        RealmModel realm = session.realms().getRealm(request.realmId());
+        if (realm == null) {
+          throw new IllegalStateException("Realm removed");
+        }
+        session.getContext().setRealm(realm);
+        for (String email : emails) {
+          Invitation invitation = invite(session, realm, request, email, counts);
+          if (invitation != null) {
+            invitations.add(invitation);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      if (emails.size() > 1) {
+        // The whole batch rolled back; find the address that broke it
+        logger.warnf("Magic Link: Invitation batch failed, retrying its addresses one by one - job=%s, size=%d: %s",
+            job.getId(), emails.size(), e.getMessage());
+        for (String email : emails) {
+          runBatch(sessionFactory, request, job, List.of(email));
+        }
+        return;
+      }
+      logger.errorf(e, "Magic Link: Invitation failed - job=%s, email=%s", job.getId(), emails.get(0));
+      job.failed.incrementAndGet();
+      job.processed.incrementAndGet();
+      return;
+    }
+    job.created.addAndGet(counts[0]);
+    job.skipped.addAndGet(counts[1]);
+    for (Invitation invitation : invitations) {
+      send(sessionFactory, request, job, invitation);
+    }
+    job.processed.addAndGet(emails.size());
+  }
+
+  /**
+   * @param counts created and skipped users of the batch
+   * @return the invitation, or null if the address is skipped
+   */
+  private Invitation invite(KeycloakSession session, RealmModel realm, Request request, String email,
+      long[] counts) {
+    UserModel user = realm.isDuplicateEmailsAllowed() ? null : session.users().getUserByEmail(realm, email);
+    if (user == null) {
+      if (!request.createUsers() || realm.isDuplicateEmailsAllowed()) {
+        counts[1]++;
+        return null;
+      }
+      UsernameAllocatorProvider allocator = UsernameAllocatorProvider.of(session);
+      String username = allocator.allocate(realm);
+      user = MagicLinkUsers.create(session, realm, username, email, null);
+      allocator.assigned(realm, username);
+      UnknownEmails unknown = unknownEmails.get();
+      if (unknown != null) {
+        unknown.known(realm.getId(), email);
+      }
+      new EventBuilder(realm, session)
+          .event(EventType.REGISTER)
+          .client(request.clientId())
+          .user(user)
+          .detail("username", username)
+          .detail("email", email)
+          .detail("registration_method", "magic_link_invitation")
+          .success();
+      counts[0]++;
+    } else if (!user.isEnabled()) {
+      counts[1]++;
+      return null;
+    }
+
+    MagicLinkActionToken token = new MagicLinkActionToken(
+        user.getId(),
+        Time.currentTime() + request.lifespan(),
+        request.clientId(),
+        request.redirectUri(),
+        null,
+        null, // self-contained, like the links of the authenticator
+        null);
+    // Same claims as the authenticator's links: iat, jti, issuer and audience
+    String tokenString = token.serialize(session, realm, request.emailContext().uriInfo());
+    return new Invitation(user.getId(),
+        MagicLinkAuthenticator.actionTokenLink(request.baseUri(), realm.getName(), tokenString, request.clientId()));
+  }
+
+  /**
+   * Sends or queues the email of an invitation; the job counts it as invited
+   * or failed once it is sent or given up on.
+   */
+  private void send(KeycloakSessionFactory sessionFactory, Request request, Job job, Invitation invitation) {
+    MagicLinkEmailDispatcher.EmailJob email = MagicLinkEmailDispatcher.inNewSession(sessionFactory, session -> {
+      RealmModel realm = session.realms().getRealm(request.realmId());
+      UserModel recipient = realm != null ? session.users().getUserById(realm, invitation.userId()) : null;
+      if (recipient == null) {
+        logger.warnf("Magic Link: Invitee no longer exists, dropping email - userId=%s", invitation.userId());
+        return;
+      }
+      request.emailContext().restore(session, realm);
+      MagicLinkAuthenticator.sendMagicLinkEmail(session, realm, request.clientId(), recipient, invitation.link(),
+          request.lifespan());
+    });
+    MagicLinkEmailDispatcher dispatcher = emailDispatcher.get();
+    if (dispatcher != null) {
+      job.queued.incrementAndGet();
+      boolean queued = dispatcher.dispatch("invitation for userId=" + invitation.userId(), email, delivered -> {
+        (delivered ? job.invited : job.failed).incrementAndGet();
+        job.queued.decrementAndGet();
+      });
+      if (queued) {
+        return;
+      }
+      job.queued.decrementAndGet();
+    }
+    try {
+      email.send();
+      job.invited.incrementAndGet();
+    } catch (EmailException | RuntimeException e) {
+      logger.warnf("Magic Link: Invitation email failed - userId=%s: %s", invitation.userId(), e.getMessage());
+      job.failed.incrementAndGet();
+    }
+  }
+
+  private long runningJobs() {
+    return jobs.values().stream().filter(job -> job.getState() == Job.State.RUNNING).count();
+  }
+
+  private void purgeExpired() {
+    long now = Time.currentTimeMillis();
+    jobs.values().removeIf(job -> job.isExpired(now));
+  }
+
+  /**
+   * @return the normalized address in the first column, or null
+   */
+  static String csvEmail(String line) {
+    int end = line.indexOf(',');
+    String first = (end < 0 ? line : line.substring(0, end)).trim();
+    if (first.length() >= 2 && first.startsWith("\"") && first.endsWith("\"")) {
+      first = first.substring(1, first.length() - 1).trim();
+    }
+    return normalize(first);
+  }
+
+  /**
+   * @return the normalized "email" member of the JSON object, or null
+   */
+  static String ndjsonEmail(String line) {
+    try {
+      JsonNode email = JsonSerialization.mapper.readTree(line).path("email");
+      return email.isTextual() ? normalize(email.asText()) : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static String normalize(String email) {
+    String normalized = email.trim().toLowerCase(Locale.ROOT);
+    return MagicLinkUserResolver.isEmail(normalized) ? normalized : null;
+  }
+}
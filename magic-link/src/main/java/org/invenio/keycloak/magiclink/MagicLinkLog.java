@@ -0,0 +1,109 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.jboss.logging.MDC;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logging helpers for the magic link flow.
+ *
+ * Flow markers (one line per form post or clicked link) are logged at INFO
+ * for one in {@code flowSampleRate} requests and at DEBUG otherwise; with both
+ * levels disabled the caller skips the line before computing any argument.
+ *
+ * {@link #context} puts the realm, client and authentication session into the
+ * MDC, so every line of the request carries them as separate fields when
+ * Keycloak logs JSON ({@code --log-console-output=json}) instead of repeating
+ * them in each message.
+ */
+final class MagicLinkLog {
+
+  static final String MDC_REALM = "magicLinkRealm";
+  static final String MDC_CLIENT = "magicLinkClient";
+  static final String MDC_AUTH_SESSION = "magicLinkAuthSession";
+
+  static final int DEFAULT_FLOW_SAMPLE_RATE = 1;
+
+  /**
+   * Restores the MDC when closed; use with try-with-resources.
+   */
+  interface Context extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  private static final Context EMPTY = () -> {
+  };
+
+  private final int flowSampleRate;
+
+  /**
+   * @param flowSampleRate log one in this many flow markers at INFO; 1 logs
+   *                       all of them, 0 none
+   */
+  MagicLinkLog(int flowSampleRate) {
+    this.flowSampleRate = Math.max(0, flowSampleRate);
+  }
+
+  /**
+   * @return the level to log the next flow marker at, or null to skip it
+   */
+  Logger.Level flowLevel(Logger logger) {
+    if (flowSampleRate > 0 && logger.isInfoEnabled()
+        && (flowSampleRate == 1 || ThreadLocalRandom.current().nextInt(flowSampleRate) == 0)) {
+      return Logger.Level.INFO;
+    }
+    return logger.isDebugEnabled() ? Logger.Level.DEBUG : null;
+  }
+
+  /**
+   * Puts the realm, client and authentication session into the MDC until the
+   * returned context is closed. Does nothing when the logger has INFO
+   * disabled.
+   */
+  static Context context(Logger logger, String realm, String client, AuthenticationSessionModel authSession) {
+    if (!logger.isInfoEnabled()) {
+      return EMPTY;
+    }
+    Object previousRealm = put(MDC_REALM, realm);
+    Object previousClient = put(MDC_CLIENT, client);
+    Object previousAuthSession = put(MDC_AUTH_SESSION, authSessionId(authSession));
+    return () -> {
+      restore(MDC_REALM, previousRealm);
+      restore(MDC_CLIENT, previousClient);
+      restore(MDC_AUTH_SESSION, previousAuthSession);
+    };
+  }
+
+  /**
+   * @return "parentSessionId.tabId", or null without a session
+   */
+  static String authSessionId(AuthenticationSessionModel authSession) {
+    if (authSession == null) {
+      return null;
+    }
+    return authSession.getParentSession() != null
+        ? authSession.getParentSession().getId() + "." + authSession.getTabId()
+        : authSession.getTabId();
+  }
+
+  private static Object put(String key, String value) {
+    if (value != null) {
+      return MDC.put(key, value);
+    }
+    Object previous = MDC.get(key);
+    MDC.remove(key);
+    return previous;
+  }
+
+  private static void restore(String key, Object previous) {
+    if (previous != null) {
+      MDC.put(key, previous);
+    } else {
+      MDC.remove(key);
+    }
+  }
+}
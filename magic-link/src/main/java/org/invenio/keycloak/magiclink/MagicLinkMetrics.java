@@ -0,0 +1,174 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+
+/**
+ * Micrometer meters of the magic link authenticator and token handler. They
+ * are registered on the global registry, which Keycloak publishes on /metrics
+ * when started with --metrics-enabled=true.
+ *
+ * All meters are tagged with the realm name and the client id.
+ */
+final class MagicLinkMetrics {
+
+  static final String LINK_REQUESTS = "keycloak.magic.link.requests";
+  static final String DOMAIN_REJECTIONS = "keycloak.magic.link.domain.rejections";
+  static final String USERS_CREATED = "keycloak.magic.link.users.created";
+  static final String EMAIL_SEND = "keycloak.magic.link.email.send";
+  static final String TOKEN_REDEMPTIONS = "keycloak.magic.link.token.redemptions";
+  static final String TOKEN_VERIFICATION_FAILURES = "keycloak.magic.link.token.verification.failures";
+  static final String TOKEN_REPLAYS = "keycloak.magic.link.token.replays";
+  static final String CLICK_TO_SESSION = "keycloak.magic.link.click.to.session";
+  static final String REDEMPTION_USER_WRITES = "keycloak.magic.link.redemption.user.writes";
+  static final String RATE_LIMITED = "keycloak.magic.link.rate.limited";
+  static final String DUPLICATE_REQUESTS = "keycloak.magic.link.duplicate.requests";
+  static final String UNKNOWN_EMAIL_LOOKUPS = "keycloak.magic.link.unknown.email.lookups";
+
+  static final String TAG_REALM = "realm";
+  static final String TAG_CLIENT = "client";
+  static final String TAG_EMAIL = "email";
+  static final String TAG_OUTCOME = "outcome";
+  static final String TAG_CHECK = "check";
+  static final String TAG_LIMIT = "limit";
+  static final String TAG_ACTION = "action";
+  static final String TAG_RESULT = "result";
+
+  static final String EMAIL_MAGIC_LINK = "magic-link";
+  static final String EMAIL_DOMAIN_NOT_ALLOWED = "domain-not-allowed";
+
+  static final String LIMIT_EMAIL = "email";
+  static final String LIMIT_IP = "ip";
+
+  static final String DUPLICATE_SKIPPED = "skipped";
+  static final String DUPLICATE_RESENT = "resent";
+
+  static final String LOOKUP_HIT = "hit";
+  static final String LOOKUP_MISS = "miss";
+
+  static final String OUTCOME_SUCCESS = "success";
+  static final String OUTCOME_EMAIL_EXCEPTION = "email_exception";
+  static final String OUTCOME_ERROR = "error";
+  static final String OUTCOME_USER_NOT_FOUND = "user_not_found";
+  static final String OUTCOME_NO_AUTH_SESSION = "no_auth_session";
+  static final String OUTCOME_INVALID_REDIRECT = "invalid_redirect";
+
+  private static final String UNKNOWN = "unknown";
+
+  /**
+   * A username form was posted with an email address.
+   */
+  static void linkRequested(String realm, String client) {
+    Metrics.counter(LINK_REQUESTS, tags(realm, client)).increment();
+  }
+
+  /**
+   * The email domain is not in the allowed-domains group.
+   */
+  static void domainRejected(String realm, String client) {
+    Metrics.counter(DOMAIN_REJECTIONS, tags(realm, client)).increment();
+  }
+
+  /**
+   * A request was turned away by a rate limit.
+   *
+   * @param limit {@link #LIMIT_EMAIL} or {@link #LIMIT_IP}
+   */
+  static void rateLimited(String realm, String client, String limit) {
+    Metrics.counter(RATE_LIMITED, tags(realm, client).and(TAG_LIMIT, limit)).increment();
+  }
+
+  /**
+   * A link for the same user, client and redirect URI was issued moments ago
+   * and was reused instead of signing a new token.
+   *
+   * @param action {@link #DUPLICATE_SKIPPED} or {@link #DUPLICATE_RESENT}
+   */
+  static void duplicateRequest(String realm, String client, String action) {
+    Metrics.counter(DUPLICATE_REQUESTS, tags(realm, client).and(TAG_ACTION, action)).increment();
+  }
+
+  /**
+   * The cache of unknown email addresses was consulted before a user lookup.
+   *
+   * @param result {@link #LOOKUP_HIT} if the lookup was skipped, otherwise
+   *               {@link #LOOKUP_MISS}
+   */
+  static void unknownEmailLookup(String realm, String client, String result) {
+    Metrics.counter(UNKNOWN_EMAIL_LOOKUPS, tags(realm, client).and(TAG_RESULT, result)).increment();
+  }
+
+  static void userCreated(String realm, String client) {
+    Metrics.counter(USERS_CREATED, tags(realm, client)).increment();
+  }
+
+  static Timer.Sample startEmailSend() {
+    return Timer.start(Metrics.globalRegistry);
+  }
+
+  /**
+   * Records one attempt to hand an email to the SMTP server.
+   *
+   * @param email   {@link #EMAIL_MAGIC_LINK} or {@link #EMAIL_DOMAIN_NOT_ALLOWED}
+   * @param outcome {@link #OUTCOME_SUCCESS}, {@link #OUTCOME_EMAIL_EXCEPTION}
+   *                or {@link #OUTCOME_ERROR} for any other exception
+   */
+  static void emailSent(Timer.Sample sample, String realm, String client, String email, String outcome) {
+    sample.stop(Metrics.timer(EMAIL_SEND, tags(realm, client).and(TAG_EMAIL, email, TAG_OUTCOME, outcome)));
+  }
+
+  static void tokenRedeemed(String realm, String client, String outcome) {
+    Metrics.counter(TOKEN_REDEMPTIONS, tags(realm, client).and(TAG_OUTCOME, outcome)).increment();
+  }
+
+  /**
+   * A token was rejected by one of the action token basic checks.
+   *
+   * @param check index of the predicate in ACTION_TOKEN_BASIC_CHECKS
+   */
+  static void tokenCheckFailed(String realm, String client, int check) {
+    Metrics.counter(TOKEN_VERIFICATION_FAILURES, tags(realm, client).and(TAG_CHECK, "basic-" + check)).increment();
+  }
+
+  /**
+   * A token redeemed before on this node was presented again.
+   */
+  static void tokenReplayed(String realm, String client) {
+    Metrics.counter(TOKEN_REPLAYS, tags(realm, client)).increment();
+  }
+
+  /**
+   * Time from issuing the magic link to the login completing after the click.
+   * Token timestamps have second precision.
+   */
+  static void clickToSession(String realm, String client, Long issuedAtSeconds, long nowMillis) {
+    if (issuedAtSeconds == null) {
+      return;
+    }
+    long elapsedMillis = Math.max(0L, nowMillis - issuedAtSeconds * 1000L);
+    Metrics.timer(CLICK_TO_SESSION, tags(realm, client)).record(Duration.ofMillis(elapsedMillis));
+  }
+
+  /**
+   * Changes the handler made to the user while redeeming a link, each of which
+   * the user store flushes as an update at commit. Compared with the successful
+   * redemptions it gives the share of logins that write to the user; a
+   * returning user whose email is already verified adds none.
+   */
+  static void redemptionUserWrites(String realm, String client, int writes) {
+    if (writes > 0) {
+      Metrics.counter(REDEMPTION_USER_WRITES, tags(realm, client)).increment(writes);
+    }
+  }
+
+  private static Tags tags(String realm, String client) {
+    return Tags.of(TAG_REALM, realm != null ? realm : UNKNOWN, TAG_CLIENT, client != null ? client : UNKNOWN);
+  }
+
+  private MagicLinkMetrics() {
+    // Utility class
+  }
+}
@@ -0,0 +1,108 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Sliding-window request counters kept in the single-use object store, which
+ * is the clustered Infinispan cache, so all nodes share the limits.
+ *
+ * Each key has one counter per fixed window; the sliding count is the current
+ * window plus the previous one weighted by how much of it still overlaps. The
+ * value is hashed before it becomes part of a cache key, so no email address
+ * or IP address is stored. Counters are read and written without a lock and
+ * may miss a few concurrent requests, which is fine for a limit.
+ *
+ * The limiter fails open: when the store is not available requests are
+ * allowed.
+ */
+final class MagicLinkRateLimiter {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkRateLimiter.class);
+
+  static final String KEY_PREFIX = "magic-link-rate:";
+  static final String COUNT_NOTE = "count";
+
+  private final LongSupplier clockMillis;
+
+  MagicLinkRateLimiter() {
+    this(Time::currentTimeMillis);
+  }
+
+  MagicLinkRateLimiter(LongSupplier clockMillis) {
+    this.clockMillis = clockMillis;
+  }
+
+  /**
+   * Counts a request against the limit of a value.
+   *
+   * @param scope         kind of value, part of the key, e.g. "email"
+   * @param limit         requests allowed per window; 0 or less disables the limit
+   * @param windowSeconds length of the sliding window
+   * @return false if the value already reached its limit; the rejected request
+   *         is not counted
+   */
+  boolean tryAcquire(KeycloakSession session, String realmId, String scope, String value, int limit,
+      long windowSeconds) {
+    if (limit <= 0 || windowSeconds <= 0 || value == null || value.isEmpty()) {
+      return true;
+    }
+    SingleUseObjectProvider store = session.singleUseObjects();
+    if (store == null) {
+      return true;
+    }
+
+    long windowMillis = windowSeconds * 1000L;
+    long now = clockMillis.getAsLong();
+    long window = now / windowMillis;
+    double previousWeight = 1.0 - (double) (now % windowMillis) / windowMillis;
+    String key = KEY_PREFIX + realmId + ':' + scope + ':' + hash(value) + ':';
+
+    try {
+      long current = count(store.get(key + window));
+      long previous = count(store.get(key + (window - 1)));
+      if (previous * previousWeight + current >= limit) {
+        return false;
+      }
+      // Kept for two windows, so the next window can still weigh it in
+      store.put(key + window, 2 * windowSeconds, Map.of(COUNT_NOTE, Long.toString(current + 1)));
+      return true;
+    } catch (RuntimeException e) {
+      logger.debugf(e, "Magic Link: Rate limit store unavailable, allowing request - scope=%s", scope);
+      return true;
+    }
+  }
+
+  private static long count(Map<String, String> notes) {
+    if (notes == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(notes.getOrDefault(COUNT_NOTE, "0"));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * First 96 bits of the SHA-256 of the value, Base64url encoded (16 characters).
+   */
+  static String hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 12));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+
+/**
+ * Magic link tokens redeemed on this node, kept until they expire, so a
+ * replayed link is rejected by a local hash lookup before Keycloak consults
+ * its clustered single-use object store.
+ *
+ * Keycloak's check stays in place and covers replays on other nodes; the
+ * ledger only answers the common case (the same browser or mail scanner
+ * opening the link again) without a cache round trip. The ledger holds at
+ * most {@code capacity} tokens; when full the oldest entries are evicted,
+ * which only means their replays are left to Keycloak's check.
+ */
+final class MagicLinkTokenLedger {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkTokenLedger.class);
+
+  static final String ENTRIES_METRIC = "keycloak.magic.link.token.ledger.entries";
+  static final String EVICTIONS_METRIC = "keycloak.magic.link.token.ledger.evictions";
+
+  private final int capacity;
+  private final LongSupplier clockMillis;
+  private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+  // Insertion order, for evicting the oldest entries
+  private final Queue<String> order = new ConcurrentLinkedQueue<>();
+  private final Gauge entries;
+  private final Counter evictions;
+
+  /**
+   * @param capacity maximum number of redeemed tokens remembered; 0 disables
+   *                 the ledger
+   */
+  MagicLinkTokenLedger(int capacity) {
+    this(capacity, Time::currentTimeMillis);
+  }
+
+  MagicLinkTokenLedger(int capacity, LongSupplier clockMillis) {
+    this.capacity = Math.max(0, capacity);
+    this.clockMillis = clockMillis;
+    this.entries = Gauge.builder(ENTRIES_METRIC, expiries, Map::size)
+        .description("Redeemed magic link tokens remembered on this node")
+        .register(Metrics.globalRegistry);
+    this.evictions = Counter.builder(EVICTIONS_METRIC)
+        .description("Unexpired magic link tokens dropped from the ledger because it was full")
+        .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * @return true if the token was redeemed on this node and has not expired
+   */
+  boolean isRedeemed(String tokenKey) {
+    if (tokenKey == null) {
+      return false;
+    }
+    Long expiresAt = expiries.get(tokenKey);
+    return expiresAt != null && clockMillis.getAsLong() < expiresAt;
+  }
+
+  /**
+   * Records a redeemed token until its expiry.
+   */
+  void redeemed(String tokenKey, long expiresAtMillis) {
+    if (capacity == 0 || tokenKey == null || expiresAtMillis <= clockMillis.getAsLong()) {
+      return;
+    }
+    if (expiries.put(tokenKey, expiresAtMillis) == null) {
+      order.add(tokenKey);
+      trim();
+    }
+  }
+
+  int size() {
+    return expiries.size();
+  }
+
+  void close() {
+    Metrics.globalRegistry.remove(entries);
+    Metrics.globalRegistry.remove(evictions);
+    expiries.clear();
+    order.clear();
+  }
+
+  /**
+   * Drops expired entries from the head of the queue, then the oldest entries
+   * while over capacity.
+   */
+  private void trim() {
+    long now = clockMillis.getAsLong();
+    String head;
+    while ((head = order.peek()) != null) {
+      Long expiresAt = expiries.get(head);
+      if (expiresAt != null && expiresAt > now && expiries.size() <= capacity) {
+        return;
+      }
+      // Concurrent trims may poll a different entry than the one peeked at;
+      // either way the oldest entry goes
+      String oldest = order.poll();
+      if (oldest == null) {
+        return;
+      }
+      Long removed = expiries.remove(oldest);
+      if (removed != null && removed > now) {
+        evictions.increment();
+        logger.debugf("Magic Link: Token ledger full, evicted oldest entry - capacity=%d", capacity);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.keycloak.TokenVerifier.Predicate;
+import org.keycloak.authentication.actiontoken.DefaultActionToken;
+import org.keycloak.authentication.actiontoken.TokenUtils;
+import org.keycloak.common.VerificationException;
+
+/**
+ * The checks a magic link token passes before it is handled, built once and
+ * handed to every {@link MagicLinkActionTokenHandler} instead of being wrapped
+ * again on each redemption.
+ *
+ * A check that passes does no logging and no formatting. A failing check is
+ * counted per check index and logged with the token's ids; the realm for the
+ * metric is taken from the token issuer, so the checks need no per-request
+ * context.
+ */
+final class MagicLinkTokenVerifiers {
+
+  private static final Logger logger = Logger.getLogger(MagicLinkTokenVerifiers.class);
+
+  private static final String REALMS_PATH = "/realms/";
+
+  private static final Predicate<? super MagicLinkActionToken>[] BASIC_CHECKS = checked(
+      TokenUtils.predicates(DefaultActionToken.ACTION_TOKEN_BASIC_CHECKS));
+
+  /**
+   * @param ledger tokens redeemed on this node, or null to leave replay checks
+   *               to Keycloak alone
+   * @return the checks for a handler; without a ledger the shared basic checks
+   */
+  static Predicate<? super MagicLinkActionToken>[] pipeline(MagicLinkTokenLedger ledger) {
+    if (ledger == null) {
+      return BASIC_CHECKS;
+    }
+    // Replays of links redeemed on this node are rejected first, by a local
+    // lookup; Keycloak's single-use check still follows
+    @SuppressWarnings("unchecked")
+    Predicate<? super MagicLinkActionToken>[] predicates = new Predicate[BASIC_CHECKS.length + 1];
+    predicates[0] = new ReplayCheck(ledger);
+    System.arraycopy(BASIC_CHECKS, 0, predicates, 1, BASIC_CHECKS.length);
+    return predicates;
+  }
+
+  static Predicate<? super MagicLinkActionToken>[] checked(Predicate<? super MagicLinkActionToken>[] checks) {
+    @SuppressWarnings("unchecked")
+    Predicate<? super MagicLinkActionToken>[] wrapped = new Predicate[checks.length];
+    for (int i = 0; i < checks.length; i++) {
+      wrapped[i] = new CountedCheck(i, checks[i]);
+    }
+    return wrapped;
+  }
+
+  /**
+   * @return the realm name from the token's issuer URL, or null
+   */
+  static String realmName(MagicLinkActionToken token) {
+    String issuer = token.getIssuer();
+    int index = issuer != null ? issuer.lastIndexOf(REALMS_PATH) : -1;
+    return index >= 0 ? issuer.substring(index + REALMS_PATH.length()) : null;
+  }
+
+  /**
+   * Identifies a token in the ledger by its random verification nonce, like
+   * Keycloak's own single-use key.
+   */
+  static String ledgerKey(MagicLinkActionToken token) {
+    return token.getActionVerificationNonce() != null
+        ? token.getActionVerificationNonce().toString()
+        : token.getId();
+  }
+
+  /**
+   * One of Keycloak's basic checks, with a failure counter.
+   */
+  private record CountedCheck(int index, Predicate<? super MagicLinkActionToken> check)
+      implements Predicate<MagicLinkActionToken> {
+
+    @Override
+    public boolean test(MagicLinkActionToken token) {
+      try {
+        if (check.test(token)) {
+          return true;
+        }
+        if (logger.isDebugEnabled()) {
+          logger.debugf("Magic Link: Token check failed - check=basic-%d, tokenId=%s, userId=%s, clientId=%s",
+              index, token.getId(), token.getUserId(), token.getIssuedFor());
+        }
+      } catch (VerificationException | RuntimeException e) {
+        logger.warnf("Magic Link: Token check failed - check=basic-%d, tokenId=%s, userId=%s, clientId=%s, reason=%s",
+            index, token.getId(), token.getUserId(), token.getIssuedFor(), e.getMessage());
+      }
+      MagicLinkMetrics.tokenCheckFailed(realmName(token), token.getIssuedFor(), index);
+      return false;
+    }
+  }
+
+  private record ReplayCheck(MagicLinkTokenLedger ledger) implements Predicate<MagicLinkActionToken> {
+
+    @Override
+    public boolean test(MagicLinkActionToken token) {
+      if (!ledger.isRedeemed(ledgerKey(token))) {
+        return true;
+      }
+      logger.infof("Magic Link: Rejecting replayed token - userId=%s, clientId=%s",
+          token.getUserId(), token.getIssuedFor());
+      MagicLinkMetrics.tokenReplayed(realmName(token), token.getIssuedFor());
+      return false;
+    }
+  }
+
+  private MagicLinkTokenVerifiers() {
+    // Utility class
+  }
+}
@@ -0,0 +1,117 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Finds the user a magic link is requested for.
+ *
+ * In the default {@code usernameOrEmail} mode this is Keycloak's
+ * {@link KeycloakModelUtils#findUserByNameOrEmail}: an email query when the
+ * realm allows login with email, then a username query if that found nobody.
+ * In {@code email} mode an email-shaped input is resolved with the email query
+ * alone, whatever the realm's login with email setting, so an unknown address
+ * costs one query instead of two.
+ *
+ * Email mode can additionally remember the user id of each address per realm.
+ * A remembered id is loaded by id, which Keycloak's user cache answers
+ * without a query, and is only used while that user still has the address; a
+ * deleted user or a changed email falls back to the email query.
+ */
+final class MagicLinkUserResolver {
+
+  static final String MODE_USERNAME_OR_EMAIL = "usernameOrEmail";
+  static final String MODE_EMAIL = "email";
+
+  private final BoundedExpiringCache<String> userIds;
+  private final long ttlMillis;
+  private final int maxEntries;
+  private final LongSupplier clockMillis;
+
+  /**
+   * @param ttlSeconds how long the user id of an address is remembered; 0
+   *                   disables the email index
+   * @param maxEntries addresses remembered on this node; the oldest are
+   *                   forgotten first
+   */
+  MagicLinkUserResolver(long ttlSeconds, int maxEntries) {
+    this(ttlSeconds, maxEntries, Time::currentTimeMillis);
+  }
+
+  MagicLinkUserResolver(long ttlSeconds, int maxEntries, LongSupplier clockMillis) {
+    this.ttlMillis = Math.max(0, ttlSeconds) * 1000L;
+    this.maxEntries = Math.max(0, maxEntries);
+    this.clockMillis = clockMillis;
+    this.userIds = new BoundedExpiringCache<>(this.maxEntries, clockMillis);
+  }
+
+  boolean isIndexEnabled() {
+    return ttlMillis > 0 && maxEntries > 0;
+  }
+
+  /**
+   * @param email the trimmed, lower-cased form input
+   * @return the user, or null if none has this username or email
+   */
+  UserModel find(KeycloakSession session, RealmModel realm, String email, String mode) {
+    // Duplicate emails make the email query ambiguous; Keycloak decides then
+    if (!MODE_EMAIL.equals(mode) || !isEmail(email) || realm.isDuplicateEmailsAllowed()) {
+      return KeycloakModelUtils.findUserByNameOrEmail(session, realm, email);
+    }
+    UserModel user = indexed(session, realm, email);
+    if (user != null) {
+      return user;
+    }
+    user = session.users().getUserByEmail(realm, email);
+    if (user != null) {
+      remember(realm.getId(), email, user.getId());
+    }
+    return user;
+  }
+
+  int size() {
+    return userIds.size();
+  }
+
+  private UserModel indexed(KeycloakSession session, RealmModel realm, String email) {
+    if (!isIndexEnabled()) {
+      return null;
+    }
+    String key = key(realm.getId(), email);
+    String userId = userIds.get(key);
+    if (userId == null) {
+      return null;
+    }
+    UserModel user = session.users().getUserById(realm, userId);
+    if (user != null && email.equalsIgnoreCase(user.getEmail())) {
+      return user;
+    }
+    userIds.remove(key);
+    return null;
+  }
+
+  private void remember(String realmId, String email, String userId) {
+    if (!isIndexEnabled()) {
+      return;
+    }
+    userIds.put(key(realmId, email), userId, clockMillis.getAsLong() + ttlMillis);
+  }
+
+  /**
+   * @return true for "local@domain" with both parts present
+   */
+  static boolean isEmail(String value) {
+    int at = value.indexOf('@');
+    return at > 0 && at < value.length() - 1 && value.indexOf('@', at + 1) < 0;
+  }
+
+  private static String key(String realmId, String email) {
+    return realmId + ':' + MagicLinkRateLimiter.hash(email.toLowerCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,70 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RequiredActionProviderModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.Set;
+
+/**
+ * Creates the accounts of auto-created users.
+ *
+ * In a realm without user federation the user is added straight to the local
+ * store, without the realm's default required actions, and gets every field
+ * before the first flush of the transaction: the JPA store inserts the user
+ * and its default roles, then writes enabled, email and verified in one
+ * update at commit. Default required actions other than the profile ones are
+ * added back, so a realm's e.g. terms and conditions still apply. Adding all
+ * defaults and removing the profile actions again cost an insert and a delete
+ * per action.
+ *
+ * That direct call bypasses the user storage providers, so in a realm with
+ * any (LDAP, Kerberos, custom federation) the user is added with
+ * {@code addUser(realm, username)} instead, which lets a writable provider
+ * create the account on its side, and the profile actions are removed again.
+ */
+final class MagicLinkUsers {
+
+  // firstName and lastName are optional and the click verifies the address.
+  // VERIFY_PROFILE is a separate action in Keycloak 26.x for User Profile feature
+  static final Set<String> SKIPPED_REQUIRED_ACTIONS = Set.of(
+      UserModel.RequiredAction.UPDATE_PROFILE.name(),
+      UserModel.RequiredAction.VERIFY_EMAIL.name(),
+      "VERIFY_PROFILE");
+
+  private MagicLinkUsers() {
+  }
+
+  /**
+   * @param group group the user joins, or null
+   */
+  static UserModel create(KeycloakSession session, RealmModel realm, String username, String email,
+      GroupModel group) {
+    UserModel user;
+    if (hasUserStorageProviders(realm)) {
+      user = session.users().addUser(realm, username);
+      SKIPPED_REQUIRED_ACTIONS.forEach(user::removeRequiredAction);
+    } else {
+      user = session.users().addUser(realm, null, username, true, false);
+      realm.getRequiredActionProvidersStream()
+          .filter(action -> action.isEnabled() && action.isDefaultAction())
+          .map(RequiredActionProviderModel::getAlias)
+          .filter(alias -> !SKIPPED_REQUIRED_ACTIONS.contains(alias))
+          .forEach(user::addRequiredAction);
+    }
+    user.setEnabled(true);
+    user.setEmail(email);
+    user.setEmailVerified(true); // Email verified via magic link
+    if (group != null) {
+      user.joinGroup(group);
+    }
+    return user;
+  }
+
+  static boolean hasUserStorageProviders(RealmModel realm) {
+    return realm.getStorageProviders(UserStorageProvider.class).findAny().isPresent();
+  }
+}
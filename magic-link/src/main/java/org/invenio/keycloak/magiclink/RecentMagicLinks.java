@@ -0,0 +1,67 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.common.util.Time;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Magic links sent from this node in the last seconds, keyed by realm, user,
+ * client, redirect URI and the login they were requested from (browser tab
+ * and client state), so a user pressing "send" again gets the same link
+ * instead of a newly signed token. Another tab or another login attempt of
+ * the client gets a link of its own, as that link carries its own state.
+ *
+ * Entries live until the end of the reuse window or the expiry of the token,
+ * whichever comes first. The cache is node-local: a repeated request served
+ * by another node issues a new link, which is still valid.
+ */
+final class RecentMagicLinks {
+
+  static final int MAX_ENTRIES = 10_000;
+
+  private final BoundedExpiringCache<String> links;
+  private final LongSupplier clockMillis;
+
+  RecentMagicLinks() {
+    this(Time::currentTimeMillis);
+  }
+
+  RecentMagicLinks(LongSupplier clockMillis) {
+    this.clockMillis = clockMillis;
+    this.links = new BoundedExpiringCache<>(MAX_ENTRIES, clockMillis);
+  }
+
+  /**
+   * @return the link sent for the same {@link #key} within its reuse window, or
+   *         null
+   */
+  String get(String key) {
+    return links.get(key);
+  }
+
+  /**
+   * @param windowSeconds   how long the link is handed out again
+   * @param expiresAtMillis expiry of the link's token
+   */
+  void put(String key, String link, long windowSeconds, long expiresAtMillis) {
+    if (windowSeconds <= 0) {
+      return;
+    }
+    // When full the oldest link goes; its user just gets a fresh one
+    links.put(key, link, Math.min(clockMillis.getAsLong() + windowSeconds * 1000L, expiresAtMillis));
+  }
+
+  int size() {
+    return links.size();
+  }
+
+  /**
+   * @param tabId auth session tab the link was requested from
+   * @param state the client's OAuth {@code state} for the login, or null
+   */
+  static String key(String realmId, String userId, String clientId, String redirectUri, String tabId,
+      String state) {
+    return realmId + '\u0000' + userId + '\u0000' + clientId + '\u0000' + redirectUri + '\u0000' + tabId
+        + '\u0000' + state;
+  }
+}
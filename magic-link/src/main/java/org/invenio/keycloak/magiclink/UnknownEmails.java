@@ -0,0 +1,84 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.common.util.Time;
+
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Email addresses recently looked up without finding a user, so repeated
+ * requests for them (typos, credential stuffing) skip the user lookup while
+ * auto-creation is off.
+ *
+ * Addresses are kept as a hash per realm for a short TTL. An entry is dropped
+ * when the authenticator creates the user, or when the
+ * {@link UnknownEmailsEventListenerProviderFactory} listener sees a user
+ * registered, created or given a new email on this node. Other nodes miss
+ * those events and serve the stale entry until it expires, which delays the
+ * first magic link of a brand new account by at most the TTL, which is why
+ * the cache is off unless a TTL is configured.
+ */
+final class UnknownEmails {
+
+  private final BoundedExpiringCache<Boolean> addresses;
+  private final long ttlMillis;
+  private final int maxEntries;
+  private final LongSupplier clockMillis;
+
+  /**
+   * @param ttlSeconds how long an address is remembered; 0 disables the cache
+   * @param maxEntries addresses remembered on this node; the oldest are
+   *                   forgotten first
+   */
+  UnknownEmails(long ttlSeconds, int maxEntries) {
+    this(ttlSeconds, maxEntries, Time::currentTimeMillis);
+  }
+
+  UnknownEmails(long ttlSeconds, int maxEntries, LongSupplier clockMillis) {
+    this.ttlMillis = Math.max(0, ttlSeconds) * 1000L;
+    this.maxEntries = Math.max(0, maxEntries);
+    this.clockMillis = clockMillis;
+    this.addresses = new BoundedExpiringCache<>(this.maxEntries, clockMillis);
+  }
+
+  boolean isEnabled() {
+    return ttlMillis > 0 && maxEntries > 0;
+  }
+
+  /**
+   * @return true if the address was looked up without result within the TTL
+   */
+  boolean isUnknown(String realmId, String email) {
+    if (!isEnabled() || email == null) {
+      return false;
+    }
+    return addresses.get(key(realmId, email)) != null;
+  }
+
+  /**
+   * Remembers that no user has this address.
+   */
+  void unknown(String realmId, String email) {
+    if (!isEnabled() || email == null) {
+      return;
+    }
+    addresses.put(key(realmId, email), Boolean.TRUE, clockMillis.getAsLong() + ttlMillis);
+  }
+
+  /**
+   * Forgets the address, e.g. because a user was created with it.
+   */
+  void known(String realmId, String email) {
+    if (email != null && !addresses.isEmpty()) {
+      addresses.remove(key(realmId, email));
+    }
+  }
+
+  int size() {
+    return addresses.size();
+  }
+
+  private static String key(String realmId, String email) {
+    return realmId + ':' + MagicLinkRateLimiter.hash(email.trim().toLowerCase(Locale.ROOT));
+  }
+}
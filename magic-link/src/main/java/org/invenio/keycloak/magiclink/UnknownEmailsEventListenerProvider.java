@@ -0,0 +1,81 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Drops a user's email and username from {@link UnknownEmails} when the user
+ * registers, changes their email, or an admin creates or updates the user,
+ * so their next magic link request looks the user up again.
+ */
+public class UnknownEmailsEventListenerProvider implements EventListenerProvider {
+
+  private static final String USERS_PATH = "users/";
+
+  private final KeycloakSession session;
+  private final UnknownEmails unknownEmails;
+
+  UnknownEmailsEventListenerProvider(KeycloakSession session, UnknownEmails unknownEmails) {
+    this.session = session;
+    this.unknownEmails = unknownEmails;
+  }
+
+  @Override
+  public void onEvent(Event event) {
+    if (event.getError() != null || unknownEmails == null || unknownEmails.size() == 0) {
+      return;
+    }
+    if (event.getType() == EventType.REGISTER
+        || event.getType() == EventType.UPDATE_EMAIL
+        || event.getType() == EventType.UPDATE_PROFILE) {
+      forget(event.getRealmId(), event.getUserId());
+    }
+  }
+
+  @Override
+  public void onEvent(AdminEvent event, boolean includeRepresentation) {
+    if (event.getError() != null || unknownEmails == null || unknownEmails.size() == 0
+        || event.getResourceType() != ResourceType.USER
+        || (event.getOperationType() != OperationType.CREATE && event.getOperationType() != OperationType.UPDATE)) {
+      return;
+    }
+    forget(event.getRealmId(), userIdFromPath(event.getResourcePath()));
+  }
+
+  /**
+   * Extracts the user id from an admin resource path of the form
+   * "users/{id}"; sub-resources such as role mappings are ignored.
+   */
+  static String userIdFromPath(String resourcePath) {
+    if (resourcePath == null || !resourcePath.startsWith(USERS_PATH)) {
+      return null;
+    }
+    String userId = resourcePath.substring(USERS_PATH.length());
+    return userId.isEmpty() || userId.indexOf('/') >= 0 ? null : userId;
+  }
+
+  private void forget(String realmId, String userId) {
+    if (realmId == null || userId == null) {
+      return;
+    }
+    RealmModel realm = session.realms().getRealm(realmId);
+    UserModel user = realm != null ? session.users().getUserById(realm, userId) : null;
+    if (user != null) {
+      // The authenticator also finds users by username
+      unknownEmails.known(realmId, user.getEmail());
+      unknownEmails.known(realmId, user.getUsername());
+    }
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
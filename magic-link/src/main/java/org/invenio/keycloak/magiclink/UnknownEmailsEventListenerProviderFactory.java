@@ -0,0 +1,52 @@
+package org.invenio.keycloak.magiclink;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Factory for the event listener that keeps the magic link authenticator's
+ * cache of unknown email addresses in line with new users. Add
+ * "magic-link-unknown-emails" to the realm's event listeners when the cache
+ * is enabled and users are also created outside the magic link flow.
+ */
+public class UnknownEmailsEventListenerProviderFactory implements EventListenerProviderFactory {
+
+  public static final String PROVIDER_ID = "magic-link-unknown-emails";
+
+  private UnknownEmails unknownEmails;
+
+  @Override
+  public EventListenerProvider create(KeycloakSession session) {
+    return new UnknownEmailsEventListenerProvider(session, unknownEmails);
+  }
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    // No configuration, the cache is configured on the authenticator
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    ProviderFactory<Authenticator> authenticatorFactory = factory != null
+        ? factory.getProviderFactory(Authenticator.class, MagicLinkAuthenticatorFactory.PROVIDER_ID)
+        : null;
+    if (authenticatorFactory instanceof MagicLinkAuthenticatorFactory magicLinkFactory) {
+      unknownEmails = magicLinkFactory.getUnknownEmails();
+    }
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
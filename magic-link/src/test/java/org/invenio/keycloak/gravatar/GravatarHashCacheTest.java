@@ -0,0 +1,67 @@
+package org.invenio.keycloak.gravatar;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+class GravatarHashCacheTest {
+
+  private final AtomicInteger computations = new AtomicInteger();
+  private final UnaryOperator<String> hash = email -> {
+    computations.incrementAndGet();
+    return "hash-" + email;
+  };
+
+  @Test
+  void get_computesEachEmailOnce() {
+    GravatarHashCache cache = new GravatarHashCache(10);
+
+    assertEquals("hash-a@example.com", cache.get("a@example.com", hash));
+    assertEquals("hash-a@example.com", cache.get("a@example.com", hash));
+
+    assertEquals(1, computations.get());
+  }
+
+  @Test
+  void get_evictsLeastRecentlyUsed() {
+    GravatarHashCache cache = new GravatarHashCache(2);
+    cache.get("a", hash);
+    cache.get("b", hash);
+    cache.get("a", hash);
+    cache.get("c", hash);
+
+    assertEquals(2, cache.size());
+    cache.get("a", hash);
+    assertEquals(3, computations.get(), "a was used recently and must still be cached");
+    cache.get("b", hash);
+    assertEquals(4, computations.get(), "b was the eldest entry and must have been evicted");
+  }
+
+  @Test
+  void get_staysBoundedOnConcurrentMisses() throws Exception {
+    GravatarHashCache cache = new GravatarHashCache(100);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 5_000; i++) {
+        String email = "user" + (i % 1_000) + "@example.com";
+        executor.submit(() -> cache.get(email, hash));
+      }
+    }
+
+    assertTrue(cache.size() <= 100, "size=" + cache.size());
+  }
+
+  @Test
+  void get_withZeroSizeDoesNotCache() {
+    GravatarHashCache cache = new GravatarHashCache(0);
+    cache.get("a", hash);
+    cache.get("a", hash);
+
+    assertEquals(2, computations.get());
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,164 @@
+package org.invenio.keycloak.gravatar;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.ReadOnlyException;
+
+class GravatarHashEventListenerProviderTest {
+
+  private static final String MD5_ATTRIBUTE = "gravatar-hash-md5";
+  private static final String SHA256_ATTRIBUTE = "gravatar-hash-sha256";
+  private static final String FINGERPRINT_ATTRIBUTE = "gravatar-hash-fingerprint";
+
+  @Test
+  void refreshStoredHashes_updatesHashAfterEmailChange() {
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("MyEmailAddress@example.com");
+    when(user.getFirstAttribute(MD5_ATTRIBUTE)).thenReturn("stale");
+
+    GravatarHashEventListenerProvider.refreshStoredHashes(user);
+
+    verify(user).setSingleAttribute(MD5_ATTRIBUTE, "0bc83cb571cd1c50ba6f3e8a78ef1346");
+    verify(user).setSingleAttribute(FINGERPRINT_ATTRIBUTE, GravatarHasher.fingerprint("myemailaddress@example.com"));
+    verify(user, never()).setSingleAttribute(eq(SHA256_ATTRIBUTE), anyString());
+  }
+
+  @Test
+  void refreshStoredHashes_skipsUnchangedHash() {
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("myemailaddress@example.com");
+    when(user.getFirstAttribute(SHA256_ATTRIBUTE))
+        .thenReturn("84059b07d4be67b806386c0aad8070a23f18836bbaae342275dc0a83414c32ee");
+    when(user.getFirstAttribute(FINGERPRINT_ATTRIBUTE)).thenReturn(GravatarHasher.fingerprint("myemailaddress@example.com"));
+
+    GravatarHashEventListenerProvider.refreshStoredHashes(user);
+
+    verify(user, never()).setSingleAttribute(anyString(), anyString());
+  }
+
+  @Test
+  void refreshStoredHashes_removesHashWhenEmailIsCleared() {
+    UserModel user = mock(UserModel.class);
+    when(user.getFirstAttribute(MD5_ATTRIBUTE)).thenReturn("0bc83cb571cd1c50ba6f3e8a78ef1346");
+
+    GravatarHashEventListenerProvider.refreshStoredHashes(user);
+
+    verify(user).removeAttribute(MD5_ATTRIBUTE);
+  }
+
+  @Test
+  void refreshStoredHashes_removesFingerprintWithLastHash() {
+    UserModel user = mock(UserModel.class);
+    when(user.getFirstAttribute(MD5_ATTRIBUTE)).thenReturn("0bc83cb571cd1c50ba6f3e8a78ef1346");
+    when(user.getFirstAttribute(FINGERPRINT_ATTRIBUTE)).thenReturn("0000abcd");
+
+    GravatarHashEventListenerProvider.refreshStoredHashes(user);
+
+    verify(user).removeAttribute(FINGERPRINT_ATTRIBUTE);
+  }
+
+  @Test
+  void storeHashes_addsMissingHashWithFingerprint() {
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("MyEmailAddress@example.com");
+
+    GravatarHashEventListenerProvider.storeHashes(user, Set.of(GravatarHasher.MD5));
+
+    verify(user).setSingleAttribute(MD5_ATTRIBUTE, "0bc83cb571cd1c50ba6f3e8a78ef1346");
+    verify(user, never()).setSingleAttribute(eq(SHA256_ATTRIBUTE), anyString());
+  }
+
+  @Test
+  void storedHashers_readsStoringMappersOfClientAndScopes() {
+    ClientScopeModel scope = mock(ClientScopeModel.class);
+    when(scope.getProtocolMappersStream()).thenAnswer(call -> Stream.of(mapper("SHA-256", "true")));
+    ClientModel client = mock(ClientModel.class);
+    when(client.getProtocolMappersStream()).thenAnswer(call -> Stream.of(mapper("MD5", "false")));
+    when(client.getClientScopes(true)).thenReturn(Map.of("profile", scope));
+    when(client.getClientScopes(false)).thenReturn(Map.of());
+
+    assertEquals(Set.of(GravatarHasher.SHA256), GravatarHashEventListenerProvider.storedHashers(client));
+  }
+
+  @Test
+  void onLogin_storesHashOfClientMapper() {
+    Map<String, String> attributes = new HashMap<>();
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("myemailaddress@example.com");
+    when(user.getFirstAttribute(anyString())).thenAnswer(call -> attributes.get(call.<String>getArgument(0)));
+    doAnswer(call -> attributes.put(call.getArgument(0), call.getArgument(1)))
+        .when(user).setSingleAttribute(anyString(), anyString());
+
+    loginListener(user).onEvent(loginEvent());
+
+    assertEquals("0bc83cb571cd1c50ba6f3e8a78ef1346", attributes.get(MD5_ATTRIBUTE));
+    assertEquals(GravatarHasher.fingerprint("myemailaddress@example.com"), attributes.get(FINGERPRINT_ATTRIBUTE));
+  }
+
+  @Test
+  void onLogin_skipsReadOnlyUsers() {
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("myemailaddress@example.com");
+    doThrow(new ReadOnlyException()).when(user).setSingleAttribute(anyString(), anyString());
+
+    assertDoesNotThrow(() -> loginListener(user).onEvent(loginEvent()));
+  }
+
+  @Test
+  void userIdFromPath_acceptsOnlyUserResources() {
+    assertEquals("1234", GravatarHashEventListenerProvider.userIdFromPath("users/1234"));
+    assertNull(GravatarHashEventListenerProvider.userIdFromPath("users/1234/role-mappings/realm"));
+    assertNull(GravatarHashEventListenerProvider.userIdFromPath("groups/1234"));
+    assertNull(GravatarHashEventListenerProvider.userIdFromPath(null));
+  }
+
+  private static ProtocolMapperModel mapper(String algorithm, String storeHash) {
+    ProtocolMapperModel mapper = new ProtocolMapperModel();
+    mapper.setProtocolMapper(GravatarPictureProtocolMapper.PROVIDER_ID);
+    mapper.setConfig(Map.of("gravatar.hash", algorithm, "gravatar.store.hash", storeHash));
+    return mapper;
+  }
+
+  private static GravatarHashEventListenerProvider loginListener(UserModel user) {
+    ClientModel client = mock(ClientModel.class);
+    when(client.getProtocolMappersStream()).thenAnswer(call -> Stream.of(mapper("MD5", "true")));
+    RealmModel realm = mock(RealmModel.class);
+    when(realm.getClientByClientId("web")).thenReturn(client);
+    RealmProvider realms = mock(RealmProvider.class);
+    when(realms.getRealm("realm-1")).thenReturn(realm);
+    UserProvider users = mock(UserProvider.class);
+    when(users.getUserById(realm, "user-1")).thenReturn(user);
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.realms()).thenReturn(realms);
+    when(session.users()).thenReturn(users);
+    return new GravatarHashEventListenerProvider(session);
+  }
+
+  private static Event loginEvent() {
+    Event event = new Event();
+    event.setType(EventType.LOGIN);
+    event.setRealmId("realm-1");
+    event.setClientId("web");
+    event.setUserId("user-1");
+    return event;
+  }
+}
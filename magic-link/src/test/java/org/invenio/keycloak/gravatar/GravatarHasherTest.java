@@ -0,0 +1,84 @@
+package org.invenio.keycloak.gravatar;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class GravatarHasherTest {
+
+  @Test
+  void md5Hex_matchesGravatarExample() {
+    assertEquals("0bc83cb571cd1c50ba6f3e8a78ef1346", GravatarHasher.MD5.hexDigest("myemailaddress@example.com"));
+  }
+
+  @Test
+  void md5Hex_handlesNonAsciiAndLongInput() throws Exception {
+    String unicode = "jürgen.müller@universität.de";
+    String longEmail = "a".repeat(300) + "@example.com";
+
+    assertEquals(reference("MD5", unicode), GravatarHasher.MD5.hexDigest(unicode));
+    assertEquals(reference("MD5", longEmail), GravatarHasher.MD5.hexDigest(longEmail));
+    // Scratch buffers are reused; a shorter input must not see leftover bytes
+    assertEquals(reference("MD5", "b@example.com"), GravatarHasher.MD5.hexDigest("b@example.com"));
+  }
+
+  @Test
+  void md5Hex_isCorrectOnConcurrentVirtualThreads() throws Exception {
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 500; i++) {
+        String email = "user" + i + "@example.com";
+        results.add(executor.submit(() -> reference("MD5", email).equals(GravatarHasher.MD5.hexDigest(email))));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    }
+  }
+
+  @Test
+  void sha256Hex_matchesGravatarExample() {
+    assertEquals("84059b07d4be67b806386c0aad8070a23f18836bbaae342275dc0a83414c32ee",
+        GravatarHasher.SHA256.hexDigest("myemailaddress@example.com"));
+  }
+
+  @Test
+  void forAlgorithm_fallsBackToMd5() {
+    assertSame(GravatarHasher.SHA256, GravatarHasher.forAlgorithm("SHA-256"));
+    assertSame(GravatarHasher.SHA256, GravatarHasher.forAlgorithm(" sha-256 "));
+    assertSame(GravatarHasher.MD5, GravatarHasher.forAlgorithm("MD5"));
+    assertSame(GravatarHasher.MD5, GravatarHasher.forAlgorithm("SHA-1"));
+    assertSame(GravatarHasher.MD5, GravatarHasher.forAlgorithm(null));
+  }
+
+  @Test
+  void normalizeEmail_trimsAndLowercases() {
+    assertEquals("jane@example.com", GravatarHasher.normalizeEmail("  Jane@Example.COM "));
+    assertNull(GravatarHasher.normalizeEmail(" "));
+    assertNull(GravatarHasher.normalizeEmail(null));
+  }
+
+  @Test
+  void fingerprintMatches_onlyTheSameEmail() {
+    String fingerprint = GravatarHasher.fingerprint("jane@example.com");
+
+    assertTrue(GravatarHasher.fingerprintMatches(fingerprint, "jane@example.com"));
+    assertFalse(GravatarHasher.fingerprintMatches(fingerprint, "john@example.com"));
+    assertFalse(GravatarHasher.fingerprintMatches(null, "jane@example.com"));
+    assertFalse(GravatarHasher.fingerprintMatches("not-hex", "jane@example.com"));
+  }
+
+  private static String reference(String algorithm, String value) throws Exception {
+    MessageDigest md = MessageDigest.getInstance(algorithm);
+    return HexFormat.of().formatHex(md.digest(value.getBytes(StandardCharsets.UTF_8)));
+  }
+}
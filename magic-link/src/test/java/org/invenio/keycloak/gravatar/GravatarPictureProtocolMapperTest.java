@@ -1,11 +1,25 @@
 package org.invenio.keycloak.gravatar;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.IDToken;
 
 class GravatarPictureProtocolMapperTest {
 
+  private static final String EMAIL = "myemailaddress@example.com";
+  private static final String MD5_HASH = "0bc83cb571cd1c50ba6f3e8a78ef1346";
+  private static final String MD5_ATTRIBUTE = "gravatar-hash-md5";
+  private static final String FINGERPRINT_ATTRIBUTE = "gravatar-hash-fingerprint";
+
   @Test
   void gravatarUrl_isComputedFromNormalizedEmail() {
     String url = GravatarPictureProtocolMapper.gravatarUrlForEmail(
@@ -27,4 +41,65 @@ class GravatarPictureProtocolMapperTest {
     assertNull(GravatarPictureProtocolMapper.gravatarUrlForEmail(null, 200, "mp", "g"));
     assertNull(GravatarPictureProtocolMapper.gravatarUrlForEmail("   ", 200, "mp", "g"));
   }
+
+  @Test
+  void storedHash_isReadWhileFingerprintMatches() {
+    UserModel user = user(EMAIL, Map.of(MD5_ATTRIBUTE, "stored", FINGERPRINT_ATTRIBUTE,
+        GravatarHasher.fingerprint(EMAIL)));
+
+    assertEquals("https://www.gravatar.com/avatar/stored?s=200&d=mp&r=g", pictureClaim(user));
+    verify(user, never()).setSingleAttribute(anyString(), anyString());
+  }
+
+  @Test
+  void storedHash_isReadWithZeroPaddedFingerprint() {
+    // Stored by earlier versions
+    String padded = String.format("%08x", EMAIL.hashCode());
+    UserModel user = user(EMAIL, Map.of(MD5_ATTRIBUTE, "stored", FINGERPRINT_ATTRIBUTE, padded));
+
+    assertTrue(pictureClaim(user).contains("stored"));
+  }
+
+  @Test
+  void storedHash_isComputedWithoutWriteAfterEmailChangeWithoutEvent() {
+    UserModel user = user(EMAIL, Map.of(MD5_ATTRIBUTE, "hash-of-old-email", FINGERPRINT_ATTRIBUTE,
+        GravatarHasher.fingerprint("old@example.com")));
+
+    assertTrue(pictureClaim(user).contains(MD5_HASH));
+    verify(user, never()).setSingleAttribute(anyString(), anyString());
+  }
+
+  @Test
+  void storedHash_isComputedWithoutWriteBeforeFirstLogin() {
+    UserModel user = user(EMAIL, Map.of());
+
+    assertTrue(pictureClaim(user).contains(MD5_HASH));
+    verify(user, never()).setSingleAttribute(anyString(), anyString());
+  }
+
+  /**
+   * A user whose attributes are kept in a map, like a stored user.
+   */
+  private static UserModel user(String email, Map<String, String> attributes) {
+    Map<String, String> values = new HashMap<>(attributes);
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn(email);
+    when(user.getFirstAttribute(anyString())).thenAnswer(call -> values.get(call.<String>getArgument(0)));
+    doAnswer(call -> values.put(call.getArgument(0), call.getArgument(1)))
+        .when(user).setSingleAttribute(anyString(), anyString());
+    return user;
+  }
+
+  private static String pictureClaim(UserModel user) {
+    ProtocolMapperModel mapping = new ProtocolMapperModel();
+    mapping.setId("mapper-1");
+    mapping.setConfig(Map.of("claim.name", "picture", "gravatar.store.hash", "true"));
+    UserSessionModel userSession = mock(UserSessionModel.class);
+    when(userSession.getUser()).thenReturn(user);
+    IDToken token = new IDToken();
+
+    new GravatarPictureProtocolMapper().setClaim(token, mapping, userSession);
+
+    return (String) token.getOtherClaims().get("picture");
+  }
 }
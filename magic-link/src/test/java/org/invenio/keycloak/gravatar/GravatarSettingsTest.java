@@ -0,0 +1,61 @@
+package org.invenio.keycloak.gravatar;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class GravatarSettingsTest {
+
+  @Test
+  void querySuffix_isBuiltFromConfig() {
+    GravatarSettings settings = GravatarSettings.fromConfig(Map.of(
+        "gravatar.size", " 80 ",
+        "gravatar.default", "https://example.com/avatar.png",
+        "gravatar.rating", "pg"));
+
+    assertEquals("?s=80&d=https%3A%2F%2Fexample.com%2Favatar.png&r=pg", settings.querySuffix());
+    assertEquals("https://www.gravatar.com/avatar/abc?s=80&d=https%3A%2F%2Fexample.com%2Favatar.png&r=pg",
+        settings.urlFor("abc"));
+  }
+
+  @Test
+  void querySuffix_usesDefaultsForMissingOrInvalidValues() {
+    assertEquals("?s=200&d=mp&r=g", GravatarSettings.fromConfig(Map.of()).querySuffix());
+    assertEquals("?s=200&d=mp&r=g", GravatarSettings.fromConfig(Map.of("gravatar.size", "large")).querySuffix());
+    assertEquals("?s=200&d=mp&r=g", GravatarSettings.fromConfig(null).querySuffix());
+  }
+
+  @Test
+  void querySuffix_omitsBlankValues() {
+    assertEquals("?r=x", GravatarSettings.of(0, " ", "x").querySuffix());
+    assertEquals("", GravatarSettings.of(0, null, null).querySuffix());
+  }
+
+  @Test
+  void hashOptions_areReadFromConfig() {
+    GravatarSettings settings = GravatarSettings.fromConfig(Map.of(
+        "gravatar.hash", "SHA-256",
+        "gravatar.store.hash", "true"));
+
+    assertSame(GravatarHasher.SHA256, settings.hasher());
+    assertTrue(settings.storeHash());
+    assertSame(GravatarHasher.MD5, GravatarSettings.fromConfig(Map.of()).hasher());
+    assertFalse(GravatarSettings.fromConfig(Map.of()).storeHash());
+  }
+
+  @Test
+  void isFor_comparesConfigValues() {
+    Map<String, String> config = new HashMap<>();
+    config.put("gravatar.size", "80");
+    GravatarSettings settings = GravatarSettings.fromConfig(config);
+
+    assertTrue(settings.isFor(Map.of("gravatar.size", "80")));
+
+    config.put("gravatar.size", "120");
+    assertFalse(settings.isFor(config), "Settings must not follow later changes of the config map");
+    assertFalse(GravatarSettings.of(80, "mp", "g").isFor(Map.of()));
+  }
+}
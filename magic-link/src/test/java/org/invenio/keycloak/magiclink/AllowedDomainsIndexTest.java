@@ -0,0 +1,105 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class AllowedDomainsIndexTest {
+
+  private RealmModel realm;
+  private GroupModel group;
+
+  @BeforeEach
+  void setUp() {
+    realm = mock(RealmModel.class);
+    group = mock(GroupModel.class);
+    when(realm.getId()).thenReturn("realm-1");
+    when(realm.getGroupsStream()).thenAnswer(inv -> Stream.of(group));
+    when(group.getName()).thenReturn("auto-create-domains");
+    when(group.getAttributeStream("allowed-domains"))
+        .thenAnswer(inv -> Stream.of(" Example.com ", "company.org", ""));
+  }
+
+  @Test
+  void testLookupIsCaseInsensitive() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(60);
+
+    AllowedDomainsIndex.AllowedDomains domains = index.get(realm, "auto-create-domains");
+
+    assertTrue(domains.isGroupFound());
+    assertTrue(domains.contains("example.com"));
+    assertTrue(domains.contains("COMPANY.ORG"));
+    assertFalse(domains.contains("untrusted.com"));
+    assertFalse(domains.contains(null));
+    assertEquals(2, domains.size());
+  }
+
+  @Test
+  void testGroupIsLoadedOnlyOnce() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(60);
+
+    index.get(realm, "auto-create-domains");
+    index.get(realm, "auto-create-domains");
+    index.get(realm, "auto-create-domains");
+
+    verify(realm, times(1)).getGroupsStream();
+  }
+
+  @Test
+  void testMissingGroup() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(60);
+
+    AllowedDomainsIndex.AllowedDomains domains = index.get(realm, "nonexistent-group");
+
+    assertFalse(domains.isGroupFound());
+    assertFalse(domains.contains("example.com"));
+  }
+
+  @Test
+  void testGroupUpdateInvalidatesRealmEntries() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(60);
+    index.get(realm, "auto-create-domains");
+
+    GroupModel.GroupUpdatedEvent event = mock(GroupModel.GroupUpdatedEvent.class);
+    when(event.getRealm()).thenReturn(realm);
+    index.onEvent(event);
+
+    when(group.getAttributeStream("allowed-domains")).thenAnswer(inv -> Stream.of("university.edu"));
+    AllowedDomainsIndex.AllowedDomains domains = index.get(realm, "auto-create-domains");
+
+    assertTrue(domains.contains("university.edu"));
+    assertFalse(domains.contains("example.com"));
+    verify(realm, times(2)).getGroupsStream();
+  }
+
+  @Test
+  void testEventsForOtherRealmsKeepEntries() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(60);
+    index.get(realm, "auto-create-domains");
+
+    RealmModel otherRealm = mock(RealmModel.class);
+    when(otherRealm.getId()).thenReturn("realm-2");
+    GroupModel.GroupRemovedEvent event = mock(GroupModel.GroupRemovedEvent.class);
+    when(event.getRealm()).thenReturn(otherRealm);
+    index.onEvent(event);
+
+    index.get(realm, "auto-create-domains");
+    verify(realm, times(1)).getGroupsStream();
+  }
+
+  @Test
+  void testZeroTtlDisablesCaching() {
+    AllowedDomainsIndex index = new AllowedDomainsIndex(0);
+
+    index.get(realm, "auto-create-domains");
+    index.get(realm, "auto-create-domains");
+
+    verify(realm, times(2)).getGroupsStream();
+  }
+}
@@ -0,0 +1,81 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedExpiringCacheTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+
+  @Test
+  void testEntryExpires() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(10, now::get);
+    cache.put("a", "1", now.get() + 1_000L);
+
+    assertEquals("1", cache.get("a"));
+    now.addAndGet(1_000L);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void testOldestEntryIsEvictedWhenFull() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(2, now::get);
+    cache.put("a", "1", now.get() + 60_000L);
+    cache.put("b", "2", now.get() + 60_000L);
+    cache.put("c", "3", now.get() + 60_000L);
+
+    assertNull(cache.get("a"));
+    assertEquals("2", cache.get("b"));
+    assertEquals("3", cache.get("c"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  void testExpiredEntriesAreDroppedOnPut() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(10, now::get);
+    cache.put("a", "1", now.get() + 1_000L);
+    cache.put("b", "2", now.get() + 1_000L);
+
+    now.addAndGet(1_000L);
+    cache.put("c", "3", now.get() + 1_000L);
+
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void testStaleQueueEntriesDoNotEvictNewerValues() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(2, now::get);
+    cache.put("a", "1", now.get() + 60_000L);
+    cache.remove("a");
+    cache.put("b", "2", now.get() + 60_000L);
+    cache.put("a", "3", now.get() + 60_000L);
+
+    assertEquals("3", cache.get("a"), "Only the removed value of a was queued first");
+    assertEquals("2", cache.get("b"));
+  }
+
+  @Test
+  void testRewrittenKeyKeepsQueueBounded() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(2, now::get);
+    cache.put("a", "1", now.get() + 60_000L);
+    for (int i = 0; i < 1_000; i++) {
+      cache.put("b", Integer.toString(i), now.get() + 60_000L);
+    }
+
+    assertEquals("999", cache.get("b"));
+    assertEquals(1, cache.size(), "The queue bound evicts the oldest entry");
+  }
+
+  @Test
+  void testZeroCapacityKeepsNothing() {
+    BoundedExpiringCache<String> cache = new BoundedExpiringCache<>(0, now::get);
+    cache.put("a", "1", now.get() + 60_000L);
+
+    assertNull(cache.get("a"));
+    assertTrue(cache.isEmpty());
+  }
+}
@@ -0,0 +1,94 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DomainSuffixTrieTest {
+
+  @Test
+  void testExactEntryMatchesOnlyThatDomain() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("uni.edu"));
+
+    assertTrue(trie.matches("uni.edu"));
+    assertFalse(trie.matches("cs.uni.edu"));
+    assertFalse(trie.matches("edu"));
+    assertFalse(trie.matches("otheruni.edu"));
+  }
+
+  @Test
+  void testStarWildcardMatchesSubdomainsOnly() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("*.uni.edu"));
+
+    assertTrue(trie.matches("cs.uni.edu"));
+    assertTrue(trie.matches("mail.dept.uni.edu"));
+    assertFalse(trie.matches("uni.edu"));
+    assertFalse(trie.matches("evil-uni.edu"));
+  }
+
+  @Test
+  void testDotWildcardMatchesDomainAndSubdomains() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of(".uni.edu"));
+
+    assertTrue(trie.matches("uni.edu"));
+    assertTrue(trie.matches("cs.uni.edu"));
+    assertTrue(trie.matches("mail.dept.uni.edu"));
+    assertFalse(trie.matches("xuni.edu"));
+  }
+
+  @Test
+  void testEntriesAreCaseInsensitiveAndTrimmed() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("  Example.COM ", "*.Company.Org"));
+
+    assertTrue(trie.matches("example.com"));
+    assertTrue(trie.matches("sales.company.org"));
+  }
+
+  @Test
+  void testExactAndWildcardEntriesCombine() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("uni.edu", "*.uni.edu", "dept.other.org"));
+
+    assertTrue(trie.matches("uni.edu"));
+    assertTrue(trie.matches("cs.uni.edu"));
+    assertTrue(trie.matches("dept.other.org"));
+    assertFalse(trie.matches("other.org"));
+    assertEquals(3, trie.size());
+  }
+
+  @Test
+  void testInvalidEntriesAreIgnored() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("*", "*.", "", "a..b", "uni.*"));
+
+    assertEquals(0, trie.size());
+    assertFalse(trie.matches("uni.edu"));
+    assertFalse(DomainSuffixTrie.isValidPattern("*"));
+    assertFalse(DomainSuffixTrie.isValidPattern(null));
+    assertTrue(DomainSuffixTrie.isValidPattern("*.uni.edu"));
+    assertTrue(DomainSuffixTrie.isValidPattern(".uni.edu"));
+  }
+
+  @Test
+  void testMalformedLookupsDoNotMatch() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of(".uni.edu"));
+
+    assertFalse(trie.matches(null));
+    assertFalse(trie.matches(""));
+    assertFalse(trie.matches("uni.edu."));
+    assertFalse(trie.matches("edu"));
+  }
+
+  @Test
+  void testEmptyLabelsDoNotMatch() {
+    DomainSuffixTrie trie = DomainSuffixTrie.of(List.of("uni.edu", "*.other.org"));
+
+    assertFalse(trie.matches(".uni.edu"));
+    assertFalse(trie.matches("uni.edu."));
+    assertFalse(trie.matches("uni..edu"));
+    assertFalse(trie.matches("cs..other.org"));
+    assertFalse(trie.matches(".other.org"));
+    assertTrue(trie.matches("uni.edu"));
+    assertTrue(trie.matches("cs.other.org"));
+  }
+}
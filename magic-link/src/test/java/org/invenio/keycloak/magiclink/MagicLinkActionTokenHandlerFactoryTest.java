@@ -26,6 +26,14 @@ class MagicLinkActionTokenHandlerFactoryTest {
     assertInstanceOf(MagicLinkActionTokenHandler.class, handler);
   }
 
+  @Test
+  void testGetConfigMetadata() {
+    var properties = factory.getConfigMetadata();
+    assertEquals(2, properties.size());
+    assertEquals("redeemedTokenCapacity", properties.get(0).getName());
+    assertEquals("flowLogSampleRate", properties.get(1).getName());
+  }
+
   @Test
   void testLifecycleMethods() {
     // Should not throw exceptions
@@ -62,7 +62,7 @@ class MagicLinkAuthenticatorFactoryTest {
   @Test
   void testGetConfigProperties() {
     var properties = factory.getConfigProperties();
-    assertEquals(3, properties.size());
+    assertEquals(12, properties.size());
 
     var createUserProp = properties.stream()
         .filter(p -> "createUser".equals(p.getName()))
@@ -75,12 +75,54 @@ class MagicLinkAuthenticatorFactoryTest {
         .findFirst();
     assertTrue(allowedDomainsGroupProp.isPresent());
     assertEquals("Allowed domains group", allowedDomainsGroupProp.get().getLabel());
+    assertTrue(properties.stream().anyMatch(p -> "joinAllowedDomainsGroup".equals(p.getName())));
 
     var tokenValidityProp = properties.stream()
         .filter(p -> "tokenValidity".equals(p.getName()))
         .findFirst();
     assertTrue(tokenValidityProp.isPresent());
     assertEquals("Token validity (seconds)", tokenValidityProp.get().getLabel());
+
+    var rateLimitWindowProp = properties.stream()
+        .filter(p -> "rateLimitWindow".equals(p.getName()))
+        .findFirst();
+    assertTrue(rateLimitWindowProp.isPresent());
+    assertEquals("3600", rateLimitWindowProp.get().getDefaultValue());
+    assertTrue(properties.stream().anyMatch(p -> "rateLimitPerEmail".equals(p.getName())));
+    assertTrue(properties.stream().anyMatch(p -> "rateLimitPerIp".equals(p.getName())));
+
+    var duplicateRequestActionProp = properties.stream()
+        .filter(p -> "duplicateRequestAction".equals(p.getName()))
+        .findFirst();
+    assertTrue(duplicateRequestActionProp.isPresent());
+    assertEquals(List.of("skip", "resend"), duplicateRequestActionProp.get().getOptions());
+    assertTrue(properties.stream().anyMatch(p -> "duplicateRequestWindow".equals(p.getName())));
+
+    var tokenEncodingProp = properties.stream()
+        .filter(p -> "tokenEncoding".equals(p.getName()))
+        .findFirst();
+    assertTrue(tokenEncodingProp.isPresent());
+    assertEquals("full", tokenEncodingProp.get().getDefaultValue());
+    assertTrue(properties.stream().anyMatch(p -> "compactClientNotes".equals(p.getName())));
+
+    var userLookupProp = properties.stream()
+        .filter(p -> "userLookup".equals(p.getName()))
+        .findFirst();
+    assertTrue(userLookupProp.isPresent());
+    assertEquals(List.of("usernameOrEmail", "email"), userLookupProp.get().getOptions());
+    assertEquals("usernameOrEmail", userLookupProp.get().getDefaultValue());
+  }
+
+  @Test
+  void testUnknownEmailCacheIsOffByDefault() {
+    factory.init(null);
+
+    assertFalse(factory.getUnknownEmails().isEnabled());
+    var ttlProp = factory.getConfigMetadata().stream()
+        .filter(p -> MagicLinkAuthenticatorFactory.UNKNOWN_EMAIL_CACHE_TTL_SECONDS.equals(p.getName()))
+        .findFirst();
+    assertTrue(ttlProp.isPresent());
+    assertEquals(0L, ttlProp.get().getDefaultValue());
   }
 
   @Test
@@ -25,6 +25,8 @@ import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
@@ -199,7 +201,7 @@ class MagicLinkAuthenticatorTest {
         when(userProvider.getUserByUsername(any(), anyString())).thenReturn(null);
 
         // Accept any generated username (usr_xxx format)
-        when(userProvider.addUser(any(), anyString())).thenReturn(user);
+        when(userProvider.addUser(any(), isNull(), anyString(), eq(true), eq(false))).thenReturn(user);
 
         // Stop the flow before token generation: mock stays disabled even after
         // setEnabled(true)
@@ -208,17 +210,17 @@ class MagicLinkAuthenticatorTest {
         // Execute
         authenticator.action(context);
 
-        // Verify user was created with generated username (not email)
-        verify(userProvider).addUser(eq(realm), argThat(username -> username != null && username.startsWith("usr_")));
+        // Verify user was created with generated username (not email), without
+        // the realm's default required actions
+        verify(userProvider).addUser(eq(realm), isNull(),
+                argThat(username -> username != null && username.startsWith("usr_")), eq(true), eq(false));
         verify(user).setEnabled(true);
         verify(user).setEmail(email);
         verify(user).setEmailVerified(true);
 
-        // Verify required actions are explicitly removed (firstName/lastName are
-        // optional)
-        verify(user).removeRequiredAction(UserModel.RequiredAction.UPDATE_PROFILE);
-        verify(user).removeRequiredAction(UserModel.RequiredAction.VERIFY_EMAIL);
-        verify(user).removeRequiredAction("VERIFY_PROFILE"); // User Profile feature in Keycloak 26.x
+        // Nothing to remove afterwards (firstName/lastName are optional)
+        verify(user, never()).removeRequiredAction(anyString());
+        verify(user, never()).joinGroup(any());
 
         // The flow continues to the generic "email sent" page (challenge keeps session
         // alive)
@@ -443,4 +445,90 @@ class MagicLinkAuthenticatorTest {
         // Must not throw
         assertDoesNotThrow(() -> authenticator.sendDomainNotAllowedEmail(context, "user@restricted.org"));
     }
+
+    @Test
+    void testRateLimitedRequestShowsSentPageWithoutLookup() {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle("username", "user@example.com");
+
+        AuthenticatorConfigModel config = mock(AuthenticatorConfigModel.class);
+        Map<String, String> configMap = new HashMap<>();
+        configMap.put("createUser", "true");
+        configMap.put("rateLimitPerEmail", "1");
+
+        // Every counter already holds one request
+        SingleUseObjectProvider store = mock(SingleUseObjectProvider.class);
+        when(store.get(anyString())).thenReturn(Map.of(MagicLinkRateLimiter.COUNT_NOTE, "1"));
+        UserProvider userProvider = mock(UserProvider.class);
+
+        when(context.getHttpRequest()).thenReturn(httpRequest);
+        when(httpRequest.getDecodedFormParameters()).thenReturn(formData);
+        when(context.getAuthenticatorConfig()).thenReturn(config);
+        when(config.getConfig()).thenReturn(configMap);
+        when(session.singleUseObjects()).thenReturn(store);
+        lenient().when(session.users()).thenReturn(userProvider);
+
+        authenticator.action(context);
+
+        verify(loginFormsProvider).createForm("magic-link-sent.ftl");
+        verify(context).challenge(any(Response.class));
+        verifyNoInteractions(userProvider);
+        verify(store, never()).put(anyString(), anyLong(), anyMap());
+    }
+
+    @Test
+    void testRepeatedRequestForUnknownEmailSkipsLookup() {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle("username", "nobody@example.com");
+        UserProvider userProvider = mock(UserProvider.class);
+
+        when(context.getHttpRequest()).thenReturn(httpRequest);
+        when(httpRequest.getDecodedFormParameters()).thenReturn(formData);
+        when(realm.getId()).thenReturn("realm-id");
+        when(session.users()).thenReturn(userProvider);
+        // The cache is off by default
+        MagicLinkAuthenticator authenticator = new MagicLinkAuthenticator(null, new AllowedDomainsIndex(60),
+                new MagicLinkRateLimiter(), new RecentMagicLinks(), new MagicLinkConfig.Cache(),
+                new UnknownEmails(60, 100), new MagicLinkUserResolver(0, 0), new MagicLinkLog(1));
+
+        authenticator.action(context);
+        clearInvocations(userProvider);
+        authenticator.action(context);
+
+        verifyNoInteractions(userProvider);
+        verify(loginFormsProvider, times(2)).createForm("magic-link-sent.ftl");
+    }
+
+    @Test
+    void testRepeatedRequestReusesRecentLinkWithoutSending() {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle("username", "user@example.com");
+
+        UserProvider userProvider = mock(UserProvider.class);
+        EmailTemplateProvider emailProvider = mock(EmailTemplateProvider.class);
+        RecentMagicLinks recentLinks = new RecentMagicLinks();
+        recentLinks.put(RecentMagicLinks.key("realm-id", "user-id", "unknown", null, "tab-id", "client-state"),
+                "https://example.com/magic-link", 60, System.currentTimeMillis() + 900_000L);
+        MagicLinkAuthenticator authenticator = new MagicLinkAuthenticator(null, new AllowedDomainsIndex(60),
+                new MagicLinkRateLimiter(), recentLinks, new MagicLinkConfig.Cache(),
+                new UnknownEmails(60, 100), new MagicLinkUserResolver(0, 0), new MagicLinkLog(1));
+
+        when(context.getHttpRequest()).thenReturn(httpRequest);
+        when(httpRequest.getDecodedFormParameters()).thenReturn(formData);
+        when(realm.getId()).thenReturn("realm-id");
+        when(session.users()).thenReturn(userProvider);
+        lenient().when(userProvider.getUserByEmail(any(), anyString())).thenReturn(user);
+        lenient().when(userProvider.getUserByUsername(any(), anyString())).thenReturn(user);
+        when(user.getId()).thenReturn("user-id");
+        when(user.isEnabled()).thenReturn(true);
+        when(authSession.getTabId()).thenReturn("tab-id");
+        when(authSession.getClientNote("state")).thenReturn("client-state");
+        lenient().when(session.getProvider(EmailTemplateProvider.class)).thenReturn(emailProvider);
+
+        authenticator.action(context);
+
+        verify(loginFormsProvider).createForm("magic-link-sent.ftl");
+        verify(authSession).setAuthNote("MAGIC_LINK_SENT", "true");
+        verifyNoInteractions(emailProvider);
+    }
 }
@@ -0,0 +1,129 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class MagicLinkClientNotesTest {
+
+  private static final Map<String, String> NOTES = Map.of(
+      "response_type", "code",
+      "scope", "openid profile email",
+      "state", "a1b2c3d4e5f6",
+      "nonce", "n-0S6_WzA2Mj",
+      "redirect_uri", "https://example.com/callback",
+      "code_challenge", "E9Melhoa2OwvFrEMTJguCHaoeK1t8URWbuGJSstw-cM",
+      "code_challenge_method", "S256");
+
+  @Test
+  void testFullEncodingKeepsAllNotes() {
+    MagicLinkActionToken token = newToken();
+
+    MagicLinkClientNotes.write(token, MagicLinkClientNotes.ENCODING_FULL, NOTES,
+        MagicLinkClientNotes.DEFAULT_COMPACT_NOTES, null, 900);
+
+    assertEquals(NOTES, token.getClientNotes());
+    assertNull(token.getCompactClientNotes());
+    assertEquals(NOTES, MagicLinkClientNotes.read(token, null));
+  }
+
+  @Test
+  void testCompactEncodingKeepsListedNotesUnderAliases() {
+    MagicLinkActionToken token = newToken();
+
+    MagicLinkClientNotes.write(token, MagicLinkClientNotes.ENCODING_COMPACT, NOTES,
+        MagicLinkClientNotes.DEFAULT_COMPACT_NOTES, null, 900);
+
+    assertNull(token.getClientNotes());
+    assertEquals("a1b2c3d4e5f6", token.getCompactClientNotes().get("st"));
+    assertFalse(token.getCompactClientNotes().containsKey("redirect_uri"));
+    Map<String, String> expected = new HashMap<>(NOTES);
+    expected.remove("redirect_uri");
+    assertEquals(expected, MagicLinkClientNotes.read(token, null));
+  }
+
+  @Test
+  void testCompactEncodingKeepsUnaliasedNotesByName() {
+    Map<String, String> compact = MagicLinkClientNotes.compact(Map.of("kc_idp_hint", "orcid", "state", "s"),
+        Set.of("kc_idp_hint", "state"));
+
+    assertEquals(Map.of("kc_idp_hint", "orcid", "st", "s"), compact);
+    assertEquals(Map.of("kc_idp_hint", "orcid", "state", "s"), MagicLinkClientNotes.expand(compact));
+  }
+
+  @Test
+  void testReferenceEncodingStoresNotesServerSide() {
+    Map<String, Map<String, String>> entries = new HashMap<>();
+    SingleUseObjectProvider store = mock(SingleUseObjectProvider.class);
+    doAnswer(inv -> entries.put(inv.getArgument(0), inv.getArgument(2)))
+        .when(store).put(anyString(), anyLong(), anyMap());
+    when(store.remove(anyString())).thenAnswer(inv -> entries.remove(inv.<String>getArgument(0)));
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.singleUseObjects()).thenReturn(store);
+    MagicLinkActionToken token = newToken();
+
+    MagicLinkClientNotes.write(token, MagicLinkClientNotes.ENCODING_REFERENCE, NOTES,
+        MagicLinkClientNotes.DEFAULT_COMPACT_NOTES, session, 900);
+
+    assertNull(token.getClientNotes());
+    assertNotNull(token.getClientNotesReference());
+    verify(store).put(eq(MagicLinkClientNotes.REFERENCE_KEY_PREFIX + token.getClientNotesReference()),
+        eq(960L), anyMap());
+    assertEquals(NOTES, MagicLinkClientNotes.read(token, session));
+
+    assertTrue(entries.isEmpty(), "Notes are removed on redemption");
+    assertEquals(Map.of(), MagicLinkClientNotes.read(token, session), "Used or expired notes read as empty");
+  }
+
+  @Test
+  void testDiscardRemovesUnreadReference() {
+    SingleUseObjectProvider store = mock(SingleUseObjectProvider.class);
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.singleUseObjects()).thenReturn(store);
+    MagicLinkActionToken token = newToken();
+    token.setClientNotesReference("ref");
+
+    MagicLinkClientNotes.discard(token, session);
+
+    verify(store).remove(MagicLinkClientNotes.REFERENCE_KEY_PREFIX + "ref");
+  }
+
+  @Test
+  void testDiscardIgnoresTokensWithoutReference() {
+    KeycloakSession session = mock(KeycloakSession.class);
+
+    MagicLinkClientNotes.discard(newToken(), session);
+
+    verifyNoInteractions(session);
+  }
+
+  @Test
+  void testEncodingAndNoteNamesParsing() {
+    assertEquals(MagicLinkClientNotes.ENCODING_COMPACT, MagicLinkClientNotes.encoding(" Compact "));
+    assertEquals(MagicLinkClientNotes.ENCODING_FULL, MagicLinkClientNotes.encoding("zip"));
+    assertEquals(MagicLinkClientNotes.ENCODING_FULL, MagicLinkClientNotes.encoding(null));
+
+    assertEquals(List.of("state", "nonce", "scope"),
+        List.copyOf(MagicLinkClientNotes.noteNames("state, nonce scope,")));
+    assertEquals(List.copyOf(MagicLinkClientNotes.DEFAULT_COMPACT_NOTES),
+        List.copyOf(MagicLinkClientNotes.noteNames(" ")));
+  }
+
+  private static MagicLinkActionToken newToken() {
+    return new MagicLinkActionToken("user", Time.currentTime() + 900, "client", "https://example.com/callback",
+        null, null, null);
+  }
+}
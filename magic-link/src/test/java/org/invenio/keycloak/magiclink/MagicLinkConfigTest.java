@@ -0,0 +1,88 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MagicLinkConfigTest {
+
+  @Test
+  void testDefaults() {
+    MagicLinkConfig config = new MagicLinkConfig.Cache().get(null);
+
+    assertFalse(config.isCreateUser());
+    assertNull(config.getAllowedDomainsGroup());
+    assertFalse(config.isJoinAllowedDomainsGroup());
+    assertEquals(900, config.getTokenValidity());
+    assertEquals(0, config.getRateLimitPerEmail(), "Rate limits are off by default");
+    assertEquals(0, config.getRateLimitPerIp(), "Rate limits are off by default");
+    assertEquals(3600, config.getRateLimitWindow());
+    assertEquals(60, config.getDuplicateRequestWindow());
+    assertFalse(config.isResendDuplicateRequests());
+    assertEquals(MagicLinkClientNotes.ENCODING_FULL, config.getTokenEncoding());
+    assertTrue(config.getCompactClientNotes().contains("state"));
+    assertEquals(MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL, config.getUserLookup());
+  }
+
+  @Test
+  void testParsesSettings() {
+    MagicLinkConfig config = new MagicLinkConfig(Map.of(
+        "createUser", "true",
+        "allowedDomainsGroup", " ",
+        "joinAllowedDomainsGroup", "true",
+        "tokenValidity", " 600 ",
+        "rateLimitPerEmail", "not-a-number",
+        "duplicateRequestAction", "resend",
+        "tokenEncoding", "COMPACT",
+        "compactClientNotes", "state, nonce",
+        "userLookup", "email"));
+
+    assertTrue(config.isCreateUser());
+    assertNull(config.getAllowedDomainsGroup(), "Blank group is not configured");
+    assertTrue(config.isJoinAllowedDomainsGroup());
+    assertEquals(600, config.getTokenValidity());
+    assertEquals(0, config.getRateLimitPerEmail(), "Invalid numbers fall back to the default");
+    assertTrue(config.isResendDuplicateRequests());
+    assertEquals(MagicLinkClientNotes.ENCODING_COMPACT, config.getTokenEncoding());
+    assertEquals(Set.of("state", "nonce"), config.getCompactClientNotes());
+    assertEquals(MagicLinkUserResolver.MODE_EMAIL, config.getUserLookup());
+  }
+
+  @Test
+  void testCachedUntilSettingsChange() {
+    MagicLinkConfig.Cache cache = new MagicLinkConfig.Cache();
+    AuthenticatorConfigModel model = model("config-1", "tokenValidity", "600");
+
+    MagicLinkConfig first = cache.get(model);
+    assertSame(first, cache.get(model));
+    assertSame(first, cache.get(model("config-1", "tokenValidity", "600")), "Equal settings reuse the entry");
+
+    MagicLinkConfig updated = cache.get(model("config-1", "tokenValidity", "300"));
+    assertNotSame(first, updated);
+    assertEquals(300, updated.getTokenValidity());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void testConfigsWithoutIdAreNotCached() {
+    MagicLinkConfig.Cache cache = new MagicLinkConfig.Cache();
+    AuthenticatorConfigModel model = model(null, "tokenValidity", "600");
+
+    assertEquals(600, cache.get(model).getTokenValidity());
+    assertEquals(0, cache.size());
+  }
+
+  private static AuthenticatorConfigModel model(String id, String name, String value) {
+    AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+    model.setId(id);
+    Map<String, String> config = new HashMap<>();
+    config.put(name, value);
+    model.setConfig(config);
+    return model;
+  }
+}
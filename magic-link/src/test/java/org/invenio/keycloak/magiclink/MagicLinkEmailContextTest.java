@@ -0,0 +1,91 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MagicLinkEmailContextTest {
+
+  private static final URI BASE_URI = URI.create("https://auth.example.org/");
+  private static final URI REQUEST_URI = URI.create(
+      "https://auth.example.org/realms/invenio/login-actions/authenticate?client_id=web");
+
+  @Test
+  void testCaptureTakesRequestUrisAndResolvedLocale() {
+    KeycloakSession session = mock(KeycloakSession.class);
+    KeycloakContext context = mock(KeycloakContext.class);
+    KeycloakUriInfo uri = mock(KeycloakUriInfo.class);
+    UserModel user = mock(UserModel.class);
+    when(session.getContext()).thenReturn(context);
+    when(context.getUri()).thenReturn(uri);
+    when(uri.getBaseUri()).thenReturn(BASE_URI);
+    when(uri.getRequestUri()).thenReturn(REQUEST_URI);
+    when(context.resolveLocale(user)).thenReturn(Locale.GERMAN);
+
+    MagicLinkEmailContext emailContext = MagicLinkEmailContext.capture(session, user);
+
+    assertEquals("de", emailContext.recipient(user).getFirstAttribute(UserModel.LOCALE));
+    HttpRequest request = restore(emailContext);
+    assertEquals(BASE_URI, request.getUri().getBaseUri());
+    assertEquals(REQUEST_URI, request.getUri().getRequestUri());
+  }
+
+  @Test
+  void testRestoreSetsRealmAndRequestStandIn() {
+    MagicLinkEmailContext emailContext = new MagicLinkEmailContext(BASE_URI, REQUEST_URI, Locale.FRENCH);
+
+    HttpRequest request = restore(emailContext);
+
+    assertEquals("realms/invenio/login-actions/authenticate", request.getUri().getPath());
+    assertEquals(URI.create("https://auth.example.org/realms/invenio/login-actions/authenticate"),
+        request.getUri().getAbsolutePath());
+    assertEquals(List.of(Locale.FRENCH), request.getHttpHeaders().getAcceptableLanguages());
+    assertTrue(request.getHttpHeaders().getCookies().isEmpty());
+  }
+
+  @Test
+  void testRecipientKeepsOtherAttributes() {
+    UserModel user = mock(UserModel.class);
+    when(user.getFirstAttribute("affiliation")).thenReturn("CERN");
+    when(user.getEmail()).thenReturn("jane@example.org");
+
+    UserModel recipient = new MagicLinkEmailContext(BASE_URI, REQUEST_URI, Locale.FRENCH).recipient(user);
+
+    assertEquals("fr", recipient.getFirstAttribute(UserModel.LOCALE));
+    assertEquals("CERN", recipient.getFirstAttribute("affiliation"));
+    assertEquals("jane@example.org", recipient.getEmail());
+  }
+
+  @Test
+  void testRecipientWithoutLocaleIsUnchanged() {
+    UserModel user = mock(UserModel.class);
+
+    assertSame(user, new MagicLinkEmailContext(BASE_URI, BASE_URI, null).recipient(user));
+  }
+
+  private static HttpRequest restore(MagicLinkEmailContext emailContext) {
+    KeycloakSession session = mock(KeycloakSession.class);
+    KeycloakContext context = mock(KeycloakContext.class);
+    RealmModel realm = mock(RealmModel.class);
+    when(session.getContext()).thenReturn(context);
+
+    emailContext.restore(session, realm);
+
+    verify(context).setRealm(realm);
+    ArgumentCaptor<HttpRequest> request = ArgumentCaptor.forClass(HttpRequest.class);
+    verify(context).setHttpRequest(request.capture());
+    return request.getValue();
+  }
+}
@@ -0,0 +1,199 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MagicLinkEmailDispatcherTest {
+
+  private MagicLinkEmailDispatcher dispatcher;
+
+  @AfterEach
+  void tearDown() {
+    if (dispatcher != null) {
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  void testDispatchSendsOnWorkerThread() throws Exception {
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 1, 0);
+    CountDownLatch sent = new CountDownLatch(1);
+    AtomicInteger virtualThreads = new AtomicInteger();
+
+    boolean queued = dispatcher.dispatch("test", () -> {
+      if (Thread.currentThread().isVirtual()) {
+        virtualThreads.incrementAndGet();
+      }
+      sent.countDown();
+    });
+
+    assertTrue(queued);
+    assertTrue(sent.await(5, TimeUnit.SECONDS), "Email job should run");
+    assertEquals(1, virtualThreads.get(), "Email job should run on a virtual thread");
+  }
+
+  @Test
+  void testFailedSendIsRetriedUntilSuccess() throws Exception {
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 3, 1);
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch sent = new CountDownLatch(1);
+
+    dispatcher.dispatch("test", () -> {
+      if (attempts.incrementAndGet() < 3) {
+        throw new EmailException("SMTP unavailable");
+      }
+      sent.countDown();
+    });
+
+    assertTrue(sent.await(5, TimeUnit.SECONDS), "Third attempt should succeed");
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  void testFailedSendGivesUpAfterMaxAttempts() throws Exception {
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 2, 1);
+    AtomicInteger attempts = new AtomicInteger();
+
+    dispatcher.dispatch("test", () -> {
+      attempts.incrementAndGet();
+      throw new EmailException("SMTP unavailable");
+    });
+    dispatcher.close();
+
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  void testRuntimeFailuresAreRetriedAndCountedAsUndelivered() throws Exception {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      dispatcher = new MagicLinkEmailDispatcher(1, 10, 2, 1);
+      // Looked up before close() unregisters it
+      Counter undelivered = registry.get(MagicLinkEmailDispatcher.UNDELIVERED_METRIC).counter();
+      AtomicInteger attempts = new AtomicInteger();
+
+      dispatcher.dispatch("test", () -> {
+        attempts.incrementAndGet();
+        throw new IllegalStateException("Template error");
+      });
+      dispatcher.close();
+
+      assertEquals(2, attempts.get());
+      assertEquals(1.0, undelivered.count());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  void testCommitFailureAfterSendIsNotRetried() throws Exception {
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+    // Closing the session commits its transaction
+    doThrow(new IllegalStateException("Commit failed")).when(session).close();
+    KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    when(sessionFactory.create()).thenReturn(session);
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 3, 1);
+    AtomicInteger sends = new AtomicInteger();
+    AtomicBoolean delivered = new AtomicBoolean();
+
+    dispatcher.dispatch("test", MagicLinkEmailDispatcher.inNewSession(sessionFactory, s -> sends.incrementAndGet()),
+        delivered::set);
+    dispatcher.close();
+
+    assertEquals(1, sends.get(), "A sent email is not sent again");
+    assertTrue(delivered.get());
+  }
+
+  @Test
+  void testSessionFailureBeforeSendIsRetried() throws Exception {
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+    KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    when(sessionFactory.create()).thenReturn(session);
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 3, 1);
+    AtomicInteger attempts = new AtomicInteger();
+    AtomicBoolean delivered = new AtomicBoolean();
+
+    dispatcher.dispatch("test", MagicLinkEmailDispatcher.inNewSession(sessionFactory, s -> {
+      if (attempts.incrementAndGet() < 2) {
+        throw new IllegalStateException("Realm not loaded");
+      }
+    }), delivered::set);
+    dispatcher.close();
+
+    assertEquals(2, attempts.get());
+    assertTrue(delivered.get());
+  }
+
+  @Test
+  void testQueuesHaveMetersOfTheirOwn() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    MagicLinkEmailDispatcher invitations = new MagicLinkEmailDispatcher(MagicLinkEmailDispatcher.QUEUE_INVITATIONS,
+        1, 10, 1, 0);
+    try {
+      dispatcher = new MagicLinkEmailDispatcher(1, 10, 1, 0);
+
+      assertNotNull(registry.get(MagicLinkEmailDispatcher.QUEUE_DEPTH_METRIC)
+          .tag(MagicLinkEmailDispatcher.TAG_QUEUE, MagicLinkEmailDispatcher.QUEUE_LOGIN).gauge());
+      assertNotNull(registry.get(MagicLinkEmailDispatcher.QUEUE_DEPTH_METRIC)
+          .tag(MagicLinkEmailDispatcher.TAG_QUEUE, MagicLinkEmailDispatcher.QUEUE_INVITATIONS).gauge());
+      assertEquals(2, registry.get(MagicLinkEmailDispatcher.UNDELIVERED_METRIC).counters().size());
+    } finally {
+      invitations.close();
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  void testDispatchReturnsFalseWhenQueueIsFull() throws Exception {
+    dispatcher = new MagicLinkEmailDispatcher(1, 1, 1, 0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    // Occupy the only worker, then fill the single queue slot
+    assertTrue(dispatcher.dispatch("blocking", () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertTrue(dispatcher.dispatch("queued", () -> {
+    }));
+    assertEquals(1, dispatcher.getQueueDepth());
+
+    assertFalse(dispatcher.dispatch("rejected", () -> {
+    }), "Dispatch should report back-pressure when the queue is full");
+
+    release.countDown();
+  }
+
+  @Test
+  void testDispatchReturnsFalseAfterClose() {
+    dispatcher = new MagicLinkEmailDispatcher(1, 10, 1, 0);
+    dispatcher.close();
+
+    assertFalse(dispatcher.dispatch("late", () -> {
+    }));
+  }
+}
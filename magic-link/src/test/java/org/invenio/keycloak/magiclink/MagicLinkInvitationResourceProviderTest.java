@@ -0,0 +1,74 @@
+package org.invenio.keycloak.magiclink;
+
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.NotAuthorizedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class MagicLinkInvitationResourceProviderTest {
+
+  private RealmModel realm;
+  private RoleModel manageUsers;
+  private RoleModel viewUsers;
+  private UserModel user;
+
+  @BeforeEach
+  void setUp() {
+    manageUsers = mock(RoleModel.class);
+    viewUsers = mock(RoleModel.class);
+    ClientModel realmManagement = mock(ClientModel.class);
+    when(realmManagement.getRole(AdminRoles.MANAGE_USERS)).thenReturn(manageUsers);
+    when(realmManagement.getRole(AdminRoles.VIEW_USERS)).thenReturn(viewUsers);
+    realm = mock(RealmModel.class);
+    when(realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID)).thenReturn(realmManagement);
+    user = mock(UserModel.class);
+  }
+
+  @Test
+  void testUnauthenticatedCallerIsRejected() {
+    assertThrows(NotAuthorizedException.class,
+        () -> MagicLinkInvitationResourceProvider.checkRole(realm, null, AdminRoles.MANAGE_USERS));
+  }
+
+  @Test
+  void testCallerWithoutRoleIsForbidden() {
+    assertThrows(ForbiddenException.class,
+        () -> MagicLinkInvitationResourceProvider.checkRole(realm, user, AdminRoles.MANAGE_USERS));
+  }
+
+  @Test
+  void testManageUsersMaySubmit() {
+    when(user.hasRole(manageUsers)).thenReturn(true);
+
+    assertSame(user, MagicLinkInvitationResourceProvider.checkRole(realm, user, AdminRoles.MANAGE_USERS));
+  }
+
+  @Test
+  void testViewUsersMayReadStatusOnly() {
+    when(user.hasRole(viewUsers)).thenReturn(true);
+
+    assertSame(user, MagicLinkInvitationResourceProvider.checkRole(realm, user, AdminRoles.VIEW_USERS,
+        AdminRoles.MANAGE_USERS));
+    assertThrows(ForbiddenException.class,
+        () -> MagicLinkInvitationResourceProvider.checkRole(realm, user, AdminRoles.MANAGE_USERS));
+  }
+
+  @Test
+  void testRealmWithoutRealmManagementClientIsForbidden() {
+    when(realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID)).thenReturn(null);
+    when(user.hasRole(any())).thenReturn(true);
+
+    assertThrows(ForbiddenException.class,
+        () -> MagicLinkInvitationResourceProvider.checkRole(realm, user, AdminRoles.MANAGE_USERS));
+  }
+}
@@ -0,0 +1,340 @@
+package org.invenio.keycloak.magiclink;
+
+import org.frontmatter.keycloak.username.allocator.UsernameAllocatorProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Token;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.TokenManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.tracing.TracingProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class MagicLinkInvitationsTest {
+
+  private static final MagicLinkInvitations.Request REQUEST = new MagicLinkInvitations.Request(
+      "realm-id", "web", null, true, 3600, URI.create("https://auth.example.com/"));
+
+  private final MagicLinkInvitations invitations = new MagicLinkInvitations(1, 10, 3, () -> null, () -> null);
+
+  private KeycloakSessionFactory sessionFactory;
+  private RealmProvider realms;
+  private RealmModel realm;
+  private UserProvider users;
+  private EmailTemplateProvider emailProvider;
+  private UsernameAllocatorProvider allocator;
+  private final List<Token> encoded = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    realm = mock(RealmModel.class);
+    when(realm.getId()).thenReturn("realm-id");
+    when(realm.getName()).thenReturn("invenio");
+    realms = mock(RealmProvider.class);
+    when(realms.getRealm("realm-id")).thenReturn(realm);
+    users = mock(UserProvider.class);
+    emailProvider = mock(EmailTemplateProvider.class);
+    allocator = mock(UsernameAllocatorProvider.class);
+    when(allocator.allocate(realm)).thenReturn("usr_a3k9m2p7");
+    TokenManager tokens = mock(TokenManager.class);
+    when(tokens.encode(any())).thenAnswer(inv -> {
+      synchronized (encoded) {
+        encoded.add(inv.getArgument(0));
+      }
+      return "signed-token";
+    });
+
+    sessionFactory = mock(KeycloakSessionFactory.class);
+    when(sessionFactory.create()).thenAnswer(inv -> {
+      KeycloakSession session = mock(KeycloakSession.class);
+      when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+      when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+      when(session.getContext()).thenReturn(mock(KeycloakContext.class));
+      when(session.realms()).thenReturn(realms);
+      when(session.users()).thenReturn(users);
+      when(session.tokens()).thenReturn(tokens);
+      when(session.getProvider(EmailTemplateProvider.class)).thenReturn(emailProvider);
+      when(session.getProvider(UsernameAllocatorProvider.class)).thenReturn(allocator);
+      // EventBuilder reads the current span
+      when(session.getProvider(TracingProvider.class)).thenReturn(mock(TracingProvider.class, RETURNS_DEEP_STUBS));
+      return session;
+    });
+  }
+
+  @AfterEach
+  void tearDown() {
+    invitations.close();
+  }
+
+  @Test
+  void testCsvEmail() {
+    assertEquals("jane@example.com", MagicLinkInvitations.csvEmail(" Jane@Example.com "));
+    assertEquals("jane@example.com", MagicLinkInvitations.csvEmail("\"jane@example.com\",Jane,Doe"));
+    assertNull(MagicLinkInvitations.csvEmail("email,first,last"));
+    assertNull(MagicLinkInvitations.csvEmail("jane.example.com"));
+  }
+
+  @Test
+  void testNdjsonEmail() {
+    assertEquals("jane@example.com", MagicLinkInvitations.ndjsonEmail("{\"email\": \"Jane@example.com\", \"name\": \"Jane\"}"));
+    assertNull(MagicLinkInvitations.ndjsonEmail("{\"mail\": \"jane@example.com\"}"));
+    assertNull(MagicLinkInvitations.ndjsonEmail("jane@example.com"));
+  }
+
+  @Test
+  void testSpoolSkipsHeaderAndCountsInvalidLines() throws IOException {
+    MagicLinkInvitations.Spool spool = invitations.spool(body("email,name\njane@example.com,Jane\n\nnot-an-email\nJOHN@example.org\n"),
+        false);
+
+    assertEquals(2, spool.accepted());
+    assertEquals(1, spool.invalid());
+    assertEquals(List.of("jane@example.com", "john@example.org"), Files.readAllLines(spool.file()));
+    Files.delete(spool.file());
+  }
+
+  @Test
+  void testSpoolKeepsRepeatedAddressesOnce() throws IOException {
+    MagicLinkInvitations.Spool spool = invitations.spool(body("jane@example.com\nJane@Example.com\njohn@example.org\n"),
+        false);
+
+    assertEquals(2, spool.accepted());
+    assertEquals(1, spool.duplicates());
+    assertEquals(List.of("jane@example.com", "john@example.org"), Files.readAllLines(spool.file()));
+    Files.delete(spool.file());
+  }
+
+  @Test
+  void testSpoolRejectsTooManyRecipients() throws IOException {
+    MagicLinkInvitations.Spool spool = invitations.spool(
+        body("{\"email\":\"a@example.com\"}\n{\"email\":\"b@example.com\"}\n{\"email\":\"c@example.com\"}\n{\"email\":\"d@example.com\"}\n"),
+        true);
+
+    assertNull(spool.file());
+  }
+
+  @Test
+  void testUnknownJob() {
+    assertNull(invitations.get("realm-1", "no-such-job"));
+  }
+
+  @Test
+  void testJobCountsInvitedCreatedAndSkipped() throws Exception {
+    UserModel existing = user("existing-id", true);
+    UserModel disabled = user("disabled-id", false);
+    UserModel created = user("created-id", true);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(existing);
+    when(users.getUserByEmail(realm, "off@example.com")).thenReturn(disabled);
+    when(users.addUser(realm, null, "usr_a3k9m2p7", true, false)).thenReturn(created);
+    when(users.getUserById(eq(realm), anyString())).thenAnswer(inv -> switch (inv.<String>getArgument(1)) {
+      case "existing-id" -> existing;
+      case "created-id" -> created;
+      default -> null;
+    });
+
+    MagicLinkInvitations.Job job = finished(invitations.submit(sessionFactory, REQUEST,
+        invitations.spool(body("jane@example.com\noff@example.com\nnew@example.com\n"), false)));
+
+    assertEquals(MagicLinkInvitations.Job.State.COMPLETED, job.getState());
+    assertEquals(2, job.getInvited());
+    assertEquals(1, job.getCreated());
+    assertEquals(1, job.getSkipped());
+    assertEquals(0, job.getFailed());
+    assertEquals(3, job.getProcessed());
+    verify(created).setEmail("new@example.com");
+    verify(allocator).assigned(realm, "usr_a3k9m2p7");
+    verify(emailProvider, times(2)).send(eq("magicLinkSubject"), anyList(), eq("magic-link.ftl"), anyMap());
+  }
+
+  @Test
+  void testUnknownAddressesAreSkippedWithoutUserCreation() throws Exception {
+    MagicLinkInvitations.Request request = new MagicLinkInvitations.Request(
+        "realm-id", "web", null, false, 3600, URI.create("https://auth.example.com/"));
+
+    MagicLinkInvitations.Job job = finished(invitations.submit(sessionFactory, request,
+        invitations.spool(body("new@example.com\n"), false)));
+
+    assertEquals(1, job.getSkipped());
+    assertEquals(0, job.getCreated());
+    verify(users, never()).addUser(any(), any(), anyString(), anyBoolean(), anyBoolean());
+    verifyNoInteractions(emailProvider);
+  }
+
+  @Test
+  void testInvitationTokenCarriesTheAuthenticatorClaims() throws Exception {
+    UserModel existing = user("existing-id", true);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(existing);
+
+    finished(invitations.submit(sessionFactory, REQUEST, invitations.spool(body("jane@example.com\n"), false)));
+
+    MagicLinkActionToken token = (MagicLinkActionToken) encoded.get(0);
+    String issuer = "https://auth.example.com/realms/invenio";
+    assertEquals(issuer, token.getIssuer());
+    assertArrayEquals(new String[] { issuer }, token.getAudience());
+    assertNotNull(token.getIat());
+    assertEquals(token.getActionVerificationNonce().toString(), token.getId());
+    assertEquals("existing-id", token.getUserId());
+    assertEquals("web", token.getIssuedFor());
+  }
+
+  @Test
+  void testFailedBatchFailsAllItsAddresses() throws Exception {
+    when(realms.getRealm("realm-id")).thenReturn(null);
+
+    MagicLinkInvitations.Job job = finished(invitations.submit(sessionFactory, REQUEST,
+        invitations.spool(body("a@example.com\nb@example.com\n"), false)));
+
+    assertEquals(MagicLinkInvitations.Job.State.COMPLETED, job.getState());
+    assertEquals(2, job.getFailed());
+    assertEquals(2, job.getProcessed());
+    assertEquals(0, job.getInvited());
+  }
+
+  @Test
+  void testFailingAddressFailsOnlyItself() throws Exception {
+    UserModel existing = user("existing-id", true);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(existing);
+    when(users.getUserByEmail(realm, "bad@example.com")).thenThrow(new IllegalStateException("Constraint violation"));
+    when(users.getUserById(realm, "existing-id")).thenReturn(existing);
+
+    MagicLinkInvitations.Job job = finished(invitations.submit(sessionFactory, REQUEST,
+        invitations.spool(body("bad@example.com\njane@example.com\n"), false)));
+
+    assertEquals(1, job.getFailed());
+    assertEquals(1, job.getInvited());
+    assertEquals(2, job.getProcessed());
+  }
+
+  @Test
+  void testQueuedEmailsAreCountedOnceSentOrGivenUp() throws Exception {
+    UserModel jane = user("jane-id", true);
+    UserModel john = user("john-id", true);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(jane);
+    when(users.getUserByEmail(realm, "john@example.com")).thenReturn(john);
+    when(users.getUserById(realm, "jane-id")).thenReturn(jane);
+    when(users.getUserById(realm, "john-id")).thenReturn(john);
+    // A single dispatch worker sends one email at a time, to the last user set
+    AtomicReference<UserModel> recipient = new AtomicReference<>();
+    when(emailProvider.setUser(any())).thenAnswer(inv -> {
+      recipient.set(inv.getArgument(0));
+      return emailProvider;
+    });
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(inv -> {
+      release.await(5, TimeUnit.SECONDS);
+      if (recipient.get().getId().equals("john-id")) {
+        throw new EmailException("SMTP unavailable");
+      }
+      return null;
+    }).when(emailProvider).send(anyString(), anyList(), anyString(), anyMap());
+    MagicLinkEmailDispatcher dispatcher = new MagicLinkEmailDispatcher(MagicLinkEmailDispatcher.QUEUE_INVITATIONS,
+        1, 10, 1, 0);
+    MagicLinkInvitations queued = new MagicLinkInvitations(1, 10, 3, () -> dispatcher, () -> null);
+    try {
+      MagicLinkInvitations.Job job = finished(queued.submit(sessionFactory, REQUEST,
+          queued.spool(body("jane@example.com\njohn@example.com\n"), false)));
+
+      assertEquals(MagicLinkInvitations.Job.State.COMPLETED, job.getState());
+      assertEquals(2, job.getQueued(), "Emails are not counted while queued");
+      assertEquals(0, job.getInvited());
+      release.countDown();
+      dispatcher.close();
+
+      assertEquals(0, job.getQueued());
+      assertEquals(1, job.getInvited());
+      assertEquals(1, job.getFailed());
+    } finally {
+      release.countDown();
+      queued.close();
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  void testSubmitRejectsJobsBeyondMaxRunning() throws Exception {
+    CountDownLatch release = blockSessions();
+    try {
+      for (int i = 0; i < MagicLinkInvitations.MAX_RUNNING_JOBS; i++) {
+        assertNotNull(invitations.submit(sessionFactory, REQUEST, invitations.spool(body("a@example.com\n"), false)));
+      }
+      MagicLinkInvitations.Spool spool = invitations.spool(body("a@example.com\n"), false);
+
+      assertNull(invitations.submit(sessionFactory, REQUEST, spool));
+      assertFalse(Files.exists(spool.file()), "The rejected job's spool file is deleted");
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void testCloseMarksRunningJobsFailed() throws Exception {
+    CountDownLatch release = blockSessions();
+    MagicLinkInvitations.Job job = invitations.submit(sessionFactory, REQUEST,
+        invitations.spool(body("a@example.com\n"), false));
+
+    // close() waits for the blocked batch, so it runs on its own thread
+    Thread closing = Thread.ofVirtual().start(invitations::close);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (job.getState() == MagicLinkInvitations.Job.State.RUNNING && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    closing.join();
+
+    assertEquals(MagicLinkInvitations.Job.State.FAILED, job.getState());
+  }
+
+  private CountDownLatch blockSessions() {
+    CountDownLatch release = new CountDownLatch(1);
+    when(sessionFactory.create()).thenAnswer(inv -> {
+      release.await(5, TimeUnit.SECONDS);
+      throw new IllegalStateException("Session factory closed");
+    });
+    return release;
+  }
+
+  private static MagicLinkInvitations.Job finished(MagicLinkInvitations.Job job) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (job.getState() == MagicLinkInvitations.Job.State.RUNNING && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return job;
+  }
+
+  private static UserModel user(String id, boolean enabled) {
+    UserModel user = mock(UserModel.class);
+    when(user.getId()).thenReturn(id);
+    when(user.isEnabled()).thenReturn(enabled);
+    return user;
+  }
+
+  private static ByteArrayInputStream body(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
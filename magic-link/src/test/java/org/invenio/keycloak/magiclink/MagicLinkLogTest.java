@@ -0,0 +1,79 @@
+package org.invenio.keycloak.magiclink;
+
+import org.jboss.logging.Logger;
+import org.jboss.logging.MDC;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MagicLinkLogTest {
+
+  @AfterEach
+  void tearDown() {
+    MDC.clear();
+  }
+
+  @Test
+  void testFlowLevel() {
+    Logger info = mock(Logger.class);
+    when(info.isInfoEnabled()).thenReturn(true);
+    Logger debug = mock(Logger.class);
+    when(debug.isDebugEnabled()).thenReturn(true);
+    Logger off = mock(Logger.class);
+
+    assertEquals(Logger.Level.INFO, new MagicLinkLog(1).flowLevel(info));
+    assertEquals(Logger.Level.DEBUG, new MagicLinkLog(1).flowLevel(debug));
+    assertNull(new MagicLinkLog(1).flowLevel(off));
+    assertNull(new MagicLinkLog(0).flowLevel(info));
+  }
+
+  @Test
+  void testFlowMarkersAreSampled() {
+    Logger info = mock(Logger.class);
+    when(info.isInfoEnabled()).thenReturn(true);
+    MagicLinkLog log = new MagicLinkLog(10);
+
+    int sampled = 0;
+    for (int i = 0; i < 10_000; i++) {
+      if (log.flowLevel(info) == Logger.Level.INFO) {
+        sampled++;
+      }
+    }
+    assertTrue(sampled > 500 && sampled < 1500, "About one in ten, was " + sampled);
+  }
+
+  @Test
+  void testContextRestoresMdc() {
+    Logger logger = mock(Logger.class);
+    when(logger.isInfoEnabled()).thenReturn(true);
+    RootAuthenticationSessionModel root = mock(RootAuthenticationSessionModel.class);
+    when(root.getId()).thenReturn("root-id");
+    AuthenticationSessionModel authSession = mock(AuthenticationSessionModel.class);
+    when(authSession.getParentSession()).thenReturn(root);
+    when(authSession.getTabId()).thenReturn("tab-id");
+    MDC.put(MagicLinkLog.MDC_REALM, "outer");
+
+    try (MagicLinkLog.Context ignored = MagicLinkLog.context(logger, "invenio", "web", authSession)) {
+      assertEquals("invenio", MDC.get(MagicLinkLog.MDC_REALM));
+      assertEquals("web", MDC.get(MagicLinkLog.MDC_CLIENT));
+      assertEquals("root-id.tab-id", MDC.get(MagicLinkLog.MDC_AUTH_SESSION));
+    }
+
+    assertEquals("outer", MDC.get(MagicLinkLog.MDC_REALM));
+    assertNull(MDC.get(MagicLinkLog.MDC_CLIENT));
+    assertNull(MDC.get(MagicLinkLog.MDC_AUTH_SESSION));
+  }
+
+  @Test
+  void testContextIsSkippedWithInfoDisabled() {
+    Logger off = mock(Logger.class);
+
+    try (MagicLinkLog.Context ignored = MagicLinkLog.context(off, "invenio", "web", null)) {
+      assertNull(MDC.get(MagicLinkLog.MDC_REALM));
+    }
+  }
+}
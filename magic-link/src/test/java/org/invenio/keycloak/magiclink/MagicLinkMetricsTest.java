@@ -0,0 +1,132 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MagicLinkMetricsTest {
+
+  private SimpleMeterRegistry registry;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.removeRegistry(registry);
+    registry.close();
+  }
+
+  @Test
+  void testCountersAreTaggedByRealmAndClient() {
+    MagicLinkMetrics.linkRequested("invenio", "web");
+    MagicLinkMetrics.linkRequested("invenio", "web");
+    MagicLinkMetrics.domainRejected("invenio", "web");
+    MagicLinkMetrics.userCreated("invenio", "cli");
+
+    assertEquals(2.0, registry.get(MagicLinkMetrics.LINK_REQUESTS)
+        .tags("realm", "invenio", "client", "web").counter().count());
+    assertEquals(1.0, registry.get(MagicLinkMetrics.DOMAIN_REJECTIONS)
+        .tags("realm", "invenio", "client", "web").counter().count());
+    assertEquals(1.0, registry.get(MagicLinkMetrics.USERS_CREATED)
+        .tags("realm", "invenio", "client", "cli").counter().count());
+  }
+
+  @Test
+  void testMissingTagValuesAreReportedAsUnknown() {
+    MagicLinkMetrics.linkRequested(null, null);
+
+    assertEquals(1.0, registry.get(MagicLinkMetrics.LINK_REQUESTS)
+        .tags("realm", "unknown", "client", "unknown").counter().count());
+  }
+
+  @Test
+  void testEmailSendIsSplitByOutcome() {
+    Timer.Sample ok = MagicLinkMetrics.startEmailSend();
+    MagicLinkMetrics.emailSent(ok, "invenio", "web", MagicLinkMetrics.EMAIL_MAGIC_LINK,
+        MagicLinkMetrics.OUTCOME_SUCCESS);
+    Timer.Sample failed = MagicLinkMetrics.startEmailSend();
+    MagicLinkMetrics.emailSent(failed, "invenio", "web", MagicLinkMetrics.EMAIL_MAGIC_LINK,
+        MagicLinkMetrics.OUTCOME_EMAIL_EXCEPTION);
+
+    assertEquals(1, registry.get(MagicLinkMetrics.EMAIL_SEND)
+        .tags("email", "magic-link", "outcome", "success").timer().count());
+    assertEquals(1, registry.get(MagicLinkMetrics.EMAIL_SEND)
+        .tags("email", "magic-link", "outcome", "email_exception").timer().count());
+  }
+
+  @Test
+  void testRateLimitedRequestsAreTaggedByLimit() {
+    MagicLinkMetrics.rateLimited("invenio", "web", MagicLinkMetrics.LIMIT_EMAIL);
+    MagicLinkMetrics.rateLimited("invenio", "web", MagicLinkMetrics.LIMIT_IP);
+    MagicLinkMetrics.rateLimited("invenio", "web", MagicLinkMetrics.LIMIT_IP);
+
+    assertEquals(1.0, registry.get(MagicLinkMetrics.RATE_LIMITED)
+        .tags("limit", "email").counter().count());
+    assertEquals(2.0, registry.get(MagicLinkMetrics.RATE_LIMITED)
+        .tags("limit", "ip").counter().count());
+  }
+
+  @Test
+  void testDuplicateRequestsAreTaggedByAction() {
+    MagicLinkMetrics.duplicateRequest("invenio", "web", MagicLinkMetrics.DUPLICATE_SKIPPED);
+
+    assertEquals(1.0, registry.get(MagicLinkMetrics.DUPLICATE_REQUESTS)
+        .tags("action", "skipped").counter().count());
+  }
+
+  @Test
+  void testUnknownEmailLookupsAreTaggedByResult() {
+    MagicLinkMetrics.unknownEmailLookup("invenio", "web", MagicLinkMetrics.LOOKUP_MISS);
+    MagicLinkMetrics.unknownEmailLookup("invenio", "web", MagicLinkMetrics.LOOKUP_HIT);
+    MagicLinkMetrics.unknownEmailLookup("invenio", "web", MagicLinkMetrics.LOOKUP_HIT);
+
+    assertEquals(2.0, registry.get(MagicLinkMetrics.UNKNOWN_EMAIL_LOOKUPS)
+        .tags("result", "hit").counter().count());
+    assertEquals(1.0, registry.get(MagicLinkMetrics.UNKNOWN_EMAIL_LOOKUPS)
+        .tags("result", "miss").counter().count());
+  }
+
+  @Test
+  void testTokenCheckFailuresAreCountedPerPredicate() {
+    MagicLinkMetrics.tokenCheckFailed("invenio", "web", 0);
+    MagicLinkMetrics.tokenCheckFailed("invenio", "web", 2);
+    MagicLinkMetrics.tokenCheckFailed("invenio", "web", 2);
+
+    assertEquals(1.0, registry.get(MagicLinkMetrics.TOKEN_VERIFICATION_FAILURES)
+        .tags("check", "basic-0").counter().count());
+    assertEquals(2.0, registry.get(MagicLinkMetrics.TOKEN_VERIFICATION_FAILURES)
+        .tags("check", "basic-2").counter().count());
+  }
+
+  @Test
+  void testClickToSessionIsMeasuredFromIssuedAt() {
+    MagicLinkMetrics.clickToSession("invenio", "web", 1_000L, 1_045_000L);
+    MagicLinkMetrics.clickToSession("invenio", "web", null, 1_045_000L);
+
+    Timer timer = registry.get(MagicLinkMetrics.CLICK_TO_SESSION)
+        .tags("realm", "invenio", "client", "web").timer();
+    assertEquals(1, timer.count());
+    assertEquals(45.0, timer.totalTime(TimeUnit.SECONDS), 0.001);
+  }
+
+  @Test
+  void testRedemptionUserWritesAreCounted() {
+    MagicLinkMetrics.redemptionUserWrites("invenio", "web", 1);
+    MagicLinkMetrics.redemptionUserWrites("invenio", "web", 0);
+    MagicLinkMetrics.redemptionUserWrites("invenio", "web", 2);
+
+    assertEquals(3.0, registry.get(MagicLinkMetrics.REDEMPTION_USER_WRITES)
+        .tags("realm", "invenio", "client", "web").counter().count());
+  }
+}
@@ -0,0 +1,101 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class MagicLinkRateLimiterTest {
+
+  private static final long WINDOW_SECONDS = 60;
+
+  private final Map<String, Map<String, String>> entries = new HashMap<>();
+  private final AtomicLong now = new AtomicLong(WINDOW_SECONDS * 1000L * 100);
+  private KeycloakSession session;
+  private MagicLinkRateLimiter limiter;
+
+  @BeforeEach
+  void setUp() {
+    SingleUseObjectProvider store = mock(SingleUseObjectProvider.class);
+    when(store.get(anyString())).thenAnswer(inv -> entries.get(inv.<String>getArgument(0)));
+    doAnswer(inv -> entries.put(inv.getArgument(0), inv.getArgument(2)))
+        .when(store).put(anyString(), anyLong(), anyMap());
+    session = mock(KeycloakSession.class);
+    when(session.singleUseObjects()).thenReturn(store);
+    limiter = new MagicLinkRateLimiter(now::get);
+  }
+
+  @Test
+  void testAllowsUpToTheLimitPerWindow() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(acquire("user@example.com"), "Request " + i + " should be allowed");
+    }
+    assertFalse(acquire("user@example.com"));
+    assertTrue(acquire("other@example.com"), "Other values have their own counter");
+  }
+
+  @Test
+  void testPreviousWindowIsWeightedByItsOverlap() {
+    for (int i = 0; i < 3; i++) {
+      acquire("user@example.com");
+    }
+
+    // A quarter into the next window 3 * 0.75 = 2.25 requests still count
+    now.addAndGet(WINDOW_SECONDS * 1000L * 5 / 4);
+    assertTrue(acquire("user@example.com"));
+    assertFalse(acquire("user@example.com"));
+
+    // Three quarters in only 0.75 do
+    now.addAndGet(WINDOW_SECONDS * 1000L / 2);
+    assertTrue(acquire("user@example.com"));
+    assertTrue(acquire("user@example.com"));
+    assertFalse(acquire("user@example.com"));
+
+    // Two windows later the old requests no longer count
+    now.addAndGet(WINDOW_SECONDS * 1000L * 2);
+    assertTrue(acquire("user@example.com"));
+  }
+
+  @Test
+  void testKeysDoNotContainTheValue() {
+    acquire("user@example.com");
+
+    assertEquals(1, entries.size());
+    String key = entries.keySet().iterator().next();
+    assertTrue(key.startsWith(MagicLinkRateLimiter.KEY_PREFIX + "realm-id:email:"));
+    assertFalse(key.contains("user@example.com"));
+    assertEquals(16, MagicLinkRateLimiter.hash("user@example.com").length());
+  }
+
+  @Test
+  void testDisabledLimitIsNotCounted() {
+    assertTrue(limiter.tryAcquire(session, "realm-id", "email", "user@example.com", 0, WINDOW_SECONDS));
+    assertTrue(limiter.tryAcquire(session, "realm-id", "ip", null, 3, WINDOW_SECONDS));
+    assertTrue(entries.isEmpty());
+  }
+
+  @Test
+  void testFailsOpenWithoutStore() {
+    KeycloakSession noStore = mock(KeycloakSession.class);
+    assertTrue(limiter.tryAcquire(noStore, "realm-id", "email", "user@example.com", 1, WINDOW_SECONDS));
+
+    SingleUseObjectProvider failing = mock(SingleUseObjectProvider.class);
+    when(failing.get(anyString())).thenThrow(new IllegalStateException("cache unavailable"));
+    when(noStore.singleUseObjects()).thenReturn(failing);
+    assertTrue(limiter.tryAcquire(noStore, "realm-id", "email", "user@example.com", 1, WINDOW_SECONDS));
+  }
+
+  private boolean acquire(String email) {
+    return limiter.tryAcquire(session, "realm-id", "email", email, 3, WINDOW_SECONDS);
+  }
+}
@@ -0,0 +1,85 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MagicLinkTokenLedgerTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private SimpleMeterRegistry registry;
+  private MagicLinkTokenLedger ledger;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (ledger != null) {
+      ledger.close();
+    }
+    Metrics.removeRegistry(registry);
+    registry.close();
+  }
+
+  @Test
+  void testRedeemedTokenIsRejectedUntilExpiry() {
+    ledger = new MagicLinkTokenLedger(10, now::get);
+
+    assertFalse(ledger.isRedeemed("nonce-1"));
+    ledger.redeemed("nonce-1", now.get() + 900_000L);
+    assertTrue(ledger.isRedeemed("nonce-1"));
+    assertFalse(ledger.isRedeemed("nonce-2"));
+
+    now.addAndGet(900_000L);
+    assertFalse(ledger.isRedeemed("nonce-1"));
+  }
+
+  @Test
+  void testOldestEntriesAreEvictedWhenFull() {
+    ledger = new MagicLinkTokenLedger(3, now::get);
+
+    for (int i = 0; i < 5; i++) {
+      ledger.redeemed("nonce-" + i, now.get() + 900_000L);
+    }
+
+    assertEquals(3, ledger.size());
+    assertFalse(ledger.isRedeemed("nonce-0"));
+    assertFalse(ledger.isRedeemed("nonce-1"));
+    assertTrue(ledger.isRedeemed("nonce-4"));
+    assertEquals(2.0, registry.get(MagicLinkTokenLedger.EVICTIONS_METRIC).counter().count());
+    assertEquals(3.0, registry.get(MagicLinkTokenLedger.ENTRIES_METRIC).gauge().value());
+  }
+
+  @Test
+  void testExpiredEntriesAreDroppedWithoutCountingEvictions() {
+    ledger = new MagicLinkTokenLedger(3, now::get);
+    ledger.redeemed("short-lived", now.get() + 1_000L);
+    ledger.redeemed("long-lived", now.get() + 900_000L);
+
+    now.addAndGet(1_000L);
+    ledger.redeemed("next", now.get() + 900_000L);
+
+    assertEquals(2, ledger.size());
+    assertEquals(0.0, registry.get(MagicLinkTokenLedger.EVICTIONS_METRIC).counter().count());
+  }
+
+  @Test
+  void testZeroCapacityRemembersNothing() {
+    ledger = new MagicLinkTokenLedger(0, now::get);
+
+    ledger.redeemed("nonce-1", now.get() + 900_000L);
+
+    assertFalse(ledger.isRedeemed("nonce-1"));
+    assertEquals(0, ledger.size());
+  }
+}
@@ -0,0 +1,88 @@
+package org.invenio.keycloak.magiclink;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.TokenVerifier.Predicate;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.Time;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MagicLinkTokenVerifiersTest {
+
+  private SimpleMeterRegistry registry;
+  private MagicLinkActionToken token;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    token = new MagicLinkActionToken("user-1", Time.currentTime() + 900, "web", "https://example.com/callback",
+        false, null, null);
+    token.issuer("https://keycloak.example.com/realms/invenio");
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.removeRegistry(registry);
+    registry.close();
+  }
+
+  @Test
+  void testPipelineWithoutLedgerIsShared() {
+    assertSame(MagicLinkTokenVerifiers.pipeline(null), MagicLinkTokenVerifiers.pipeline(null));
+  }
+
+  @Test
+  void testFailedChecksAreCountedPerIndex() throws VerificationException {
+    Predicate<MagicLinkActionToken> passes = t -> true;
+    Predicate<MagicLinkActionToken> fails = t -> false;
+    Predicate<MagicLinkActionToken> throwing = t -> {
+      throw new VerificationException("Nonce not present.");
+    };
+    @SuppressWarnings("unchecked")
+    Predicate<? super MagicLinkActionToken>[] checks = MagicLinkTokenVerifiers.checked(
+        new Predicate[] { passes, fails, throwing });
+
+    assertTrue(checks[0].test(token));
+    assertFalse(checks[1].test(token));
+    assertFalse(checks[2].test(token));
+
+    assertTrue(registry.find(MagicLinkMetrics.TOKEN_VERIFICATION_FAILURES).tags("check", "basic-0").counters()
+        .isEmpty());
+    assertEquals(1.0, registry.get(MagicLinkMetrics.TOKEN_VERIFICATION_FAILURES)
+        .tags("realm", "invenio", "client", "web", "check", "basic-1").counter().count());
+    assertEquals(1.0, registry.get(MagicLinkMetrics.TOKEN_VERIFICATION_FAILURES)
+        .tags("realm", "invenio", "client", "web", "check", "basic-2").counter().count());
+  }
+
+  @Test
+  void testReplayCheckRunsFirst() throws VerificationException {
+    MagicLinkTokenLedger ledger = new MagicLinkTokenLedger(10);
+    try {
+      token.setActionVerificationNonce(UUID.randomUUID());
+      Predicate<? super MagicLinkActionToken>[] checks = MagicLinkTokenVerifiers.pipeline(ledger);
+      assertEquals(MagicLinkTokenVerifiers.pipeline(null).length + 1, checks.length);
+
+      assertTrue(checks[0].test(token));
+      ledger.redeemed(MagicLinkTokenVerifiers.ledgerKey(token), token.getExp() * 1000L);
+      assertFalse(checks[0].test(token));
+      assertEquals(1.0, registry.get(MagicLinkMetrics.TOKEN_REPLAYS)
+          .tags("realm", "invenio", "client", "web").counter().count());
+    } finally {
+      ledger.close();
+    }
+  }
+
+  @Test
+  void testRealmNameFromIssuer() {
+    assertEquals("invenio", MagicLinkTokenVerifiers.realmName(token));
+    token.issuer(null);
+    assertNull(MagicLinkTokenVerifiers.realmName(token));
+  }
+}
@@ -0,0 +1,111 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class MagicLinkUserResolverTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserProvider users;
+  private UserModel user;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    users = mock(UserProvider.class);
+    user = mock(UserModel.class);
+    when(session.users()).thenReturn(users);
+    when(realm.getId()).thenReturn("realm-1");
+    when(realm.isLoginWithEmailAllowed()).thenReturn(true);
+    when(user.getId()).thenReturn("user-1");
+    when(user.getEmail()).thenReturn("jane@example.com");
+  }
+
+  @Test
+  void testUsernameOrEmailQueriesBothForUnknownAddress() {
+    MagicLinkUserResolver resolver = new MagicLinkUserResolver(0, 0, now::get);
+
+    assertNull(resolver.find(session, realm, "nobody@example.com", MagicLinkUserResolver.MODE_USERNAME_OR_EMAIL));
+
+    verify(users).getUserByEmail(realm, "nobody@example.com");
+    verify(users).getUserByUsername(realm, "nobody@example.com");
+  }
+
+  @Test
+  void testEmailModeQueriesOnlyByEmail() {
+    MagicLinkUserResolver resolver = new MagicLinkUserResolver(0, 0, now::get);
+    when(realm.isLoginWithEmailAllowed()).thenReturn(false);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(user);
+
+    assertSame(user, resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL));
+    assertNull(resolver.find(session, realm, "nobody@example.com", MagicLinkUserResolver.MODE_EMAIL));
+
+    verify(users, times(2)).getUserByEmail(any(), anyString());
+    verify(users, never()).getUserByUsername(any(), anyString());
+    assertEquals(0, resolver.size(), "Index is disabled");
+  }
+
+  @Test
+  void testEmailModeFallsBackForUsernames() {
+    MagicLinkUserResolver resolver = new MagicLinkUserResolver(0, 0, now::get);
+
+    resolver.find(session, realm, "jane", MagicLinkUserResolver.MODE_EMAIL);
+
+    verify(users).getUserByUsername(realm, "jane");
+  }
+
+  @Test
+  void testIndexLoadsKnownUsersById() {
+    MagicLinkUserResolver resolver = new MagicLinkUserResolver(60, 10, now::get);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(user);
+    when(users.getUserById(realm, "user-1")).thenReturn(user);
+
+    resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL);
+    assertSame(user, resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL));
+
+    verify(users, times(1)).getUserByEmail(any(), anyString());
+    verify(users).getUserById(realm, "user-1");
+
+    now.addAndGet(60_000L);
+    resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL);
+    verify(users, times(2)).getUserByEmail(any(), anyString());
+  }
+
+  @Test
+  void testIndexIgnoresChangedEmail() {
+    MagicLinkUserResolver resolver = new MagicLinkUserResolver(60, 10, now::get);
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(user);
+    when(users.getUserById(realm, "user-1")).thenReturn(user);
+    resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL);
+
+    when(user.getEmail()).thenReturn("jane.doe@example.com");
+    when(users.getUserByEmail(realm, "jane@example.com")).thenReturn(null);
+
+    assertNull(resolver.find(session, realm, "jane@example.com", MagicLinkUserResolver.MODE_EMAIL));
+    assertEquals(0, resolver.size());
+  }
+
+  @Test
+  void testIsEmail() {
+    assertTrue(MagicLinkUserResolver.isEmail("jane@example.com"));
+    assertFalse(MagicLinkUserResolver.isEmail("jane"));
+    assertFalse(MagicLinkUserResolver.isEmail("@example.com"));
+    assertFalse(MagicLinkUserResolver.isEmail("jane@"));
+    assertFalse(MagicLinkUserResolver.isEmail("jane@doe@example.com"));
+  }
+}
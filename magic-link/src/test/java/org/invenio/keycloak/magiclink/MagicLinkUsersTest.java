@@ -0,0 +1,98 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RequiredActionProviderModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class MagicLinkUsersTest {
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserModel user;
+  private UserProvider users;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    user = mock(UserModel.class);
+    users = mock(UserProvider.class);
+    when(session.users()).thenReturn(users);
+    when(realm.getStorageProviders(UserStorageProvider.class)).thenReturn(Stream.empty());
+    when(users.addUser(realm, null, "usr_a3k9m2p7", true, false)).thenReturn(user);
+  }
+
+  @Test
+  void testCreatesCompleteUser() {
+    assertSame(user, MagicLinkUsers.create(session, realm, "usr_a3k9m2p7", "jane@example.com", null));
+
+    verify(user).setEnabled(true);
+    verify(user).setEmail("jane@example.com");
+    verify(user).setEmailVerified(true);
+    verify(user, never()).addRequiredAction(anyString());
+    verify(user, never()).removeRequiredAction(anyString());
+    verify(user, never()).joinGroup(any());
+  }
+
+  @Test
+  void testKeepsDefaultRequiredActionsOtherThanProfile() {
+    when(realm.getRequiredActionProvidersStream()).thenReturn(Stream.of(
+        action("VERIFY_EMAIL", true, true),
+        action("UPDATE_PROFILE", true, true),
+        action("TERMS_AND_CONDITIONS", true, true),
+        action("CONFIGURE_TOTP", true, false),
+        action("UPDATE_PASSWORD", false, true)));
+
+    MagicLinkUsers.create(session, realm, "usr_a3k9m2p7", "jane@example.com", null);
+
+    verify(user).addRequiredAction("TERMS_AND_CONDITIONS");
+    verify(user, times(1)).addRequiredAction(anyString());
+  }
+
+  @Test
+  void testJoinsGroup() {
+    GroupModel group = mock(GroupModel.class);
+
+    MagicLinkUsers.create(session, realm, "usr_a3k9m2p7", "jane@example.com", group);
+
+    verify(user).joinGroup(group);
+  }
+
+  @Test
+  void testFederatedRealmAddsUserThroughStorageProviders() {
+    when(realm.getStorageProviders(UserStorageProvider.class)).thenReturn(Stream.of(new ComponentModel()));
+    when(users.addUser(realm, "usr_a3k9m2p7")).thenReturn(user);
+
+    assertSame(user, MagicLinkUsers.create(session, realm, "usr_a3k9m2p7", "jane@example.com", null));
+
+    verify(users, never()).addUser(realm, null, "usr_a3k9m2p7", true, false);
+    verify(user).removeRequiredAction("UPDATE_PROFILE");
+    verify(user).removeRequiredAction("VERIFY_EMAIL");
+    verify(user).removeRequiredAction("VERIFY_PROFILE");
+    verify(user, never()).addRequiredAction(anyString());
+    verify(user).setEmail("jane@example.com");
+    verify(user).setEmailVerified(true);
+  }
+
+  private static RequiredActionProviderModel action(String alias, boolean enabled, boolean defaultAction) {
+    RequiredActionProviderModel action = new RequiredActionProviderModel();
+    action.setAlias(alias);
+    action.setEnabled(enabled);
+    action.setDefaultAction(defaultAction);
+    return action;
+  }
+}
@@ -0,0 +1,75 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentMagicLinksTest {
+
+  private static final String KEY = RecentMagicLinks.key("realm", "user", "web", "https://app/cb", "tab", "state");
+  private static final String LATE = RecentMagicLinks.key("realm", "late", "web", null, "tab", null);
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private final RecentMagicLinks links = new RecentMagicLinks(now::get);
+
+  @Test
+  void testLinkIsReusedWithinWindow() {
+    links.put(KEY, "https://link/1", 60, now.get() + 900_000L);
+
+    assertEquals("https://link/1", links.get(KEY));
+    now.addAndGet(59_999L);
+    assertEquals("https://link/1", links.get(KEY));
+    now.addAndGet(1L);
+    assertNull(links.get(KEY));
+    assertEquals(0, links.size());
+  }
+
+  @Test
+  void testLinkIsNotReusedPastTokenExpiry() {
+    links.put(KEY, "https://link/1", 60, now.get() + 10_000L);
+
+    now.addAndGet(10_000L);
+    assertNull(links.get(KEY));
+  }
+
+  @Test
+  void testKeyIncludesUserClientAndRedirect() {
+    links.put(KEY, "https://link/1", 60, now.get() + 900_000L);
+
+    assertNull(links.get(RecentMagicLinks.key("realm", "user", "cli", "https://app/cb", "tab", "state")));
+    assertNull(links.get(RecentMagicLinks.key("realm", "user", "web", "https://other/cb", "tab", "state")));
+    assertNull(links.get(RecentMagicLinks.key("realm", "other", "web", "https://app/cb", "tab", "state")));
+  }
+
+  @Test
+  void testKeyIncludesTabAndState() {
+    links.put(KEY, "https://link/1", 60, now.get() + 900_000L);
+
+    assertNull(links.get(RecentMagicLinks.key("realm", "user", "web", "https://app/cb", "other-tab", "state")),
+        "Another browser tab gets its own link");
+    assertNull(links.get(RecentMagicLinks.key("realm", "user", "web", "https://app/cb", "tab", "other-state")),
+        "Another login attempt of the client gets its own link");
+  }
+
+  @Test
+  void testDisabledWindowStoresNothing() {
+    links.put(KEY, "https://link/1", 0, now.get() + 900_000L);
+
+    assertEquals(0, links.size());
+  }
+
+  @Test
+  void testOldestEntryIsEvictedWhenFull() {
+    for (int i = 0; i < RecentMagicLinks.MAX_ENTRIES; i++) {
+      links.put(RecentMagicLinks.key("realm", "user-" + i, "web", null, "tab", null), "https://link/" + i, 60,
+          now.get() + 900_000L);
+    }
+    links.put(LATE, "https://link/late", 60, now.get() + 900_000L);
+
+    assertEquals("https://link/late", links.get(LATE));
+    assertNull(links.get(RecentMagicLinks.key("realm", "user-0", "web", null, "tab", null)));
+    assertEquals(RecentMagicLinks.MAX_ENTRIES, links.size());
+  }
+}
@@ -0,0 +1,87 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UnknownEmailsEventListenerProviderTest {
+
+  private final UnknownEmails unknownEmails = new UnknownEmails(60, 10);
+  private UnknownEmailsEventListenerProvider listener;
+
+  @BeforeEach
+  void setUp() {
+    RealmModel realm = mock(RealmModel.class);
+    RealmProvider realms = mock(RealmProvider.class);
+    when(realms.getRealm("realm-1")).thenReturn(realm);
+    UserModel user = mock(UserModel.class);
+    when(user.getEmail()).thenReturn("new.user@example.com");
+    when(user.getUsername()).thenReturn("new-user");
+    UserProvider users = mock(UserProvider.class);
+    when(users.getUserById(realm, "user-1")).thenReturn(user);
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.realms()).thenReturn(realms);
+    when(session.users()).thenReturn(users);
+
+    listener = new UnknownEmailsEventListenerProvider(session, unknownEmails);
+    unknownEmails.unknown("realm-1", "new.user@example.com");
+    unknownEmails.unknown("realm-1", "other@example.com");
+  }
+
+  @Test
+  void testRegistrationForgetsEmail() {
+    Event event = new Event();
+    event.setType(EventType.REGISTER);
+    event.setRealmId("realm-1");
+    event.setUserId("user-1");
+
+    listener.onEvent(event);
+
+    assertFalse(unknownEmails.isUnknown("realm-1", "new.user@example.com"));
+    assertTrue(unknownEmails.isUnknown("realm-1", "other@example.com"));
+  }
+
+  @Test
+  void testAdminCreateForgetsEmail() {
+    AdminEvent event = new AdminEvent();
+    event.setRealmId("realm-1");
+    event.setResourceType(ResourceType.USER);
+    event.setOperationType(OperationType.CREATE);
+    event.setResourcePath("users/user-1");
+
+    listener.onEvent(event, false);
+
+    assertFalse(unknownEmails.isUnknown("realm-1", "new.user@example.com"));
+  }
+
+  @Test
+  void testOtherEventsAreIgnored() {
+    Event event = new Event();
+    event.setType(EventType.LOGIN);
+    event.setRealmId("realm-1");
+    event.setUserId("user-1");
+
+    listener.onEvent(event);
+
+    assertTrue(unknownEmails.isUnknown("realm-1", "new.user@example.com"));
+  }
+
+  @Test
+  void testUserIdFromPath() {
+    assertEquals("user-1", UnknownEmailsEventListenerProvider.userIdFromPath("users/user-1"));
+    assertNull(UnknownEmailsEventListenerProvider.userIdFromPath("users/user-1/role-mappings"));
+    assertNull(UnknownEmailsEventListenerProvider.userIdFromPath("groups/group-1"));
+  }
+}
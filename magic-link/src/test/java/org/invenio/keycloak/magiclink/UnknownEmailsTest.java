@@ -0,0 +1,64 @@
+package org.invenio.keycloak.magiclink;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnknownEmailsTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+
+  @Test
+  void testRemembersUntilTtl() {
+    UnknownEmails unknownEmails = new UnknownEmails(60, 10, now::get);
+
+    assertFalse(unknownEmails.isUnknown("realm-1", "nobody@example.com"));
+    unknownEmails.unknown("realm-1", "nobody@example.com");
+    assertTrue(unknownEmails.isUnknown("realm-1", " Nobody@Example.com"), "Addresses are normalized");
+    assertFalse(unknownEmails.isUnknown("realm-2", "nobody@example.com"), "Realms are separate");
+
+    now.addAndGet(60_000L);
+    assertFalse(unknownEmails.isUnknown("realm-1", "nobody@example.com"));
+    assertEquals(0, unknownEmails.size());
+  }
+
+  @Test
+  void testKnownAddressIsForgotten() {
+    UnknownEmails unknownEmails = new UnknownEmails(60, 10, now::get);
+    unknownEmails.unknown("realm-1", "new.user@example.com");
+
+    unknownEmails.known("realm-1", "new.user@example.com");
+
+    assertFalse(unknownEmails.isUnknown("realm-1", "new.user@example.com"));
+  }
+
+  @Test
+  void testBoundedSize() {
+    UnknownEmails unknownEmails = new UnknownEmails(60, 2, now::get);
+    unknownEmails.unknown("realm-1", "a@example.com");
+    unknownEmails.unknown("realm-1", "b@example.com");
+    unknownEmails.unknown("realm-1", "c@example.com");
+
+    assertEquals(2, unknownEmails.size());
+    assertFalse(unknownEmails.isUnknown("realm-1", "a@example.com"), "The oldest address is forgotten");
+    assertTrue(unknownEmails.isUnknown("realm-1", "c@example.com"));
+
+    // Expired entries are dropped as new ones arrive
+    now.addAndGet(60_000L);
+    unknownEmails.unknown("realm-1", "d@example.com");
+    assertTrue(unknownEmails.isUnknown("realm-1", "d@example.com"));
+    assertEquals(1, unknownEmails.size());
+  }
+
+  @Test
+  void testZeroTtlDisablesCache() {
+    UnknownEmails unknownEmails = new UnknownEmails(0, 10, now::get);
+    unknownEmails.unknown("realm-1", "nobody@example.com");
+
+    assertFalse(unknownEmails.isEnabled());
+    assertFalse(unknownEmails.isUnknown("realm-1", "nobody@example.com"));
+    assertEquals(0, unknownEmails.size());
+  }
+}
@@ -0,0 +1,33 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import java.util.Locale;
+
+/**
+ * What the allocator does when every generated username of the retry budget
+ * was taken.
+ */
+enum CollisionStrategy {
+
+  /** Throw a ModelException, so the registration or import fails. */
+  FAIL,
+
+  /** Fall back to a random UUID as username. */
+  UUID;
+
+  /**
+   * Parses a config value case-insensitively; null or blank selects the
+   * given default.
+   *
+   * @throws IllegalArgumentException for an unknown value
+   */
+  static CollisionStrategy fromConfig(String value, CollisionStrategy defaultStrategy) {
+    if (value == null || value.isBlank()) {
+      return defaultStrategy;
+    }
+    return valueOf(value.trim().toUpperCase(Locale.ROOT));
+  }
+
+  String configValue() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+}
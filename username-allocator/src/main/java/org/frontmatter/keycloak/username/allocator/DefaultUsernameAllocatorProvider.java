@@ -0,0 +1,28 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Binds the shared {@link UsernameAllocator} to a session.
+ */
+final class DefaultUsernameAllocatorProvider implements UsernameAllocatorProvider {
+
+  private final KeycloakSession session;
+  private final UsernameAllocator allocator;
+
+  DefaultUsernameAllocatorProvider(KeycloakSession session, UsernameAllocator allocator) {
+    this.session = session;
+    this.allocator = allocator;
+  }
+
+  @Override
+  public String allocate(RealmModel realm) {
+    return allocator.allocate(session, realm);
+  }
+
+  @Override
+  public void assigned(RealmModel realm, String username) {
+    allocator.assigned(realm, username);
+  }
+}
@@ -0,0 +1,211 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Built-in allocator: random usernames from a {@link UsernameGenerator}, a
+ * per-realm pool checked in background batches and a per-realm Bloom filter
+ * of existing usernames, shared by all sessions. In sequence mode the
+ * usernames come from a permuted per-realm counter instead of the pool.
+ */
+public class DefaultUsernameAllocatorProviderFactory implements UsernameAllocatorProviderFactory {
+
+  private static final Logger logger = Logger.getLogger(DefaultUsernameAllocatorProviderFactory.class);
+
+  public static final String PROVIDER_ID = "default";
+
+  // Server-level (SPI) options, e.g.
+  // --spi-username-allocator--default--pool-size=500
+  static final String MODE = "mode";
+  static final String PREFIX = "prefix";
+  static final String LENGTH = "length";
+  static final String ALPHABET = "alphabet";
+  static final String RETRY_BUDGET = "retryBudget";
+  static final String COLLISION_STRATEGY = "collisionStrategy";
+  static final String POOL_SIZE = "poolSize";
+  static final String POOL_REFILL_THRESHOLD = "poolRefillThreshold";
+  static final String FILTER_EXPECTED_USERS = "filterExpectedUsers";
+  static final String FILTER_SNAPSHOT_DIR = "filterSnapshotDir";
+  static final String SEQUENCE_BLOCK_SIZE = "sequenceBlockSize";
+  static final String SEQUENCE_KEY = "sequenceKey";
+
+  static final String MODE_RANDOM = "random";
+  static final String MODE_SEQUENCE = "sequence";
+
+  private static final int DEFAULT_POOL_SIZE = 200;
+  private static final int DEFAULT_POOL_REFILL_THRESHOLD = 50;
+  private static final long DEFAULT_FILTER_EXPECTED_USERS = 1_000_000L;
+  private static final int DEFAULT_SEQUENCE_BLOCK_SIZE = 1000;
+
+  private String mode = MODE_RANDOM;
+  private UsernameGenerator generator = UsernameGenerator.DEFAULT;
+  private int retryBudget = UsernameAllocator.DEFAULT_RETRY_BUDGET;
+  private CollisionStrategy collisionStrategy = UsernameAllocator.DEFAULT_COLLISION_STRATEGY;
+  private int poolSize = DEFAULT_POOL_SIZE;
+  private int poolRefillThreshold = DEFAULT_POOL_REFILL_THRESHOLD;
+  private long filterExpectedUsers = DEFAULT_FILTER_EXPECTED_USERS;
+  private String filterSnapshotDir;
+  private int sequenceBlockSize = DEFAULT_SEQUENCE_BLOCK_SIZE;
+  private String sequenceKey;
+
+  private volatile UsernameAllocator allocator = UsernameAllocator.UNPOOLED;
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public UsernameAllocatorProvider create(KeycloakSession session) {
+    return new DefaultUsernameAllocatorProvider(session, allocator);
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    if (config == null) {
+      return;
+    }
+    mode = config.get(MODE, MODE_RANDOM).trim();
+    if (!MODE_RANDOM.equals(mode) && !MODE_SEQUENCE.equals(mode)) {
+      throw new IllegalArgumentException("Unknown username allocation mode: " + mode);
+    }
+    generator = new UsernameGenerator(
+        config.get(PREFIX, UsernameGenerator.DEFAULT_PREFIX),
+        config.getInt(LENGTH, UsernameGenerator.DEFAULT_LENGTH),
+        config.get(ALPHABET, UsernameGenerator.CROCKFORD_BASE32));
+    retryBudget = config.getInt(RETRY_BUDGET, UsernameAllocator.DEFAULT_RETRY_BUDGET);
+    collisionStrategy = CollisionStrategy.fromConfig(config.get(COLLISION_STRATEGY),
+        UsernameAllocator.DEFAULT_COLLISION_STRATEGY);
+    poolSize = config.getInt(POOL_SIZE, DEFAULT_POOL_SIZE);
+    poolRefillThreshold = config.getInt(POOL_REFILL_THRESHOLD, DEFAULT_POOL_REFILL_THRESHOLD);
+    filterExpectedUsers = config.getLong(FILTER_EXPECTED_USERS, DEFAULT_FILTER_EXPECTED_USERS);
+    filterSnapshotDir = config.get(FILTER_SNAPSHOT_DIR);
+    sequenceBlockSize = config.getInt(SEQUENCE_BLOCK_SIZE, DEFAULT_SEQUENCE_BLOCK_SIZE);
+    sequenceKey = config.get(SEQUENCE_KEY);
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    UsernameSequence sequence = null;
+    if (MODE_SEQUENCE.equals(mode)) {
+      if (sequenceKey == null || sequenceKey.isBlank()) {
+        logger.warn("Username Allocator: No sequenceKey configured; sequence usernames can be predicted from the realm id");
+      }
+      sequence = new UsernameSequence(generator, sequenceBlockSize, sequenceKey);
+    }
+    // Sequence usernames never repeat, so there is nothing to check ahead
+    UsernamePool pool = poolSize > 0 && sequence == null
+        ? new UsernamePool(generator, poolSize, poolRefillThreshold)
+        : null;
+    UsernameFilterIndex filter = null;
+    if (filterExpectedUsers > 0) {
+      filter = new UsernameFilterIndex(generator, filterExpectedUsers,
+          filterSnapshotDir == null || filterSnapshotDir.isBlank() ? null : Path.of(filterSnapshotDir));
+      if (factory != null) {
+        factory.register(filter);
+      }
+    }
+    allocator = new UsernameAllocator(generator, retryBudget, collisionStrategy, pool, filter, sequence);
+    logger.infof("Username Allocator: Initialized - mode=%s, prefix=%s, length=%d, capacity=%d, retryBudget=%d, "
+        + "collisionStrategy=%s, pool=%s, filter=%s", mode, generator.prefix(), generator.length(),
+        generator.capacity(), allocator.retryBudget(), collisionStrategy.configValue(), pool != null, filter != null);
+  }
+
+  @Override
+  public void close() {
+    UsernameAllocator closing = allocator;
+    allocator = UsernameAllocator.UNPOOLED;
+    closing.close();
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(MODE)
+        .type(ProviderConfigProperty.LIST_TYPE)
+        .helpText("'random' draws usernames at random and checks them; 'sequence' derives them from a per-realm counter through a keyed permutation, so they never repeat and need no lookup.")
+        .options(MODE_RANDOM, MODE_SEQUENCE)
+        .defaultValue(MODE_RANDOM)
+        .add()
+        .property()
+        .name(PREFIX)
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText("Fixed start of every generated username.")
+        .defaultValue(UsernameGenerator.DEFAULT_PREFIX)
+        .add()
+        .property()
+        .name(LENGTH)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Number of random characters after the prefix.")
+        .defaultValue(UsernameGenerator.DEFAULT_LENGTH)
+        .add()
+        .property()
+        .name(ALPHABET)
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText("Characters the random part is drawn from; 2, 4, 8, 16, 32 or 64 distinct characters. Defaults to Crockford Base32.")
+        .defaultValue(UsernameGenerator.CROCKFORD_BASE32)
+        .add()
+        .property()
+        .name(RETRY_BUDGET)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Generated usernames to try when the pool is empty before the collision strategy applies.")
+        .defaultValue(UsernameAllocator.DEFAULT_RETRY_BUDGET)
+        .add()
+        .property()
+        .name(COLLISION_STRATEGY)
+        .type(ProviderConfigProperty.LIST_TYPE)
+        .helpText("What to do when all tried usernames were taken: 'uuid' uses a random UUID as username, 'fail' aborts the registration or import.")
+        .options(CollisionStrategy.UUID.configValue(), CollisionStrategy.FAIL.configValue())
+        .defaultValue(UsernameAllocator.DEFAULT_COLLISION_STRATEGY.configValue())
+        .add()
+        .property()
+        .name(POOL_SIZE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Usernames per realm generated and checked in the background. Set to 0 to check each username when a user is created.")
+        .defaultValue(DEFAULT_POOL_SIZE)
+        .add()
+        .property()
+        .name(POOL_REFILL_THRESHOLD)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Number of remaining usernames at which the pool of a realm is refilled.")
+        .defaultValue(DEFAULT_POOL_REFILL_THRESHOLD)
+        .add()
+        .property()
+        .name(FILTER_EXPECTED_USERS)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Minimum number of usernames the per-realm Bloom filter of existing usernames is sized for (about 1.2 MB per million). Set to 0 to look up every generated username.")
+        .defaultValue(DEFAULT_FILTER_EXPECTED_USERS)
+        .add()
+        .property()
+        .name(FILTER_SNAPSHOT_DIR)
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .helpText("Directory where username filters are saved on shutdown and loaded on startup instead of scanning the users. Unset: scan on every start.")
+        .add()
+        .property()
+        .name(SEQUENCE_BLOCK_SIZE)
+        .type(ProviderConfigProperty.INTEGER_TYPE)
+        .helpText("Sequence mode: numbers a node leases from the cluster-wide counter at a time.")
+        .defaultValue(DEFAULT_SEQUENCE_BLOCK_SIZE)
+        .add()
+        .property()
+        .name(SEQUENCE_KEY)
+        .type(ProviderConfigProperty.PASSWORD)
+        .helpText("Sequence mode: secret the permutation is derived from. Must be the same on all nodes and never change, or names may repeat.")
+        .secret(true)
+        .add()
+        .build();
+  }
+
+  UsernameAllocator allocator() {
+    return allocator;
+  }
+}
@@ -0,0 +1,95 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keyed permutation of the integers [0, 2^bits): every input maps to a
+ * distinct output, so a counter run through it yields unique values that do
+ * not look sequential.
+ *
+ * A balanced Feistel network over the next even bit width, with cycle
+ * walking for odd widths. The round function is a keyed 64-bit mixer, which
+ * hides the order of the counter but is not a cryptographic cipher: someone
+ * who knows the key can invert it.
+ */
+final class FeistelPermutation {
+
+  private static final int ROUNDS = 8;
+  static final int MAX_BITS = 62;
+
+  private final int bits;
+  private final int halfBits;
+  private final long halfMask;
+  private final long[] roundKeys;
+
+  /**
+   * @param bits width of the domain, 2 to {@value #MAX_BITS}
+   * @param key  secret the permutation is derived from
+   */
+  FeistelPermutation(int bits, String key) {
+    if (bits < 2 || bits > MAX_BITS) {
+      throw new IllegalArgumentException("Permutation width must be 2 to " + MAX_BITS + " bits: " + bits);
+    }
+    this.bits = bits;
+    this.halfBits = (bits + 1) / 2;
+    this.halfMask = (1L << halfBits) - 1;
+    this.roundKeys = roundKeys(key);
+  }
+
+  long permute(long value) {
+    if (value < 0 || value >>> bits != 0) {
+      throw new IllegalArgumentException("Value outside the " + bits + "-bit domain: " + value);
+    }
+    // For an odd width the network covers twice the domain; re-apply until
+    // the value falls back into it, which keeps the mapping a bijection
+    do {
+      value = encrypt(value);
+    } while (value >>> bits != 0);
+    return value;
+  }
+
+  int bits() {
+    return bits;
+  }
+
+  private long encrypt(long value) {
+    long left = value >>> halfBits;
+    long right = value & halfMask;
+    for (long roundKey : roundKeys) {
+      long next = left ^ (mix(right ^ roundKey) & halfMask);
+      left = right;
+      right = next;
+    }
+    return (left << halfBits) | right;
+  }
+
+  /**
+   * MurmurHash3 64-bit finalizer.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static long[] roundKeys(String key) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-512").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-512 not available", e);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(digest);
+    long[] keys = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      keys[i] = buffer.getLong();
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,131 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Picks a free username for a new user: from the realm's pool of pre-checked
+ * usernames when it has one, otherwise by generating candidates until one is
+ * free. Candidates the realm's filter reports as possibly taken are skipped
+ * without a database lookup; the others are still looked up, as the filter
+ * does not see users created on other nodes or outside the allocator. In
+ * sequence mode candidates come from the realm's {@link UsernameSequence}
+ * instead, which never repeats a name on any node; the filter then only
+ * guards against names created before, e.g. by random mode.
+ * Shared by all sessions of a server.
+ */
+final class UsernameAllocator {
+
+  private static final Logger logger = Logger.getLogger(UsernameAllocator.class);
+
+  static final int DEFAULT_RETRY_BUDGET = 10;
+  // A UUID username would break the usr_ format other systems rely on
+  static final CollisionStrategy DEFAULT_COLLISION_STRATEGY = CollisionStrategy.FAIL;
+
+  /**
+   * Default settings without pool or filter: every candidate is looked up.
+   */
+  static final UsernameAllocator UNPOOLED = new UsernameAllocator(UsernameGenerator.DEFAULT,
+      DEFAULT_RETRY_BUDGET, DEFAULT_COLLISION_STRATEGY, null, null, null);
+
+  private final UsernameGenerator generator;
+  private final int retryBudget;
+  private final CollisionStrategy collisionStrategy;
+  private final UsernamePool pool;
+  private final UsernameFilterIndex filter;
+  private final UsernameSequence sequence;
+
+  /**
+   * @param retryBudget generated candidates to try before the collision
+   *                    strategy applies
+   * @param pool        pre-checked usernames, or null
+   * @param filter      filter of existing usernames, or null
+   * @param sequence    counter-derived usernames used instead of random ones,
+   *                    or null
+   */
+  UsernameAllocator(UsernameGenerator generator, int retryBudget, CollisionStrategy collisionStrategy,
+      UsernamePool pool, UsernameFilterIndex filter, UsernameSequence sequence) {
+    this.generator = generator;
+    this.retryBudget = Math.max(1, retryBudget);
+    this.collisionStrategy = collisionStrategy;
+    this.pool = pool;
+    this.filter = filter;
+    this.sequence = sequence;
+  }
+
+  String allocate(KeycloakSession session, RealmModel realm) {
+    if (pool != null) {
+      String username = pool.take(session, realm);
+      if (username != null) {
+        return username;
+      }
+    }
+
+    for (int attempt = 1; attempt <= retryBudget; attempt++) {
+      String username;
+      if (sequence != null) {
+        username = sequence.next(session, realm);
+        if (filter == null || filter.isCertainlyFree(session, realm, username)) {
+          return username;
+        }
+      } else {
+        username = generator.generate();
+        if (filter != null && filter.mightBeTaken(session, realm, username)) {
+          logger.debugf("Username Allocator: Username possibly taken, retrying - username=%s, attempt=%d",
+              username, attempt);
+          continue;
+        }
+      }
+      // Sequence mode looks up the names the filter knows, random mode the others
+      if (session.users().getUserByUsername(realm, username) == null) {
+        if (filter != null && sequence != null) {
+          filter.confirmedFree(realm);
+        }
+        return username;
+      }
+      if (filter != null && sequence == null) {
+        filter.confirmedTaken(realm);
+      }
+      logger.debugf("Username Allocator: Username collision, retrying - username=%s, attempt=%d", username, attempt);
+    }
+
+    if (collisionStrategy == CollisionStrategy.FAIL) {
+      throw new ModelException("Failed to generate unique username after " + retryBudget + " retries");
+    }
+    logger.warnf("Username Allocator: Failed to generate unique username after %d attempts, using a UUID",
+        retryBudget);
+    return java.util.UUID.randomUUID().toString();
+  }
+
+  void assigned(RealmModel realm, String username) {
+    if (filter != null) {
+      filter.added(realm, username);
+    }
+  }
+
+  UsernameGenerator generator() {
+    return generator;
+  }
+
+  int retryBudget() {
+    return retryBudget;
+  }
+
+  CollisionStrategy collisionStrategy() {
+    return collisionStrategy;
+  }
+
+  void close() {
+    if (pool != null) {
+      pool.close();
+    }
+    if (filter != null) {
+      filter.close();
+    }
+    if (sequence != null) {
+      sequence.close();
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+
+/**
+ * Hands out usernames for new users of a realm.
+ */
+public interface UsernameAllocatorProvider extends Provider {
+
+  /**
+   * @return a username that is not in use in the realm, as far as the
+   *         allocator can tell; the unique username constraint of the user
+   *         store stays the final guard
+   * @throws org.keycloak.models.ModelException if no free username was found
+   *         and the allocator is configured to fail
+   */
+  String allocate(RealmModel realm);
+
+  /**
+   * Tells the allocator that a username it returned now belongs to a user.
+   */
+  void assigned(RealmModel realm, String username);
+
+  @Override
+  default void close() {
+  }
+
+  /**
+   * The session's allocator, or one with the default settings and without
+   * pool and filter when the SPI is not deployed (e.g. in unit tests).
+   */
+  static UsernameAllocatorProvider of(KeycloakSession session) {
+    UsernameAllocatorProvider provider = session.getProvider(UsernameAllocatorProvider.class);
+    return provider != null ? provider : new DefaultUsernameAllocatorProvider(session, UsernameAllocator.UNPOOLED);
+  }
+}
@@ -0,0 +1,10 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Factory of {@link UsernameAllocatorProvider}s; see
+ * {@link DefaultUsernameAllocatorProviderFactory} for the built-in one.
+ */
+public interface UsernameAllocatorProviderFactory extends ProviderFactory<UsernameAllocatorProvider> {
+}
@@ -0,0 +1,36 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI through which the auto-username mapper and the magic-link authenticator
+ * obtain usernames for new users. Configured with
+ * --spi-username-allocator--default--...
+ */
+public class UsernameAllocatorSpi implements Spi {
+
+  public static final String NAME = "username-allocator";
+
+  @Override
+  public boolean isInternal() {
+    return false;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Class<? extends Provider> getProviderClass() {
+    return UsernameAllocatorProvider.class;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Class<? extends ProviderFactory> getProviderFactoryClass() {
+    return UsernameAllocatorProviderFactory.class;
+  }
+}
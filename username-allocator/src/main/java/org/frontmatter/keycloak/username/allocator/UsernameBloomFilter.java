@@ -0,0 +1,142 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of usernames. A negative answer means the username was never
+ * added; a positive one means it may have been. Safe for concurrent adds and
+ * lookups.
+ *
+ * Removals are not supported: a deleted user's name keeps answering "may
+ * exist", which only costs a database lookup.
+ */
+final class UsernameBloomFilter {
+
+  private static final int SNAPSHOT_MAGIC = 0x55424631; // "UBF1"
+  private static final long MAX_BITS = 1L << 31;
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+  private final AtomicLong insertions = new AtomicLong();
+
+  private UsernameBloomFilter(long bitCount, int hashCount) {
+    this.bitCount = bitCount;
+    this.hashCount = hashCount;
+    this.bits = new AtomicLongArray(Math.toIntExact((bitCount + 63) / 64));
+  }
+
+  /**
+   * Sizes a filter for the expected number of usernames at the given false
+   * positive probability.
+   */
+  static UsernameBloomFilter create(long expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(1L, expectedInsertions);
+    double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+    // Bit indexes are derived from 32-bit hashes
+    long m = Math.min(MAX_BITS, Math.max(64L, (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)))));
+    int k = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    return new UsernameBloomFilter(m, k);
+  }
+
+  void add(String username) {
+    long hash = hash(username);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long index = bitIndex(h1 + i * h2);
+      int word = (int) (index >>> 6);
+      long mask = 1L << index;
+      long current;
+      do {
+        current = bits.get(word);
+        if ((current & mask) != 0) {
+          break;
+        }
+      } while (!bits.compareAndSet(word, current, current | mask));
+    }
+    insertions.incrementAndGet();
+  }
+
+  boolean mightContain(String username) {
+    long hash = hash(username);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long index = bitIndex(h1 + i * h2);
+      if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  long insertions() {
+    return insertions.get();
+  }
+
+  /**
+   * False positive probability for the number of usernames added so far.
+   */
+  double expectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) hashCount * insertions.get() / bitCount), hashCount);
+  }
+
+  long memoryBytes() {
+    return (long) bits.length() * Long.BYTES;
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeLong(bitCount);
+    out.writeInt(hashCount);
+    out.writeLong(insertions.get());
+    for (int i = 0; i < bits.length(); i++) {
+      out.writeLong(bits.get(i));
+    }
+  }
+
+  static UsernameBloomFilter readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != SNAPSHOT_MAGIC) {
+      throw new IOException("Not a username filter snapshot");
+    }
+    long bitCount = in.readLong();
+    int hashCount = in.readInt();
+    if (bitCount < 64 || bitCount > MAX_BITS || hashCount < 1) {
+      throw new IOException("Corrupt username filter snapshot");
+    }
+    UsernameBloomFilter filter = new UsernameBloomFilter(bitCount, hashCount);
+    filter.insertions.set(in.readLong());
+    for (int i = 0; i < filter.bits.length(); i++) {
+      filter.bits.set(i, in.readLong());
+    }
+    return filter;
+  }
+
+  private long bitIndex(int combinedHash) {
+    // Flip negative values, as Guava does, to stay within [0, bitCount)
+    return (combinedHash < 0 ? ~combinedHash : combinedHash) % bitCount;
+  }
+
+  /**
+   * 64-bit FNV-1a over the characters, finished with the MurmurHash3 mixer so
+   * both halves are usable as independent hashes.
+   */
+  private static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
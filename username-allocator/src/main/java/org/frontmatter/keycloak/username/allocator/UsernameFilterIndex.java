@@ -0,0 +1,382 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Realm-scoped Bloom filters of existing usernames with the generator's
+ * prefix, so a generated username that is possibly taken is skipped without a
+ * database lookup.
+ *
+ * The filters of all realms are built on background threads once the server
+ * has started (and for a new realm the first time it is needed), from a
+ * snapshot file when one is configured and present, otherwise by paging
+ * through the realm's users. Until then the filter has no answer and every
+ * username is checked in the database as before. Usernames handed out by the
+ * allocator are added as they are assigned; users created on other cluster
+ * nodes, through the admin API or by an import are only picked up by the next
+ * scan, so a username the filter reports as free is not certainly unused.
+ */
+final class UsernameFilterIndex implements ProviderEventListener {
+
+  private static final Logger logger = Logger.getLogger(UsernameFilterIndex.class);
+
+  static final String CHECKS_METRIC = "keycloak.username.filter.checks";
+  static final String FALSE_POSITIVES_METRIC = "keycloak.username.filter.false.positives";
+  static final String STALE_METRIC = "keycloak.username.filter.stale";
+  static final String EXPECTED_FPP_METRIC = "keycloak.username.filter.expected.fpp";
+  static final String MEMORY_METRIC = "keycloak.username.filter.memory";
+
+  static final double FALSE_POSITIVE_RATE = 0.01;
+
+  static final int SCAN_PAGE_SIZE = 1000;
+
+  private static final String SNAPSHOT_PREFIX = "username-filter-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+
+  /**
+   * Runs a task with a realm in a transaction of its own.
+   */
+  interface RealmTransaction {
+    /**
+     * @return the task's result, or null if the realm does not exist
+     */
+    <V> V run(KeycloakSessionFactory sessionFactory, String realmId, BiFunction<KeycloakSession, RealmModel, V> task);
+  }
+
+  private final UsernameGenerator generator;
+  private final long expectedUsers;
+  private final Path snapshotDir;
+  private final Executor buildExecutor;
+  private final RealmTransaction transaction;
+  private final ConcurrentMap<String, RealmFilter> filters = new ConcurrentHashMap<>();
+
+  private static final class RealmFilter {
+    final AtomicBoolean building = new AtomicBoolean();
+    // Usernames created while the filter is being built
+    final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    final List<Meter> meters = new ArrayList<>();
+    volatile UsernameBloomFilter filter;
+  }
+
+  /**
+   * @param generator     generator whose prefix the indexed usernames share
+   * @param expectedUsers minimum capacity of a realm's filter; it is sized for
+   *                      twice the current user count when that is larger
+   * @param snapshotDir   directory for filter snapshots, or null to always
+   *                      scan the user store
+   */
+  UsernameFilterIndex(UsernameGenerator generator, long expectedUsers, Path snapshotDir) {
+    this(generator, expectedUsers, snapshotDir,
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("username-allocator-filter-", 0).factory()), null);
+  }
+
+  UsernameFilterIndex(UsernameGenerator generator, long expectedUsers, Path snapshotDir, Executor buildExecutor,
+      RealmTransaction transaction) {
+    this.generator = generator;
+    this.expectedUsers = Math.max(1L, expectedUsers);
+    this.snapshotDir = snapshotDir;
+    this.buildExecutor = buildExecutor;
+    this.transaction = transaction != null ? transaction : UsernameFilterIndex::inRealm;
+  }
+
+  /**
+   * @return true if the username was not in use when the realm's filter was
+   *         built and has not been assigned on this node since; false if it
+   *         may be, or the filter is not built yet
+   */
+  boolean isCertainlyFree(KeycloakSession session, RealmModel realm, String username) {
+    UsernameBloomFilter filter = builtFilter(session, realm);
+    return filter != null && !mightContain(realm, filter, username);
+  }
+
+  /**
+   * @return true if the username may be in use; false if the realm's filter
+   *         does not know it, or the filter is not built yet
+   */
+  boolean mightBeTaken(KeycloakSession session, RealmModel realm, String username) {
+    UsernameBloomFilter filter = builtFilter(session, realm);
+    return filter != null && mightContain(realm, filter, username);
+  }
+
+  /**
+   * Records the database answer for a username the filter reported as possibly
+   * taken.
+   */
+  void confirmedFree(RealmModel realm) {
+    countIfBuilt(realm, FALSE_POSITIVES_METRIC);
+  }
+
+  /**
+   * Records the database answer for a username the filter did not know, e.g.
+   * one created on another node.
+   */
+  void confirmedTaken(RealmModel realm) {
+    countIfBuilt(realm, STALE_METRIC);
+  }
+
+  /**
+   * Adds a username assigned on this node.
+   */
+  void added(RealmModel realm, String username) {
+    RealmFilter realmFilter = filterOf(realm);
+    UsernameBloomFilter filter = realmFilter.filter;
+    if (filter != null) {
+      filter.add(username);
+    } else {
+      realmFilter.pending.add(username);
+    }
+  }
+
+  /**
+   * Builds the filter of a realm in the calling thread, looking the realm and
+   * each page of its users up in a transaction of their own.
+   */
+  void build(KeycloakSessionFactory sessionFactory, String realmId) {
+    String realmName = transaction.run(sessionFactory, realmId, (session, realm) -> realm.getName());
+    if (realmName == null) {
+      return;
+    }
+    RealmFilter realmFilter = filters.computeIfAbsent(realmId, id -> new RealmFilter());
+
+    UsernameBloomFilter filter = readSnapshot(realmId);
+    if (filter == null) {
+      filter = scan(sessionFactory, realmId, realmName);
+      if (filter == null) {
+        return;
+      }
+      writeSnapshot(realmId, filter);
+    }
+
+    realmFilter.filter = filter;
+    for (String username; (username = realmFilter.pending.poll()) != null;) {
+      filter.add(username);
+    }
+    registerGauges(realmName, realmFilter, filter);
+  }
+
+  /**
+   * Writes the snapshots of all built filters, then stops background builds.
+   */
+  void close() {
+    if (buildExecutor instanceof ExecutorService executorService) {
+      executorService.shutdownNow();
+    }
+    filters.forEach((realmId, realmFilter) -> {
+      if (realmFilter.filter != null) {
+        writeSnapshot(realmId, realmFilter.filter);
+      }
+      realmFilter.meters.forEach(Metrics.globalRegistry::remove);
+    });
+    filters.clear();
+  }
+
+  @Override
+  public void onEvent(ProviderEvent event) {
+    if (event instanceof PostMigrationEvent) {
+      KeycloakSessionFactory sessionFactory = ((PostMigrationEvent) event).getFactory();
+      Set<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+          session -> session.realms().getRealmsStream().map(RealmModel::getId).collect(Collectors.toSet()));
+      realmIds.forEach(realmId -> scheduleBuild(sessionFactory, realmId,
+          filters.computeIfAbsent(realmId, id -> new RealmFilter())));
+    } else if (event instanceof RealmModel.RealmRemovedEvent) {
+      RealmFilter removed = filters.remove(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+      if (removed != null) {
+        removed.meters.forEach(Metrics.globalRegistry::remove);
+      }
+    }
+  }
+
+  private RealmFilter filterOf(RealmModel realm) {
+    return filters.computeIfAbsent(realm.getId(), id -> new RealmFilter());
+  }
+
+  private UsernameBloomFilter builtFilter(KeycloakSession session, RealmModel realm) {
+    RealmFilter realmFilter = filterOf(realm);
+    UsernameBloomFilter filter = realmFilter.filter;
+    if (filter == null) {
+      scheduleBuild(session.getKeycloakSessionFactory(), realm.getId(), realmFilter);
+    }
+    return filter;
+  }
+
+  private static boolean mightContain(RealmModel realm, UsernameBloomFilter filter, String username) {
+    boolean present = filter.mightContain(username);
+    Metrics.counter(CHECKS_METRIC, tags(realm.getName()).and("result", present ? "present" : "absent")).increment();
+    return present;
+  }
+
+  private void countIfBuilt(RealmModel realm, String metric) {
+    RealmFilter realmFilter = filters.get(realm.getId());
+    if (realmFilter != null && realmFilter.filter != null) {
+      Metrics.counter(metric, tags(realm.getName())).increment();
+    }
+  }
+
+  private void scheduleBuild(KeycloakSessionFactory sessionFactory, String realmId, RealmFilter realmFilter) {
+    if (!realmFilter.building.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      buildExecutor.execute(() -> {
+        try {
+          build(sessionFactory, realmId);
+        } catch (RuntimeException e) {
+          logger.warnf(e, "Username Allocator: Username filter build failed - realmId=%s", realmId);
+          // Let a later lookup retry
+          realmFilter.building.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      realmFilter.building.set(false);
+    }
+  }
+
+  /**
+   * @return the filter of the realm's usernames, or null if the realm was
+   *         removed or the index closed during the scan
+   */
+  private UsernameBloomFilter scan(KeycloakSessionFactory sessionFactory, String realmId, String realmName) {
+    long start = System.currentTimeMillis();
+    Integer userCount = transaction.run(sessionFactory, realmId,
+        (session, realm) -> session.users().getUsersCount(realm));
+    if (userCount == null) {
+      return null;
+    }
+    UsernameBloomFilter filter = UsernameBloomFilter.create(
+        Math.max(expectedUsers, 2L * userCount), FALSE_POSITIVE_RATE);
+
+    // Prefix search, one page per transaction so a realm with millions of
+    // users neither holds a transaction open nor loads them all at once.
+    // Users created meanwhile may shift a user past a page boundary; like
+    // users created on other nodes, they are found by the lookups.
+    String prefix = generator.prefix();
+    Map<String, String> search = Map.of(UserModel.SEARCH, prefix.isEmpty() ? "*" : prefix);
+    for (int first = 0;; first += SCAN_PAGE_SIZE) {
+      if (Thread.currentThread().isInterrupted()) {
+        return null;
+      }
+      int offset = first;
+      List<String> page = transaction.run(sessionFactory, realmId, (session, realm) ->
+          session.users().searchForUserStream(realm, search, offset, SCAN_PAGE_SIZE)
+              .map(UserModel::getUsername)
+              .toList());
+      if (page == null) {
+        return null;
+      }
+      page.stream()
+          .filter(username -> username != null && username.startsWith(prefix))
+          .forEach(filter::add);
+      if (page.size() < SCAN_PAGE_SIZE) {
+        break;
+      }
+    }
+
+    logger.infof("Username Allocator: Username filter built - realm=%s, usernames=%d, memoryBytes=%d, durationMs=%d",
+        realmName, filter.insertions(), filter.memoryBytes(), System.currentTimeMillis() - start);
+    return filter;
+  }
+
+  private static <V> V inRealm(KeycloakSessionFactory sessionFactory, String realmId,
+      BiFunction<KeycloakSession, RealmModel, V> task) {
+    return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      return realm != null ? task.apply(session, realm) : null;
+    });
+  }
+
+  private UsernameBloomFilter readSnapshot(String realmId) {
+    Path file = snapshotFile(realmId);
+    if (file == null || !Files.isRegularFile(file)) {
+      return null;
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      UsernameBloomFilter filter = UsernameBloomFilter.readFrom(new DataInputStream(new BufferedInputStream(in)));
+      logger.infof("Username Allocator: Username filter loaded from snapshot - realmId=%s, usernames=%d, file=%s",
+          realmId, filter.insertions(), file);
+      return filter;
+    } catch (IOException e) {
+      logger.warnf("Username Allocator: Ignoring unreadable username filter snapshot - file=%s: %s", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private void writeSnapshot(String realmId, UsernameBloomFilter filter) {
+    Path file = snapshotFile(realmId);
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.createDirectories(snapshotDir);
+      Path tmp = Files.createTempFile(snapshotDir, SNAPSHOT_PREFIX, ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp);
+          DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+        filter.writeTo(data);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warnf("Username Allocator: Could not write username filter snapshot - file=%s: %s", file, e.getMessage());
+    }
+  }
+
+  private Path snapshotFile(String realmId) {
+    // A snapshot taken for another username prefix would miss existing names
+    return snapshotDir != null
+        ? snapshotDir.resolve(SNAPSHOT_PREFIX + realmId + "-" + Integer.toHexString(generator.prefix().hashCode())
+            + SNAPSHOT_SUFFIX)
+        : null;
+  }
+
+  private void registerGauges(String realmName, RealmFilter realmFilter, UsernameBloomFilter filter) {
+    realmFilter.meters.add(Gauge.builder(EXPECTED_FPP_METRIC, filter, UsernameBloomFilter::expectedFalsePositiveRate)
+        .description("False positive probability of the username filter for its current size")
+        .tags(tags(realmName))
+        .register(Metrics.globalRegistry));
+    realmFilter.meters.add(Gauge.builder(MEMORY_METRIC, filter, UsernameBloomFilter::memoryBytes)
+        .description("Memory used by the username filter")
+        .baseUnit("bytes")
+        .tags(tags(realmName))
+        .register(Metrics.globalRegistry));
+  }
+
+  private static Tags tags(String realmName) {
+    return Tags.of("realm", realmName != null ? realmName : "unknown");
+  }
+}
@@ -0,0 +1,160 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates random usernames made of a fixed prefix and random characters,
+ * by default usr_xxxxxxxx in the Crockford Base32 alphabet (no ambiguous
+ * characters).
+ *
+ * The alphabet size must be a power of two (2 to 64 characters), so each
+ * character takes a fixed number of random bits and all characters are
+ * equally likely.
+ */
+public final class UsernameGenerator {
+
+  public static final String DEFAULT_PREFIX = "usr_";
+  public static final int DEFAULT_LENGTH = 8;
+  public static final String CROCKFORD_BASE32 = "0123456789abcdefghjkmnpqrstvwxyz";
+
+  public static final UsernameGenerator DEFAULT =
+      new UsernameGenerator(DEFAULT_PREFIX, DEFAULT_LENGTH, CROCKFORD_BASE32);
+
+  // Independent DRBG instances, picked by thread id, so concurrent
+  // registrations rarely wait on the same generator's lock
+  private static final SecureRandom[] RANDOMS = newRandoms(
+      Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2));
+
+  private final String prefix;
+  private final int length;
+  private final char[] alphabet;
+  private final int bitsPerChar;
+
+  /**
+   * @param prefix   fixed start of every username, may be empty
+   * @param length   number of random characters after the prefix
+   * @param alphabet characters to draw from; 2, 4, 8, 16, 32 or 64 distinct
+   *                 characters
+   * @throws IllegalArgumentException if the length or alphabet is invalid
+   */
+  public UsernameGenerator(String prefix, int length, String alphabet) {
+    if (length < 1) {
+      throw new IllegalArgumentException("Username length must be at least 1: " + length);
+    }
+    if (alphabet == null || alphabet.length() < 2 || alphabet.length() > 64
+        || Integer.bitCount(alphabet.length()) != 1) {
+      throw new IllegalArgumentException("Username alphabet must have 2, 4, 8, 16, 32 or 64 characters");
+    }
+    if (alphabet.chars().distinct().count() != alphabet.length()) {
+      throw new IllegalArgumentException("Username alphabet has duplicate characters: " + alphabet);
+    }
+    this.prefix = prefix != null ? prefix : "";
+    this.length = length;
+    this.alphabet = alphabet.toCharArray();
+    this.bitsPerChar = Integer.numberOfTrailingZeros(alphabet.length());
+  }
+
+  /**
+   * Generate a random username, e.g. usr_a3k9m2p7 with the defaults.
+   */
+  public String generate() {
+    return prefix + randomChars(length);
+  }
+
+  /**
+   * Random start shared by a batch of usernames, e.g. usr_a3k9.
+   */
+  public String batchPrefix(int randomLength) {
+    return prefix + randomChars(randomLength);
+  }
+
+  /**
+   * Completes a {@link #batchPrefix} to a full username.
+   */
+  public String generate(String batchPrefix) {
+    return batchPrefix + randomChars(prefix.length() + length - batchPrefix.length());
+  }
+
+  /**
+   * Encodes the low {@link #randomBits()} bits of a value as a username, most
+   * significant character first; distinct values give distinct usernames.
+   */
+  public String format(long value) {
+    int mask = alphabet.length - 1;
+    char[] buf = new char[length];
+    for (int i = buf.length - 1; i >= 0; i--) {
+      buf[i] = alphabet[(int) value & mask];
+      value >>>= bitsPerChar;
+    }
+    return prefix + new String(buf);
+  }
+
+  /**
+   * Bits carried by the random part, 40 for the default generator.
+   */
+  public int randomBits() {
+    return bitsPerChar * length;
+  }
+
+  public String prefix() {
+    return prefix;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public String alphabet() {
+    return new String(alphabet);
+  }
+
+  /**
+   * Number of distinct usernames, capped at Long.MAX_VALUE.
+   */
+  public long capacity() {
+    int bits = randomBits();
+    return bits >= Long.SIZE - 1 ? Long.MAX_VALUE : 1L << bits;
+  }
+
+  @Override
+  public String toString() {
+    return "UsernameGenerator[prefix=" + prefix + ", length=" + length + ", alphabet=" + alphabet() + "]";
+  }
+
+  /**
+   * Draws all random bits in one call (40 for the default eight Base32
+   * characters) and slices them into characters.
+   */
+  private String randomChars(int count) {
+    byte[] bytes = new byte[(count * bitsPerChar + 7) / 8];
+    RANDOMS[(int) Thread.currentThread().threadId() & (RANDOMS.length - 1)].nextBytes(bytes);
+
+    int mask = alphabet.length - 1;
+    char[] buf = new char[count];
+    long bits = 0;
+    int available = 0;
+    int next = 0;
+    for (int i = 0; i < buf.length; i++) {
+      if (available < bitsPerChar) {
+        bits = (bits << 8) | (bytes[next++] & 0xff);
+        available += 8;
+      }
+      available -= bitsPerChar;
+      buf[i] = alphabet[(int) (bits >>> available) & mask];
+    }
+    return new String(buf);
+  }
+
+  private static SecureRandom[] newRandoms(int count) {
+    SecureRandom[] randoms = new SecureRandom[count];
+    for (int i = 0; i < count; i++) {
+      try {
+        randoms[i] = SecureRandom.getInstance("DRBG");
+      } catch (NoSuchAlgorithmException e) {
+        randoms[i] = new SecureRandom();
+      }
+    }
+    return randoms;
+  }
+}
@@ -0,0 +1,167 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Usernames generated and checked against the user store ahead of time, so
+ * creating or importing a user does not wait for a lookup per candidate.
+ *
+ * Each realm has its own lock-free queue. When it drops below the refill
+ * threshold a background task generates a batch of candidates that share a
+ * random prefix and finds the taken ones with a single prefix search, instead
+ * of one getUserByUsername() query per candidate. The user store SPI has no
+ * lookup by a list of usernames; the prefix search is the bulk query it offers.
+ */
+final class UsernamePool {
+
+  private static final Logger logger = Logger.getLogger(UsernamePool.class);
+
+  /**
+   * Random characters shared by a batch; the remaining ones are drawn per
+   * username, so with the default generator a batch can hold up to 32^4
+   * distinct names. Shorter usernames keep at least one character per name.
+   */
+  static final int BATCH_PREFIX_LENGTH = 4;
+  static final int MAX_BATCH_SIZE = 1000;
+
+  // A prefix this crowded is skipped rather than trusted
+  private static final int MAX_PREFIX_MATCHES = 1000;
+  private static final int MAX_BATCHES_PER_REFILL = 10;
+
+  private final UsernameGenerator generator;
+  private final int batchPrefixLength;
+  private final int capacity;
+  private final int refillThreshold;
+  private final Executor refillExecutor;
+  private final ConcurrentMap<String, RealmPool> pools = new ConcurrentHashMap<>();
+
+  static final class RealmPool {
+    final Queue<String> usernames = new ConcurrentLinkedQueue<>();
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicBoolean refilling = new AtomicBoolean();
+  }
+
+  UsernamePool(UsernameGenerator generator, int capacity, int refillThreshold) {
+    this(generator, capacity, refillThreshold,
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("username-allocator-pool-", 0).factory()));
+  }
+
+  UsernamePool(UsernameGenerator generator, int capacity, int refillThreshold, Executor refillExecutor) {
+    this.generator = generator;
+    this.batchPrefixLength = Math.min(BATCH_PREFIX_LENGTH, generator.length() - 1);
+    this.capacity = Math.max(1, capacity);
+    this.refillThreshold = Math.min(Math.max(0, refillThreshold), this.capacity - 1);
+    this.refillExecutor = refillExecutor;
+    logger.infof("Username Allocator: Username pool enabled - size=%d, refillThreshold=%d", this.capacity, this.refillThreshold);
+  }
+
+  /**
+   * Hands out a pre-checked username and starts a refill when the realm's pool
+   * runs low.
+   *
+   * @return a username that was free when the pool was filled, or null if the
+   *         pool of the realm is empty; the caller then checks a generated
+   *         username itself
+   */
+  String take(KeycloakSession session, RealmModel realm) {
+    RealmPool pool = pools.computeIfAbsent(realm.getId(), id -> new RealmPool());
+    String username = pool.usernames.poll();
+    int remaining = username != null ? pool.size.decrementAndGet() : pool.size.get();
+    if (remaining <= refillThreshold && pool.refilling.compareAndSet(false, true)) {
+      scheduleRefill(session.getKeycloakSessionFactory(), realm.getId(), pool);
+    }
+    return username;
+  }
+
+  int size(String realmId) {
+    RealmPool pool = pools.get(realmId);
+    return pool != null ? pool.size.get() : 0;
+  }
+
+  private void scheduleRefill(KeycloakSessionFactory sessionFactory, String realmId, RealmPool pool) {
+    try {
+      refillExecutor.execute(() -> {
+        try {
+          KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+              pools.remove(realmId, pool);
+              return;
+            }
+            fill(session, realm, pool);
+          });
+        } catch (RuntimeException e) {
+          logger.warnf(e, "Username Allocator: Username pool refill failed - realmId=%s", realmId);
+        } finally {
+          pool.refilling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pool.refilling.set(false);
+    }
+  }
+
+  /**
+   * Tops the pool up to its capacity with usernames not present in the realm.
+   */
+  void fill(KeycloakSession session, RealmModel realm, RealmPool pool) {
+    for (int batch = 0; batch < MAX_BATCHES_PER_REFILL; batch++) {
+      int wanted = Math.min(capacity - pool.size.get(), MAX_BATCH_SIZE);
+      if (wanted <= 0) {
+        return;
+      }
+
+      String prefix = generator.batchPrefix(batchPrefixLength);
+      Set<String> candidates = new LinkedHashSet<>();
+      // A short generator may not have enough names under one prefix
+      for (int i = 0; i < 2 * wanted && candidates.size() < wanted; i++) {
+        candidates.add(generator.generate(prefix));
+      }
+
+      Set<String> taken = session.users()
+          .searchForUserStream(realm, Map.of(UserModel.SEARCH, prefix), 0, MAX_PREFIX_MATCHES)
+          .map(UserModel::getUsername)
+          .filter(Objects::nonNull)
+          .collect(Collectors.toSet());
+      if (taken.size() >= MAX_PREFIX_MATCHES) {
+        logger.debugf("Username Allocator: Username prefix too crowded, skipping batch - prefix=%s", prefix);
+        continue;
+      }
+
+      int generated = candidates.size();
+      candidates.removeAll(taken);
+      pool.usernames.addAll(candidates);
+      pool.size.addAndGet(candidates.size());
+      logger.debugf("Username Allocator: Username pool refilled - realm=%s, added=%d, taken=%d",
+          realm.getName(), candidates.size(), generated - candidates.size());
+    }
+  }
+
+  void close() {
+    if (refillExecutor instanceof ExecutorService executorService) {
+      executorService.shutdownNow();
+    }
+    pools.clear();
+  }
+}
@@ -0,0 +1,204 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Usernames derived from a per-realm counter: each number is run through a
+ * keyed {@link FeistelPermutation} and encoded in the generator's format, so
+ * the names look random but never repeat and need no existence check.
+ *
+ * Nodes lease blocks of numbers. A lease claims the block in the cluster-wide
+ * single-use object store and moves the realm's high-water mark (a realm
+ * attribute) past it, both in a transaction of its own. The next block is
+ * leased in the background when the current one runs low, so only the first
+ * username of a realm on a node waits for a lease.
+ *
+ * The single-use store is not persistent. The first lease after the whole
+ * cluster restarted therefore skips {@value #RESTART_GAP_BLOCKS} blocks past
+ * the stored mark, which covers marks of concurrent leases that were
+ * overwritten by an older value.
+ */
+final class UsernameSequence {
+
+  private static final Logger logger = Logger.getLogger(UsernameSequence.class);
+
+  static final String HIGH_WATER_ATTRIBUTE = "usernameSequence.nextBlock";
+  static final String BLOCK_KEY_PREFIX = "username-sequence-block:";
+  static final String EPOCH_KEY_PREFIX = "username-sequence-epoch:";
+  static final long RESTART_GAP_BLOCKS = 64;
+
+  private static final long LEASE_LIFESPAN_SECONDS = 7L * 24 * 60 * 60;
+
+  /**
+   * Leases a block for a realm and returns its number.
+   */
+  @FunctionalInterface
+  interface BlockLeaser {
+    long lease(KeycloakSessionFactory sessionFactory, String realmId);
+  }
+
+  private final UsernameGenerator generator;
+  private final int blockSize;
+  private final String key;
+  private final long maxBlocks;
+  private final BlockLeaser leaser;
+  private final Executor leaseExecutor;
+  private final ConcurrentMap<String, RealmSequence> sequences = new ConcurrentHashMap<>();
+
+  private static final class RealmSequence {
+    final ReentrantLock lock = new ReentrantLock();
+    final AtomicBoolean leasing = new AtomicBoolean();
+    final FeistelPermutation permutation;
+    long next;
+    long end;
+    // Block leased in the background, or -1
+    volatile long prefetched = -1;
+
+    RealmSequence(FeistelPermutation permutation) {
+      this.permutation = permutation;
+    }
+  }
+
+  /**
+   * @param blockSize numbers per leased block
+   * @param key       secret the permutation of each realm is derived from;
+   *                  must be the same on all nodes
+   */
+  UsernameSequence(UsernameGenerator generator, int blockSize, String key) {
+    this(generator, blockSize, key, null,
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("username-allocator-sequence-", 0).factory()));
+  }
+
+  UsernameSequence(UsernameGenerator generator, int blockSize, String key, BlockLeaser leaser,
+      Executor leaseExecutor) {
+    if (generator.randomBits() > FeistelPermutation.MAX_BITS) {
+      throw new IllegalArgumentException("Sequence usernames support at most " + FeistelPermutation.MAX_BITS
+          + " random bits, the generator has " + generator.randomBits());
+    }
+    this.generator = generator;
+    this.blockSize = Math.max(1, blockSize);
+    this.key = key != null ? key : "";
+    this.maxBlocks = (1L << generator.randomBits()) / this.blockSize;
+    this.leaser = leaser != null ? leaser : this::leaseInTransaction;
+    this.leaseExecutor = leaseExecutor;
+  }
+
+  /**
+   * @return the next username of the realm's sequence on this node
+   * @throws ModelException when the sequence's number space is used up
+   */
+  String next(KeycloakSession session, RealmModel realm) {
+    RealmSequence sequence = sequences.computeIfAbsent(realm.getId(),
+        realmId -> new RealmSequence(new FeistelPermutation(generator.randomBits(), key + ':' + realmId)));
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+    long number;
+    sequence.lock.lock();
+    try {
+      if (sequence.next >= sequence.end) {
+        long block = sequence.prefetched;
+        sequence.prefetched = -1;
+        if (block < 0) {
+          block = leaser.lease(sessionFactory, realm.getId());
+        }
+        startBlock(sequence, block);
+      }
+      number = sequence.next++;
+      if (sequence.end - sequence.next <= blockSize / 5 && sequence.prefetched < 0) {
+        schedulePrefetch(sessionFactory, realm.getId(), sequence);
+      }
+    } finally {
+      sequence.lock.unlock();
+    }
+    return generator.format(sequence.permutation.permute(number));
+  }
+
+  /**
+   * Claims the next free block of a realm; runs in the caller's transaction.
+   */
+  long lease(KeycloakSession session, RealmModel realm) {
+    SingleUseObjectProvider singleUse = session.singleUseObjects();
+    long block = highWater(realm);
+    if (singleUse.putIfAbsent(EPOCH_KEY_PREFIX + realm.getId(), LEASE_LIFESPAN_SECONDS) && block > 0) {
+      block += RESTART_GAP_BLOCKS;
+    }
+    while (!singleUse.putIfAbsent(BLOCK_KEY_PREFIX + realm.getId() + ':' + block, LEASE_LIFESPAN_SECONDS)) {
+      block++;
+    }
+    if (block >= maxBlocks) {
+      throw new ModelException("Username sequence of realm " + realm.getName() + " is exhausted");
+    }
+    realm.setAttribute(HIGH_WATER_ATTRIBUTE, Long.toString(block + 1));
+    logger.debugf("Username Allocator: Leased username block - realm=%s, block=%d", realm.getName(), block);
+    return block;
+  }
+
+  void close() {
+    if (leaseExecutor instanceof ExecutorService executorService) {
+      executorService.shutdownNow();
+    }
+    sequences.clear();
+  }
+
+  private void startBlock(RealmSequence sequence, long block) {
+    sequence.next = block * blockSize;
+    sequence.end = sequence.next + blockSize;
+  }
+
+  private void schedulePrefetch(KeycloakSessionFactory sessionFactory, String realmId, RealmSequence sequence) {
+    if (!sequence.leasing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      leaseExecutor.execute(() -> {
+        try {
+          sequence.prefetched = leaser.lease(sessionFactory, realmId);
+        } catch (RuntimeException e) {
+          // The request that exhausts the block leases synchronously instead
+          logger.warnf(e, "Username Allocator: Username block prefetch failed - realmId=%s", realmId);
+        } finally {
+          sequence.leasing.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      sequence.leasing.set(false);
+    }
+  }
+
+  private long leaseInTransaction(KeycloakSessionFactory sessionFactory, String realmId) {
+    return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+      RealmModel realm = session.realms().getRealm(realmId);
+      if (realm == null) {
+        throw new ModelException("Realm not found: " + realmId);
+      }
+      return lease(session, realm);
+    });
+  }
+
+  private static long highWater(RealmModel realm) {
+    String value = realm.getAttribute(HIGH_WATER_ATTRIBUTE);
+    if (value == null || value.isBlank()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      throw new ModelException("Invalid " + HIGH_WATER_ATTRIBUTE + " of realm " + realm.getName() + ": " + value);
+    }
+  }
+}
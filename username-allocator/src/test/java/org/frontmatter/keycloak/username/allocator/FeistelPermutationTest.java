@@ -0,0 +1,74 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeistelPermutationTest {
+
+  @Test
+  void testPermutesEvenWidthDomain() {
+    assertBijection(new FeistelPermutation(16, "secret"));
+  }
+
+  @Test
+  void testPermutesOddWidthDomain() {
+    assertBijection(new FeistelPermutation(17, "secret"));
+  }
+
+  @Test
+  void testSameKeyGivesSamePermutation() {
+    FeistelPermutation first = new FeistelPermutation(40, "secret:realm-1");
+    FeistelPermutation second = new FeistelPermutation(40, "secret:realm-1");
+
+    for (long value = 0; value < 1000; value++) {
+      assertEquals(first.permute(value), second.permute(value));
+    }
+  }
+
+  @Test
+  void testDifferentKeysGiveDifferentPermutations() {
+    FeistelPermutation first = new FeistelPermutation(40, "secret:realm-1");
+    FeistelPermutation second = new FeistelPermutation(40, "secret:realm-2");
+
+    int equal = 0;
+    for (long value = 0; value < 1000; value++) {
+      if (first.permute(value) == second.permute(value)) {
+        equal++;
+      }
+    }
+    assertTrue(equal < 5, "Keys should lead to unrelated permutations");
+  }
+
+  @Test
+  void testConsecutiveValuesDoNotLookSequential() {
+    FeistelPermutation permutation = new FeistelPermutation(40, "secret");
+
+    long first = permutation.permute(0);
+    long second = permutation.permute(1);
+    assertTrue(Math.abs(first - second) > 1L << 20, "Neighbouring counters should land far apart");
+  }
+
+  @Test
+  void testRejectsValuesOutsideTheDomain() {
+    FeistelPermutation permutation = new FeistelPermutation(40, "secret");
+
+    assertThrows(IllegalArgumentException.class, () -> permutation.permute(1L << 40));
+    assertThrows(IllegalArgumentException.class, () -> permutation.permute(-1));
+    assertThrows(IllegalArgumentException.class, () -> new FeistelPermutation(63, "secret"));
+  }
+
+  private static void assertBijection(FeistelPermutation permutation) {
+    int size = 1 << permutation.bits();
+    BitSet seen = new BitSet(size);
+    for (long value = 0; value < size; value++) {
+      long permuted = permutation.permute(value);
+      assertTrue(permuted >= 0 && permuted < size, "Output must stay in the domain");
+      assertFalse(seen.get((int) permuted), "Output repeated: " + permuted);
+      seen.set((int) permuted);
+    }
+    assertEquals(size, seen.cardinality());
+  }
+}
@@ -0,0 +1,189 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class UsernameAllocatorTest {
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserProvider userProvider;
+  private List<Runnable> scheduledTasks;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    userProvider = mock(UserProvider.class);
+    when(session.users()).thenReturn(userProvider);
+    when(realm.getId()).thenReturn("realm-1");
+    when(realm.getName()).thenReturn("invenio");
+    scheduledTasks = new ArrayList<>();
+  }
+
+  @Test
+  void testAllocateReturnsFirstFreeUsername() {
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, null, null);
+
+    String username = allocator.allocate(session, realm);
+
+    assertTrue(username.matches("^usr_[0-9a-hj-km-np-tv-z]{8}$"));
+    verify(userProvider, times(1)).getUserByUsername(realm, username);
+  }
+
+  @Test
+  void testAllocateTakesFromThePoolFirst() {
+    UsernamePool pool = mock(UsernamePool.class);
+    when(pool.take(session, realm)).thenReturn("usr_p00l3d01");
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        pool, null, null);
+
+    assertEquals("usr_p00l3d01", allocator.allocate(session, realm));
+    verify(userProvider, never()).getUserByUsername(any(), anyString());
+  }
+
+  @Test
+  void testAllocateLooksUpUsernameTheFilterReportsFree() {
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), any(), any()))
+        .thenAnswer(inv -> Stream.empty());
+    UsernameFilterIndex filter = new UsernameFilterIndex(UsernameGenerator.DEFAULT, 1_000, null, scheduledTasks::add,
+        new UsernameFilterIndex.RealmTransaction() {
+          @Override
+          public <V> V run(KeycloakSessionFactory sessionFactory, String realmId,
+              BiFunction<KeycloakSession, RealmModel, V> task) {
+            return task.apply(session, realm);
+          }
+        });
+    filter.build(null, "realm-1");
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, filter, null);
+
+    String username = allocator.allocate(session, realm);
+    allocator.assigned(realm, username);
+
+    // The filter does not know users created on other nodes
+    verify(userProvider, times(1)).getUserByUsername(realm, username);
+    assertTrue(filter.mightBeTaken(session, realm, username), "Assigned usernames are added to the filter");
+    filter.close();
+  }
+
+  @Test
+  void testAllocateSkipsUsernamesTheFilterReportsTaken() {
+    UsernameFilterIndex filter = mock(UsernameFilterIndex.class);
+    when(filter.mightBeTaken(any(), any(), anyString())).thenReturn(true, true, false);
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, filter, null);
+
+    String username = allocator.allocate(session, realm);
+
+    verify(userProvider, times(1)).getUserByUsername(any(RealmModel.class), anyString());
+    verify(userProvider).getUserByUsername(realm, username);
+  }
+
+  @Test
+  void testAllocateRetriesUsernameTakenOutsideTheFilter() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString()))
+        .thenReturn(mock(UserModel.class))
+        .thenReturn(null);
+    UsernameFilterIndex filter = mock(UsernameFilterIndex.class);
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, filter, null);
+
+    assertNotNull(allocator.allocate(session, realm));
+    verify(filter, times(1)).confirmedTaken(realm);
+    verify(filter, never()).confirmedFree(any());
+  }
+
+  @Test
+  void testAllocateFailsAfterRetryBudget() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString())).thenReturn(mock(UserModel.class));
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, null, null);
+
+    assertThrows(ModelException.class, () -> allocator.allocate(session, realm));
+    verify(userProvider, times(3)).getUserByUsername(any(RealmModel.class), anyString());
+  }
+
+  @Test
+  void testDefaultAllocatorFailsAfterRetryBudget() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString())).thenReturn(mock(UserModel.class));
+
+    assertThrows(ModelException.class, () -> UsernameAllocator.UNPOOLED.allocate(session, realm));
+    verify(userProvider, times(UsernameAllocator.DEFAULT_RETRY_BUDGET))
+        .getUserByUsername(any(RealmModel.class), anyString());
+  }
+
+  @Test
+  void testAllocateFallsBackToUuidAfterRetryBudget() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString())).thenReturn(mock(UserModel.class));
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 10, CollisionStrategy.UUID,
+        null, null, null);
+
+    String username = allocator.allocate(session, realm);
+
+    assertDoesNotThrow(() -> UUID.fromString(username));
+    verify(userProvider, times(10)).getUserByUsername(any(RealmModel.class), anyString());
+  }
+
+  @Test
+  void testSequenceModeNeedsNoLookup() {
+    UsernameSequence sequence = new UsernameSequence(UsernameGenerator.DEFAULT, 1000, "secret",
+        (sessionFactory, realmId) -> 0L, scheduledTasks::add);
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, null, sequence);
+
+    String first = allocator.allocate(session, realm);
+    String second = allocator.allocate(session, realm);
+
+    assertNotEquals(first, second);
+    verify(userProvider, never()).getUserByUsername(any(), anyString());
+  }
+
+  @Test
+  void testSequenceModeSkipsNamesTakenBeforehand() {
+    when(userProvider.getUserByUsername(any(RealmModel.class), anyString()))
+        .thenReturn(mock(UserModel.class))
+        .thenReturn(null);
+    UsernameFilterIndex filter = mock(UsernameFilterIndex.class);
+    UsernameSequence sequence = new UsernameSequence(UsernameGenerator.DEFAULT, 1000, "secret",
+        (sessionFactory, realmId) -> 0L, scheduledTasks::add);
+    UsernameAllocator allocator = new UsernameAllocator(UsernameGenerator.DEFAULT, 3, CollisionStrategy.FAIL,
+        null, filter, sequence);
+
+    assertNotNull(allocator.allocate(session, realm));
+    verify(userProvider, times(2)).getUserByUsername(any(RealmModel.class), anyString());
+  }
+
+  @Test
+  void testProviderFallsBackToUnpooledAllocatorWithoutSpi() {
+    UsernameAllocatorProvider provider = UsernameAllocatorProvider.of(session);
+
+    assertTrue(provider.allocate(realm).startsWith("usr_"));
+  }
+
+  @Test
+  void testCollisionStrategyFromConfig() {
+    assertEquals(CollisionStrategy.FAIL, CollisionStrategy.fromConfig(" Fail ", CollisionStrategy.UUID));
+    assertEquals(CollisionStrategy.UUID, CollisionStrategy.fromConfig(null, CollisionStrategy.UUID));
+    assertThrows(IllegalArgumentException.class, () -> CollisionStrategy.fromConfig("email", CollisionStrategy.UUID));
+  }
+}
@@ -0,0 +1,73 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UsernameBloomFilterTest {
+
+  @Test
+  void testAddedUsernamesAreAlwaysReported() {
+    UsernameBloomFilter filter = UsernameBloomFilter.create(10_000, 0.01);
+    List<String> usernames = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      String username = UsernameGenerator.DEFAULT.generate();
+      usernames.add(username);
+      filter.add(username);
+    }
+
+    assertTrue(usernames.stream().allMatch(filter::mightContain));
+    assertEquals(10_000, filter.insertions());
+  }
+
+  @Test
+  void testFalsePositiveRateStaysNearTarget() {
+    UsernameBloomFilter filter = UsernameBloomFilter.create(10_000, 0.01);
+    for (int i = 0; i < 10_000; i++) {
+      filter.add(UsernameGenerator.DEFAULT.generate());
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (filter.mightContain("other_" + i)) {
+        falsePositives++;
+      }
+    }
+
+    assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+    assertEquals(0.01, filter.expectedFalsePositiveRate(), 0.005);
+    // About 9.6 bits per expected username at 1%
+    assertTrue(filter.memoryBytes() < 13_000, "Memory: " + filter.memoryBytes());
+  }
+
+  @Test
+  void testSnapshotRoundTrip() throws IOException {
+    UsernameBloomFilter filter = UsernameBloomFilter.create(1_000, 0.01);
+    filter.add("usr_a3k9m2p7");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    filter.writeTo(new DataOutputStream(bytes));
+    UsernameBloomFilter restored = UsernameBloomFilter.readFrom(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertTrue(restored.mightContain("usr_a3k9m2p7"));
+    assertEquals(1, restored.insertions());
+    assertEquals(filter.memoryBytes(), restored.memoryBytes());
+  }
+
+  @Test
+  void testCorruptSnapshotIsRejected() {
+    byte[] garbage = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    assertThrows(IOException.class, () -> UsernameBloomFilter.readFrom(
+        new DataInputStream(new ByteArrayInputStream(garbage))));
+  }
+}
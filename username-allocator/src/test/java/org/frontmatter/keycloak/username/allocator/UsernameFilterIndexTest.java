@@ -0,0 +1,155 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class UsernameFilterIndexTest {
+
+  @TempDir
+  Path snapshotDir;
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserProvider userProvider;
+  private List<Runnable> scheduledBuilds;
+  private AtomicInteger transactions;
+  private UsernameFilterIndex.RealmTransaction transaction;
+  private UsernameFilterIndex index;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    userProvider = mock(UserProvider.class);
+    when(session.users()).thenReturn(userProvider);
+    when(realm.getId()).thenReturn("realm-1");
+    when(realm.getName()).thenReturn("invenio");
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), any(), any()))
+        .thenAnswer(inv -> Stream.of(user("usr_a3k9m2p7"), user("admin")));
+    scheduledBuilds = new ArrayList<>();
+    transactions = new AtomicInteger();
+    transaction = new UsernameFilterIndex.RealmTransaction() {
+      @Override
+      public <V> V run(KeycloakSessionFactory sessionFactory, String realmId,
+          BiFunction<KeycloakSession, RealmModel, V> task) {
+        transactions.incrementAndGet();
+        return "realm-1".equals(realmId) ? task.apply(session, realm) : null;
+      }
+    };
+    index = new UsernameFilterIndex(UsernameGenerator.DEFAULT, 1_000, snapshotDir, scheduledBuilds::add, transaction);
+  }
+
+  @AfterEach
+  void tearDown() {
+    index.close();
+  }
+
+  @Test
+  void testUsernamesAreUncertainUntilTheFilterIsBuilt() {
+    assertFalse(index.isCertainlyFree(session, realm, "usr_zzzzzzzz"));
+    assertFalse(index.isCertainlyFree(session, realm, "usr_yyyyyyyy"));
+
+    assertEquals(1, scheduledBuilds.size(), "A build already in progress must not be scheduled again");
+  }
+
+  @Test
+  void testBuiltFilterAnswersWithoutLookups() {
+    index.added(realm, "usr_created1");
+    index.build(null, "realm-1");
+
+    assertFalse(index.isCertainlyFree(session, realm, "usr_a3k9m2p7"));
+    assertFalse(index.isCertainlyFree(session, realm, "usr_created1"), "Users created during the build are kept");
+    assertTrue(index.isCertainlyFree(session, realm, "usr_zzzzzzzz"));
+    assertTrue(index.mightBeTaken(session, realm, "usr_a3k9m2p7"));
+    assertFalse(index.mightBeTaken(session, realm, "usr_zzzzzzzz"));
+    verify(userProvider, never()).getUserByUsername(any(), any());
+  }
+
+  @Test
+  void testUnbuiltFilterReportsNoUsernameAsTaken() {
+    assertFalse(index.mightBeTaken(session, realm, "usr_a3k9m2p7"));
+  }
+
+  @Test
+  void testScanPagesThroughUsersInTransactionsOfTheirOwn() {
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), eq(0), eq(UsernameFilterIndex.SCAN_PAGE_SIZE)))
+        .thenAnswer(inv -> IntStream.range(0, UsernameFilterIndex.SCAN_PAGE_SIZE)
+            .mapToObj(i -> user(String.format("usr_%08d", i))));
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), eq(UsernameFilterIndex.SCAN_PAGE_SIZE),
+        eq(UsernameFilterIndex.SCAN_PAGE_SIZE)))
+        .thenAnswer(inv -> Stream.of(user("usr_lastpage")));
+
+    index.build(null, "realm-1");
+
+    assertFalse(index.isCertainlyFree(session, realm, "usr_00000000"));
+    assertFalse(index.isCertainlyFree(session, realm, "usr_lastpage"));
+    verify(userProvider, times(2)).searchForUserStream(any(RealmModel.class), anyMap(), any(), any());
+    // Realm lookup, user count and two pages
+    assertEquals(4, transactions.get());
+  }
+
+  @Test
+  void testRemovedRealmIsNotBuilt() {
+    index.build(null, "realm-2");
+
+    verify(userProvider, never()).searchForUserStream(any(RealmModel.class), anyMap(), any(), any());
+  }
+
+  @Test
+  void testSnapshotReplacesTheScan() {
+    index.build(null, "realm-1");
+    index.close();
+    assertTrue(Files.exists(snapshotDir.resolve(
+        "username-filter-realm-1-" + Integer.toHexString("usr_".hashCode()) + ".bin")));
+
+    UsernameFilterIndex restarted = new UsernameFilterIndex(UsernameGenerator.DEFAULT, 1_000, snapshotDir,
+        scheduledBuilds::add, transaction);
+    restarted.build(null, "realm-1");
+
+    assertFalse(restarted.isCertainlyFree(session, realm, "usr_a3k9m2p7"));
+    verify(userProvider, times(1)).searchForUserStream(any(RealmModel.class), anyMap(), any(), any());
+    restarted.close();
+  }
+
+  @Test
+  void testSnapshotOfAnotherPrefixIsIgnored() {
+    index.build(null, "realm-1");
+    index.close();
+
+    UsernameGenerator inv = new UsernameGenerator("inv_", 8, UsernameGenerator.CROCKFORD_BASE32);
+    UsernameFilterIndex restarted = new UsernameFilterIndex(inv, 1_000, snapshotDir, scheduledBuilds::add,
+        transaction);
+    restarted.build(null, "realm-1");
+
+    verify(userProvider, times(2)).searchForUserStream(any(RealmModel.class), anyMap(), any(), any());
+    restarted.close();
+  }
+
+  private static UserModel user(String username) {
+    UserModel user = mock(UserModel.class);
+    when(user.getUsername()).thenReturn(username);
+    return user;
+  }
+}
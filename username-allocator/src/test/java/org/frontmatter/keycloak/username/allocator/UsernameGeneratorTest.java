@@ -0,0 +1,178 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.RepeatedTest;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UsernameGeneratorTest {
+
+  private static final Pattern USERNAME_PATTERN = Pattern.compile("^usr_[0-9a-hj-kmnp-z]{8}$");
+
+  @Test
+  void testGenerateReturnsNonNull() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    assertNotNull(username, "Generated username should not be null");
+  }
+
+  @Test
+  void testGenerateHasCorrectFormat() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    assertTrue(USERNAME_PATTERN.matcher(username).matches(),
+        "Username should match pattern usr_XXXXXXXX with base32 characters");
+  }
+
+  @Test
+  void testGenerateStartsWithPrefix() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    assertTrue(username.startsWith("usr_"),
+        "Username should start with 'usr_' prefix");
+  }
+
+  @Test
+  void testGenerateHasCorrectLength() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    assertEquals(12, username.length(),
+        "Username should have total length of 12 (usr_ + 8 characters)");
+  }
+
+  @Test
+  void testGenerateUsesBase32Characters() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    String idPart = username.substring(4); // Remove "usr_" prefix
+
+    for (char c : idPart.toCharArray()) {
+      assertTrue(isValidBase32Char(c),
+          "Character '" + c + "' should be a valid base32 character");
+    }
+  }
+
+  @Test
+  void testGenerateExcludesAmbiguousCharacters() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    String idPart = username.substring(4);
+
+    // Should not contain i, l, o, u
+    assertFalse(idPart.contains("i"), "Should not contain 'i'");
+    assertFalse(idPart.contains("l"), "Should not contain 'l'");
+    assertFalse(idPart.contains("o"), "Should not contain 'o'");
+    assertFalse(idPart.contains("u"), "Should not contain 'u'");
+  }
+
+  @RepeatedTest(100)
+  void testGenerateProducesRandomValues() {
+    String username1 = UsernameGenerator.DEFAULT.generate();
+    String username2 = UsernameGenerator.DEFAULT.generate();
+
+    // While theoretically they could be the same, with 32^8 possibilities it's
+    // extremely unlikely
+    assertNotEquals(username1, username2,
+        "Two consecutive generations should produce different usernames");
+  }
+
+  @Test
+  void testGenerateUniqueness() {
+    Set<String> usernames = new HashSet<>();
+    int iterations = 1000;
+
+    for (int i = 0; i < iterations; i++) {
+      String username = UsernameGenerator.DEFAULT.generate();
+      assertTrue(usernames.add(username),
+          "All generated usernames should be unique");
+    }
+
+    assertEquals(iterations, usernames.size(),
+        "Should generate " + iterations + " unique usernames");
+  }
+
+  @Test
+  void testGenerateIsLowercase() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    assertEquals(username, username.toLowerCase(),
+        "Username should be all lowercase");
+  }
+
+  @Test
+  void testGenerateNoSpecialCharacters() {
+    String username = UsernameGenerator.DEFAULT.generate();
+    String idPart = username.substring(4);
+
+    assertTrue(idPart.matches("[0-9a-z]+"),
+        "ID part should only contain alphanumeric characters");
+  }
+
+  private boolean isValidBase32Char(char c) {
+    return (c >= '0' && c <= '9') ||
+        (c >= 'a' && c <= 'h') ||
+        (c >= 'j' && c <= 'k') ||
+        (c >= 'm' && c <= 'n') ||
+        (c >= 'p' && c <= 'z');
+  }
+
+  @Test
+  void testGenerateCompletesBatchPrefix() {
+    String prefix = UsernameGenerator.DEFAULT.batchPrefix(4);
+    String username = UsernameGenerator.DEFAULT.generate(prefix);
+
+    assertEquals(8, prefix.length());
+    assertTrue(username.startsWith(prefix));
+    assertTrue(USERNAME_PATTERN.matcher(username).matches());
+  }
+
+  @Test
+  void testGenerateIsUniqueAcrossVirtualThreads() throws Exception {
+    Set<String> usernames = ConcurrentHashMap.newKeySet();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 10_000; i++) {
+        executor.submit(() -> usernames.add(UsernameGenerator.DEFAULT.generate()));
+      }
+    }
+
+    assertEquals(10_000, usernames.size(), "Generators picked by thread id must not repeat each other");
+  }
+
+  @Test
+  void testGenerateWithCustomPrefixLengthAndAlphabet() {
+    UsernameGenerator generator = new UsernameGenerator("inv-", 12, "0123456789abcdef");
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(generator.generate().matches("^inv-[0-9a-f]{12}$"));
+    }
+    assertEquals(1L << 48, generator.capacity());
+  }
+
+  @Test
+  void testGenerateWithSixtyFourCharacterAlphabet() {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    UsernameGenerator generator = new UsernameGenerator("", 11, alphabet);
+
+    String username = generator.generate();
+    assertEquals(11, username.length());
+    assertTrue(username.chars().allMatch(c -> alphabet.indexOf(c) >= 0));
+  }
+
+  @Test
+  void testRejectsInvalidAlphabets() {
+    assertThrows(IllegalArgumentException.class, () -> new UsernameGenerator("usr_", 8, "0123456789"));
+    assertThrows(IllegalArgumentException.class, () -> new UsernameGenerator("usr_", 8, "aabc"));
+    assertThrows(IllegalArgumentException.class, () -> new UsernameGenerator("usr_", 0, "ab"));
+  }
+
+  @Test
+  void testFormatEncodesAllRandomBits() {
+    UsernameGenerator generator = UsernameGenerator.DEFAULT;
+
+    assertEquals(40, generator.randomBits());
+    assertEquals("usr_00000000", generator.format(0));
+    assertEquals("usr_0000000z", generator.format(31));
+    assertEquals("usr_00000010", generator.format(32));
+    assertEquals("usr_zzzzzzzz", generator.format((1L << 40) - 1));
+  }
+}
@@ -0,0 +1,86 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class UsernamePoolTest {
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserProvider userProvider;
+  private List<Runnable> scheduledRefills;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    userProvider = mock(UserProvider.class);
+    when(session.users()).thenReturn(userProvider);
+    when(realm.getId()).thenReturn("realm-1");
+    scheduledRefills = new ArrayList<>();
+  }
+
+  @Test
+  void testFillAddsUniqueUsernamesUpToCapacity() {
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), anyInt(), anyInt()))
+        .thenAnswer(inv -> Stream.empty());
+    UsernamePool pool = new UsernamePool(UsernameGenerator.DEFAULT, 50, 10, scheduledRefills::add);
+    UsernamePool.RealmPool realmPool = new UsernamePool.RealmPool();
+
+    pool.fill(session, realm, realmPool);
+
+    Set<String> usernames = new HashSet<>(realmPool.usernames);
+    assertEquals(50, realmPool.size.get());
+    assertEquals(50, usernames.size());
+    assertTrue(usernames.stream().allMatch(username -> username.matches("^usr_[0-9a-hj-km-np-tv-z]{8}$")));
+    // One prefix search per batch instead of one lookup per username
+    verify(userProvider, times(1)).searchForUserStream(any(RealmModel.class), anyMap(), anyInt(), anyInt());
+    verify(userProvider, never()).getUserByUsername(any(), anyString());
+  }
+
+  @Test
+  void testFillSkipsCrowdedPrefixes() {
+    when(userProvider.searchForUserStream(any(RealmModel.class), anyMap(), anyInt(), anyInt()))
+        .thenAnswer(inv -> IntStream.range(0, 1000).mapToObj(i -> {
+          UserModel taken = mock(UserModel.class);
+          when(taken.getUsername()).thenReturn("usr_taken" + i);
+          return taken;
+        }));
+    UsernamePool pool = new UsernamePool(UsernameGenerator.DEFAULT, 5, 1, scheduledRefills::add);
+    UsernamePool.RealmPool realmPool = new UsernamePool.RealmPool();
+
+    pool.fill(session, realm, realmPool);
+
+    assertEquals(0, realmPool.size.get());
+    assertTrue(realmPool.usernames.isEmpty());
+  }
+
+  @Test
+  void testTakeFromEmptyPoolSchedulesSingleRefill() {
+    UsernamePool pool = new UsernamePool(UsernameGenerator.DEFAULT, 20, 5, scheduledRefills::add);
+
+    assertNull(pool.take(session, realm));
+    assertNull(pool.take(session, realm));
+
+    assertEquals(1, scheduledRefills.size(), "A refill already in progress must not be scheduled again");
+    assertEquals(0, pool.size("realm-1"));
+  }
+}
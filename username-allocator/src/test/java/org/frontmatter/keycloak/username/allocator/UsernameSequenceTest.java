@@ -0,0 +1,113 @@
+package org.frontmatter.keycloak.username.allocator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class UsernameSequenceTest {
+
+  private KeycloakSession session;
+  private RealmModel realm;
+  private SingleUseObjectProvider singleUse;
+  private List<Runnable> scheduledLeases;
+  private AtomicLong nextBlock;
+  private List<Long> leasedBlocks;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(KeycloakSession.class);
+    realm = mock(RealmModel.class);
+    singleUse = mock(SingleUseObjectProvider.class);
+    when(session.singleUseObjects()).thenReturn(singleUse);
+    when(realm.getId()).thenReturn("realm-1");
+    when(realm.getName()).thenReturn("invenio");
+    scheduledLeases = new ArrayList<>();
+    nextBlock = new AtomicLong();
+    leasedBlocks = new ArrayList<>();
+  }
+
+  @Test
+  void testUsernamesAreUniqueAcrossBlocks() {
+    UsernameSequence sequence = sequence(10);
+
+    Set<String> usernames = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      String username = sequence.next(session, realm);
+      assertTrue(username.matches("^usr_[0-9a-hj-km-np-tv-z]{8}$"), username);
+      assertTrue(usernames.add(username), "Repeated username " + username);
+      scheduledLeases.forEach(Runnable::run);
+      scheduledLeases.clear();
+    }
+    assertEquals(11, leasedBlocks.size(), "One lease per block of ten, plus the prefetched next block");
+  }
+
+  @Test
+  void testNextBlockIsLeasedInTheBackground() {
+    UsernameSequence sequence = sequence(10);
+
+    for (int i = 0; i < 8; i++) {
+      sequence.next(session, realm);
+    }
+    assertEquals(1, leasedBlocks.size());
+    assertEquals(1, scheduledLeases.size(), "Prefetch scheduled once the block runs low");
+
+    scheduledLeases.get(0).run();
+    for (int i = 0; i < 3; i++) {
+      sequence.next(session, realm);
+    }
+    assertEquals(2, leasedBlocks.size(), "The prefetched block is used without another lease");
+  }
+
+  @Test
+  void testSameKeyAndRealmGiveSameUsernames() {
+    String first = sequence(10).next(session, realm);
+    nextBlock.set(0);
+
+    assertEquals(first, sequence(10).next(session, realm), "Nodes sharing the key must agree on the mapping");
+  }
+
+  @Test
+  void testLeaseSkipsBlocksClaimedByOtherNodes() {
+    when(realm.getAttribute(UsernameSequence.HIGH_WATER_ATTRIBUTE)).thenReturn("5");
+    when(singleUse.putIfAbsent(eq(UsernameSequence.EPOCH_KEY_PREFIX + "realm-1"), anyLong())).thenReturn(false);
+    when(singleUse.putIfAbsent(eq(UsernameSequence.BLOCK_KEY_PREFIX + "realm-1:5"), anyLong())).thenReturn(false);
+    when(singleUse.putIfAbsent(eq(UsernameSequence.BLOCK_KEY_PREFIX + "realm-1:6"), anyLong())).thenReturn(true);
+
+    long block = sequence(1000).lease(session, realm);
+
+    assertEquals(6, block);
+    verify(realm).setAttribute(UsernameSequence.HIGH_WATER_ATTRIBUTE, "7");
+  }
+
+  @Test
+  void testFirstLeaseAfterClusterRestartSkipsGap() {
+    when(realm.getAttribute(UsernameSequence.HIGH_WATER_ATTRIBUTE)).thenReturn("5");
+    when(singleUse.putIfAbsent(anyString(), anyLong())).thenReturn(true);
+
+    long block = sequence(1000).lease(session, realm);
+
+    assertEquals(5 + UsernameSequence.RESTART_GAP_BLOCKS, block);
+  }
+
+  private UsernameSequence sequence(int blockSize) {
+    return new UsernameSequence(UsernameGenerator.DEFAULT, blockSize, "secret", (sessionFactory, realmId) -> {
+      long block = nextBlock.getAndIncrement();
+      leasedBlocks.add(block);
+      return block;
+    }, scheduledLeases::add);
+  }
+}